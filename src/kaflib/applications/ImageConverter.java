@@ -4,18 +4,19 @@ import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-import kaflib.graphics.Canvas;
+import kaflib.graphics.ImageConversionPipeline;
 import kaflib.gui.components.KRadioPanel;
 import kaflib.types.Directory;
 import kaflib.types.Worker;
-import kaflib.utils.FileUtils;
 import kaflib.utils.GUIUtils;
 
 public class ImageConverter extends JFrame {
@@ -44,7 +45,19 @@ public class ImageConverter extends JFrame {
 					Worker worker = new Worker() {
 						@Override
 						protected void process() throws Exception {
-							convert();
+							try {
+								convert();
+							}
+							catch (final Exception ex) {
+								SwingUtilities.invokeLater(new Runnable(){
+									@Override
+									public void run() {
+										GUIUtils.showErrorDialog(ImageConverter.this, ex.getMessage());
+									}
+								});
+								enableControls();
+								throw ex;
+							}
 						}
 					};
 					worker.start();
@@ -89,33 +102,78 @@ public class ImageConverter extends JFrame {
 			if (!output_directory.exists()) {
 				output_directory.mkdir();
 			}
-			for (File file : files) {
-				Canvas canvas = new Canvas(file);
-				File output = new File(output_directory, file.getName());
-				
-				if (format.getSelected().equals("png")) {
-					output = FileUtils.changeExtension(output, "png");
-					canvas.toPNG(output);
-				}
-				else if (format.getSelected().equals("jpg")) {
-					output = FileUtils.changeExtension(output, "jpg");
-					canvas.toJPG(output);
-				}
-				else {
-					throw new Exception("Unknown format: " + format.getSelected() + ".");
-				}
+			if (!format.getSelected().equals("png") && !format.getSelected().equals("jpg")) {
+				throw new Exception("Unknown format: " + format.getSelected() + ".");
 			}
+			ImageConversionPipeline pipeline = new ImageConversionPipeline(output_directory, format.getSelected());
+			pipeline.convert(files);
+			checkFailures(pipeline);
 		}
 		
-		format.setEnabled(true);
-		go.setEnabled(true);
-		exit.setEnabled(true);
+		enableControls();
+	}
+	
+	/**
+	 * Re-enables the controls once a conversion ends, on the event thread.
+	 */
+	private void enableControls() {
+		SwingUtilities.invokeLater(new Runnable(){
+			@Override
+			public void run() {
+				format.setEnabled(true);
+				go.setEnabled(true);
+				exit.setEnabled(true);
+			}
+		});
 	}
 	
+	/**
+	 * Throws listing the files the pipeline could not convert, if any.
+	 * @param pipeline
+	 * @throws Exception
+	 */
+	private static void checkFailures(final ImageConversionPipeline pipeline) throws Exception {
+		Map<File, Exception> failures = pipeline.getFailures();
+		if (failures.isEmpty()) {
+			return;
+		}
+		StringBuilder message = new StringBuilder("Unable to convert " + failures.size() + " file(s):");
+		for (File file : failures.keySet()) {
+			message.append("\n" + file.getName() + ": " + failures.get(file).getMessage());
+		}
+		throw new Exception(message.toString());
+	}
+	
+	/**
+	 * With no arguments, opens the chooser.  Otherwise converts headless:
+	 * input directory, output directory, format, and optionally quality
+	 * (0-1), max width and max height.
+	 * @param args
+	 */
 	public static void main(String args[]) {
 		try {
-			ImageConverter converter = new ImageConverter();
-			converter.setVisible(true);
+			if (args.length == 0) {
+				ImageConverter converter = new ImageConverter();
+				converter.setVisible(true);
+				return;
+			}
+			if (args.length < 3 || args.length > 6) {
+				System.out.println("Usage: ImageConverter <input directory> <output directory> <format> [quality] [max width] [max height]");
+				System.exit(1);
+			}
+			File output_file = new File(args[1]);
+			output_file.mkdirs();
+			Directory output = new Directory(output_file);
+			ImageConversionPipeline pipeline = new ImageConversionPipeline(output, 
+																		   args[2], 
+																		   args.length > 3 ? Float.valueOf(args[3]) : null,
+																		   Runtime.getRuntime().availableProcessors());
+			if (args.length > 4) {
+				pipeline.setFit(Integer.valueOf(args[4]), args.length > 5 ? Integer.valueOf(args[5]) : null);
+			}
+			pipeline.convert(new Directory(args[0]), true);
+			System.out.println(pipeline.getStatistics());
+			checkFailures(pipeline);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,332 @@
+package kaflib.applications.mtg;
+
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines bitmap indexes over card instances, keyed by card id: one bitmap
+ * per validity, converted mana cost, color, type and rating tenth, plus
+ * owned.  Inserts set a bit in each applicable bitmap, so filters are
+ * bitmap intersections rather than passes over every card; see CardQuery.
+ *
+ * Ratings are read when the instance is added, re-add it after changing
+ * one.  Not synchronized.
+ */
+public class AttributeIndex {
+
+	private static final int RATING_BUCKETS = 51;
+
+	private final BitSet all;
+	private final BitSet domestic;
+	private final BitSet invalid;
+	private final BitSet foreign;
+	private final BitSet have;
+	private final BitSet rated;
+	private final TreeMap<Integer, BitSet> cmc;
+	private final Map<ManaColor, BitSet> colors;
+	private final Map<Type, BitSet> types;
+	private final BitSet ratings[];
+	private final Map<Integer, Float> rating_values;
+
+	/**
+	 * Creates an empty index.
+	 */
+	public AttributeIndex() {
+		all = new BitSet();
+		domestic = new BitSet();
+		invalid = new BitSet();
+		foreign = new BitSet();
+		have = new BitSet();
+		rated = new BitSet();
+		cmc = new TreeMap<Integer, BitSet>();
+		colors = new EnumMap<ManaColor, BitSet>(ManaColor.class);
+		for (ManaColor color : ManaColor.values()) {
+			colors.put(color, new BitSet());
+		}
+		types = new EnumMap<Type, BitSet>(Type.class);
+		for (Type type : Type.values()) {
+			types.put(type, new BitSet());
+		}
+		ratings = new BitSet[RATING_BUCKETS];
+		for (int i = 0; i < ratings.length; i++) {
+			ratings[i] = new BitSet();
+		}
+		rating_values = new HashMap<Integer, Float>();
+	}
+
+	/**
+	 * Indexes the instance, replacing any earlier instance with its id.
+	 * @param instance
+	 * @param owned
+	 * @throws Exception
+	 */
+	public void add(final CardInstance instance, final boolean owned) throws Exception {
+		CheckUtils.check(instance, "instance");
+		int id = instance.getID();
+		CheckUtils.checkNonNegative(id, "card id");
+		remove(id);
+		all.set(id);
+		if (instance.isInvalid()) {
+			invalid.set(id);
+			return;
+		}
+		if (instance.isForeign()) {
+			foreign.set(id);
+			return;
+		}
+
+		domestic.set(id);
+		have.set(id, owned);
+		Card card = instance.getCard();
+		// Missing or not a number (X costs) is unknown, left out of the cmc
+		// index.  Card.getCMCValue() would read a blank as 0.
+		if (card.getCMC() != null && !card.getCMC().trim().isEmpty()) {
+			try {
+				int value = Integer.parseInt(card.getCMC().trim());
+				BitSet bits = cmc.get(value);
+				if (bits == null) {
+					bits = new BitSet();
+					cmc.put(value, bits);
+				}
+				bits.set(id);
+			}
+			catch (NumberFormatException e) {
+			}
+		}
+		for (ManaColor color : ManaColor.getColors(card.getCost())) {
+			colors.get(color).set(id);
+		}
+		if (card.getTypes() != null) {
+			for (Type type : Type.getTypes(card.getTypes())) {
+				types.get(type).set(id);
+			}
+		}
+		if (instance.hasRating()) {
+			float rating = instance.getRating();
+			rated.set(id);
+			ratings[getBucket(rating)].set(id);
+			rating_values.put(id, rating);
+		}
+	}
+
+	/**
+	 * Drops the id from every bitmap.
+	 * @param id
+	 */
+	public void remove(final int id) {
+		if (id < 0 || !all.get(id)) {
+			return;
+		}
+		all.clear(id);
+		domestic.clear(id);
+		invalid.clear(id);
+		foreign.clear(id);
+		have.clear(id);
+		rated.clear(id);
+		for (BitSet bits : cmc.values()) {
+			bits.clear(id);
+		}
+		for (BitSet bits : colors.values()) {
+			bits.clear(id);
+		}
+		for (BitSet bits : types.values()) {
+			bits.clear(id);
+		}
+		Float rating = rating_values.remove(id);
+		if (rating != null) {
+			ratings[getBucket(rating)].clear(id);
+		}
+	}
+
+	/**
+	 * Sets the owned flag on the id.
+	 * @param id
+	 * @param owned
+	 */
+	public void setHave(final int id, final boolean owned) {
+		if (id >= 0 && domestic.get(id)) {
+			have.set(id, owned);
+		}
+	}
+
+	public int size() {
+		return all.cardinality();
+	}
+
+	//
+	// Bitmaps, shared: copy before changing.
+	//
+
+	BitSet getAll() {
+		return all;
+	}
+
+	BitSet getDomestic() {
+		return domestic;
+	}
+
+	BitSet getInvalid() {
+		return invalid;
+	}
+
+	BitSet getForeign() {
+		return foreign;
+	}
+
+	BitSet getHave() {
+		return have;
+	}
+
+	BitSet getRated() {
+		return rated;
+	}
+
+	BitSet getColor(final ManaColor color) {
+		return colors.get(color);
+	}
+
+	BitSet getType(final Type type) {
+		return types.get(type);
+	}
+
+	/**
+	 * Returns the ids with converted mana cost in [min, max].
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	BitSet getCMC(final int min, final int max) {
+		BitSet result = new BitSet();
+		if (min > max) {
+			return result;
+		}
+		for (BitSet bits : cmc.subMap(min, true, max, true).values()) {
+			result.or(bits);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids rated in [min, max].  Whole tenths are unioned and
+	 * the two edge tenths checked card by card.
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	BitSet getRating(final float min, final float max) {
+		BitSet result = new BitSet();
+		if (min > max) {
+			return result;
+		}
+		int low = getBucket(min);
+		int high = getBucket(max);
+		for (int bucket = low; bucket <= high; bucket++) {
+			if (bucket == low || bucket == high) {
+				BitSet bits = ratings[bucket];
+				for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+					float rating = rating_values.get(id);
+					if (rating >= min && rating <= max) {
+						result.set(id);
+					}
+				}
+			}
+			else {
+				result.or(ratings[bucket]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of ids at each converted mana cost among the ids.
+	 * @param ids
+	 * @return
+	 */
+	public Map<Integer, Integer> getCMCHistogram(final BitSet ids) {
+		Map<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+		for (Integer value : cmc.keySet()) {
+			BitSet bits = (BitSet) cmc.get(value).clone();
+			bits.and(ids);
+			int count = bits.cardinality();
+			if (count > 0) {
+				histogram.put(value, count);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the number of ids of each color among the ids.
+	 * @param ids
+	 * @return
+	 */
+	public Map<ManaColor, Integer> getColorHistogram(final BitSet ids) {
+		Map<ManaColor, Integer> histogram = new EnumMap<ManaColor, Integer>(ManaColor.class);
+		for (ManaColor color : colors.keySet()) {
+			BitSet bits = (BitSet) colors.get(color).clone();
+			bits.and(ids);
+			histogram.put(color, bits.cardinality());
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the number of ids of each type among the ids.
+	 * @param ids
+	 * @return
+	 */
+	public Map<Type, Integer> getTypeHistogram(final BitSet ids) {
+		Map<Type, Integer> histogram = new EnumMap<Type, Integer>(Type.class);
+		for (Type type : types.keySet()) {
+			BitSet bits = (BitSet) types.get(type).clone();
+			bits.and(ids);
+			histogram.put(type, bits.cardinality());
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the mean rating of the rated ids among the ids, or null if
+	 * none are rated.
+	 * @param ids
+	 * @return
+	 */
+	public Float getMeanRating(final BitSet ids) {
+		BitSet bits = (BitSet) rated.clone();
+		bits.and(ids);
+		if (bits.isEmpty()) {
+			return null;
+		}
+		double sum = 0;
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			sum += rating_values.get(id);
+		}
+		return (float) (sum / bits.cardinality());
+	}
+
+	/**
+	 * Returns the ids as a bitmap.
+	 * @param ids
+	 * @return
+	 */
+	public static BitSet toBitSet(final Set<Integer> ids) {
+		BitSet bits = new BitSet();
+		for (int id : ids) {
+			if (id >= 0) {
+				bits.set(id);
+			}
+		}
+		return bits;
+	}
+
+	private static int getBucket(final float rating) {
+		return Math.max(0, Math.min(RATING_BUCKETS - 1, (int) (rating * 10)));
+	}
+
+}
@@ -137,11 +137,12 @@ public class CardCenter extends JFrame implements FocusListener,
 		//
 		search = new JTextField(32);
 		search.addFocusListener(this);
-		tree = new WordTrie(db.getNames());
+		tree = new WordTrie(db.getNameIndex());
 		suggestor = new Suggestor(search, 
 								  this, 
 								  tree,
 								  true);
+		suggestor.setFuzzyIndex(db.getNameIndex());
 
 		card_panel = GUIUtils.getTitledPanel("Card");
 		card_panel.setLayout(new BorderLayout());
@@ -3,6 +3,7 @@ package kaflib.applications.mtg;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -12,8 +13,10 @@ import java.util.Map;
 import java.util.Set;
 
 import kaflib.graphics.GraphicsUtils;
+import kaflib.types.CompactWordTrie;
 import kaflib.types.Directory;
 import kaflib.types.Matrix;
+import kaflib.types.Pair;
 import kaflib.utils.CheckUtils;
 import kaflib.utils.FileUtils;
 import kaflib.utils.RandomUtils;
@@ -29,6 +32,8 @@ public class CardDatabase implements Iterable<CardInstance> {
 		
 	public static final String DB_NAME = "cards.xlsx";	
 	public static final String HAVE_NAME = "haves.xlsx";
+	public static final String STORE_NAME = "cards.kcs";
+	public static final String NAME_INDEX_PREFIX = "names.";
 	private static final int COLUMNS = 10;
 	private static final int ID = 0;
 	private static final int NAME = 1;
@@ -47,9 +52,14 @@ public class CardDatabase implements Iterable<CardInstance> {
 	
 	private final File db_file;
 	private final File have_file;
+	private final CardStore store;
 	private final Map<Integer, CardInstance> cards;
 	private final Set<String> have;
 	private final Map<String, Card> name_index;
+	private final CardIndex card_index;
+	private final AttributeIndex attributes;
+	// Mapped on first fuzzy lookup, dropped on add.
+	private volatile CompactWordTrie name_trie;
 
 	public CardDatabase() throws Exception {
 		this(DEFAULT_ROOT);
@@ -73,24 +83,38 @@ public class CardDatabase implements Iterable<CardInstance> {
 		cards = new HashMap<Integer, CardInstance>();
 		have = new HashSet<String>();
 		name_index = new HashMap<String, Card>();
+		card_index = new CardIndex();
+		attributes = new AttributeIndex();
+		name_trie = null;
 		
 		db_file = new File(root_directory, DB_NAME); 
 		have_file = new File(root_directory, HAVE_NAME); 
+		store = new CardStore(new File(root_directory, STORE_NAME));
 		readDBs();
 	}
 
+	/**
+	 * Loads the binary store, or on first run imports the spreadsheets and
+	 * writes the store from them.
+	 * @throws Exception
+	 */
 	private final void readDBs() throws Exception {
-		Matrix<String> matrix;
-
-		// Read card db.
-		if (!db_file.exists()) {
+		Map<Integer, CardInstance> loaded = new HashMap<Integer, CardInstance>();
+		Set<String> owned = new HashSet<String>();
+		if (store.exists()) {
+			store.load(loaded, owned);
+		}
+		else if (db_file.exists()) {
+			readXLSX(loaded, owned);
+		}
+		else {
 			return;
 		}
-		matrix = FileUtils.readXLSXSheet(db_file, false);
-
-		for (int i = 0; i < matrix.getRowCount(); i++) {
-			CardInstance instance = parseCard(matrix.getRow(i));
+		
+		for (CardInstance instance : loaded.values()) {
 			cards.put(instance.getID(), instance);
+			card_index.add(instance);
+			attributes.add(instance, false);
 			
 			if (instance.isDomestic()) {
 				Card card = instance.getCard();
@@ -99,43 +123,158 @@ public class CardDatabase implements Iterable<CardInstance> {
 				name_index.put(card.getName(), card);
 			}
 		}
+		for (String name : owned) {
+			if (!name_index.containsKey(name)) {
+				throw new Exception("Have: " + name + " not found in db.");
+			}
+			have.add(name);
+			setHaveAttribute(name, true);
+		}
+		
+		if (!store.exists()) {
+			store.writeSnapshot(cards.values(), have);
+		}
+	}
+	
+	/**
+	 * Reads the card and have spreadsheets.
+	 * @param loaded
+	 * @param owned
+	 * @throws Exception
+	 */
+	private void readXLSX(final Map<Integer, CardInstance> loaded, 
+						  final Set<String> owned) throws Exception {
+		// Streamed, the sheet can be far larger than the heap.
+		FileUtils.readXLSX(db_file, null, new FileUtils.RowListener() {
+			@Override
+			public boolean row(final int row, final List<String> values) throws Exception {
+				CardInstance instance = parseCard(values);
+				loaded.put(instance.getID(), instance);
+				return true;
+			}
+		});
 		
 		// Read list of owned cards.
 		if (!have_file.exists()) {
 			return;
 		}
-		matrix = FileUtils.readXLSXSheet(have_file, false);
-		
-		for (int i = 0; i < matrix.getRowCount(); i++) {
-			String name = matrix.get(i, 0);
-			if (name == null || name.isEmpty()) {
-				continue;
-			}
-			if (!name_index.containsKey(name)) {
-				throw new Exception("Have: " + name + " not found in db.");
+		FileUtils.readXLSX(have_file, null, new FileUtils.RowListener() {
+			@Override
+			public boolean row(final int row, final List<String> values) throws Exception {
+				String name = values.isEmpty() ? null : values.get(0);
+				if (name != null && !name.isEmpty()) {
+					owned.add(name);
+				}
+				return true;
 			}
-			have.add(name);
-		}
+		});
 	}
 	
 	public Set<String> getNames() {
 		return name_index.keySet();
 	}
 	
+	/**
+	 * Returns the card names as a packed trie, mapped from
+	 * names.<count>.<hash>.kwt in the root directory, named for the name
+	 * set it holds.  The file for the current names is written on first
+	 * use and reused after, so the names load without building a tree, and
+	 * changes that leave the names alone (have toggles, ratings) don't
+	 * rebuild it.
+	 * 
+	 * Earlier tries handed out may still map other files, and Windows won't
+	 * replace or delete a mapped file; a changed name set gets a new file,
+	 * and the others are deleted when nothing maps them.
+	 * @return
+	 * @throws Exception
+	 */
+	public CompactWordTrie getNameIndex() throws Exception {
+		CompactWordTrie trie = name_trie;
+		if (trie != null) {
+			return trie;
+		}
+		File file = getNameIndexFile(name_index.keySet());
+		if (file.exists()) {
+			try {
+				trie = CompactWordTrie.map(file);
+			}
+			catch (Exception e) {
+				System.err.println("Rebuilding name index: " + e.getMessage());
+			}
+		}
+		if (trie == null || trie.size() != name_index.size()) {
+			trie = CompactWordTrie.createIndex(name_index.keySet(), file);
+		}
+		deleteNameIndexes(file);
+		name_trie = trie;
+		return trie;
+	}
+	
+	/**
+	 * Returns the name index file for the names: their count and a hash
+	 * that doesn't depend on iteration order.
+	 * @param names
+	 * @return
+	 */
+	private File getNameIndexFile(final Collection<String> names) {
+		long hash = 0;
+		for (String name : names) {
+			// FNV-1a per name, summed.
+			long value = 0xcbf29ce484222325L;
+			for (int i = 0; i < name.length(); i++) {
+				value = (value ^ name.charAt(i)) * 0x100000001b3L;
+			}
+			hash += value ^ (value >>> 32);
+		}
+		return new File(root_directory, NAME_INDEX_PREFIX + 
+										names.size() + "." + 
+										Long.toHexString(hash) + 
+										CompactWordTrie.INDEX_EXTENSION);
+	}
+	
+	/**
+	 * Deletes name index files other than the current one.  Files still
+	 * mapped may refuse, they're tried again on the next first use.
+	 * @param current
+	 */
+	private void deleteNameIndexes(final File current) {
+		String names[] = root_directory.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			if (name.startsWith(NAME_INDEX_PREFIX) && 
+				name.endsWith(CompactWordTrie.INDEX_EXTENSION) &&
+				!name.equals(current.getName())) {
+				new File(root_directory, name).delete();
+			}
+		}
+	}
+	
 	public boolean contains(final int id) {
 		return cards.containsKey(id);
 	}
+	
+	public CardInstance getCardInstance(final int id) {
+		return cards.get(id);
+	}
+	
+	/**
+	 * Returns a query over the attribute index, matching every domestic
+	 * card until narrowed.
+	 * @return
+	 */
+	public CardQuery query() {
+		return new CardQuery(this, attributes);
+	}
+	
+	public AttributeIndex getAttributes() {
+		return attributes;
+	}
 
 	public int getMaxValid() {
-		int max = 1;
-		for (Integer id : cards.keySet()) {
-			if (id > max) {
-				if (cards.get(id).isDomestic()) {
-					max = id;
-				}
-			}
-		}
-		return max;
+		// Highest set bit.
+		return Math.max(1, attributes.getDomestic().length() - 1);
 	}
 	
 	public boolean fullyPopulated(final int id) {
@@ -156,12 +295,12 @@ public class CardDatabase implements Iterable<CardInstance> {
 		return true;
 	}
 	
-	public void addInvalid(final int id) {
-		cards.put(id, CardInstance.createInvalid(id));
+	public void addInvalid(final int id) throws Exception {
+		add(CardInstance.createInvalid(id));
 	}
 
-	public void addForeign(final int id) {
-		cards.put(id, CardInstance.createForeign(id));
+	public void addForeign(final int id) throws Exception {
+		add(CardInstance.createForeign(id));
 	}
 	
 	public File getDefaultCard() {
@@ -185,15 +324,22 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 */
 	public void setHave(final Card card, final boolean value) throws Exception {
 		String name = card.getName();
+		if (value == have.contains(name)) {
+			return;
+		}
 		if (value == true) {
-			if (!have.contains(name)) {
-				have.add(name);
-			}
+			have.add(name);
 		}
 		else {
-			if (have.contains(name)) {
-				have.remove(name);
-			}
+			have.remove(name);
+		}
+		setHaveAttribute(name, value);
+		store.setHave(name, value);
+	}
+	
+	private void setHaveAttribute(final String name, final boolean value) throws Exception {
+		for (CardInstance instance : getCardInstances(name)) {
+			attributes.setHave(instance.getID(), value);
 		}
 	}
 
@@ -248,8 +394,12 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 */
 	public void add(final CardInstance instance) throws Exception {
 		cards.put(instance.getID(), instance);
+		card_index.add(instance);
+		attributes.add(instance, instance.isDomestic() && have.contains(instance.getName()));
+		store.added(instance);
 		if (instance.isDomestic()) {
 			name_index.put(instance.getName(), instance.getCard());
+			name_trie = null;
 		}
 	}
 	
@@ -286,17 +436,59 @@ public class CardDatabase implements Iterable<CardInstance> {
 	}
 
 	/**
-	 * Does a lowercase match of the supplied name to a tracked card name.
+	 * Does a lowercase match of the supplied name to a tracked card name,
+	 * or returns null.  The card index holds domestic cards only, as
+	 * name_index does.
 	 * @param name
 	 * @return
 	 */
-	public String matchName(final String name) {
-		for (String indexed : name_index.keySet()) {
-			if (indexed.toLowerCase().equals(name.toLowerCase())) {
-				return indexed;
-			}
+	public String matchName(final String name) throws Exception {
+		if (name_index.containsKey(name)) {
+			return name;
 		}
-		return null;
+		List<CardInstance> instances = card_index.getByName(name);
+		if (instances.isEmpty()) {
+			return null;
+		}
+		return instances.get(0).getName();
+	}
+
+	/**
+	 * Returns up to maxCount card names within maxDistance edits of the
+	 * name (case insensitive), closest first, for "did you mean".
+	 * @param name
+	 * @param maxDistance
+	 * @param maxCount
+	 * @return
+	 * @throws Exception
+	 */
+	public List<String> getSimilarNames(final String name,
+										final int maxDistance,
+										final int maxCount) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (Pair<String, Integer> match : getNameIndex().getFuzzy(name, maxDistance, maxCount)) {
+			names.add(match.getFirst());
+		}
+		return names;
+	}
+
+	/**
+	 * Returns up to maxCount card names starting within maxDistance edits
+	 * of the prefix (case insensitive), closest first, for completion.
+	 * @param prefix
+	 * @param maxDistance
+	 * @param maxCount
+	 * @return
+	 * @throws Exception
+	 */
+	public List<String> getSimilarCompletions(final String prefix,
+											  final int maxDistance,
+											  final int maxCount) throws Exception {
+		List<String> names = new ArrayList<String>();
+		for (Pair<String, Integer> match : getNameIndex().getFuzzyCompletions(prefix, maxDistance, maxCount)) {
+			names.add(match.getFirst());
+		}
+		return names;
 	}
 
 	/**
@@ -356,17 +548,10 @@ public class CardDatabase implements Iterable<CardInstance> {
 	}
 	
 	public File getImage(final String name) throws Exception {
-		for (int id : cards.keySet()) {
-			CardInstance card = cards.get(id);
-			if (card == null || card.isInvalidOrForeign()) {
-				continue;
-			}
-			
-			if (card.getName().toLowerCase().equals(name.toLowerCase())) {
-				File file = new File(image_directory, id + ".png");
-				if (file.exists()) {
-					return file;
-				}
+		for (CardInstance card : card_index.getByName(name)) {
+			File file = new File(image_directory, card.getID() + ".png");
+			if (file.exists()) {
+				return file;
 			}
 		}
 		return null;
@@ -379,19 +564,8 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 * @throws Exception
 	 */
 	public void removeNonDomestic(final int start, final int end) throws Exception {
-		Set<Integer> remove = new HashSet<Integer>();
-		for (int id : cards.keySet()) {
-			if (!cards.get(id).isDomestic()) {
-				int value = Integer.valueOf(id);
-				if (value >= start && value <= end) {
-					remove.add(id);
-				}
-			}
-		}
-		
-		for (int id : remove) {
-			cards.remove(id);
-		}
+		BitSet remove = query().invalid().foreign().getBitSet();
+		removeRange(remove, start, end);
 	}
 	
 	/**
@@ -401,18 +575,17 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 * @throws Exception
 	 */
 	public void removeInvalids(final int start, final int end) throws Exception {
-		Set<Integer> remove = new HashSet<Integer>();
-		for (int id : cards.keySet()) {
-			if (cards.get(id).isInvalid()) {
-				int value = Integer.valueOf(id);
-				if (value >= start && value <= end) {
-					remove.add(id);
-				}
-			}
-		}
-		
-		for (int id : remove) {
+		BitSet remove = query().invalid().getBitSet();
+		removeRange(remove, start, end);
+	}
+	
+	private void removeRange(final BitSet ids, final int start, final int end) throws Exception {
+		for (int id = ids.nextSetBit(Math.max(start, 0)); 
+			 id >= 0 && id <= end; 
+			 id = ids.nextSetBit(id + 1)) {
 			cards.remove(id);
+			attributes.remove(id);
+			store.removed(id);
 		}
 	}
 
@@ -468,10 +641,8 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 */
 	public Set<Integer> getIDs(final String name) {
 		Set<Integer> matches = new HashSet<Integer>();
-		for (int id : cards.keySet()) {
-			if (cards.get(id).matches(name)) {
-				matches.add(id);
-			}
+		for (CardInstance instance : getCardInstances(name)) {
+			matches.add(instance.getID());
 		}
 		return matches;
 	}
@@ -483,14 +654,43 @@ public class CardDatabase implements Iterable<CardInstance> {
 	 */
 	public Set<CardInstance> getCardInstances(final String name) {
 		Set<CardInstance> matches = new HashSet<CardInstance>();
-		for (int id : getIDs(name)) {
-			matches.add(cards.get(id));
+		for (CardInstance instance : card_index.getByName(name)) {
+			if (instance.matches(name)) {
+				matches.add(instance);
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * Returns the ids of cards matching the query over name, type line and
+	 * rules text, see CardIndex for the syntax.
+	 * @param query
+	 * @return
+	 * @throws Exception
+	 */
+	public Set<Integer> search(final String query) throws Exception {
+		Set<Integer> matches = new HashSet<Integer>();
+		for (int id : card_index.search(query)) {
+			matches.add(id);
 		}
 		return matches;
 	}
+	
+	/**
+	 * Returns the full-text index.
+	 * @return
+	 */
+	public CardIndex getCardIndex() {
+		return card_index;
+	}
 
+	/**
+	 * Saves changes since the last save to the binary store's log.
+	 * @throws Exception
+	 */
 	public void write() throws Exception {
-		write(null);
+		store.save(cards.values(), have);
 	}
 	
 	public void writeBackup() throws Exception {
@@ -510,7 +710,9 @@ public class CardDatabase implements Iterable<CardInstance> {
 	}
 	
 	/**
-	 * Writes the db to an excel file.
+	 * Exports the db to an excel file, cards.xlsx if null, and the have
+	 * list to haves.xlsx.  The binary store is the primary copy; the
+	 * spreadsheets are only read when it doesn't exist.
 	 * @throws Exception
 	 */
 	public void write(final File file) throws Exception {
@@ -568,6 +770,15 @@ public class CardDatabase implements Iterable<CardInstance> {
 		return histogram;
 	}
 	
+	/**
+	 * Creates a histogram of converted mana costs over the query matches.
+	 * @param query
+	 * @return
+	 */
+	public Map<Integer, Integer> getCMCHistogram(final CardQuery query) {
+		return attributes.getCMCHistogram(query.getBitSet());
+	}
+	
 	public Integer getCMC(final Card card) throws Exception {
 		CheckUtils.check(card, "card");
 		if (card.getCMC() == null) {
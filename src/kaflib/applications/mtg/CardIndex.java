@@ -0,0 +1,545 @@
+package kaflib.applications.mtg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines an in-memory inverted index over card names, type lines and
+ * rules text.  Each added instance is a document, numbered in the order
+ * added, and each field maps a token to its postings: the documents that
+ * hold it, ascending, and the token positions within each.  Postings are
+ * int arrays grown in place, so adding a card only appends to the
+ * postings of its own tokens.  Re-adding a card id retires the old
+ * document rather than rewriting postings.
+ *
+ * Text is split on anything but letters and digits, lowercased, with
+ * apostrophes dropped ("Urza's" is "urzas", "{T}" is "t").  Queries:
+ *
+ *   goblin haste         both terms (AND)
+ *   goblin OR elf        either
+ *   goblin -token        the first without the second
+ *   "deals 3 damage"     the phrase, in order
+ *   type:instant         restricted to a field: name:, type: or text:
+ *   (elf OR goblin) type:creature
+ *
+ * Unrestricted terms and phrases match in any field.  Not synchronized.
+ */
+public class CardIndex {
+
+	public enum Field {
+		NAME("name"),
+		TYPES("type"),
+		TEXT("text");
+
+		private final String prefix;
+
+		private Field(final String prefix) {
+			this.prefix = prefix;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+	}
+
+	private static final int EMPTY[] = new int[0];
+
+	private final List<Map<String, Postings>> fields;
+	private final Map<String, Postings> names;
+	private final List<CardInstance> documents;
+	private final Map<Integer, Integer> documents_by_id;
+	private final BitSet retired;
+
+	/**
+	 * Creates an empty index.
+	 */
+	public CardIndex() {
+		fields = new ArrayList<Map<String, Postings>>();
+		for (int i = 0; i < Field.values().length; i++) {
+			fields.add(new HashMap<String, Postings>());
+		}
+		names = new HashMap<String, Postings>();
+		documents = new ArrayList<CardInstance>();
+		documents_by_id = new HashMap<Integer, Integer>();
+		retired = new BitSet();
+	}
+
+	/**
+	 * Returns the number of indexed cards.
+	 * @return
+	 */
+	public int size() {
+		return documents_by_id.size();
+	}
+
+	/**
+	 * Indexes the instance, replacing any earlier instance with its id.
+	 * Invalid and foreign instances only retire the earlier one.
+	 * @param instance
+	 * @throws Exception
+	 */
+	public void add(final CardInstance instance) throws Exception {
+		CheckUtils.check(instance, "instance");
+		remove(instance.getID());
+		if (instance.isInvalidOrForeign()) {
+			return;
+		}
+
+		int document = documents.size();
+		documents.add(instance);
+		documents_by_id.put(instance.getID(), document);
+		getPostings(names, instance.getName().toLowerCase()).add(document, 0);
+		add(Field.NAME, document, instance.getName());
+		add(Field.TYPES, document, instance.getTypes());
+		add(Field.TEXT, document, instance.getText());
+	}
+
+	/**
+	 * Retires the instance with the id, returns whether there was one.
+	 * @param id
+	 * @return
+	 */
+	public boolean remove(final int id) {
+		Integer document = documents_by_id.remove(id);
+		if (document == null) {
+			return false;
+		}
+		retired.set(document);
+		return true;
+	}
+
+	/**
+	 * Returns the instances named the name, ignoring case, in the order
+	 * added.
+	 * @param name
+	 * @return
+	 */
+	public List<CardInstance> getByName(final String name) {
+		List<CardInstance> instances = new ArrayList<CardInstance>();
+		if (name == null) {
+			return instances;
+		}
+		Postings postings = names.get(name.toLowerCase());
+		if (postings == null) {
+			return instances;
+		}
+		for (int i = 0; i < postings.size; i++) {
+			int document = postings.documents[i];
+			if (!retired.get(document)) {
+				instances.add(documents.get(document));
+			}
+		}
+		return instances;
+	}
+
+	/**
+	 * Returns the ids of the cards matching the query, in the order added.
+	 * @param query
+	 * @return
+	 * @throws Exception
+	 */
+	public int[] search(final String query) throws Exception {
+		CheckUtils.checkNonEmpty(query, "query");
+		int matches[] = new Parser(query).parse();
+		int ids[] = new int[matches.length];
+		int count = 0;
+		for (int document : matches) {
+			if (!retired.get(document)) {
+				ids[count++] = documents.get(document).getID();
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	/**
+	 * Returns the lowercase tokens of the text.
+	 * @param text
+	 * @return
+	 */
+	public static List<String> tokenize(final String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				token.append(Character.toLowerCase(c));
+			}
+			else if (c != '\'' && c != '\u2019' && token.length() > 0) {
+				tokens.add(token.toString());
+				token.setLength(0);
+			}
+		}
+		if (token.length() > 0) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	private void add(final Field field, final int document, final String text) {
+		List<String> tokens = tokenize(text);
+		Map<String, Postings> postings = fields.get(field.ordinal());
+		for (int i = 0; i < tokens.size(); i++) {
+			getPostings(postings, tokens.get(i)).add(document, i);
+		}
+	}
+
+	private static Postings getPostings(final Map<String, Postings> map, final String key) {
+		Postings postings = map.get(key);
+		if (postings == null) {
+			postings = new Postings();
+			map.put(key, postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * Returns the documents holding the tokens in order in the field, or in
+	 * any field if it's null.
+	 * @param field
+	 * @param tokens
+	 * @return
+	 */
+	private int[] getPhrase(final Field field, final List<String> tokens) {
+		if (tokens.isEmpty()) {
+			return EMPTY;
+		}
+		if (field == null) {
+			int result[] = EMPTY;
+			for (Field f : Field.values()) {
+				result = union(result, getPhrase(f, tokens));
+			}
+			return result;
+		}
+
+		Map<String, Postings> map = fields.get(field.ordinal());
+		Postings postings[] = new Postings[tokens.size()];
+		for (int i = 0; i < postings.length; i++) {
+			postings[i] = map.get(tokens.get(i));
+			if (postings[i] == null) {
+				return EMPTY;
+			}
+		}
+		int candidates[] = postings[0].getDocuments();
+		for (int i = 1; i < postings.length; i++) {
+			candidates = intersect(candidates, postings[i].getDocuments());
+		}
+		if (postings.length == 1) {
+			return candidates;
+		}
+
+		int matches[] = new int[candidates.length];
+		int count = 0;
+		for (int document : candidates) {
+			if (hasPhrase(postings, document)) {
+				matches[count++] = document;
+			}
+		}
+		return Arrays.copyOf(matches, count);
+	}
+
+	/**
+	 * Returns whether each token follows the last in the document.
+	 * @param postings
+	 * @param document
+	 * @return
+	 */
+	private static boolean hasPhrase(final Postings postings[], final int document) {
+		int entries[] = new int[postings.length];
+		for (int i = 0; i < postings.length; i++) {
+			entries[i] = postings[i].indexOf(document);
+		}
+		Postings first = postings[0];
+		for (int p = first.getStart(entries[0]); p < first.getEnd(entries[0]); p++) {
+			int start = first.positions[p];
+			boolean found = true;
+			for (int i = 1; i < postings.length && found; i++) {
+				found = postings[i].hasPosition(entries[i], start + i);
+			}
+			if (found) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int[] getAll() {
+		int all[] = new int[documents.size()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		return all;
+	}
+
+	/**
+	 * Intersects two ascending lists, stepping through the shorter and
+	 * galloping through the longer.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static int[] intersect(final int a[], final int b[]) {
+		int small[] = a.length <= b.length ? a : b;
+		int large[] = a.length <= b.length ? b : a;
+		int result[] = new int[small.length];
+		int count = 0;
+		int low = 0;
+		for (int value : small) {
+			int step = 1;
+			int high = low;
+			while (high < large.length && large[high] < value) {
+				low = high + 1;
+				high += step;
+				step <<= 1;
+			}
+			int index = Arrays.binarySearch(large, low, Math.min(high + 1, large.length), value);
+			if (index >= 0) {
+				result[count++] = value;
+				low = index + 1;
+			}
+			else {
+				low = -index - 1;
+			}
+			if (low >= large.length) {
+				break;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static int[] union(final int a[], final int b[]) {
+		int result[] = new int[a.length + b.length];
+		int i = 0;
+		int j = 0;
+		int count = 0;
+		while (i < a.length || j < b.length) {
+			if (j >= b.length || (i < a.length && a[i] < b[j])) {
+				result[count++] = a[i++];
+			}
+			else if (i >= a.length || b[j] < a[i]) {
+				result[count++] = b[j++];
+			}
+			else {
+				result[count++] = a[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static int[] difference(final int a[], final int b[]) {
+		int result[] = new int[a.length];
+		int j = 0;
+		int count = 0;
+		for (int value : a) {
+			while (j < b.length && b[j] < value) {
+				j++;
+			}
+			if (j >= b.length || b[j] != value) {
+				result[count++] = value;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * The documents holding one token in one field, and its positions in
+	 * each.  Positions of documents[i] run from starts[i] to starts[i + 1],
+	 * or to position_count for the last.
+	 */
+	private static class Postings {
+		private int documents[];
+		private int starts[];
+		private int positions[];
+		private int size;
+		private int position_count;
+
+		private Postings() {
+			documents = new int[2];
+			starts = new int[2];
+			positions = new int[2];
+			size = 0;
+			position_count = 0;
+		}
+
+		private void add(final int document, final int position) {
+			if (size == 0 || documents[size - 1] != document) {
+				if (size == documents.length) {
+					documents = Arrays.copyOf(documents, size * 2);
+					starts = Arrays.copyOf(starts, size * 2);
+				}
+				documents[size] = document;
+				starts[size] = position_count;
+				size++;
+			}
+			if (position_count == positions.length) {
+				positions = Arrays.copyOf(positions, position_count * 2);
+			}
+			positions[position_count++] = position;
+		}
+
+		private int[] getDocuments() {
+			return Arrays.copyOf(documents, size);
+		}
+
+		private int indexOf(final int document) {
+			return Arrays.binarySearch(documents, 0, size, document);
+		}
+
+		private int getStart(final int entry) {
+			return starts[entry];
+		}
+
+		private int getEnd(final int entry) {
+			return entry + 1 < size ? starts[entry + 1] : position_count;
+		}
+
+		private boolean hasPosition(final int entry, final int position) {
+			return Arrays.binarySearch(positions, getStart(entry), getEnd(entry), position) >= 0;
+		}
+	}
+
+	/**
+	 * Recursive descent over the query, evaluating as it goes:
+	 *
+	 *   or    := and ("OR" and)*
+	 *   and   := ["-"] unary (["-"] unary)*
+	 *   unary := "(" or ")" | [field ":"] (word | '"' phrase '"')
+	 */
+	private class Parser {
+		private final String query;
+		private int index;
+
+		private Parser(final String query) {
+			this.query = query;
+			index = 0;
+		}
+
+		private int[] parse() throws Exception {
+			int result[] = parseOr();
+			skipSpace();
+			if (index < query.length()) {
+				throw new Exception("Unexpected '" + query.charAt(index) + "' at " + index + " in: " + query + ".");
+			}
+			return result;
+		}
+
+		private int[] parseOr() throws Exception {
+			int result[] = parseAnd();
+			while (consumeOr()) {
+				result = union(result, parseAnd());
+			}
+			return result;
+		}
+
+		private int[] parseAnd() throws Exception {
+			int result[] = null;
+			List<int[]> excluded = new ArrayList<int[]>();
+			while (true) {
+				skipSpace();
+				if (index >= query.length() || query.charAt(index) == ')' || atOr()) {
+					break;
+				}
+				boolean negate = query.charAt(index) == '-';
+				if (negate) {
+					index++;
+				}
+				int operand[] = parseUnary();
+				if (negate) {
+					excluded.add(operand);
+				}
+				else {
+					result = result == null ? operand : intersect(result, operand);
+				}
+			}
+			if (result == null) {
+				if (excluded.isEmpty()) {
+					throw new Exception("Missing term at " + index + " in: " + query + ".");
+				}
+				result = getAll();
+			}
+			for (int[] operand : excluded) {
+				result = difference(result, operand);
+			}
+			return result;
+		}
+
+		private int[] parseUnary() throws Exception {
+			skipSpace();
+			if (index < query.length() && query.charAt(index) == '(') {
+				index++;
+				int result[] = parseOr();
+				skipSpace();
+				if (index >= query.length() || query.charAt(index) != ')') {
+					throw new Exception("Missing ')' in: " + query + ".");
+				}
+				index++;
+				return result;
+			}
+
+			Field field = null;
+			for (Field f : Field.values()) {
+				String prefix = f.getPrefix() + ":";
+				if (query.regionMatches(true, index, prefix, 0, prefix.length())) {
+					field = f;
+					index += prefix.length();
+					break;
+				}
+			}
+
+			String text;
+			if (index < query.length() && query.charAt(index) == '"') {
+				int end = query.indexOf('"', index + 1);
+				if (end < 0) {
+					throw new Exception("Missing '\"' in: " + query + ".");
+				}
+				text = query.substring(index + 1, end);
+				index = end + 1;
+			}
+			else {
+				int start = index;
+				while (index < query.length() &&
+					   !Character.isWhitespace(query.charAt(index)) &&
+					   "()\"".indexOf(query.charAt(index)) < 0) {
+					index++;
+				}
+				text = query.substring(start, index);
+			}
+			if (text.isEmpty()) {
+				throw new Exception("Missing term at " + index + " in: " + query + ".");
+			}
+
+			// A word that splits into several tokens (+1/+1) is a phrase.
+			return getPhrase(field, tokenize(text));
+		}
+
+		private boolean atOr() {
+			return query.startsWith("OR", index) &&
+				   (index + 2 >= query.length() || Character.isWhitespace(query.charAt(index + 2)) || query.charAt(index + 2) == '(');
+		}
+
+		private boolean consumeOr() {
+			skipSpace();
+			if (atOr()) {
+				index += 2;
+				return true;
+			}
+			return false;
+		}
+
+		private void skipSpace() {
+			while (index < query.length() && Character.isWhitespace(query.charAt(index))) {
+				index++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,186 @@
+package kaflib.applications.mtg;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Defines a filter over a database's attribute index, built by chaining
+ * conditions:
+ *
+ *   db.query().cmc(1, 3).color(ManaColor.RED).type(Type.CREATURE).have(true)
+ *
+ * Each condition is a bitmap of card ids.  Evaluation intersects them
+ * smallest first and stops as soon as the result is empty.  Only domestic
+ * cards match unless invalid() or foreign() is given.
+ */
+public class CardQuery {
+
+	private final CardDatabase database;
+	private final AttributeIndex index;
+	private final List<BitSet> conditions;
+	private final List<BitSet> exclusions;
+	private BitSet validity;
+
+	CardQuery(final CardDatabase database, final AttributeIndex index) {
+		this.database = database;
+		this.index = index;
+		conditions = new ArrayList<BitSet>();
+		exclusions = new ArrayList<BitSet>();
+		validity = null;
+	}
+
+	public CardQuery cmc(final int value) {
+		return cmc(value, value);
+	}
+
+	public CardQuery cmc(final int min, final int max) {
+		conditions.add(index.getCMC(min, max));
+		return this;
+	}
+
+	public CardQuery color(final ManaColor color) {
+		conditions.add(index.getColor(color));
+		return this;
+	}
+
+	public CardQuery notColor(final ManaColor color) {
+		exclusions.add(index.getColor(color));
+		return this;
+	}
+
+	public CardQuery type(final Type type) {
+		conditions.add(index.getType(type));
+		return this;
+	}
+
+	public CardQuery notType(final Type type) {
+		exclusions.add(index.getType(type));
+		return this;
+	}
+
+	/**
+	 * Rated in [min, max].
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public CardQuery rating(final float min, final float max) {
+		conditions.add(index.getRating(min, max));
+		return this;
+	}
+
+	public CardQuery rated() {
+		conditions.add(index.getRated());
+		return this;
+	}
+
+	public CardQuery have(final boolean owned) {
+		if (owned) {
+			conditions.add(index.getHave());
+		}
+		else {
+			exclusions.add(index.getHave());
+		}
+		return this;
+	}
+
+	/**
+	 * Restricts to the ids, e.g. a deck's.
+	 * @param ids
+	 * @return
+	 */
+	public CardQuery in(final Set<Integer> ids) {
+		conditions.add(AttributeIndex.toBitSet(ids));
+		return this;
+	}
+
+	public CardQuery domestic() {
+		return validity(index.getDomestic());
+	}
+
+	public CardQuery invalid() {
+		return validity(index.getInvalid());
+	}
+
+	public CardQuery foreign() {
+		return validity(index.getForeign());
+	}
+
+	/**
+	 * Any validity.
+	 * @return
+	 */
+	public CardQuery any() {
+		return validity(index.getAll());
+	}
+
+	private CardQuery validity(final BitSet bits) {
+		if (validity == null) {
+			validity = (BitSet) bits.clone();
+		}
+		else {
+			validity.or(bits);
+		}
+		return this;
+	}
+
+	/**
+	 * Evaluates the query, returns the matching ids as a new bitmap.
+	 * @return
+	 */
+	public BitSet getBitSet() {
+		List<BitSet> sets = new ArrayList<BitSet>(conditions);
+		sets.add(validity == null ? index.getDomestic() : validity);
+		final List<Integer> sizes = new ArrayList<Integer>();
+		for (BitSet bits : sets) {
+			sizes.add(bits.cardinality());
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < sets.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Integer.compare(sizes.get(o1), sizes.get(o2));
+			}
+		});
+
+		BitSet result = (BitSet) sets.get(order.get(0)).clone();
+		for (int i = 1; i < order.size() && !result.isEmpty(); i++) {
+			result.and(sets.get(order.get(i)));
+		}
+		for (int i = 0; i < exclusions.size() && !result.isEmpty(); i++) {
+			result.andNot(exclusions.get(i));
+		}
+		return result;
+	}
+
+	public int count() {
+		return getBitSet().cardinality();
+	}
+
+	public Set<Integer> getIDs() {
+		BitSet bits = getBitSet();
+		Set<Integer> ids = new HashSet<Integer>(bits.cardinality() * 2);
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	public List<CardInstance> getInstances() {
+		BitSet bits = getBitSet();
+		List<CardInstance> instances = new ArrayList<CardInstance>(bits.cardinality());
+		for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+			instances.add(database.getCardInstance(id));
+		}
+		return instances;
+	}
+
+}
@@ -0,0 +1,716 @@
+package kaflib.applications.mtg;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines the binary store behind CardDatabase: a columnar snapshot and an
+ * append-only log of the changes made since it was written.
+ *
+ * The snapshot is read whole onto the heap.  Each column is contiguous,
+ * and string columns are dictionaries, so every distinct name, type line
+ * or text is decoded once and reprints share it.  Layout, big endian:
+ *
+ *   int magic, int version, long generation, int count
+ *   int ids[count]
+ *   byte flags[count]          1 invalid, 2 foreign, 4 rated
+ *   float ratings[count]
+ *   int votes[count]
+ *   string column x 6          name, cost, cmc, types, text, pt
+ *   string column              owned names
+ *
+ * A string column is int distinct, int bytes, int offsets[distinct + 1],
+ * the UTF-8 bytes, int rows, then int refs[rows] (-1 for none).
+ *
+ * The log starts with int magic and the generation of the snapshot it
+ * follows, then records of int length, payload, int CRC32 of the payload.
+ * A record cut short by a crash fails its length or checksum; replay stops
+ * there and the log is truncated to the last good record.  Once the log
+ * outgrows half the snapshot, the next save writes a new snapshot instead.
+ * Each snapshot takes a new generation, so a log left behind by a crash
+ * between moving a snapshot in and emptying the log is discarded rather
+ * than replayed onto the wrong snapshot.
+ *
+ * Version 1 snapshots have no generation and their logs no header; they
+ * are replayed once and rewritten as the current version.
+ */
+public class CardStore {
+
+	private static final int MAGIC = 0x4b435331;	// "KCS1"
+	private static final int LOG_MAGIC = 0x4b434c31;	// "KCL1"
+	private static final int VERSION = 2;
+	private static final int LOG_HEADER_BYTES = 12;
+	private static final int STRING_COLUMNS = 6;
+
+	private static final byte INVALID = 1;
+	private static final byte FOREIGN = 2;
+	private static final byte RATED = 4;
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte HAVE = 3;
+
+	private final File snapshot_file;
+	private final File log_file;
+	// Guarded by this; save() swaps in a fresh list while it writes.
+	private List<byte[]> pending;
+	private Long generation;
+
+	/**
+	 * Creates a store over the snapshot and its log, beside it with a
+	 * .log extension.
+	 * @param snapshotFile
+	 * @throws Exception
+	 */
+	public CardStore(final File snapshotFile) throws Exception {
+		CheckUtils.check(snapshotFile, "snapshot file");
+		snapshot_file = snapshotFile;
+		log_file = new File(snapshotFile.getPath() + ".log");
+		pending = new ArrayList<byte[]>();
+		generation = null;
+	}
+
+	/**
+	 * Returns whether there's a snapshot to load.
+	 * @return
+	 */
+	public boolean exists() {
+		return snapshot_file.exists();
+	}
+
+	/**
+	 * Returns when the store last changed on disk.
+	 * @return
+	 */
+	public long lastModified() {
+		return Math.max(snapshot_file.lastModified(), log_file.lastModified());
+	}
+
+	/**
+	 * Returns whether there are changes not yet saved.
+	 * @return
+	 */
+	public synchronized boolean hasChanges() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Reads the snapshot and replays the log into the collections.
+	 * @param cards
+	 * @param have
+	 * @throws Exception
+	 */
+	public void load(final Map<Integer, CardInstance> cards, final Set<String> have) throws Exception {
+		CheckUtils.checkReadable(snapshot_file, "card snapshot");
+		int version = readSnapshot(cards, have);
+		if (version < VERSION) {
+			if (log_file.exists()) {
+				replay(cards, have, 0);
+			}
+			writeSnapshot(cards.values(), have);
+			return;
+		}
+		if (log_file.exists()) {
+			if (isCurrentLog(generation)) {
+				replay(cards, have, LOG_HEADER_BYTES);
+			}
+			else {
+				System.err.println("Discarding card log from an earlier snapshot.");
+				resetLog();
+			}
+		}
+		synchronized (this) {
+			pending.clear();
+		}
+	}
+
+	//
+	// Changes, queued until save().
+	//
+
+	public void added(final CardInstance instance) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(ADD);
+		writeInstance(output, instance);
+		output.flush();
+		queue(bytes.toByteArray());
+	}
+
+	public void removed(final int id) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(REMOVE);
+		output.writeInt(id);
+		output.flush();
+		queue(bytes.toByteArray());
+	}
+
+	public void setHave(final String name, final boolean value) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(HAVE);
+		output.writeUTF(name);
+		output.writeBoolean(value);
+		output.flush();
+		queue(bytes.toByteArray());
+	}
+
+	/**
+	 * Appends the queued changes to the log, or writes a new snapshot of
+	 * the collections if the log has grown past half the snapshot.  Changes
+	 * queued while it writes wait for the next save; if the write fails,
+	 * the changes it took are queued again.
+	 * @param cards
+	 * @param have
+	 * @throws Exception
+	 */
+	public void save(final Collection<CardInstance> cards, final Set<String> have) throws Exception {
+		if (!snapshot_file.exists() || log_file.length() > snapshot_file.length() / 2) {
+			writeSnapshot(cards, have);
+			return;
+		}
+		List<byte[]> records = takePending();
+		if (records.isEmpty()) {
+			return;
+		}
+		try {
+			appendLog(records);
+		}
+		catch (Exception e) {
+			requeue(records);
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends the records to the log, starting it with a header for the
+	 * current snapshot if needed.  A failed append is cut off the log, since
+	 * replay would stop at a partial record.
+	 * @param records
+	 * @throws Exception
+	 */
+	private void appendLog(final List<byte[]> records) throws Exception {
+		long current = getGeneration();
+		boolean header = true;
+		if (log_file.exists() && log_file.length() > 0) {
+			if (isCurrentLog(current)) {
+				header = false;
+			}
+			else {
+				resetLog();
+			}
+		}
+		long start = log_file.length();
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log_file, true), 1 << 16));
+			try {
+				if (header) {
+					output.writeInt(LOG_MAGIC);
+					output.writeLong(current);
+				}
+				CRC32 crc = new CRC32();
+				for (byte[] record : records) {
+					crc.reset();
+					crc.update(record);
+					output.writeInt(record.length);
+					output.write(record);
+					output.writeInt((int) crc.getValue());
+				}
+			}
+			finally {
+				output.close();
+			}
+		}
+		catch (Exception e) {
+			if (log_file.exists() && log_file.length() > start) {
+				RandomAccessFile log = new RandomAccessFile(log_file, "rw");
+				try {
+					log.setLength(start);
+				}
+				finally {
+					log.close();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a full snapshot of the collections under a new generation and
+	 * empties the log.  Changes queued before it starts are in the
+	 * collections; they are queued again if the snapshot fails.
+	 * @param cards
+	 * @param have
+	 * @throws Exception
+	 */
+	public void writeSnapshot(final Collection<CardInstance> cards, final Set<String> have) throws Exception {
+		List<byte[]> records = takePending();
+		try {
+			writeSnapshotFile(cards, have);
+		}
+		catch (Exception e) {
+			requeue(records);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the snapshot aside, moves it in and empties the log.
+	 * @param cards
+	 * @param have
+	 * @throws Exception
+	 */
+	private void writeSnapshotFile(final Collection<CardInstance> cards, 
+								   final Set<String> have) throws Exception {
+		List<CardInstance> instances = new ArrayList<CardInstance>(cards);
+		int count = instances.size();
+		List<List<String>> columns = new ArrayList<List<String>>();
+		for (int i = 0; i < STRING_COLUMNS; i++) {
+			columns.add(new ArrayList<String>(count));
+		}
+		for (CardInstance instance : instances) {
+			Card card = instance.isInvalidOrForeign() ? null : instance.getCard();
+			columns.get(0).add(card == null ? null : card.getName());
+			columns.get(1).add(card == null ? null : card.getCost());
+			columns.get(2).add(card == null ? null : card.getCMC());
+			columns.get(3).add(card == null ? null : card.getTypes());
+			columns.get(4).add(card == null ? null : card.getText());
+			columns.get(5).add(card == null ? null : card.getPT());
+		}
+
+		// Later than any earlier snapshot, loaded or not.
+		long next = Math.max(getGeneration() + 1, System.currentTimeMillis());
+
+		// Write aside and move, so the old snapshot stands until the new
+		// one is complete.  The old log no longer matches once it's moved.
+		File temporary = new File(snapshot_file.getPath() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeLong(next);
+			output.writeInt(count);
+			for (CardInstance instance : instances) {
+				output.writeInt(instance.getID());
+			}
+			for (CardInstance instance : instances) {
+				output.writeByte(getFlags(instance));
+			}
+			for (CardInstance instance : instances) {
+				output.writeFloat(instance.hasRating() ? instance.getRating() : 0);
+			}
+			for (CardInstance instance : instances) {
+				output.writeInt(instance.hasRating() ? instance.getVotes() : 0);
+			}
+			for (List<String> column : columns) {
+				writeColumn(output, column);
+			}
+			writeColumn(output, new ArrayList<String>(have));
+		}
+		finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), snapshot_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		generation = next;
+		resetLog();
+	}
+
+	/**
+	 * Queues a change record.
+	 * @param record
+	 */
+	private synchronized void queue(final byte record[]) {
+		pending.add(record);
+	}
+
+	/**
+	 * Returns the queued records and starts a fresh queue.
+	 * @return
+	 */
+	private synchronized List<byte[]> takePending() {
+		List<byte[]> records = pending;
+		pending = new ArrayList<byte[]>();
+		return records;
+	}
+
+	/**
+	 * Puts records that failed to save back ahead of any queued since.
+	 * @param records
+	 */
+	private synchronized void requeue(final List<byte[]> records) {
+		records.addAll(pending);
+		pending = records;
+	}
+
+	/**
+	 * Returns the snapshot's generation, reading it from the file if not
+	 * yet known, or 0 if there's no snapshot.
+	 * @return
+	 * @throws Exception
+	 */
+	private long getGeneration() throws Exception {
+		if (generation == null) {
+			generation = 0L;
+			if (snapshot_file.exists()) {
+				DataInputStream input = new DataInputStream(new FileInputStream(snapshot_file));
+				try {
+					if (input.readInt() == MAGIC && input.readInt() >= 2) {
+						generation = input.readLong();
+					}
+				}
+				finally {
+					input.close();
+				}
+			}
+		}
+		return generation;
+	}
+
+	/**
+	 * Returns the generation in the log header, or null if the log has no
+	 * valid header.
+	 * @return
+	 * @throws Exception
+	 */
+	private Long readLogGeneration() throws Exception {
+		if (log_file.length() < LOG_HEADER_BYTES) {
+			return null;
+		}
+		DataInputStream input = new DataInputStream(new FileInputStream(log_file));
+		try {
+			if (input.readInt() != LOG_MAGIC) {
+				return null;
+			}
+			return input.readLong();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns whether the log header holds the generation.
+	 * @param current
+	 * @return
+	 * @throws Exception
+	 */
+	private boolean isCurrentLog(final long current) throws Exception {
+		Long logged = readLogGeneration();
+		return logged != null && logged == current;
+	}
+
+	/**
+	 * Empties the log.
+	 * @throws Exception
+	 */
+	private void resetLog() throws Exception {
+		if (log_file.exists() && !log_file.delete()) {
+			RandomAccessFile log = new RandomAccessFile(log_file, "rw");
+			try {
+				log.setLength(0);
+			}
+			finally {
+				log.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the snapshot into the collections and returns its version.
+	 * @param cards
+	 * @param have
+	 * @return
+	 * @throws Exception
+	 */
+	private int readSnapshot(final Map<Integer, CardInstance> cards, final Set<String> have) throws Exception {
+		// Read onto the heap rather than mapped: a mapping holds the file
+		// open until collected, and Windows then refuses to replace it.
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshot_file.toPath()));
+		if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+			throw new Exception("Not a card snapshot: " + snapshot_file + ".");
+		}
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new Exception("Unsupported card snapshot version " + version + ".");
+		}
+		generation = version >= 2 ? buffer.getLong() : 0L;
+		int count = buffer.getInt();
+		int ids[] = new int[count];
+		byte flags[] = new byte[count];
+		float ratings[] = new float[count];
+		int votes[] = new int[count];
+		buffer.asIntBuffer().get(ids);
+		buffer.position(buffer.position() + count * 4);
+		buffer.get(flags);
+		buffer.asFloatBuffer().get(ratings);
+		buffer.position(buffer.position() + count * 4);
+		buffer.asIntBuffer().get(votes);
+		buffer.position(buffer.position() + count * 4);
+		String columns[][] = new String[STRING_COLUMNS][];
+		for (int i = 0; i < STRING_COLUMNS; i++) {
+			columns[i] = readColumn(buffer);
+		}
+		for (String name : readColumn(buffer)) {
+			have.add(name);
+		}
+
+		for (int i = 0; i < count; i++) {
+			CardInstance instance;
+			if ((flags[i] & INVALID) != 0) {
+				instance = CardInstance.createInvalid(ids[i]);
+			}
+			else if ((flags[i] & FOREIGN) != 0) {
+				instance = CardInstance.createForeign(ids[i]);
+			}
+			else {
+				instance = new CardInstance(ids[i],
+											columns[0][i],
+											columns[1][i],
+											columns[2][i],
+											columns[3][i],
+											columns[4][i],
+											columns[5][i]);
+				if ((flags[i] & RATED) != 0) {
+					instance.setCommunityRating(ratings[i]);
+					instance.setCommunityVotes(votes[i]);
+				}
+			}
+			cards.put(ids[i], instance);
+		}
+		return version;
+	}
+
+	/**
+	 * Applies the log's records from the offset, past any header, and
+	 * truncates it after the last good one.
+	 * @param cards
+	 * @param have
+	 * @param start
+	 * @throws Exception
+	 */
+	private void replay(final Map<Integer, CardInstance> cards, 
+						final Set<String> have,
+						final long start) throws Exception {
+		RandomAccessFile log = new RandomAccessFile(log_file, "rw");
+		try {
+			long length = log.length();
+			long good = start;
+			CRC32 crc = new CRC32();
+			while (good + 8 <= length) {
+				log.seek(good);
+				int size = log.readInt();
+				if (size <= 0 || good + 8 + size > length) {
+					break;
+				}
+				byte record[] = new byte[size];
+				log.readFully(record);
+				crc.reset();
+				crc.update(record);
+				if (log.readInt() != (int) crc.getValue()) {
+					break;
+				}
+				apply(record, cards, have);
+				good += 8 + size;
+			}
+			if (good < length) {
+				System.err.println("Dropping " + (length - good) + " bytes of incomplete card log.");
+				log.setLength(good);
+			}
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	private static void apply(final byte record[],
+							  final Map<Integer, CardInstance> cards,
+							  final Set<String> have) throws Exception {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		byte op = input.readByte();
+		switch (op) {
+		case ADD:
+			CardInstance instance = readInstance(input);
+			cards.put(instance.getID(), instance);
+			break;
+		case REMOVE:
+			cards.remove(input.readInt());
+			break;
+		case HAVE:
+			String name = input.readUTF();
+			if (input.readBoolean()) {
+				have.add(name);
+			}
+			else {
+				have.remove(name);
+			}
+			break;
+		default:
+			throw new Exception("Unknown card log record: " + op + ".");
+		}
+	}
+
+	private static byte getFlags(final CardInstance instance) {
+		byte flags = 0;
+		if (instance.isInvalid()) {
+			flags |= INVALID;
+		}
+		if (instance.isForeign()) {
+			flags |= FOREIGN;
+		}
+		if (instance.hasRating()) {
+			flags |= RATED;
+		}
+		return flags;
+	}
+
+	private static void writeInstance(final DataOutputStream output, final CardInstance instance) throws Exception {
+		output.writeInt(instance.getID());
+		output.writeByte(getFlags(instance));
+		if (instance.isInvalidOrForeign()) {
+			return;
+		}
+		output.writeFloat(instance.hasRating() ? instance.getRating() : 0);
+		output.writeInt(instance.hasRating() ? instance.getVotes() : 0);
+		Card card = instance.getCard();
+		writeString(output, card.getName());
+		writeString(output, card.getCost());
+		writeString(output, card.getCMC());
+		writeString(output, card.getTypes());
+		writeString(output, card.getText());
+		writeString(output, card.getPT());
+	}
+
+	private static CardInstance readInstance(final DataInputStream input) throws Exception {
+		int id = input.readInt();
+		byte flags = input.readByte();
+		if ((flags & INVALID) != 0) {
+			return CardInstance.createInvalid(id);
+		}
+		if ((flags & FOREIGN) != 0) {
+			return CardInstance.createForeign(id);
+		}
+		float rating = input.readFloat();
+		int votes = input.readInt();
+		CardInstance instance = new CardInstance(id,
+												 readString(input),
+												 readString(input),
+												 readString(input),
+												 readString(input),
+												 readString(input),
+												 readString(input));
+		if ((flags & RATED) != 0) {
+			instance.setCommunityRating(rating);
+			instance.setCommunityVotes(votes);
+		}
+		return instance;
+	}
+
+	private static void writeString(final DataOutputStream output, final String value) throws Exception {
+		output.writeBoolean(value != null);
+		if (value != null) {
+			output.writeUTF(value);
+		}
+	}
+
+	private static String readString(final DataInputStream input) throws Exception {
+		return input.readBoolean() ? input.readUTF() : null;
+	}
+
+	/**
+	 * Writes the values as a dictionary and references into it.
+	 * @param output
+	 * @param values
+	 * @throws Exception
+	 */
+	private static void writeColumn(final DataOutputStream output, final List<String> values) throws Exception {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		int refs[] = new int[values.size()];
+		int bytes = 0;
+		for (int i = 0; i < refs.length; i++) {
+			String value = values.get(i);
+			if (value == null) {
+				refs[i] = -1;
+				continue;
+			}
+			Integer ref = dictionary.get(value);
+			if (ref == null) {
+				ref = encoded.size();
+				dictionary.put(value, ref);
+				byte data[] = value.getBytes(StandardCharsets.UTF_8);
+				encoded.add(data);
+				bytes += data.length;
+			}
+			refs[i] = ref;
+		}
+
+		output.writeInt(encoded.size());
+		output.writeInt(bytes);
+		int offset = 0;
+		output.writeInt(offset);
+		for (byte[] data : encoded) {
+			offset += data.length;
+			output.writeInt(offset);
+		}
+		for (byte[] data : encoded) {
+			output.write(data);
+		}
+		output.writeInt(refs.length);
+		for (int ref : refs) {
+			output.writeInt(ref);
+		}
+	}
+
+	/**
+	 * Reads a column written by writeColumn(), decoding each distinct value
+	 * once.
+	 * @param buffer
+	 * @return
+	 * @throws Exception
+	 */
+	private static String[] readColumn(final ByteBuffer buffer) throws Exception {
+		int distinct = buffer.getInt();
+		int length = buffer.getInt();
+		int offsets[] = new int[distinct + 1];
+		buffer.asIntBuffer().get(offsets);
+		buffer.position(buffer.position() + offsets.length * 4);
+		byte data[] = new byte[length];
+		buffer.get(data);
+		String dictionary[] = new String[distinct];
+		for (int i = 0; i < distinct; i++) {
+			dictionary[i] = new String(data, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+		}
+
+		int rows = buffer.getInt();
+		int refs[] = new int[rows];
+		buffer.asIntBuffer().get(refs);
+		buffer.position(buffer.position() + rows * 4);
+		String values[] = new String[rows];
+		for (int i = 0; i < rows; i++) {
+			values[i] = refs[i] < 0 ? null : dictionary[refs[i]];
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,56 @@
+package kaflib.applications.mtg;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+public enum ManaColor {
+	WHITE('W'),
+	BLUE('U'),
+	BLACK('B'),
+	RED('R'),
+	GREEN('G'),
+	COLORLESS('C');
+
+	private final char symbol;
+	
+	public char getSymbol() {
+		return symbol;
+	}
+	
+	private ManaColor(final char symbol) {
+		this.symbol = symbol;
+	}
+	
+	/**
+	 * Returns the colors in the mana cost as stored from Gatherer, one
+	 * bracketed symbol name per mana, e.g. [2][Red][White or Blue]
+	 * [Phyrexian Green], or colorless if there are none.  Symbol names are
+	 * matched by whole word, so hybrid symbols count as both colors.
+	 * @param cost
+	 * @return
+	 */
+	public static Set<ManaColor> getColors(final String cost) {
+		Set<ManaColor> colors = EnumSet.noneOf(ManaColor.class);
+		if (cost != null) {
+			int start = cost.indexOf('[');
+			while (start >= 0) {
+				int end = cost.indexOf(']', start);
+				if (end < 0) {
+					break;
+				}
+				for (String word : cost.substring(start + 1, end).split("[^A-Za-z]+")) {
+					for (ManaColor color : ManaColor.values()) {
+						if (color != COLORLESS && color.name().equalsIgnoreCase(word)) {
+							colors.add(color);
+						}
+					}
+				}
+				start = cost.indexOf('[', end);
+			}
+		}
+		if (colors.isEmpty()) {
+			colors.add(COLORLESS);
+		}
+		return colors;
+	}
+}
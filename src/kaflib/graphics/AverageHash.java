@@ -0,0 +1,43 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * Defines an average hash (aHash): the image is reduced to an 8x8 luminance
+ * raster and each bit is set if that cell is brighter than the mean.  Cheap
+ * and tolerant of scaling, less so of gamma/contrast changes.
+ */
+public class AverageHash extends ImageHash {
+
+	private static final int SIZE = 8;
+
+	public AverageHash(final BufferedImage image) throws Exception {
+		super(compute(getLuminance(image, SIZE, SIZE)));
+	}
+
+	public AverageHash(final Canvas canvas) throws Exception {
+		super(compute(getLuminance(canvas, SIZE, SIZE)));
+	}
+
+	public AverageHash(final File file) throws Exception {
+		this(GraphicsUtils.read(file));
+	}
+
+	private static long compute(final int luminance[]) {
+		int sum = 0;
+		for (int value : luminance) {
+			sum += value;
+		}
+		int mean = sum / luminance.length;
+
+		long hash = 0;
+		for (int i = 0; i < luminance.length; i++) {
+			if (luminance[i] > mean) {
+				hash |= 1L << i;
+			}
+		}
+		return hash;
+	}
+
+}
@@ -0,0 +1,527 @@
+package kaflib.graphics;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import kaflib.types.Box;
+import kaflib.types.Coordinate;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a selection stored as a bit mask relative to its bounds rather than
+ * as sets of Coordinate objects.  Each row is packed into longs, so a pixel
+ * costs one bit instead of roughly a hundred bytes across SelectionCore's
+ * coordinate/border/neighbor sets.
+ *
+ * Union, intersection, border (erosion) and neighbor (dilation) queries are
+ * computed a 64-bit word at a time.  getCoordinates()/getBorder()/
+ * getNeighbors() and toSelection() materialize the SelectionCore-style API
+ * for callers that need to iterate coordinates.
+ */
+public class BitSelection {
+
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private int stride;
+	private long words[];
+
+	/**
+	 * Creates an empty selection.
+	 */
+	public BitSelection() {
+		this(0, 0, 0, 0);
+	}
+
+	/**
+	 * Creates an empty selection able to hold the given bounds without
+	 * reallocating.
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 */
+	public BitSelection(final int x, final int y, final int width, final int height) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		stride = (width + 63) >>> 6;
+		words = new long[stride * height];
+	}
+
+	/**
+	 * Creates a selection of the given coordinates.
+	 * @param coordinates
+	 * @throws Exception
+	 */
+	public BitSelection(final Collection<Coordinate> coordinates) throws Exception {
+		this();
+		CheckUtils.check(coordinates, "coordinates");
+		if (coordinates.isEmpty()) {
+			return;
+		}
+		int x_min = Integer.MAX_VALUE;
+		int y_min = Integer.MAX_VALUE;
+		int x_max = Integer.MIN_VALUE;
+		int y_max = Integer.MIN_VALUE;
+		for (Coordinate coordinate : coordinates) {
+			x_min = Math.min(x_min, coordinate.getX());
+			y_min = Math.min(y_min, coordinate.getY());
+			x_max = Math.max(x_max, coordinate.getX());
+			y_max = Math.max(y_max, coordinate.getY());
+		}
+		resize(x_min, y_min, x_max - x_min + 1, y_max - y_min + 1);
+		for (Coordinate coordinate : coordinates) {
+			set(coordinate.getX(), coordinate.getY());
+		}
+	}
+
+	/**
+	 * Creates a copy of the selection's coordinates.
+	 * @param selection
+	 * @throws Exception
+	 */
+	public BitSelection(final SelectionCore selection) throws Exception {
+		this(selection.getCoordinates());
+	}
+
+	/**
+	 * Returns bits [bit, bit + 64) of the given row, both relative to this
+	 * mask's origin.  Anything outside the mask reads as zero.
+	 * @param row
+	 * @param bit
+	 * @return
+	 */
+	private long fetch(final int row, final int bit) {
+		if (row < 0 || row >= height) {
+			return 0;
+		}
+		int word = Math.floorDiv(bit, 64);
+		int shift = Math.floorMod(bit, 64);
+		long low = getWord(row, word);
+		if (shift == 0) {
+			return low;
+		}
+		return (low >>> shift) | (getWord(row, word + 1) << (64 - shift));
+	}
+
+	private long getWord(final int row, final int word) {
+		if (word < 0 || word >= stride) {
+			return 0;
+		}
+		return words[row * stride + word];
+	}
+
+	/**
+	 * Returns bits of the absolute row/column, 64 at a time.
+	 */
+	private long fetchAbsolute(final int absoluteY, final int absoluteX) {
+		return fetch(absoluteY - y, absoluteX - x);
+	}
+
+	/**
+	 * Returns the mask of valid bits for the given word of a row.
+	 */
+	private static long getTail(final int width, final int word) {
+		int remaining = width - (word << 6);
+		if (remaining >= 64) {
+			return -1L;
+		}
+		return (1L << remaining) - 1;
+	}
+
+	/**
+	 * Moves the mask to new bounds, keeping any bits that still fit.
+	 */
+	private void resize(final int newX, final int newY, final int newWidth, final int newHeight) {
+		int new_stride = (newWidth + 63) >>> 6;
+		long resized[] = new long[new_stride * newHeight];
+		for (int j = 0; j < newHeight; j++) {
+			for (int k = 0; k < new_stride; k++) {
+				resized[j * new_stride + k] = fetchAbsolute(newY + j, newX + (k << 6)) & getTail(newWidth, k);
+			}
+		}
+		x = newX;
+		y = newY;
+		width = newWidth;
+		height = newHeight;
+		stride = new_stride;
+		words = resized;
+	}
+
+	private void set(final int absoluteX, final int absoluteY) {
+		int i = absoluteX - x;
+		int j = absoluteY - y;
+		words[j * stride + (i >>> 6)] |= 1L << (i & 63);
+	}
+
+	/**
+	 * Adds the coordinate.  Coordinates outside the current bounds grow the
+	 * mask, which copies it, so bulk additions should prefer the collection
+	 * constructor.
+	 * @param coordinateX
+	 * @param coordinateY
+	 */
+	public void add(final int coordinateX, final int coordinateY) {
+		if (width == 0 || height == 0) {
+			resize(coordinateX, coordinateY, 1, 1);
+		}
+		else if (!inBounds(coordinateX, coordinateY)) {
+			int x_min = Math.min(x, coordinateX);
+			int y_min = Math.min(y, coordinateY);
+			int x_max = Math.max(x + width - 1, coordinateX);
+			int y_max = Math.max(y + height - 1, coordinateY);
+			resize(x_min, y_min, x_max - x_min + 1, y_max - y_min + 1);
+		}
+		set(coordinateX, coordinateY);
+	}
+
+	public void add(final Coordinate coordinate) {
+		add(coordinate.getX(), coordinate.getY());
+	}
+
+	public void remove(final int coordinateX, final int coordinateY) {
+		if (!inBounds(coordinateX, coordinateY)) {
+			return;
+		}
+		int i = coordinateX - x;
+		int j = coordinateY - y;
+		words[j * stride + (i >>> 6)] &= ~(1L << (i & 63));
+	}
+
+	public void remove(final Coordinate coordinate) {
+		remove(coordinate.getX(), coordinate.getY());
+	}
+
+	private boolean inBounds(final int coordinateX, final int coordinateY) {
+		return coordinateX >= x && coordinateX < x + width &&
+			   coordinateY >= y && coordinateY < y + height;
+	}
+
+	public boolean contains(final int coordinateX, final int coordinateY) {
+		if (!inBounds(coordinateX, coordinateY)) {
+			return false;
+		}
+		int i = coordinateX - x;
+		int j = coordinateY - y;
+		return (words[j * stride + (i >>> 6)] & (1L << (i & 63))) != 0;
+	}
+
+	public boolean contains(final Coordinate coordinate) {
+		return contains(coordinate.getX(), coordinate.getY());
+	}
+
+	/**
+	 * Returns the number of selected pixels.
+	 * @return
+	 */
+	public int size() {
+		int count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		for (long word : words) {
+			if (word != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether any pixel is shared with the other selection.
+	 * @param other
+	 * @return
+	 */
+	public boolean overlaps(final BitSelection other) {
+		int x_min = Math.max(x, other.x);
+		int y_min = Math.max(y, other.y);
+		int x_max = Math.min(x + width, other.x + other.width);
+		int y_max = Math.min(y + height, other.y + other.height);
+		for (int j = y_min; j < y_max; j++) {
+			for (int i = x_min; i < x_max; i += 64) {
+				long mask = getTail(x_max - x_min, (i - x_min) >>> 6);
+				if ((fetchAbsolute(j, i) & other.fetchAbsolute(j, i) & mask) != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a new selection of pixels in either selection.
+	 * @param other
+	 * @return
+	 */
+	public BitSelection union(final BitSelection other) {
+		if (other.width == 0 || other.height == 0) {
+			return copy();
+		}
+		if (width == 0 || height == 0) {
+			return other.copy();
+		}
+		int x_min = Math.min(x, other.x);
+		int y_min = Math.min(y, other.y);
+		int x_max = Math.max(x + width, other.x + other.width);
+		int y_max = Math.max(y + height, other.y + other.height);
+		BitSelection result = new BitSelection(x_min, y_min, x_max - x_min, y_max - y_min);
+		for (int j = 0; j < result.height; j++) {
+			for (int k = 0; k < result.stride; k++) {
+				int i = x_min + (k << 6);
+				result.words[j * result.stride + k] =
+						(fetchAbsolute(y_min + j, i) | other.fetchAbsolute(y_min + j, i)) &
+						getTail(result.width, k);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new selection of pixels in both selections.
+	 * @param other
+	 * @return
+	 */
+	public BitSelection intersection(final BitSelection other) {
+		int x_min = Math.max(x, other.x);
+		int y_min = Math.max(y, other.y);
+		int x_max = Math.min(x + width, other.x + other.width);
+		int y_max = Math.min(y + height, other.y + other.height);
+		if (x_min >= x_max || y_min >= y_max) {
+			return new BitSelection();
+		}
+		BitSelection result = new BitSelection(x_min, y_min, x_max - x_min, y_max - y_min);
+		for (int j = 0; j < result.height; j++) {
+			for (int k = 0; k < result.stride; k++) {
+				int i = x_min + (k << 6);
+				result.words[j * result.stride + k] =
+						fetchAbsolute(y_min + j, i) & other.fetchAbsolute(y_min + j, i) &
+						getTail(result.width, k);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new selection of pixels in this selection but not the other.
+	 * @param other
+	 * @return
+	 */
+	public BitSelection difference(final BitSelection other) {
+		BitSelection result = copy();
+		for (int j = 0; j < result.height; j++) {
+			for (int k = 0; k < result.stride; k++) {
+				result.words[j * result.stride + k] &= ~other.fetchAbsolute(y + j, x + (k << 6));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the selected pixels with at least one unselected 8-neighbor,
+	 * computed as the selection minus its 3x3 erosion.
+	 * @return
+	 */
+	public BitSelection getBorderMask() {
+		BitSelection result = new BitSelection(x, y, width, height);
+		for (int j = 0; j < height; j++) {
+			for (int k = 0; k < stride; k++) {
+				int bit = k << 6;
+				long eroded = -1L;
+				for (int dj = -1; dj <= 1; dj++) {
+					eroded &= fetch(j + dj, bit - 1) & fetch(j + dj, bit) & fetch(j + dj, bit + 1);
+				}
+				result.words[j * stride + k] = words[j * stride + k] & ~eroded;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the unselected pixels with at least one selected 8-neighbor,
+	 * computed as the 3x3 dilation minus the selection.
+	 * @return
+	 */
+	public BitSelection getNeighborMask() {
+		if (width == 0 || height == 0) {
+			return new BitSelection();
+		}
+		BitSelection result = new BitSelection(x - 1, y - 1, width + 2, height + 2);
+		for (int j = 0; j < result.height; j++) {
+			for (int k = 0; k < result.stride; k++) {
+				// Relative to this mask, the result starts one row/column up.
+				int row = j - 1;
+				int bit = (k << 6) - 1;
+				long dilated = 0;
+				for (int dj = -1; dj <= 1; dj++) {
+					dilated |= fetch(row + dj, bit - 1) | fetch(row + dj, bit) | fetch(row + dj, bit + 1);
+				}
+				result.words[j * result.stride + k] = dilated & ~fetch(row, bit) &
+													  getTail(result.width, k);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a copy.
+	 * @return
+	 */
+	public BitSelection copy() {
+		BitSelection copy = new BitSelection(x, y, width, height);
+		System.arraycopy(words, 0, copy.words, 0, words.length);
+		return copy;
+	}
+
+	/**
+	 * Shrinks the bounds to the selected pixels.
+	 */
+	public void trim() {
+		int x_min = Integer.MAX_VALUE;
+		int y_min = Integer.MAX_VALUE;
+		int x_max = Integer.MIN_VALUE;
+		int y_max = Integer.MIN_VALUE;
+		for (int j = 0; j < height; j++) {
+			for (int k = 0; k < stride; k++) {
+				long word = words[j * stride + k];
+				if (word == 0) {
+					continue;
+				}
+				y_min = Math.min(y_min, j);
+				y_max = Math.max(y_max, j);
+				x_min = Math.min(x_min, (k << 6) + Long.numberOfTrailingZeros(word));
+				x_max = Math.max(x_max, (k << 6) + 63 - Long.numberOfLeadingZeros(word));
+			}
+		}
+		if (y_min == Integer.MAX_VALUE) {
+			resize(x, y, 0, 0);
+		}
+		else {
+			resize(x + x_min, y + y_min, x_max - x_min + 1, y_max - y_min + 1);
+		}
+	}
+
+	/**
+	 * Returns the centroid, or null if empty.
+	 * @return
+	 */
+	public Coordinate getCentroid() {
+		long x_sum = 0;
+		long y_sum = 0;
+		long count = 0;
+		for (int j = 0; j < height; j++) {
+			for (int k = 0; k < stride; k++) {
+				long word = words[j * stride + k];
+				int bits = Long.bitCount(word);
+				if (bits == 0) {
+					continue;
+				}
+				count += bits;
+				y_sum += (long) (y + j) * bits;
+				while (word != 0) {
+					x_sum += x + (k << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+		}
+		if (count == 0) {
+			return null;
+		}
+		return new Coordinate((int) (x_sum / count), (int) (y_sum / count));
+	}
+
+	/**
+	 * Returns the bounding box of the selected pixels, or null if they are
+	 * all in one row or column (as with SelectionCore.getBoundingBox()).
+	 * @return
+	 * @throws Exception
+	 */
+	public Box getBoundingBox() throws Exception {
+		BitSelection trimmed = copy();
+		trimmed.trim();
+		if (trimmed.width < 2 || trimmed.height < 2) {
+			return null;
+		}
+		return new Box(trimmed.x, trimmed.width - 1, trimmed.y, trimmed.height - 1);
+	}
+
+	/**
+	 * Returns the selected coordinates.
+	 * @return
+	 */
+	public Set<Coordinate> getCoordinates() {
+		Set<Coordinate> coordinates = new HashSet<Coordinate>();
+		for (int j = 0; j < height; j++) {
+			for (int k = 0; k < stride; k++) {
+				long word = words[j * stride + k];
+				while (word != 0) {
+					coordinates.add(new Coordinate(x + (k << 6) + Long.numberOfTrailingZeros(word), y + j));
+					word &= word - 1;
+				}
+			}
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Returns the border coordinates.
+	 * @return
+	 */
+	public Set<Coordinate> getBorder() {
+		return getBorderMask().getCoordinates();
+	}
+
+	/**
+	 * Returns the neighbor coordinates.
+	 * @return
+	 */
+	public Set<Coordinate> getNeighbors() {
+		return getNeighborMask().getCoordinates();
+	}
+
+	/**
+	 * Converts to a coordinate-set selection.
+	 * @return
+	 * @throws Exception
+	 */
+	public Selection toSelection() throws Exception {
+		return new Selection(getCoordinates());
+	}
+
+	public String toString() {
+		return size() + " pixels in " + width + "x" + height + " at (" + x + ", " + y + ")";
+	}
+
+	/**
+	 * Returns a selection that is a circle, using the same bounds as
+	 * Selection.getCircle().
+	 * @param center
+	 * @param radius
+	 * @return
+	 * @throws Exception
+	 */
+	public static BitSelection getCircle(final Coordinate center, final int radius) throws Exception {
+		CheckUtils.checkPositive(radius, "radius");
+		BitSelection selection = new BitSelection(center.getX() - radius,
+												  center.getY() - radius,
+												  radius * 2,
+												  radius * 2);
+		int radius_sq = radius * radius;
+		for (int j = -radius; j < radius; j++) {
+			for (int i = -radius; i < radius; i++) {
+				if (i * i + j * j <= radius_sq) {
+					selection.set(center.getX() + i, center.getY() + j);
+				}
+			}
+		}
+		return selection;
+	}
+
+}
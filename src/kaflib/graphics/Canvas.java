@@ -2,23 +2,35 @@ package kaflib.graphics;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 
 import kaflib.graphics.GraphicsUtils.Rotation;
+import kaflib.graphics.transform.ChannelPlanes;
+import kaflib.graphics.transform.Convolution;
 import kaflib.gui.components.DownscaledImageComponent;
 import kaflib.types.Box;
 import kaflib.types.Byte;
 import kaflib.types.Coordinate;
-import kaflib.types.IntegerHistogram;
+import kaflib.types.IntHistogram;
 import kaflib.types.Percent;
 import kaflib.utils.CheckUtils;
 import kaflib.utils.GUIUtils;
@@ -30,6 +42,9 @@ import kaflib.utils.TypeUtils;
  * Defines a raster canvas of pixels (argb values).  Uninitialized values start
  * as transparent black.  Canvas dimensions are immutable, but values can be
  * modified.
+ *
+ * Flat color fills and borders store one shared, read-only pixel per color
+ * rather than a copy per cell; use getMutable() to modify a pixel in place.
  */
 public class Canvas {
 	public enum Orientation {
@@ -41,9 +56,9 @@ public class Canvas {
 	private static final int SIMILAR_SCALE_WIDTH = 600;
 	private static final int SIMILAR_SAMPLES = 32;
 	private static final int SIMILAR_THRESHOLD = 64;
+	private static final int SMOOTH_MAX_PASSES = 3;
 	
 	private final RGBPixel pixels[][];
-	private Map<Coordinate, RGBPixel> map;
 
 	/**
 	 * Reads an image file to a canvas.
@@ -122,13 +137,24 @@ public class Canvas {
 	 * @throws Exception
 	 */
 	public Canvas(final int width, final int height, final RGBPixel color) throws Exception {
+		this(width, height, ColorValue.valueOf(color));
+	}
+
+	/**
+	 * Creates a canvas with every cell holding the color's shared pixel.
+	 * @param width
+	 * @param height
+	 * @param color
+	 * @throws Exception
+	 */
+	public Canvas(final int width, final int height, final ColorValue color) throws Exception {
 		CheckUtils.checkPositive(width, "width");
 		CheckUtils.checkPositive(height, "height");
+		CheckUtils.check(color, "color");
 		pixels = new RGBPixel[width][height];
+		RGBPixel shared = color.getPixel();
 		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				pixels[i][j] = new RGBPixel(color);
-			}
+			Arrays.fill(pixels[i], shared);
 		}
 	}
 
@@ -149,13 +175,15 @@ public class Canvas {
 		CheckUtils.checkPositive(width, "width");
 		CheckUtils.checkPositive(height, "height");
 		pixels = new RGBPixel[width][height];
+		RGBPixel shared_a = ColorValue.valueOf(colorA).getPixel();
+		RGBPixel shared_b = ColorValue.valueOf(colorB).getPixel();
 		for (int i = 0; i < width; i++) {
 			for (int j = 0; j < height; j++) {
 				if (RandomUtils.randomBoolean((aPct))) {
-					pixels[i][j] = new RGBPixel(colorA);
+					pixels[i][j] = shared_a;
 				}
 				else {
-					pixels[i][j] = new RGBPixel(colorB);
+					pixels[i][j] = shared_b;
 				}
 			}
 		}
@@ -183,12 +211,14 @@ public class Canvas {
 		CheckUtils.checkPositive(height, "height");
 		CheckUtils.checkNonEmpty(colors, "colors");
 		
-		int count = colors.length;
+		RGBPixel shared[] = new RGBPixel[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			shared[i] = ColorValue.valueOf(colors[i]).getPixel();
+		}
 		pixels = new RGBPixel[width][height];
 		for (int i = 0; i < width; i++) {
 			for (int j = 0; j < height; j++) {
-				int rand = RandomUtils.randomInt(count);
-				pixels[i][j] = new RGBPixel(colors[rand]);
+				pixels[i][j] = shared[RandomUtils.randomInt(shared.length)];
 			}
 		}
 	}
@@ -233,13 +263,13 @@ public class Canvas {
 		return aint == bint;
 	}
 	
-	public IntegerHistogram getLuminanceHistogram(final Collection<Coordinate> coordinates) throws Exception {
-		IntegerHistogram histogram = new IntegerHistogram(0, Byte.MAX_VALUE.getValue(), 8);
-		
+	public IntHistogram getLuminanceHistogram(final Collection<Coordinate> coordinates) throws Exception {
+		int luminance[] = new int[coordinates.size()];
+		int i = 0;
 		for (Coordinate coordinate : coordinates) {
-			histogram.increment(get(coordinate).getLuminance().getValue());
+			luminance[i++] = get(coordinate).getLuminanceValue();
 		}
-		return histogram;
+		return IntHistogram.getHistogram(0, Byte.MAX_VALUE.getValue(), 8, luminance);
 	}
 	
 	/**
@@ -280,7 +310,7 @@ public class Canvas {
 	public void addNoise(final Byte max) throws Exception {
 		for (int i = 0; i < getWidth(); i++) {
 			for (int j = 0; j < getHeight(); j++) {
-				pixels[i][j].addNoise(max);
+				getMutable(i, j).addNoise(max);
 			}
 		}
 	}
@@ -407,24 +437,33 @@ public class Canvas {
 	 * @throws Exception
 	 */
 	public void addBorder(final int width, final RGBPixel color) throws Exception {
+		CheckUtils.check(color, "color");
+		addBorder(width, ColorValue.valueOf(color));
+	}
+	
+	/**
+	 * Adds a border of the specified number of pixels, all sharing the
+	 * color's pixel.
+	 * @param width
+	 * @param color
+	 * @throws Exception
+	 */
+	public void addBorder(final int width, final ColorValue color) throws Exception {
 		CheckUtils.checkPositive(width, "width");
 		CheckUtils.check(color, "color");
 		int height = pixels[0].length;
+		RGBPixel shared = color.getPixel();
 		
 		// Top/bottom.
 		for (int i = 0; i < pixels.length; i++) {
-			for (int j = 0; j < Math.min(width, height); j++) {
-				pixels[i][j] = new RGBPixel(color);
-				pixels[i][height - 1 - j] = new RGBPixel(color);
-			}
+			Arrays.fill(pixels[i], 0, Math.min(width, height), shared);
+			Arrays.fill(pixels[i], Math.max(0, height - width), height, shared);
 		}
 		
 		// Left/right.
 		for (int i = 0; i < Math.min(width, pixels.length); i++) {
-			for (int j = 0; j < height; j++) {
-				pixels[i][j] = new RGBPixel(color);
-				pixels[pixels.length - 1 - i][j] = new RGBPixel(color);
-			}
+			Arrays.fill(pixels[i], shared);
+			Arrays.fill(pixels[pixels.length - 1 - i], shared);
 		}
 	}
 	
@@ -538,35 +577,174 @@ public class Canvas {
 	}
 	
 	/**
-	 * Returns a map of the contents of this Canvas.
+	 * Returns a map of the contents of this Canvas.  This is a snapshot with
+	 * an entry per pixel, built on every call; prefer forEachPixel().
 	 * @return
 	 */
 	public Map<Coordinate, RGBPixel> getMap() {
-		if (map == null) {
-			map = new HashMap<Coordinate, RGBPixel>(pixels.length * pixels[0].length);
-			for (int i = 0; i < pixels.length; i++) {
-				for (int j = 0; j < pixels[i].length; j++) {
-					map.put(new Coordinate(i, j), pixels[i][j]);
-				}
+		Map<Coordinate, RGBPixel> map = new HashMap<Coordinate, RGBPixel>(pixels.length * pixels[0].length);
+		for (int i = 0; i < pixels.length; i++) {
+			for (int j = 0; j < pixels[i].length; j++) {
+				map.put(new Coordinate(i, j), pixels[i][j]);
 			}
 		}
 		return map;
 	}
 	
 	/**
-	 * Returns a set of all coordinates in this Canvas.
+	 * Returns a read-only view of all coordinates in this Canvas.  Nothing is
+	 * stored; coordinates are created as the view is iterated, and its
+	 * spliterator splits by rows for parallel streams.
 	 * @return
 	 */
 	public Set<Coordinate> getCoordinates() {
-		return getMap().keySet();
+		return new AbstractSet<Coordinate>() {
+			@Override
+			public int size() {
+				return getWidth() * getHeight();
+			}
+
+			@Override
+			public boolean contains(final Object o) {
+				return o instanceof Coordinate && isValid((Coordinate) o);
+			}
+
+			@Override
+			public Iterator<Coordinate> iterator() {
+				return Spliterators.iterator(spliterator());
+			}
+
+			@Override
+			public Spliterator<Coordinate> spliterator() {
+				return new CoordinateSpliterator(getPixelSpliterator(), getWidth());
+			}
+		};
 	}
 	
 	/**
-	 * Returns a collection of the pixels in this Canvas.
+	 * Returns a read-only view of the pixels in this Canvas.
 	 * @return
 	 */
 	public Collection<RGBPixel> getPixels() {
-		return getMap().values();
+		return new AbstractCollection<RGBPixel>() {
+			@Override
+			public int size() {
+				return getWidth() * getHeight();
+			}
+
+			@Override
+			public Iterator<RGBPixel> iterator() {
+				return Spliterators.iterator(spliterator());
+			}
+
+			@Override
+			public Spliterator<RGBPixel> spliterator() {
+				Spliterator.OfInt indices = getPixelSpliterator();
+				int width = getWidth();
+				return StreamSupport.intStream(indices, false)
+									.mapToObj(i -> pixels[i % width][i / width])
+									.spliterator();
+			}
+		};
+	}
+	
+	/**
+	 * Returns a spliterator over the row-major pixel indices.
+	 * @return
+	 */
+	public Spliterator.OfInt getPixelSpliterator() {
+		try {
+			return new PixelSpliterator(getWidth(), getHeight());
+		}
+		catch (Exception e) {
+			// Dimensions are checked on construction.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Returns a stream of the row-major pixel indices (y * width + x).
+	 * @param parallel
+	 * @return
+	 */
+	public IntStream getPixelIndices(final boolean parallel) {
+		return StreamSupport.intStream(getPixelSpliterator(), parallel);
+	}
+	
+	/**
+	 * Visits every pixel location, column by column to follow the storage
+	 * order.
+	 * @param consumer
+	 * @throws Exception
+	 */
+	public void forEachPixel(final PixelConsumer consumer) throws Exception {
+		for (int i = 0; i < pixels.length; i++) {
+			for (int j = 0; j < pixels[0].length; j++) {
+				consumer.accept(i, j);
+			}
+		}
+	}
+	
+	/**
+	 * Visits every pixel location in parallel, splitting by rows.  The
+	 * consumer must be safe to call concurrently for different pixels.
+	 * @param consumer
+	 * @throws Exception
+	 */
+	public void forEachPixelParallel(final PixelConsumer consumer) throws Exception {
+		int width = getWidth();
+		try {
+			getPixelIndices(true).forEach(i -> {
+				try {
+					consumer.accept(i % width, i / width);
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (CompletionException e) {
+			throw TypeUtils.getCause(e);
+		}
+	}
+	
+	/**
+	 * Adapts row-major pixel indices to coordinates.
+	 */
+	private static class CoordinateSpliterator implements Spliterator<Coordinate> {
+		private final Spliterator.OfInt indices;
+		private final int width;
+		
+		public CoordinateSpliterator(final Spliterator.OfInt indices, final int width) {
+			this.indices = indices;
+			this.width = width;
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super Coordinate> action) {
+			return indices.tryAdvance((int i) -> action.accept(new Coordinate(i % width, i / width)));
+		}
+
+		@Override
+		public void forEachRemaining(final Consumer<? super Coordinate> action) {
+			indices.forEachRemaining((int i) -> action.accept(new Coordinate(i % width, i / width)));
+		}
+
+		@Override
+		public Spliterator<Coordinate> trySplit() {
+			Spliterator.OfInt prefix = indices.trySplit();
+			return prefix == null ? null : new CoordinateSpliterator(prefix, width);
+		}
+
+		@Override
+		public long estimateSize() {
+			return indices.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return indices.characteristics();
+		}
 	}
 	
 	public String toString() {
@@ -604,19 +782,26 @@ public class Canvas {
 	 * @throws Exception
 	 */
 	public void draw(final Box box, final RGBPixel value) throws Exception {
+		draw(box, ColorValue.valueOf(value));
+	}
+	
+	/**
+	 * Draws an empty one-pixel box sharing the color's pixel.
+	 * @param box
+	 * @param color
+	 * @throws Exception
+	 */
+	public void draw(final Box box, final ColorValue color) throws Exception {
 		if (!box.isContained(getBounds())) {
 			throw new Exception("Box: " + box + " outside of " + getBounds() + ".");
 		}
-		
+		RGBPixel shared = color.getPixel();
 		for (int i = box.getXMin(); i <= box.getXMax(); i++) {
-			pixels[i][box.getYMin()] = new RGBPixel(value);
-			pixels[i][box.getYMax()] = new RGBPixel(value);
-		}
-		for (int j = box.getYMin(); j <= box.getYMax(); j++) {
-			pixels[box.getXMin()][j] = new RGBPixel(value);
-			pixels[box.getXMax()][j] = new RGBPixel(value);			
+			pixels[i][box.getYMin()] = shared;
+			pixels[i][box.getYMax()] = shared;
 		}
-		
+		Arrays.fill(pixels[box.getXMin()], box.getYMin(), box.getYMax() + 1, shared);
+		Arrays.fill(pixels[box.getXMax()], box.getYMin(), box.getYMax() + 1, shared);
 	}
 	
 	/**
@@ -626,13 +811,22 @@ public class Canvas {
 	 * @throws Exception
 	 */
 	public void fill(final Box box, final RGBPixel value) throws Exception {
+		fill(box, ColorValue.valueOf(value));
+	}
+	
+	/**
+	 * Fills a box with the color's shared pixel.
+	 * @param box
+	 * @param color
+	 * @throws Exception
+	 */
+	public void fill(final Box box, final ColorValue color) throws Exception {
 		if (!box.isContained(getBounds())) {
 			throw new Exception("Box: " + box + " outside of " + getBounds() + ".");
 		}
+		RGBPixel shared = color.getPixel();
 		for (int i = box.getXMin(); i <= box.getXMax(); i++) {
-			for (int j = box.getYMin(); j <= box.getYMax(); j++) {
-				pixels[i][j] = new RGBPixel(value);
-			}
+			Arrays.fill(pixels[i], box.getYMin(), box.getYMax() + 1, shared);
 		}
 	}
 	
@@ -660,18 +854,67 @@ public class Canvas {
 	
 	/**
 	 * Sets each pixel in the canvas to the average of the values in the 
-	 * box specified by radius.
+	 * box specified by radius, once per unit of radius.  As with getBox(),
+	 * the box is [x - radius, x + radius) clipped to the canvas, and as with 
+	 * RGBPixel.getAverage() transparent pixels are skipped.  Each pass reads
+	 * the previous pass's values, where the pixels used to be updated in
+	 * place as the pass went.
+	 * 
+	 * A pass costs constant time per pixel whatever the box size, but there
+	 * are radius passes, so the cost per pixel grows linearly with the
+	 * radius.  Use smooth(radius, true) to bound it.  Results are written
+	 * into the existing pixels, as with getMutable(), so a pixel object
+	 * also held elsewhere (e.g. by a canvas copied from this one) changes
+	 * with it.
 	 * @param radius
 	 * @throws Exception
 	 */
 	public void smooth(final int radius) throws Exception {
-		for (int i = 0; i < radius; i++) {
-			for (int x = 0; x < getWidth(); x++) {
-				for (int y = 0; y < getHeight(); y++) {
-					set(x, y, RGBPixel.getAverage(getBox(new Coordinate(x, y), radius)));
-				}
-			}
+		smooth(radius, false);
+	}
+
+	/**
+	 * As smooth(radius), but if approximate is set and the radius is over 
+	 * SMOOTH_MAX_PASSES, runs that many passes of a wider box with the same
+	 * combined spread instead, so the cost per pixel does not depend on the
+	 * radius.
+	 * @param radius
+	 * @param approximate
+	 * @throws Exception
+	 */
+	public void smooth(final int radius, final boolean approximate) throws Exception {
+		CheckUtils.checkNonNegative(radius, "radius");
+		if (radius == 0) {
+			return;
 		}
+		int passes = radius;
+		int box = radius;
+		if (approximate && radius > SMOOTH_MAX_PASSES) {
+			// A pass over 2r samples has variance ((2r)^2 - 1) / 12; pick the
+			// width whose passes add up to the same variance.
+			double width_squared = (radius * ((4.0 * radius * radius) - 1)) / SMOOTH_MAX_PASSES;
+			passes = SMOOTH_MAX_PASSES;
+			box = (int) Math.round(Math.sqrt(width_squared + 1) / 2);
+		}
+		ChannelPlanes planes = new ChannelPlanes(pixels);
+		Convolution.smooth(planes, box, box - 1, passes);
+		planes.toPixels(this);
+	}
+
+	/**
+	 * Returns the pixel at x, y for modifying in place, first replacing a
+	 * shared read-only pixel (or an empty cell) with a copy of its own.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public RGBPixel getMutable(final int x, final int y) {
+		RGBPixel pixel = pixels[x][y];
+		if (pixel == null || !pixel.isMutable()) {
+			pixel = pixel == null ? new RGBPixel(RGBPixel.TRANSPARENT_BLACK) : new RGBPixel(pixel);
+			pixels[x][y] = pixel;
+		}
+		return pixel;
 	}
 
 	public void uncheckedSet(final Coordinate coordinate, final RGBPixel value) {
@@ -831,9 +1074,16 @@ public class Canvas {
 	 */
 	public void blend(final Canvas canvas) throws Exception {
 		checkDimensions(canvas);
+		int column[] = new int[pixels[0].length];
+		int other[] = new int[pixels[0].length];
 	    for (int i = 0; i < pixels.length; i++) {
-	    	for (int j = 0; j < pixels[0].length; j++) {
-	    		pixels[i][j].blend(canvas.get(i, j));
+	    	for (int j = 0; j < column.length; j++) {
+	    		column[j] = get(i, j).getARGB();
+	    		other[j] = canvas.get(i, j).getARGB();
+	    	}
+	    	PixelKernels.composite(column, other, column);
+	    	for (int j = 0; j < column.length; j++) {
+	    		pixels[i][j] = new RGBPixel(column[j]);
 	    	}
 	    }		
 	}
@@ -1,5 +1,7 @@
 package kaflib.graphics;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -7,6 +9,12 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import kaflib.types.Box;
 import kaflib.types.Coordinate;
@@ -18,10 +26,16 @@ import kaflib.utils.RandomUtils;
  * Defines an x-by-y grid of canvas tiles that have an overlap margin used to
  * re-stitch them.  The tile dimensions are static, so the canvas is resized
  * to fit the best grid layout.
+ *
+ * Tiles are views over one packed raster of the scaled image and are only
+ * copied out when a canvas is requested (and may then be modified).
  */
 public class CanvasGrid {
-	private final Canvas scaled;
-	private final Canvas grid[][];
+	private static final int BLEND_DOMINANT = 90;
+
+	private final int raster[];
+	private Canvas scaled;
+	private final CanvasTile grid[][];
 	private final int width;
 	private final int height;
 	private final int tile_width;
@@ -33,7 +47,7 @@ public class CanvasGrid {
 					final int tileHeight,
 					final int margin,
 					final int longestDimension) throws Exception {
-		this(new Canvas(source), tileWidth, tileHeight, margin, longestDimension);
+		this(GraphicsUtils.read(source), tileWidth, tileHeight, margin, longestDimension);
 	}
 
 	private static double getRatio(final int width, final int height) {
@@ -46,6 +60,14 @@ public class CanvasGrid {
 					final int tileHeight,
 					final int margin,
 					final int longestDimension) throws Exception {
+		this(source.toBufferedImage(), tileWidth, tileHeight, margin, longestDimension);
+	}
+
+	public CanvasGrid(final BufferedImage source,
+					final int tileWidth,
+					final int tileHeight,
+					final int margin,
+					final int longestDimension) throws Exception {
 		CheckUtils.check(source, "source");
 
 		tile_width = tileWidth;
@@ -55,17 +77,22 @@ public class CanvasGrid {
 		Coordinate bounds = getGrid(source.getWidth(), 
 						source.getHeight(),
 						longestDimension);
-		grid = new Canvas[bounds.getX()][bounds.getY()];
+		grid = new CanvasTile[bounds.getX()][bounds.getY()];
 		width = (tileWidth * grid.length) - (margin * (grid.length - 1));
 		height = (tileHeight * grid[0].length) - (margin * (grid[0].length - 1));
 		
-		scaled = CanvasUtils.fill(source, width, height);
+		BufferedImage image = source;
+		if (source.getWidth() != width || source.getHeight() != height) {
+			image = GraphicsUtils.fill(source, width, height);
+		}
+		raster = image.getRGB(0, 0, width, height, null, 0, width);
+		scaled = null;
 		for (int i = 0; i < grid.length; i++) {
 			int xstart = Math.max(0, i * tileWidth - (i * margin) - 1);
 			for (int j = 0; j < grid[i].length; j++) {
 				int ystart = Math.max(0, j * tileHeight - (j * margin) - 1);
-				grid[i][j] = scaled.get(new Box(xstart, tileWidth, 
-												ystart, tileHeight));
+				grid[i][j] = new CanvasTile(raster, width, new Box(xstart, tileWidth, 
+																   ystart, tileHeight));
 			}
 		}
 	}
@@ -115,51 +142,213 @@ public class CanvasGrid {
 		}
 	}
 	
-	public Canvas scaled() {
+	/**
+	 * Returns the scaled source as a canvas, built on first use.
+	 * @return
+	 * @throws Exception
+	 */
+	public synchronized Canvas scaled() throws Exception {
+		if (scaled == null) {
+			RGBPixel pixels[][] = new RGBPixel[width][height];
+			for (int j = 0; j < height; j++) {
+				for (int i = 0; i < width; i++) {
+					pixels[i][j] = new RGBPixel(raster[j * width + i]);
+				}
+			}
+			scaled = new Canvas(width, height);
+			scaled.set(pixels);
+		}
 		return scaled;
 	}
 	
 	/**
 	 * Returns a random canvas in this grid.
 	 * @return
+	 * @throws Exception
 	 */
-	public Canvas getRandom() {
+	public Canvas getRandom() throws Exception {
 		int i = RandomUtils.randomInt(grid.length);
 		int j = RandomUtils.randomInt(grid[0].length);
-		return grid[i][j];
+		return grid[i][j].getCanvas();
 	}
 	
 	public void set(final Coordinate coordinate, final Canvas canvas) throws Exception {
 		CheckUtils.checkRange(coordinate.getX(), 0, grid.length - 1);
 		CheckUtils.checkRange(coordinate.getY(), 0, grid[0].length - 1);
-		grid[coordinate.getX()][coordinate.getY()] = canvas;
+		grid[coordinate.getX()][coordinate.getY()] = new CanvasTile(canvas);
 	}
 	
+	/**
+	 * Returns the tile as a modifiable canvas, copying it out of the shared
+	 * raster if this is the first request.
+	 * @param coordinate
+	 * @return
+	 * @throws Exception
+	 */
 	public Canvas get(final Coordinate coordinate) throws Exception {
+		return getTile(coordinate).getCanvas();
+	}
+	
+	/**
+	 * Returns the tile view, which doesn't copy.
+	 * @param coordinate
+	 * @return
+	 * @throws Exception
+	 */
+	public CanvasTile getTile(final Coordinate coordinate) throws Exception {
 		CheckUtils.checkRange(coordinate.getX(), 0, grid.length - 1);
 		CheckUtils.checkRange(coordinate.getY(), 0, grid[0].length - 1);
 		return grid[coordinate.getX()][coordinate.getY()];
 	}
 	
 	public void toFile(final File file) throws Exception {
-		toCanvas().toFile(file);
+		GraphicsUtils.writePNG(toBufferedImage(), file);
 	}
 	
 	public Canvas toCanvas() throws Exception {
-		Canvas canvas = null;
-		for (int i = 0; i < grid.length; i++){
-			Canvas column = grid[i][0];
-			for (int j = 1; j < grid[i].length; j++) {
-				column = CanvasUtils.join(column, grid[i][j], margin, false);
-			}
-			if (i == 0) {
-				canvas = column;
+		return new Canvas(toBufferedImage());
+	}
+	
+	/**
+	 * Stitches the tiles back together, blending the margins as
+	 * CanvasUtils.join does: each column is joined top to bottom, then the
+	 * columns left to right.  Non-margin pixels are bulk row copies.
+	 * @return
+	 * @throws Exception
+	 */
+	public BufferedImage toBufferedImage() throws Exception {
+		for (int i = 0; i < grid.length; i++) {
+			for (int j = 0; j < grid[i].length; j++) {
+				CheckUtils.checkEquals(grid[i][j].getWidth(), tile_width, "tile width");
+				CheckUtils.checkEquals(grid[i][j].getHeight(), tile_height, "tile height");
 			}
-			else {
-				canvas = CanvasUtils.join(canvas, column, margin, true);
+		}
+		final int step_x = tile_width - margin;
+		final int step_y = tile_height - margin;
+		final int columns[][] = new int[grid.length][];
+		try {
+			IntStream.range(0, grid.length).parallel().forEach(i -> {
+				try {
+					columns[i] = joinColumn(grid[i], height, step_y);
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		final int output[] = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		try {
+			IntStream.range(0, height).parallel().forEach(y -> {
+				try {
+					int row = y * width;
+					System.arraycopy(columns[0], y * tile_width, output, row, tile_width);
+					for (int i = 1; i < columns.length; i++) {
+						int x = i * step_x;
+						int source = y * tile_width;
+						blend(output, row + x, columns[i], source, margin);
+						System.arraycopy(columns[i], source + margin, output, row + x + margin, tile_width - margin);
+					}
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+		return image;
+	}
+	
+	/**
+	 * Joins a column of tiles top to bottom into a tile-width strip.
+	 * @param tiles
+	 * @param height
+	 * @param step
+	 * @return
+	 * @throws Exception
+	 */
+	private int[] joinColumn(final CanvasTile tiles[], final int height, final int step) throws Exception {
+		int strip[] = new int[tile_width * height];
+		int row[] = new int[tile_width];
+		for (int j = 0; j < tiles.length; j++) {
+			int y = j * step;
+			for (int k = 0; k < tile_height; k++) {
+				if (j > 0 && k < margin) {
+					tiles[j].copyRow(k, row, 0);
+					blendRow(strip, (y + k) * tile_width, row, k);
+				}
+				else {
+					tiles[j].copyRow(k, strip, (y + k) * tile_width);
+				}
 			}
 		}
-		return canvas;
+		return strip;
+	}
+	
+	/**
+	 * Blends one margin row (index k of margin) of the lower tile into the
+	 * strip.
+	 */
+	private void blendRow(final int strip[], final int offset, final int row[], final int k) throws Exception {
+		int percent = getPercent(k);
+		for (int i = 0; i < row.length; i++) {
+			strip[offset + i] = blend(strip[offset + i], row[i], percent);
+		}
+	}
+	
+	/**
+	 * Blends a run of margin columns of the right strip into the output row.
+	 */
+	private void blend(final int output[], final int offset, final int column[], final int source, final int count) throws Exception {
+		for (int k = 0; k < count; k++) {
+			output[offset + k] = blend(output[offset + k], column[source + k], getPercent(k));
+		}
+	}
+	
+	/**
+	 * Returns the chance, in percent, that the top/left pixel dominates at
+	 * step k into the margin: 100 at the first step falling to 0 at the last.
+	 * @param k
+	 * @return
+	 */
+	private int getPercent(final int k) {
+		double increment = 1.0 / (double) (margin - 1);
+		double percent = 1;
+		for (int i = 0; i < k; i++) {
+			percent -= increment;
+		}
+		return (int) (percent * 100);
+	}
+	
+	/**
+	 * Packed equivalent of the dithered RGBPixel(a, b, aDominant, 90%) blend.
+	 * @param a
+	 * @param b
+	 * @param aDominant
+	 * @return
+	 * @throws Exception
+	 */
+	private static int blend(final int a, final int b, final int aDominant) throws Exception {
+		CheckUtils.checkRange(aDominant, 0, 100);
+		int dominant = a;
+		int other = b;
+		if (RandomUtils.randomInt(100) > aDominant) {
+			dominant = b;
+			other = a;
+		}
+		int value = 0xff000000;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int d = (dominant >> shift) & 0xff;
+			int o = (other >> shift) & 0xff;
+			value |= (((d * BLEND_DOMINANT) / 100) + ((o * (100 - BLEND_DOMINANT)) / 100)) << shift;
+		}
+		return value;
 	}
 	
 	/** 
@@ -186,12 +375,42 @@ public class CanvasGrid {
 		return getHeight() * tile_height;
 	}
 	
+	/**
+	 * Writes each tile as prefix_i_j.png using one encoder thread per core.
+	 * The work queue is bounded, so only a few tile images are in flight at
+	 * a time.
+	 * @param directory
+	 * @param prefix
+	 * @throws Exception
+	 */
 	public void write(final Directory directory, final String prefix) throws Exception {
-		for (int i = 0; i < grid.length; i++) {
-			for (int j = 0; j < grid[i].length; j++) {
-				File file = new File(directory, prefix + "_" + i + "_" + j + ".png");
-				grid[i][j].toFile(file);
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size()));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+														 new ArrayBlockingQueue<Runnable>(threads * 2),
+														 new ThreadPoolExecutor.CallerRunsPolicy());
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		try {
+			for (int i = 0; i < grid.length; i++) {
+				for (int j = 0; j < grid[i].length; j++) {
+					final CanvasTile tile = grid[i][j];
+					final File file = new File(directory, prefix + "_" + i + "_" + j + ".png");
+					results.add(pool.submit(() -> {
+						tile.toFile(file);
+						return null;
+					}));
+				}
 			}
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				}
+				catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
 		}
 	}
 	
@@ -213,7 +432,7 @@ public class CanvasGrid {
 		Map<Coordinate, Canvas> map = new HashMap<Coordinate, Canvas>();
 		for (int i = 0; i < grid.length; i++) {
 			for (int j = 0; j < grid[i].length; j++) {
-				map.put(new Coordinate(i, j), grid[i][j]);
+				map.put(new Coordinate(i, j), grid[i][j].getCanvas());
 			}
 		}
 		return map;
@@ -253,7 +472,7 @@ public class CanvasGrid {
 				
 		List<Canvas> list = new ArrayList<Canvas>();
 		for (Coordinate coordinate : coordinates) {
-			list.add(grid[coordinate.getX()][coordinate.getY()]);
+			list.add(grid[coordinate.getX()][coordinate.getY()].getCanvas());
 		}
 		return list;
 	}
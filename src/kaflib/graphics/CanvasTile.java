@@ -0,0 +1,156 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+
+import kaflib.types.Box;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a rectangular view over a shared, row-major packed argb raster.
+ * Nothing is copied until a mutable canvas is requested, at which point the
+ * tile takes its own copy and stops reading the raster, so writes never
+ * leak into neighboring tiles.
+ */
+public class CanvasTile {
+
+	private final int raster[];
+	private final int stride;
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private Canvas canvas;
+
+	/**
+	 * Creates a view of the box within the raster.
+	 * @param raster
+	 * @param stride raster width.
+	 * @param box
+	 * @throws Exception
+	 */
+	public CanvasTile(final int raster[], final int stride, final Box box) throws Exception {
+		CheckUtils.check(raster, "raster");
+		CheckUtils.check(box, "box");
+		CheckUtils.checkPositive(stride, "stride");
+		if (box.getXMin() < 0 || box.getYMin() < 0 || box.getXMax() > stride ||
+			(long) box.getYMax() * stride > raster.length) {
+			throw new Exception("Tile " + box + " exceeds " + stride + "x" +
+								(raster.length / stride) + " raster.");
+		}
+		this.raster = raster;
+		this.stride = stride;
+		this.x = box.getXMin();
+		this.y = box.getYMin();
+		this.width = box.getWidth();
+		this.height = box.getHeight();
+		this.canvas = null;
+	}
+
+	/**
+	 * Wraps an existing canvas, e.g. one placed into a grid by hand.
+	 * @param canvas
+	 * @throws Exception
+	 */
+	public CanvasTile(final Canvas canvas) throws Exception {
+		CheckUtils.check(canvas, "canvas");
+		this.raster = null;
+		this.stride = 0;
+		this.x = 0;
+		this.y = 0;
+		this.width = canvas.getWidth();
+		this.height = canvas.getHeight();
+		this.canvas = canvas;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns whether the tile holds its own copy of the pixels.
+	 * @return
+	 */
+	public synchronized boolean isMaterialized() {
+		return canvas != null;
+	}
+
+	/**
+	 * Returns the argb value at the tile coordinate.
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public synchronized int getARGB(final int i, final int j) {
+		if (canvas != null) {
+			return canvas.get(i, j).getARGB();
+		}
+		return raster[(y + j) * stride + x + i];
+	}
+
+	/**
+	 * Returns the tile as a mutable canvas, copying it out of the shared
+	 * raster the first time.  Later calls return the same canvas.
+	 * @return
+	 * @throws Exception
+	 */
+	public synchronized Canvas getCanvas() throws Exception {
+		if (canvas == null) {
+			RGBPixel pixels[][] = new RGBPixel[width][height];
+			for (int j = 0; j < height; j++) {
+				int offset = (y + j) * stride + x;
+				for (int i = 0; i < width; i++) {
+					pixels[i][j] = new RGBPixel(raster[offset + i]);
+				}
+			}
+			canvas = new Canvas(width, height);
+			canvas.set(pixels);
+		}
+		return canvas;
+	}
+
+	/**
+	 * Copies row j of the tile into the destination.
+	 * @param j
+	 * @param destination
+	 * @param offset
+	 */
+	public synchronized void copyRow(final int j, final int destination[], final int offset) {
+		if (canvas == null) {
+			System.arraycopy(raster, (y + j) * stride + x, destination, offset, width);
+		}
+		else {
+			for (int i = 0; i < width; i++) {
+				destination[offset + i] = canvas.get(i, j).getARGB();
+			}
+		}
+	}
+
+	/**
+	 * Returns the tile as an argb image, copied row by row.
+	 * @return
+	 */
+	public BufferedImage toBufferedImage() {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int data[] = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		for (int j = 0; j < height; j++) {
+			copyRow(j, data, j * width);
+		}
+		return image;
+	}
+
+	public void toFile(final File file) throws Exception {
+		GraphicsUtils.writePNG(toBufferedImage(), file);
+	}
+
+	public String toString() {
+		return width + "x" + height + " at " + x + ", " + y +
+			   (isMaterialized() ? " (copied)" : "");
+	}
+
+}
@@ -2,6 +2,8 @@ package kaflib.graphics;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
 
 import kaflib.graphics.GraphicsUtils.Rotation;
 import kaflib.types.Coordinate;
@@ -338,10 +340,29 @@ public class CanvasUtils {
 		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
 			throw new Exception("Sizes do not match.");
 		}
-		Canvas output = new Canvas(a);
-		
-		output.getCoordinates().parallelStream().
-						forEach(c -> output.uncheckedSet(c, output.get(c).average(b.get(c))));
+		Canvas output = new Canvas(a.getWidth(), a.getHeight());
+		try {
+			IntStream.range(0, a.getWidth()).parallel().forEach(x -> {
+				try {
+					int column[] = new int[a.getHeight()];
+					int other[] = new int[a.getHeight()];
+					for (int y = 0; y < column.length; y++) {
+						column[y] = a.get(x, y).getARGB();
+						other[y] = b.get(x, y).getARGB();
+					}
+					PixelKernels.average(column, other, column);
+					for (int y = 0; y < column.length; y++) {
+						output.set(x, y, new RGBPixel(column[y]));
+					}
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (CompletionException e) {
+			throw TypeUtils.getCause(e);
+		}
 		return output;
 	}
 	
@@ -349,10 +370,8 @@ public class CanvasUtils {
 		Canvas grey = new Canvas(canvas);
 		for (int i = 0; i < grey.getWidth(); i++) {
 			for (int j = 0; j < grey.getHeight(); j++) {
-				grey.set(i, j, new RGBPixel(true,
-											grey.get(i, j).getLuminance(),
-											grey.get(i, j).getLuminance(),
-											grey.get(i, j).getLuminance()));
+				int luminance = grey.get(i, j).getLuminanceValue();
+				grey.set(i, j, new RGBPixel(true, luminance, luminance, luminance));
 			}
 		}
 		return grey;
@@ -362,7 +381,8 @@ public class CanvasUtils {
 		RGBPixel copy[][] = new RGBPixel[source.length][source[0].length];
 		for (int i = 0; i < source.length; i++) {
 			for (int j = 0; j < source[0].length; j++) {
-				copy[i][j] = new RGBPixel(source[i][j]);
+				// Shared pixels are read-only, so they can stay shared.
+				copy[i][j] = source[i][j].isMutable() ? new RGBPixel(source[i][j]) : source[i][j];
 			}
 		}
 		return copy;
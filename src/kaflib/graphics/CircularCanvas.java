@@ -55,7 +55,9 @@ public class CircularCanvas {
 	
 	public Canvas getCanvas() throws Exception {
 		Canvas canvas = new Canvas(getDiameter(), getDiameter(), RGBPixel.TRANSPARENT_BLACK);
-		getCoordinates().parallelStream().forEach(c -> canvas.uncheckedSet(c, get(c)));
+		for (Map.Entry<Coordinate, RGBPixel> entry : pixels.entrySet()) {
+			canvas.uncheckedSet(entry.getKey(), entry.getValue());
+		}
 		return canvas;
 	}
 	
@@ -0,0 +1,157 @@
+package kaflib.graphics;
+
+/**
+ * Defines static color math over packed argb ints (and bare 0-255 channel
+ * values).  Nothing here allocates, so it's safe to call per pixel.
+ *
+ * Luminance uses per-channel tables of the GraphicsUtils.LUMINANCE_R/G/B
+ * products, summed in the same order as before, so results match the
+ * floating point version exactly.  Blends and deltas are integer only.
+ */
+public class ColorUtils {
+
+	private static final double LUMINANCE_R_TABLE[] = new double[256];
+	private static final double LUMINANCE_G_TABLE[] = new double[256];
+	private static final double LUMINANCE_B_TABLE[] = new double[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			LUMINANCE_R_TABLE[i] = GraphicsUtils.LUMINANCE_R * (double) i;
+			LUMINANCE_G_TABLE[i] = GraphicsUtils.LUMINANCE_G * (double) i;
+			LUMINANCE_B_TABLE[i] = GraphicsUtils.LUMINANCE_B * (double) i;
+		}
+	}
+
+	public static int getAlpha(final int argb) {
+		return argb >>> 24;
+	}
+
+	public static int getRed(final int argb) {
+		return (argb >> 16) & 0xff;
+	}
+
+	public static int getGreen(final int argb) {
+		return (argb >> 8) & 0xff;
+	}
+
+	public static int getBlue(final int argb) {
+		return argb & 0xff;
+	}
+
+	/**
+	 * Packs channel values, each masked to 8 bits.
+	 * @param alpha
+	 * @param red
+	 * @param green
+	 * @param blue
+	 * @return
+	 */
+	public static int getARGB(final int alpha, final int red, final int green, final int blue) {
+		return ((alpha & 0xff) << 24) | ((red & 0xff) << 16) | ((green & 0xff) << 8) | (blue & 0xff);
+	}
+
+	/**
+	 * Returns the 0-255 luminance of the channel values.
+	 * @param red
+	 * @param green
+	 * @param blue
+	 * @return
+	 */
+	public static int getLuminance(final int red, final int green, final int blue) {
+		return (int) (LUMINANCE_R_TABLE[red] + LUMINANCE_G_TABLE[green] + LUMINANCE_B_TABLE[blue]);
+	}
+
+	/**
+	 * Returns the 0-255 luminance of the argb value (alpha is ignored).
+	 * @param argb
+	 * @return
+	 */
+	public static int getLuminance(final int argb) {
+		return (int) (LUMINANCE_R_TABLE[(argb >> 16) & 0xff] +
+					  LUMINANCE_G_TABLE[(argb >> 8) & 0xff] +
+					  LUMINANCE_B_TABLE[argb & 0xff]);
+	}
+
+	/**
+	 * Returns the luminance scaled to 0.0-1.0.
+	 * @param argb
+	 * @return
+	 */
+	public static double getNormalizedLuminance(final int argb) {
+		return ((double) getLuminance(argb)) / 255;
+	}
+
+	/**
+	 * Returns |r0-r1| + |g0-g1| + |b0-b1|.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int getDelta(final int a, final int b) {
+		return Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) +
+			   Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) +
+			   Math.abs((a & 0xff) - (b & 0xff));
+	}
+
+	/**
+	 * Returns the channel-wise average, opaque.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int average(final int a, final int b) {
+		return 0xff000000 |
+			   (((((a >> 16) & 0xff) + ((b >> 16) & 0xff)) / 2) << 16) |
+			   (((((a >> 8) & 0xff) + ((b >> 8) & 0xff)) / 2) << 8) |
+			   (((a & 0xff) + (b & 0xff)) / 2);
+	}
+
+	/**
+	 * Returns base * (100 - percent)% + other * percent% per channel,
+	 * truncating each term as Byte.combine() does.  Keeps the base alpha.
+	 * @param base
+	 * @param other
+	 * @param otherPercent 0-100.
+	 * @return
+	 */
+	public static int blend(final int base, final int other, final int otherPercent) {
+		int complement = 100 - otherPercent;
+		return (base & 0xff000000) |
+			   (((((base >> 16) & 0xff) * complement) / 100 + (((other >> 16) & 0xff) * otherPercent) / 100) << 16) |
+			   (((((base >> 8) & 0xff) * complement) / 100 + (((other >> 8) & 0xff) * otherPercent) / 100) << 8) |
+			   (((base & 0xff) * complement) / 100 + ((other & 0xff) * otherPercent) / 100);
+	}
+
+	/**
+	 * Draws source over destination using the source alpha, rounding to
+	 * nearest.  The destination alpha is kept, matching Canvas.blend().
+	 * @param destination
+	 * @param source
+	 * @return
+	 */
+	public static int composite(final int destination, final int source) {
+		int alpha = source >>> 24;
+		if (alpha == 0xff) {
+			return (destination & 0xff000000) | (source & 0x00ffffff);
+		}
+		if (alpha == 0) {
+			return destination;
+		}
+		int inverse = 0xff - alpha;
+		return (destination & 0xff000000) |
+			   (divide255(((source >> 16) & 0xff) * alpha + ((destination >> 16) & 0xff) * inverse) << 16) |
+			   (divide255(((source >> 8) & 0xff) * alpha + ((destination >> 8) & 0xff) * inverse) << 8) |
+			   divide255((source & 0xff) * alpha + (destination & 0xff) * inverse);
+	}
+
+	/**
+	 * Returns round(value / 255) for value in [0, 255 * 255].
+	 * @param value
+	 * @return
+	 */
+	private static int divide255(final int value) {
+		int biased = value + 128;
+		return (biased + (biased >> 8)) >> 8;
+	}
+
+}
@@ -0,0 +1,133 @@
+package kaflib.graphics;
+
+/**
+ * Defines an immutable argb color held as a packed int.  Instances come
+ * from valueOf(), which interns recently used colors in a small fixed-size
+ * table, so repeated lookups of the same color return the same object.
+ *
+ * getPixel() returns a shared, read-only RGBPixel of the color, which a
+ * canvas can store in any number of cells (fills, borders) without copies.
+ */
+public final class ColorValue {
+
+	private static final int INTERN_BITS = 12;
+	private static final ColorValue INTERNED[] = new ColorValue[1 << INTERN_BITS];
+
+	public static final ColorValue TRANSPARENT_BLACK = valueOf(0x00000000);
+	public static final ColorValue TRANSPARENT_WHITE = valueOf(0x00ffffff);
+	public static final ColorValue OPAQUE_BLACK = valueOf(0xff000000);
+	public static final ColorValue OPAQUE_WHITE = valueOf(0xffffffff);
+	public static final ColorValue OPAQUE_RED = valueOf(0xffff0000);
+	public static final ColorValue OPAQUE_GREEN = valueOf(0xff00ff00);
+	public static final ColorValue OPAQUE_BLUE = valueOf(0xff0000ff);
+
+	private final int argb;
+	private volatile RGBPixel pixel;
+
+	private ColorValue(final int argb) {
+		this.argb = argb;
+		this.pixel = null;
+	}
+
+	/**
+	 * Returns the color, interned if it was seen recently.
+	 * @param argb
+	 * @return
+	 */
+	public static ColorValue valueOf(final int argb) {
+		// Races only cost a duplicate instance, never a wrong color.
+		int slot = ((argb * 0x9e3779b9) >>> (32 - INTERN_BITS));
+		ColorValue value = INTERNED[slot];
+		if (value == null || value.argb != argb) {
+			value = new ColorValue(argb);
+			INTERNED[slot] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the current color of the pixel.
+	 * @param pixel
+	 * @return
+	 */
+	public static ColorValue valueOf(final RGBPixel pixel) {
+		return valueOf(pixel.getARGB());
+	}
+
+	public int getARGB() {
+		return argb;
+	}
+
+	public int getAlpha() {
+		return ColorUtils.getAlpha(argb);
+	}
+
+	public int getRed() {
+		return ColorUtils.getRed(argb);
+	}
+
+	public int getGreen() {
+		return ColorUtils.getGreen(argb);
+	}
+
+	public int getBlue() {
+		return ColorUtils.getBlue(argb);
+	}
+
+	public int getLuminance() {
+		return ColorUtils.getLuminance(argb);
+	}
+
+	public boolean isOpaque() {
+		return getAlpha() == 0xff;
+	}
+
+	public boolean isTransparent() {
+		return getAlpha() == 0;
+	}
+
+	/**
+	 * Returns the color with a different alpha.
+	 * @param alpha
+	 * @return
+	 */
+	public ColorValue withAlpha(final int alpha) {
+		return valueOf(ColorUtils.getARGB(alpha, getRed(), getGreen(), getBlue()));
+	}
+
+	/**
+	 * Returns the shared, read-only pixel for this color.
+	 * @return
+	 */
+	public RGBPixel getPixel() {
+		RGBPixel value = pixel;
+		if (value == null) {
+			value = new SharedPixel(argb);
+			pixel = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a new, modifiable pixel of this color.
+	 * @return
+	 */
+	public RGBPixel toPixel() {
+		return new RGBPixel(argb);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return o instanceof ColorValue && ((ColorValue) o).argb == argb;
+	}
+
+	@Override
+	public int hashCode() {
+		return argb;
+	}
+
+	public String toString() {
+		return String.format("#%08x", argb);
+	}
+
+}
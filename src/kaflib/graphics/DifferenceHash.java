@@ -0,0 +1,43 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * Defines a difference hash (dHash): the image is reduced to a 9x8 luminance
+ * raster and each bit is set if a cell is brighter than its right-hand
+ * neighbor.  Tracks gradients, so it survives brightness/contrast changes
+ * better than an average hash.
+ */
+public class DifferenceHash extends ImageHash {
+
+	private static final int WIDTH = 9;
+	private static final int HEIGHT = 8;
+
+	public DifferenceHash(final BufferedImage image) throws Exception {
+		super(compute(getLuminance(image, WIDTH, HEIGHT)));
+	}
+
+	public DifferenceHash(final Canvas canvas) throws Exception {
+		super(compute(getLuminance(canvas, WIDTH, HEIGHT)));
+	}
+
+	public DifferenceHash(final File file) throws Exception {
+		this(GraphicsUtils.read(file));
+	}
+
+	private static long compute(final int luminance[]) {
+		long hash = 0;
+		int bit = 0;
+		for (int j = 0; j < HEIGHT; j++) {
+			for (int i = 0; i < WIDTH - 1; i++) {
+				if (luminance[j * WIDTH + i] > luminance[j * WIDTH + i + 1]) {
+					hash |= 1L << bit;
+				}
+				bit++;
+			}
+		}
+		return hash;
+	}
+
+}
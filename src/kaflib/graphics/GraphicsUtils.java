@@ -13,7 +13,6 @@ import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +35,7 @@ public class GraphicsUtils {
 	public static final double LUMINANCE_R = 0.2126;
 	public static final double LUMINANCE_G = 0.7152;
 	public static final double LUMINANCE_B = 0.0722;
+	private static final int CONTRAST_WINDOW = 10;
 	
 	public enum Rotation {CLOCKWISE,
 						  COUNTERCLOCKWISE,
@@ -275,21 +275,16 @@ public class GraphicsUtils {
 	 * @return
 	 */
 	public static Byte getLuminance(final Byte r, final Byte g, final Byte b) {
-		return new Byte(LUMINANCE_R * (double) r.getValue() +
-						LUMINANCE_G * (double) g.getValue() + 
-						LUMINANCE_B * (double) b.getValue());
+		return new Byte(ColorUtils.getLuminance(r.getValue(), g.getValue(), b.getValue()));
 	}
 
 	
 	public static Byte getLuminance(final int rgb) throws Exception {
-		Byte r = getRed(rgb);
-		Byte g = getGreen(rgb);
-		Byte b = getBlue(rgb);
-		return getLuminance(r, g, b);
+		return new Byte(ColorUtils.getLuminance(rgb));
 	}
 	
 	public static double getNormalizedLuminance(final int rgb) throws Exception {
-		return ((double) getLuminance(rgb).getValue()) / 255;
+		return ColorUtils.getNormalizedLuminance(rgb);
 	}
 	
 	/**
@@ -655,21 +650,7 @@ public class GraphicsUtils {
 	 * @return
 	 */
 	public static int getVerticalContrast(final BufferedImage image, int x) throws Exception {
-		int contrast = 0;
-		List<Integer> pixels = new ArrayList<Integer>();
-		
-		for (int i = 0; i < image.getHeight(); i++) {
-			pixels.add(getLuminance((image.getRGB(x, i))).getValue());
-			
-			if (pixels.size() == 11) {
-				pixels.remove(0);
-				int delta = Collections.max(pixels) - Collections.min(pixels);
-				contrast = Math.max(contrast, delta);
-			}
-			
-		}
-		
-		return contrast;
+		return getWindowedContrast(image.getRGB(x, 0, 1, image.getHeight(), null, 0, 1));
 	}
 	
 	/**
@@ -680,20 +661,32 @@ public class GraphicsUtils {
 	 * @return
 	 */
 	public static int getHorizontalContrast(final BufferedImage image, final int y) throws Exception {
+		return getWindowedContrast(image.getRGB(0, y, image.getWidth(), 1, null, 0, image.getWidth()));
+	}
+	
+	/**
+	 * Returns the largest luminance range over a sliding window of
+	 * CONTRAST_WINDOW pixels, the first window starting at index 1.
+	 * @param argb
+	 * @return
+	 * @throws Exception
+	 */
+	private static int getWindowedContrast(final int argb[]) throws Exception {
+		if (argb.length <= CONTRAST_WINDOW) {
+			return 0;
+		}
+		int luminance[] = new int[argb.length];
+		PixelKernels.luminance(argb, luminance);
 		int contrast = 0;
-		List<Integer> pixels = new ArrayList<Integer>();
-		
-		for (int i = 0; i < image.getWidth(); i++) {
-			pixels.add(getLuminance(image.getRGB(i, y)).getValue());
-			
-			if (pixels.size() == 11) {
-				pixels.remove(0);
-				int delta = Collections.max(pixels) - Collections.min(pixels);
-				contrast = Math.max(contrast, delta);
+		for (int end = CONTRAST_WINDOW + 1; end <= luminance.length; end++) {
+			int min = 0xff;
+			int max = 0;
+			for (int i = end - CONTRAST_WINDOW; i < end; i++) {
+				min = Math.min(min, luminance[i]);
+				max = Math.max(max, luminance[i]);
 			}
-			
+			contrast = Math.max(contrast, max - min);
 		}
-		
 		return contrast;
 	}
 
@@ -0,0 +1,456 @@
+package kaflib.graphics;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import kaflib.types.Directory;
+import kaflib.utils.CheckUtils;
+import kaflib.utils.FileUtils;
+
+/**
+ * Defines a headless batch image converter: decode, optionally resize or
+ * fill-crop, and encode to a target format and quality.
+ *
+ * Decoding and encoding run on separate thread pools (one thread per core
+ * each) so the stages overlap, and the number of images in flight is
+ * bounded so memory stays flat on large batches.  Each encoder thread
+ * keeps its own ImageWriter.  Input can be streamed from a directory walk.
+ * Per-stage timings are accumulated in Statistics.
+ *
+ * Failed files are recorded and skipped rather than stopping the batch.
+ */
+public class ImageConversionPipeline {
+
+	public enum Stage {
+		DECODE,
+		RESIZE,
+		ENCODE
+	}
+
+	private static final int IN_FLIGHT_PER_THREAD = 2;
+
+	private final Directory output;
+	private final String format;
+	private final Float quality;
+	private final int threads;
+	private Integer max_width;
+	private Integer max_height;
+	private boolean fill;
+	private final Statistics statistics;
+	private final Map<File, Exception> failures;
+
+	/**
+	 * Creates a pipeline writing to the directory in the given format
+	 * (e.g. "jpg", "png") at the writer's default quality, one thread per
+	 * core per stage.
+	 * @param output
+	 * @param format
+	 * @throws Exception
+	 */
+	public ImageConversionPipeline(final Directory output, final String format) throws Exception {
+		this(output, format, null, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a pipeline.
+	 * @param output
+	 * @param format
+	 * @param quality compression quality in [0, 1] where the format
+	 * supports it, or null for the default.
+	 * @param threads threads per stage.
+	 * @throws Exception
+	 */
+	public ImageConversionPipeline(final Directory output,
+								   final String format,
+								   final Float quality,
+								   final int threads) throws Exception {
+		CheckUtils.check(output, "output directory");
+		CheckUtils.checkNonEmpty(format, "format");
+		CheckUtils.checkPositive(threads, "threads");
+		if (quality != null && (quality < 0 || quality > 1)) {
+			throw new Exception("Quality must be in [0, 1]: " + quality + ".");
+		}
+		if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+			throw new Exception("No image writer for " + format + ".");
+		}
+		this.output = output;
+		this.format = format.toLowerCase();
+		this.quality = quality;
+		this.threads = threads;
+		this.max_width = null;
+		this.max_height = null;
+		this.fill = false;
+		this.statistics = new Statistics();
+		this.failures = new ConcurrentHashMap<File, Exception>();
+	}
+
+	/**
+	 * Scales images down (never up) to fit within the bounds.  Either
+	 * bound may be null.
+	 * @param maxWidth
+	 * @param maxHeight
+	 * @throws Exception
+	 */
+	public void setFit(final Integer maxWidth, final Integer maxHeight) throws Exception {
+		if (maxWidth != null) {
+			CheckUtils.checkPositive(maxWidth, "max width");
+		}
+		if (maxHeight != null) {
+			CheckUtils.checkPositive(maxHeight, "max height");
+		}
+		max_width = maxWidth;
+		max_height = maxHeight;
+		fill = false;
+	}
+
+	/**
+	 * Scales images to cover exactly width x height and crops the overflow
+	 * from the center.
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public void setFill(final int width, final int height) throws Exception {
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		max_width = width;
+		max_height = height;
+		fill = true;
+	}
+
+	public Statistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Returns the files that failed and why.
+	 * @return
+	 */
+	public Map<File, Exception> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	/**
+	 * Converts every graphics file under the directory, streaming the walk
+	 * so the file list is never held in memory.  Subdirectory structure is
+	 * kept in the output.
+	 * @param input
+	 * @param recursive
+	 * @throws Exception
+	 */
+	public void convert(final Directory input, final boolean recursive) throws Exception {
+		CheckUtils.check(input, "input directory");
+		final Path root = input.toPath();
+		try (Stream<Path> paths = recursive ? Files.walk(root) : Files.list(root)) {
+			Iterator<Path> iterator = paths.filter(Files::isRegularFile).iterator();
+			convert(new Iterator<File>() {
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public File next() {
+					return iterator.next().toFile();
+				}
+			}, root);
+		}
+	}
+
+	/**
+	 * Converts the files, writing each to the output directory under its
+	 * own name.
+	 * @param files
+	 * @throws Exception
+	 */
+	public void convert(final Collection<File> files) throws Exception {
+		CheckUtils.check(files, "files");
+		convert(files.iterator(), null);
+	}
+
+	private void convert(final Iterator<File> files, final Path root) throws Exception {
+		final ExecutorService decoders = Executors.newFixedThreadPool(threads);
+		final ExecutorService encoders = Executors.newFixedThreadPool(threads);
+		final List<ImageWriter> writers = new CopyOnWriteArrayList<ImageWriter>();
+		final ThreadLocal<ImageWriter> writer = ThreadLocal.withInitial(() -> {
+			ImageWriter instance = ImageIO.getImageWritersByFormatName(format).next();
+			writers.add(instance);
+			return instance;
+		});
+		final Semaphore in_flight = new Semaphore(threads * IN_FLIGHT_PER_THREAD);
+		final List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+		long start = System.nanoTime();
+
+		try {
+			while (files.hasNext()) {
+				final File file = files.next();
+				if (!FileUtils.isGraphicsFile(file)) {
+					continue;
+				}
+				final File destination = getDestination(file, root);
+				in_flight.acquire();
+				CompletableFuture<Void> future = CompletableFuture
+					.supplyAsync(() -> transform(decode(file)), decoders)
+					.thenAcceptAsync(image -> encode(writer.get(), image, destination), encoders)
+					.handle((nothing, e) -> {
+						if (e != null) {
+							Throwable cause = e;
+							while (cause.getCause() != null &&
+								   (cause instanceof CompletionException || cause instanceof RuntimeException)) {
+								cause = cause.getCause();
+							}
+							failures.put(file, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+							statistics.failed.incrementAndGet();
+						}
+						in_flight.release();
+						return null;
+					});
+				pending.add(future);
+				if (pending.size() > threads * IN_FLIGHT_PER_THREAD * 64) {
+					pending.removeIf(CompletableFuture::isDone);
+				}
+			}
+			CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+		}
+		finally {
+			statistics.elapsed.add(System.nanoTime() - start);
+			decoders.shutdownNow();
+			encoders.shutdownNow();
+			for (ImageWriter instance : writers) {
+				instance.dispose();
+			}
+		}
+	}
+
+	private File getDestination(final File file, final Path root) throws Exception {
+		File destination = new File(output, file.getName());
+		if (root != null) {
+			destination = output.toPath().resolve(root.relativize(file.toPath())).toFile();
+		}
+		return FileUtils.changeExtension(destination, format);
+	}
+
+	private BufferedImage decode(final File file) {
+		long start = System.nanoTime();
+		try {
+			BufferedImage image = ImageIO.read(file);
+			if (image == null) {
+				throw new Exception("No image reader for " + file + ".");
+			}
+			statistics.record(Stage.DECODE, start, file.length());
+			return image;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private BufferedImage transform(final BufferedImage image) {
+		if (max_width == null && max_height == null) {
+			return image;
+		}
+		long start = System.nanoTime();
+		BufferedImage result;
+		if (fill) {
+			double scale = Math.max((double) max_width / image.getWidth(),
+									(double) max_height / image.getHeight());
+			BufferedImage scaled = scale(image,
+										 Math.max(max_width, (int) Math.ceil(image.getWidth() * scale)),
+										 Math.max(max_height, (int) Math.ceil(image.getHeight() * scale)));
+			result = scaled.getSubimage((scaled.getWidth() - max_width) / 2,
+										(scaled.getHeight() - max_height) / 2,
+										max_width, max_height);
+		}
+		else {
+			double scale = 1;
+			if (max_width != null) {
+				scale = Math.min(scale, (double) max_width / image.getWidth());
+			}
+			if (max_height != null) {
+				scale = Math.min(scale, (double) max_height / image.getHeight());
+			}
+			result = scale >= 1 ? image : scale(image,
+												Math.max(1, (int) (image.getWidth() * scale)),
+												Math.max(1, (int) (image.getHeight() * scale)));
+		}
+		statistics.record(Stage.RESIZE, start, 0);
+		return result;
+	}
+
+	/**
+	 * Bilinear scaling, halving first while the target is less than half
+	 * the size, which is much faster than SCALE_SMOOTH at similar quality.
+	 * @param image
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private static BufferedImage scale(final BufferedImage image, final int width, final int height) {
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage current = image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		do {
+			w = w / 2 >= width ? w / 2 : width;
+			h = h / 2 >= height ? h / 2 : height;
+			BufferedImage next = new BufferedImage(w, h, type);
+			Graphics2D graphics = next.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(current, 0, 0, w, h, null);
+			graphics.dispose();
+			current = next;
+		} while (w != width || h != height);
+		return current;
+	}
+
+	private void encode(final ImageWriter writer, final BufferedImage image, final File file) {
+		long start = System.nanoTime();
+		try {
+			BufferedImage encoded = image;
+			if (image.getColorModel().hasAlpha() && (format.equals("jpg") || format.equals("jpeg"))) {
+				encoded = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+				Graphics2D graphics = encoded.createGraphics();
+				graphics.drawImage(image, 0, 0, null);
+				graphics.dispose();
+			}
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (quality != null && param.canWriteCompressed()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+					param.setCompressionType(param.getCompressionTypes()[0]);
+				}
+				param.setCompressionQuality(quality);
+			}
+			file.getParentFile().mkdirs();
+			file.delete();
+			try (ImageOutputStream stream = ImageIO.createImageOutputStream(file)) {
+				writer.setOutput(stream);
+				writer.write(null, new IIOImage(encoded, null, null), param);
+			}
+			finally {
+				writer.reset();
+			}
+			statistics.record(Stage.ENCODE, start, file.length());
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Per-stage counts, busy time and bytes, summed over all threads.
+	 */
+	public static class Statistics {
+		private final LongAdder counts[];
+		private final LongAdder nanos[];
+		private final LongAdder bytes[];
+		private final LongAdder elapsed;
+		private final AtomicInteger failed;
+
+		private Statistics() {
+			counts = new LongAdder[Stage.values().length];
+			nanos = new LongAdder[Stage.values().length];
+			bytes = new LongAdder[Stage.values().length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+				nanos[i] = new LongAdder();
+				bytes[i] = new LongAdder();
+			}
+			elapsed = new LongAdder();
+			failed = new AtomicInteger();
+		}
+
+		private void record(final Stage stage, final long start, final long size) {
+			nanos[stage.ordinal()].add(System.nanoTime() - start);
+			counts[stage.ordinal()].increment();
+			bytes[stage.ordinal()].add(size);
+		}
+
+		public long getCount(final Stage stage) {
+			return counts[stage.ordinal()].sum();
+		}
+
+		/**
+		 * Returns the summed thread time spent in the stage.
+		 * @param stage
+		 * @return
+		 */
+		public long getMillis(final Stage stage) {
+			return nanos[stage.ordinal()].sum() / 1000000;
+		}
+
+		/**
+		 * Returns bytes read (decode) or written (encode).
+		 * @param stage
+		 * @return
+		 */
+		public long getBytes(final Stage stage) {
+			return bytes[stage.ordinal()].sum();
+		}
+
+		/**
+		 * Returns the wall time of the conversion runs.
+		 * @return
+		 */
+		public long getElapsedMillis() {
+			return elapsed.sum() / 1000000;
+		}
+
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Returns the images per second one thread of the stage manages.
+		 * @param stage
+		 * @return
+		 */
+		public double getThroughput(final Stage stage) {
+			long millis = getMillis(stage);
+			return millis == 0 ? 0 : getCount(stage) * 1000.0 / millis;
+		}
+
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			long wall = getElapsedMillis();
+			builder.append(getCount(Stage.ENCODE) + " converted, " + getFailed() + " failed in " + wall + "ms");
+			if (wall > 0) {
+				builder.append(String.format(" (%.1f/s)", getCount(Stage.ENCODE) * 1000.0 / wall));
+			}
+			builder.append(".");
+			for (Stage stage : Stage.values()) {
+				builder.append(String.format("\n%s: %d in %dms thread time, %.1f/s per thread, %d bytes",
+											 stage.toString().toLowerCase(), getCount(stage), getMillis(stage),
+											 getThroughput(stage), getBytes(stage)));
+			}
+			return builder.toString();
+		}
+	}
+
+}
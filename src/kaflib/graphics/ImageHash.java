@@ -1,12 +1,189 @@
 package kaflib.graphics;
 
+import java.awt.image.BufferedImage;
+
+import kaflib.utils.CheckUtils;
+
 /**
- * Defines and abstract superclass for image hashing functions.  Since there 
+ * Defines and abstract superclass for image hashing functions.  Since there
  * are a number of approaches for equivalence (e.g. mirror/rotate) and
  * heuristics, this is fairly minimal.
+ *
+ * Subclasses reduce the image to a small luminance raster and derive a 64-bit
+ * signature from it, so two hashes of the same type can be compared by
+ * hamming distance (the number of differing bits).
  */
 public abstract class ImageHash {
 
-	protected abstract String getSerial();
-	
+	public static final int BITS = 64;
+
+	private final long value;
+
+	protected ImageHash(final long value) {
+		this.value = value;
+	}
+
+	/**
+	 * Returns the 64-bit signature.
+	 * @return
+	 */
+	public final long get() {
+		return value;
+	}
+
+	/**
+	 * Returns the number of differing bits between this hash and another of
+	 * the same type.
+	 * @param other
+	 * @return
+	 * @throws Exception
+	 */
+	public int getDistance(final ImageHash other) throws Exception {
+		CheckUtils.check(other, "other hash");
+		if (!getClass().equals(other.getClass())) {
+			throw new Exception("Cannot compare " + getClass().getSimpleName() +
+								" to " + other.getClass().getSimpleName() + ".");
+		}
+		return getDistance(value, other.get());
+	}
+
+	/**
+	 * Returns whether or not the other hash is within the specified number of
+	 * differing bits.
+	 * @param other
+	 * @param maxDistance
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean isSimilar(final ImageHash other, final int maxDistance) throws Exception {
+		return getDistance(other) <= maxDistance;
+	}
+
+	protected String getSerial() {
+		return String.format("%016x", value);
+	}
+
+	public String toString() {
+		return getSerial();
+	}
+
+	public int hashCode() {
+		return Long.hashCode(value);
+	}
+
+	public boolean equals(final Object o) {
+		if (o == null || !getClass().equals(o.getClass())) {
+			return false;
+		}
+		return value == ((ImageHash) o).get();
+	}
+
+	/**
+	 * Returns the hamming distance between two signatures.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int getDistance(final long a, final long b) {
+		return Long.bitCount(a ^ b);
+	}
+
+	/**
+	 * Reduces the image to a width x height luminance raster (row major) by
+	 * box-averaging each source pixel into its destination cell.  Reads one
+	 * row at a time and allocates nothing per pixel.
+	 * @param image
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws Exception
+	 */
+	protected static int[] getLuminance(final BufferedImage image,
+										final int width,
+										final int height) throws Exception {
+		CheckUtils.check(image, "image");
+		int source_width = image.getWidth();
+		int source_height = image.getHeight();
+		long sums[] = new long[width * height];
+		int counts[] = new int[width * height];
+		int columns[] = getBins(source_width, width);
+		int row[] = new int[source_width];
+
+		for (int y = 0; y < source_height; y++) {
+			image.getRGB(0, y, source_width, 1, row, 0, source_width);
+			int offset = ((y * height) / source_height) * width;
+			for (int x = 0; x < source_width; x++) {
+				sums[offset + columns[x]] += ColorUtils.getLuminance(row[x]);
+				counts[offset + columns[x]]++;
+			}
+		}
+
+		int values[] = new int[width * height];
+		for (int i = 0; i < values.length; i++) {
+			if (counts[i] > 0) {
+				values[i] = (int) (sums[i] / counts[i]);
+			}
+			// Source smaller than the raster, sample the nearest pixel.
+			else {
+				values[i] = ColorUtils.getLuminance(image.getRGB(((i % width) * source_width) / width,
+																 ((i / width) * source_height) / height));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reduces the canvas to a width x height luminance raster (row major).
+	 * @param canvas
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws Exception
+	 */
+	protected static int[] getLuminance(final Canvas canvas,
+										final int width,
+										final int height) throws Exception {
+		CheckUtils.check(canvas, "canvas");
+		int source_width = canvas.getWidth();
+		int source_height = canvas.getHeight();
+		long sums[] = new long[width * height];
+		int counts[] = new int[width * height];
+		int rows[] = getBins(source_height, height);
+
+		for (int x = 0; x < source_width; x++) {
+			int column = (x * width) / source_width;
+			for (int y = 0; y < source_height; y++) {
+				int index = rows[y] * width + column;
+				sums[index] += ColorUtils.getLuminance(canvas.get(x, y).getARGB());
+				counts[index]++;
+			}
+		}
+
+		int values[] = new int[width * height];
+		for (int i = 0; i < values.length; i++) {
+			if (counts[i] > 0) {
+				values[i] = (int) (sums[i] / counts[i]);
+			}
+			else {
+				values[i] = ColorUtils.getLuminance(canvas.get(((i % width) * source_width) / width,
+															   ((i / width) * source_height) / height).getARGB());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Maps each source index to its destination bin.
+	 * @param sourceSize
+	 * @param size
+	 * @return
+	 */
+	private static int[] getBins(final int sourceSize, final int size) {
+		int bins[] = new int[sourceSize];
+		for (int i = 0; i < sourceSize; i++) {
+			bins[i] = (i * size) / sourceSize;
+		}
+		return bins;
+	}
+
 }
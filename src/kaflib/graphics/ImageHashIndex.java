@@ -0,0 +1,208 @@
+package kaflib.graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import kaflib.types.Pair;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a near-duplicate index over 64-bit image hashes using multi-index
+ * hashing.  Each signature is split into four 16-bit chunks, and each chunk
+ * is bucketed in its own table.  If two signatures differ by at most d bits,
+ * at least one chunk differs by at most d / 4 bits (pigeonhole), so a query
+ * only needs to probe the buckets within that radius of each of its chunks
+ * rather than scanning every entry.
+ *
+ * Buckets hold primitive entry indices so a million entries costs a few
+ * tens of megabytes rather than a node object per image.
+ * @param <T> the payload associated with each hash, e.g. a file.
+ */
+public class ImageHashIndex<T> {
+
+	private static final int CHUNKS = 4;
+	private static final int CHUNK_BITS = ImageHash.BITS / CHUNKS;
+	private static final int BUCKETS = 1 << CHUNK_BITS;
+	private static final int DEFAULT_BUCKET_SIZE = 2;
+
+	private final int buckets[][][];
+	private final int bucket_sizes[][];
+	private final List<T> values;
+	private long hashes[];
+	private int visited[];
+	private int query;
+	private Class<? extends ImageHash> type;
+
+	/**
+	 * Creates an empty index.
+	 */
+	public ImageHashIndex() {
+		buckets = new int[CHUNKS][BUCKETS][];
+		bucket_sizes = new int[CHUNKS][BUCKETS];
+		values = new ArrayList<T>();
+		hashes = new long[16];
+		visited = new int[16];
+		query = 0;
+		type = null;
+	}
+
+	/**
+	 * Adds the hash and its associated value.
+	 * @param hash
+	 * @param value
+	 * @throws Exception
+	 */
+	public synchronized void add(final ImageHash hash, final T value) throws Exception {
+		CheckUtils.check(hash, "hash");
+		if (type == null) {
+			type = hash.getClass();
+		}
+		else if (!type.equals(hash.getClass())) {
+			throw new Exception("Index contains " + type.getSimpleName() +
+								", got " + hash.getClass().getSimpleName() + ".");
+		}
+		add(hash.get(), value);
+	}
+
+	/**
+	 * Adds the raw signature and its associated value.
+	 * @param hash
+	 * @param value
+	 */
+	public synchronized void add(final long hash, final T value) {
+		int index = values.size();
+		if (index == hashes.length) {
+			hashes = Arrays.copyOf(hashes, index * 2);
+			visited = Arrays.copyOf(visited, index * 2);
+		}
+		hashes[index] = hash;
+		values.add(value);
+
+		for (int chunk = 0; chunk < CHUNKS; chunk++) {
+			int key = getChunk(hash, chunk);
+			int bucket[] = buckets[chunk][key];
+			int size = bucket_sizes[chunk][key];
+			if (bucket == null) {
+				bucket = new int[DEFAULT_BUCKET_SIZE];
+				buckets[chunk][key] = bucket;
+			}
+			else if (size == bucket.length) {
+				bucket = Arrays.copyOf(bucket, size * 2);
+				buckets[chunk][key] = bucket;
+			}
+			bucket[size] = index;
+			bucket_sizes[chunk][key] = size + 1;
+		}
+	}
+
+	public synchronized int size() {
+		return values.size();
+	}
+
+	/**
+	 * Returns all values whose hash is within maxDistance bits of the query,
+	 * paired with that distance, closest first.
+	 * @param hash
+	 * @param maxDistance
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Pair<T, Integer>> find(final ImageHash hash,
+									   final int maxDistance) throws Exception {
+		CheckUtils.check(hash, "hash");
+		if (type != null && !type.equals(hash.getClass())) {
+			throw new Exception("Index contains " + type.getSimpleName() +
+								", got " + hash.getClass().getSimpleName() + ".");
+		}
+		return find(hash.get(), maxDistance);
+	}
+
+	/**
+	 * Returns all values whose signature is within maxDistance bits of the
+	 * query, paired with that distance, closest first.
+	 * @param hash
+	 * @param maxDistance
+	 * @return
+	 * @throws Exception
+	 */
+	public synchronized List<Pair<T, Integer>> find(final long hash,
+													final int maxDistance) throws Exception {
+		CheckUtils.checkRange(maxDistance, 0, ImageHash.BITS, "max distance");
+		List<Pair<T, Integer>> matches = new ArrayList<Pair<T, Integer>>();
+
+		// Per-query stamp instead of a visited set; reset on wrap.
+		query++;
+		if (query == Integer.MAX_VALUE) {
+			Arrays.fill(visited, 0);
+			query = 1;
+		}
+
+		int radius = maxDistance / CHUNKS;
+		for (int chunk = 0; chunk < CHUNKS; chunk++) {
+			probe(hash, chunk, getChunk(hash, chunk), 0, radius, maxDistance, matches);
+		}
+
+		Collections.sort(matches, new Comparator<Pair<T, Integer>>() {
+			@Override
+			public int compare(Pair<T, Integer> o1, Pair<T, Integer> o2) {
+				return Integer.compare(o1.getSecond(), o2.getSecond());
+			}
+		});
+		return matches;
+	}
+
+	/**
+	 * Visits every key within radius bits of key by flipping bits at or above
+	 * the given position, checking each bucket's candidates.
+	 * @param hash
+	 * @param chunk
+	 * @param key
+	 * @param position
+	 * @param radius
+	 * @param maxDistance
+	 * @param matches
+	 */
+	private void probe(final long hash,
+					   final int chunk,
+					   final int key,
+					   final int position,
+					   final int radius,
+					   final int maxDistance,
+					   final List<Pair<T, Integer>> matches) {
+		scan(hash, chunk, key, maxDistance, matches);
+		if (radius == 0) {
+			return;
+		}
+		for (int bit = position; bit < CHUNK_BITS; bit++) {
+			probe(hash, chunk, key ^ (1 << bit), bit + 1, radius - 1, maxDistance, matches);
+		}
+	}
+
+	private void scan(final long hash,
+					  final int chunk,
+					  final int key,
+					  final int maxDistance,
+					  final List<Pair<T, Integer>> matches) {
+		int bucket[] = buckets[chunk][key];
+		int size = bucket_sizes[chunk][key];
+		for (int i = 0; i < size; i++) {
+			int index = bucket[i];
+			if (visited[index] == query) {
+				continue;
+			}
+			visited[index] = query;
+			int distance = ImageHash.getDistance(hash, hashes[index]);
+			if (distance <= maxDistance) {
+				matches.add(new Pair<T, Integer>(values.get(index), distance));
+			}
+		}
+	}
+
+	private static int getChunk(final long hash, final int chunk) {
+		return (int) ((hash >>> (chunk * CHUNK_BITS)) & (BUCKETS - 1));
+	}
+
+}
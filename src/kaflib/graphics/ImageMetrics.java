@@ -0,0 +1,463 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines luminance statistics of an image, kept per square tile so
+ * regions can be queried later without rescanning the pixels.
+ *
+ * The image is reduced once to a row-major 0-255 luminance plane, then a
+ * single pass per tile row (rows run in parallel) gathers, for each tile:
+ * mean and RMS contrast, min/max range, variance of the 4-neighbor
+ * Laplacian (sharpness, higher is more in focus), and the number of
+ * clipped shadow and highlight pixels.  Region queries sum the tiles the
+ * region overlaps, so they are tile granular.
+ */
+public class ImageMetrics {
+
+	public static final int DEFAULT_TILE_SIZE = 32;
+	public static final int DEFAULT_SHADOW_THRESHOLD = 5;
+	public static final int DEFAULT_HIGHLIGHT_THRESHOLD = 250;
+
+	// Rows per task when building the plane.
+	private static final int BAND_HEIGHT = 64;
+
+	private final int width;
+	private final int height;
+	private final int tile_size;
+	private final int columns;
+	private final int rows;
+	private final int shadow_threshold;
+	private final int highlight_threshold;
+	private final int luminance[];
+
+	// Per tile, indexed row * columns + column.
+	private final int counts[];
+	private final int minimums[];
+	private final int maximums[];
+	private final int shadows[];
+	private final int highlights[];
+	private final int laplacian_counts[];
+	private final long sums[];
+	private final long squares[];
+	private final long laplacian_sums[];
+	private final long laplacian_squares[];
+
+	public ImageMetrics(final BufferedImage image) throws Exception {
+		this(image, DEFAULT_TILE_SIZE);
+	}
+
+	public ImageMetrics(final BufferedImage image, final int tileSize) throws Exception {
+		this(getLuminance(image), image.getWidth(), image.getHeight(), tileSize,
+			 DEFAULT_SHADOW_THRESHOLD, DEFAULT_HIGHLIGHT_THRESHOLD);
+	}
+
+	public ImageMetrics(final Canvas canvas) throws Exception {
+		this(canvas, DEFAULT_TILE_SIZE);
+	}
+
+	public ImageMetrics(final Canvas canvas, final int tileSize) throws Exception {
+		this(getLuminance(canvas), canvas.getWidth(), canvas.getHeight(), tileSize,
+			 DEFAULT_SHADOW_THRESHOLD, DEFAULT_HIGHLIGHT_THRESHOLD);
+	}
+
+	/**
+	 * Computes the metrics of an existing luminance plane, which is kept,
+	 * not copied.
+	 * @param luminance row-major 0-255 values.
+	 * @param width
+	 * @param height
+	 * @param tileSize
+	 * @param shadowThreshold values at or below are clipped shadows.
+	 * @param highlightThreshold values at or above are clipped highlights.
+	 * @throws Exception
+	 */
+	public ImageMetrics(final int luminance[],
+						final int width,
+						final int height,
+						final int tileSize,
+						final int shadowThreshold,
+						final int highlightThreshold) throws Exception {
+		CheckUtils.check(luminance, "luminance");
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		CheckUtils.checkPositive(tileSize, "tile size");
+		if ((long) width * height != luminance.length) {
+			throw new Exception("Plane of " + luminance.length + " does not match " + width + "x" + height + ".");
+		}
+		this.luminance = luminance;
+		this.width = width;
+		this.height = height;
+		this.tile_size = tileSize;
+		this.shadow_threshold = shadowThreshold;
+		this.highlight_threshold = highlightThreshold;
+		columns = (width + tileSize - 1) / tileSize;
+		rows = (height + tileSize - 1) / tileSize;
+
+		int tiles = columns * rows;
+		counts = new int[tiles];
+		minimums = new int[tiles];
+		maximums = new int[tiles];
+		shadows = new int[tiles];
+		highlights = new int[tiles];
+		laplacian_counts = new int[tiles];
+		sums = new long[tiles];
+		squares = new long[tiles];
+		laplacian_sums = new long[tiles];
+		laplacian_squares = new long[tiles];
+
+		// Each task writes only its own row of tiles.
+		IntStream.range(0, rows).parallel().forEach(row -> computeRow(row));
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileSize() {
+		return tile_size;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Returns the luminance plane, row-major.  Not a copy.
+	 * @return
+	 */
+	public int[] getLuminance() {
+		return luminance;
+	}
+
+	/**
+	 * Returns the luminance at the pixel.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getLuminance(final int x, final int y) {
+		return luminance[y * width + x];
+	}
+
+	/**
+	 * Returns the statistics of the tile.
+	 * @param column
+	 * @param row
+	 * @return
+	 * @throws Exception
+	 */
+	public Stats getTile(final int column, final int row) throws Exception {
+		if (column < 0 || column >= columns || row < 0 || row >= rows) {
+			throw new Exception("Tile " + column + ", " + row + " outside " + columns + "x" + rows + ".");
+		}
+		Stats stats = new Stats();
+		stats.add(this, row * columns + column);
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics of the whole image.
+	 * @return
+	 */
+	public Stats getGlobal() {
+		Stats stats = new Stats();
+		for (int i = 0; i < counts.length; i++) {
+			stats.add(this, i);
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics of every tile overlapping the region, which
+	 * is clipped to the image.
+	 * @param x
+	 * @param y
+	 * @param regionWidth
+	 * @param regionHeight
+	 * @return
+	 * @throws Exception
+	 */
+	public Stats getRegion(final int x, final int y, final int regionWidth, final int regionHeight) throws Exception {
+		int x_min = Math.max(0, x);
+		int y_min = Math.max(0, y);
+		int x_max = Math.min(width, x + regionWidth);
+		int y_max = Math.min(height, y + regionHeight);
+		if (x_max <= x_min || y_max <= y_min) {
+			throw new Exception("Region " + x + ", " + y + " " + regionWidth + "x" + regionHeight +
+								" is outside " + width + "x" + height + ".");
+		}
+		Stats stats = new Stats();
+		for (int row = y_min / tile_size; row <= (y_max - 1) / tile_size; row++) {
+			for (int column = x_min / tile_size; column <= (x_max - 1) / tile_size; column++) {
+				stats.add(this, row * columns + column);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistic for every tile as a [column][row] grid, e.g.
+	 * for a heat map.
+	 * @param metric
+	 * @return
+	 */
+	public double[][] getGrid(final Metric metric) {
+		double grid[][] = new double[columns][rows];
+		for (int row = 0; row < rows; row++) {
+			for (int column = 0; column < columns; column++) {
+				Stats stats = new Stats();
+				stats.add(this, row * columns + column);
+				grid[column][row] = stats.get(metric);
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Gathers every statistic for one row of tiles.
+	 * @param row
+	 */
+	private void computeRow(final int row) {
+		int y_start = row * tile_size;
+		int y_end = Math.min(height, y_start + tile_size);
+		for (int column = 0; column < columns; column++) {
+			int x_start = column * tile_size;
+			int x_end = Math.min(width, x_start + tile_size);
+			int min = 0xff;
+			int max = 0;
+			int shadow = 0;
+			int highlight = 0;
+			int laplacian_count = 0;
+			long sum = 0;
+			long square = 0;
+			long laplacian_sum = 0;
+			long laplacian_square = 0;
+
+			for (int y = y_start; y < y_end; y++) {
+				int offset = y * width;
+				boolean interior_row = y > 0 && y < height - 1;
+				for (int x = x_start; x < x_end; x++) {
+					int value = luminance[offset + x];
+					sum += value;
+					square += value * value;
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+					if (value <= shadow_threshold) {
+						shadow++;
+					}
+					if (value >= highlight_threshold) {
+						highlight++;
+					}
+					if (interior_row && x > 0 && x < width - 1) {
+						int laplacian = 4 * value -
+										luminance[offset + x - 1] - luminance[offset + x + 1] -
+										luminance[offset + x - width] - luminance[offset + x + width];
+						laplacian_sum += laplacian;
+						laplacian_square += laplacian * laplacian;
+						laplacian_count++;
+					}
+				}
+			}
+
+			int tile = row * columns + column;
+			counts[tile] = (x_end - x_start) * (y_end - y_start);
+			minimums[tile] = min;
+			maximums[tile] = max;
+			shadows[tile] = shadow;
+			highlights[tile] = highlight;
+			laplacian_counts[tile] = laplacian_count;
+			sums[tile] = sum;
+			squares[tile] = square;
+			laplacian_sums[tile] = laplacian_sum;
+			laplacian_squares[tile] = laplacian_square;
+		}
+	}
+
+	/**
+	 * Returns the luminance plane of the image, read in row bands.
+	 * @param image
+	 * @return
+	 * @throws Exception
+	 */
+	public static int[] getLuminance(final BufferedImage image) throws Exception {
+		CheckUtils.check(image, "image");
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int plane[] = new int[width * height];
+		final PixelKernels.Backend kernels = PixelKernels.getBackend();
+		IntStream.range(0, (height + BAND_HEIGHT - 1) / BAND_HEIGHT).parallel().forEach(band -> {
+			int y = band * BAND_HEIGHT;
+			int band_height = Math.min(BAND_HEIGHT, height - y);
+			image.getRGB(0, y, width, band_height, plane, y * width, width);
+			// In place, each value is read before it is written.
+			kernels.luminance(plane, plane, y * width, width * band_height);
+		});
+		return plane;
+	}
+
+	/**
+	 * Returns the luminance plane of the canvas, empty pixels as black.
+	 * @param canvas
+	 * @return
+	 * @throws Exception
+	 */
+	public static int[] getLuminance(final Canvas canvas) throws Exception {
+		CheckUtils.check(canvas, "canvas");
+		final int width = canvas.getWidth();
+		final int height = canvas.getHeight();
+		final RGBPixel pixels[][] = canvas.get();
+		final int plane[] = new int[width * height];
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				RGBPixel pixel = pixels[x][y];
+				plane[offset + x] = pixel == null ? 0 : ColorUtils.getLuminance(pixel.getARGB());
+			}
+		});
+		return plane;
+	}
+
+	/**
+	 * Names a per-tile statistic, for getGrid().
+	 */
+	public enum Metric {
+		MEAN,
+		CONTRAST,
+		RANGE,
+		SHARPNESS,
+		SHADOW_PERCENT,
+		HIGHLIGHT_PERCENT
+	}
+
+	/**
+	 * Defines the summed statistics of one or more tiles.
+	 */
+	public static class Stats {
+		private long count;
+		private int min;
+		private int max;
+		private long shadows;
+		private long highlights;
+		private long laplacian_count;
+		private long sum;
+		private long squares;
+		private long laplacian_sum;
+		private long laplacian_squares;
+
+		private Stats() {
+			min = 0xff;
+			max = 0;
+		}
+
+		private void add(final ImageMetrics metrics, final int tile) {
+			count += metrics.counts[tile];
+			min = Math.min(min, metrics.minimums[tile]);
+			max = Math.max(max, metrics.maximums[tile]);
+			shadows += metrics.shadows[tile];
+			highlights += metrics.highlights[tile];
+			laplacian_count += metrics.laplacian_counts[tile];
+			sum += metrics.sums[tile];
+			squares += metrics.squares[tile];
+			laplacian_sum += metrics.laplacian_sums[tile];
+			laplacian_squares += metrics.laplacian_squares[tile];
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public int getMin() {
+			return min;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns max - min luminance.
+		 * @return
+		 */
+		public int getRange() {
+			return max - min;
+		}
+
+		public double getMean() {
+			return (double) sum / count;
+		}
+
+		/**
+		 * Returns the RMS contrast, the standard deviation of luminance.
+		 * @return
+		 */
+		public double getContrast() {
+			double mean = getMean();
+			return Math.sqrt(Math.max(0, (double) squares / count - mean * mean));
+		}
+
+		/**
+		 * Returns the variance of the Laplacian, 0 if the tiles hold no
+		 * interior pixels.
+		 * @return
+		 */
+		public double getSharpness() {
+			if (laplacian_count == 0) {
+				return 0;
+			}
+			double mean = (double) laplacian_sum / laplacian_count;
+			return Math.max(0, (double) laplacian_squares / laplacian_count - mean * mean);
+		}
+
+		/**
+		 * Returns the share of clipped shadow pixels, 0-100.
+		 * @return
+		 */
+		public double getShadowPercent() {
+			return 100.0 * shadows / count;
+		}
+
+		/**
+		 * Returns the share of clipped highlight pixels, 0-100.
+		 * @return
+		 */
+		public double getHighlightPercent() {
+			return 100.0 * highlights / count;
+		}
+
+		public double get(final Metric metric) {
+			switch (metric) {
+			case MEAN:
+				return getMean();
+			case CONTRAST:
+				return getContrast();
+			case RANGE:
+				return getRange();
+			case SHARPNESS:
+				return getSharpness();
+			case SHADOW_PERCENT:
+				return getShadowPercent();
+			default:
+				return getHighlightPercent();
+			}
+		}
+
+		public String toString() {
+			return String.format("mean %.1f, contrast %.1f, range %d, sharpness %.1f, shadows %.2f%%, highlights %.2f%%",
+								 getMean(), getContrast(), getRange(), getSharpness(),
+								 getShadowPercent(), getHighlightPercent());
+		}
+	}
+
+}
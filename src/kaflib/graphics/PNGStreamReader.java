@@ -0,0 +1,444 @@
+package kaflib.graphics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Reads a PNG one row at a time, the counterpart of PNGStreamWriter.
+ * ImageIO's reader decodes from the top of the file on every read, so
+ * reading an image in bands through it is quadratic in the height; this
+ * inflates and unfilters each row once, keeping only the previous row.
+ *
+ * Handles every non-interlaced color type and bit depth, with palettes and
+ * tRNS transparency.  Sixteen-bit samples are rounded to eight.  Gray
+ * samples are taken as display values, as the PNG spec has it (ImageIO
+ * treats gray as linear and brightens it).  Interlaced images can't be
+ * read by row; check isInterlaced() first.
+ */
+public class PNGStreamReader implements RowReader {
+
+	private static final byte SIGNATURE[] = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int GRAY = 0;
+	private static final int RGB = 2;
+	private static final int PALETTE = 3;
+	private static final int GRAY_ALPHA = 4;
+	private static final int RGBA = 6;
+
+	private final DataInputStream input;
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int color_type;
+	private final boolean interlaced;
+	private final int pixel_bytes;
+	private int palette[];
+	private int transparent[];
+	private final Inflater decompressor;
+	private final DataInputStream inflater;
+	private byte current[];
+	private byte previous[];
+	private int rows;
+
+	/**
+	 * Opens the file and reads the header, up to the image data.
+	 * @param file
+	 * @throws Exception
+	 */
+	public PNGStreamReader(final File file) throws Exception {
+		this(new FileInputStream(file));
+	}
+
+	/**
+	 * Reads the header from the stream, which is closed with the reader.
+	 * @param stream
+	 * @throws Exception
+	 */
+	public PNGStreamReader(final InputStream stream) throws Exception {
+		CheckUtils.check(stream, "stream");
+		input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+		try {
+			byte signature[] = new byte[SIGNATURE.length];
+			input.readFully(signature);
+			if (!Arrays.equals(signature, SIGNATURE)) {
+				throw new Exception("Not a png.");
+			}
+			if (input.readInt() != 13 || !readType().equals("IHDR")) {
+				throw new Exception("Missing png header.");
+			}
+			byte header[] = readData(13);
+			width = getInt(header, 0);
+			height = getInt(header, 4);
+			depth = header[8];
+			color_type = header[9];
+			interlaced = header[12] != 0;
+			if (width <= 0 || height <= 0 || header[10] != 0 || header[11] != 0) {
+				throw new Exception("Unsupported png header.");
+			}
+			int channels;
+			switch (color_type) {
+			case GRAY: channels = 1; break;
+			case RGB: channels = 3; break;
+			case PALETTE: channels = 1; break;
+			case GRAY_ALPHA: channels = 2; break;
+			case RGBA: channels = 4; break;
+			default: throw new Exception("Unknown png color type: " + color_type + ".");
+			}
+			int bits = channels * depth;
+			pixel_bytes = Math.max(1, bits / 8);
+			current = new byte[(int) (((long) width * bits + 7) / 8)];
+			previous = new byte[current.length];
+
+			// Ancillary chunks up to the first IDAT.
+			while (true) {
+				int length = input.readInt();
+				String type = readType();
+				if (type.equals("IDAT")) {
+					decompressor = new Inflater();
+					inflater = new DataInputStream(new InflaterInputStream(new IDATStream(length),
+																		   decompressor, BUFFER_SIZE));
+					break;
+				}
+				byte data[] = readData(length);
+				if (type.equals("PLTE")) {
+					palette = new int[length / 3];
+					for (int i = 0; i < palette.length; i++) {
+						palette[i] = 0xff000000 | getRGB(data, i * 3);
+					}
+				}
+				else if (type.equals("tRNS")) {
+					transparent = new int[length];
+					for (int i = 0; i < length; i++) {
+						transparent[i] = data[i] & 0xff;
+					}
+				}
+				else if (type.equals("IEND")) {
+					throw new Exception("No png image data.");
+				}
+			}
+			if (color_type == PALETTE && palette == null) {
+				throw new Exception("Missing png palette.");
+			}
+			if (color_type == PALETTE && transparent != null) {
+				for (int i = 0; i < transparent.length && i < palette.length; i++) {
+					palette[i] = (transparent[i] << 24) | (palette[i] & 0xffffff);
+				}
+			}
+		}
+		catch (Exception e) {
+			input.close();
+			throw e;
+		}
+		rows = 0;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isInterlaced() {
+		return interlaced;
+	}
+
+	/**
+	 * Returns the number of rows read so far.
+	 * @return
+	 */
+	public int getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Reads the next row into argb starting at offset.
+	 * @param argb
+	 * @param offset
+	 * @throws Exception
+	 */
+	public void readRow(final int argb[], final int offset) throws Exception {
+		if (interlaced) {
+			throw new Exception("Interlaced pngs can't be read by row.");
+		}
+		if (rows >= height) {
+			throw new Exception("All " + height + " rows already read.");
+		}
+		byte swap[] = previous;
+		previous = current;
+		current = swap;
+		int filter = inflater.readUnsignedByte();
+		inflater.readFully(current);
+		unfilter(filter);
+		convert(argb, offset);
+		rows++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			decompressor.end();
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Reverses the row filter in place, against the previous row (zero
+	 * above the first).
+	 * @param filter
+	 * @throws Exception
+	 */
+	private void unfilter(final int filter) throws Exception {
+		int bpp = pixel_bytes;
+		byte above[] = previous;
+		boolean first = rows == 0;
+		switch (filter) {
+		case 0:
+			break;
+		case 1:
+			for (int i = bpp; i < current.length; i++) {
+				current[i] += current[i - bpp];
+			}
+			break;
+		case 2:
+			if (!first) {
+				for (int i = 0; i < current.length; i++) {
+					current[i] += above[i];
+				}
+			}
+			break;
+		case 3:
+			for (int i = 0; i < current.length; i++) {
+				int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+				int up = first ? 0 : above[i] & 0xff;
+				current[i] += (left + up) >> 1;
+			}
+			break;
+		case 4:
+			for (int i = 0; i < current.length; i++) {
+				int left = i >= bpp ? current[i - bpp] & 0xff : 0;
+				int up = first ? 0 : above[i] & 0xff;
+				int corner = i >= bpp && !first ? above[i - bpp] & 0xff : 0;
+				int estimate = left + up - corner;
+				int to_left = Math.abs(estimate - left);
+				int to_up = Math.abs(estimate - up);
+				int to_corner = Math.abs(estimate - corner);
+				if (to_left <= to_up && to_left <= to_corner) {
+					current[i] += left;
+				}
+				else if (to_up <= to_corner) {
+					current[i] += up;
+				}
+				else {
+					current[i] += corner;
+				}
+			}
+			break;
+		default:
+			throw new Exception("Unknown png filter: " + filter + " in row " + rows + ".");
+		}
+	}
+
+	/**
+	 * Converts the unfiltered row to packed argb.
+	 * @param argb
+	 * @param offset
+	 */
+	private void convert(final int argb[], final int offset) {
+		byte row[] = current;
+		switch (color_type) {
+		case GRAY:
+			for (int x = 0; x < width; x++) {
+				int sample = getSample(row, x);
+				int gray = scale(sample);
+				int alpha = transparent != null && transparent.length >= 2 &&
+							sample == ((transparent[0] << 8) | transparent[1]) ? 0 : 0xff;
+				argb[offset + x] = (alpha << 24) | (gray << 16) | (gray << 8) | gray;
+			}
+			break;
+		case PALETTE:
+			for (int x = 0; x < width; x++) {
+				int index = getSample(row, x);
+				argb[offset + x] = index < palette.length ? palette[index] : 0xff000000;
+			}
+			break;
+		case RGB:
+			if (depth == 8) {
+				for (int x = 0; x < width; x++) {
+					int rgb = getRGB(row, x * 3);
+					int alpha = transparent != null && transparent.length >= 6 &&
+								(row[x * 3] & 0xff) == transparent[1] && transparent[0] == 0 &&
+								(row[x * 3 + 1] & 0xff) == transparent[3] && transparent[2] == 0 &&
+								(row[x * 3 + 2] & 0xff) == transparent[5] && transparent[4] == 0 ? 0 : 0xff;
+					argb[offset + x] = (alpha << 24) | rgb;
+				}
+			}
+			else {
+				for (int x = 0; x < width; x++) {
+					int i = x * 6;
+					boolean clear = transparent != null && transparent.length >= 6;
+					for (int c = 0; clear && c < 6; c++) {
+						clear = (row[i + c] & 0xff) == transparent[c];
+					}
+					argb[offset + x] = (clear ? 0 : 0xff000000) | (getWide(row, i) << 16) |
+									   (getWide(row, i + 2) << 8) | getWide(row, i + 4);
+				}
+			}
+			break;
+		case GRAY_ALPHA:
+			for (int x = 0; x < width; x++) {
+				int gray = depth == 8 ? row[x * 2] & 0xff : getWide(row, x * 4);
+				int alpha = depth == 8 ? row[x * 2 + 1] & 0xff : getWide(row, x * 4 + 2);
+				argb[offset + x] = (alpha << 24) | (gray << 16) | (gray << 8) | gray;
+			}
+			break;
+		case RGBA:
+			if (depth == 8) {
+				for (int x = 0; x < width; x++) {
+					argb[offset + x] = ((row[x * 4 + 3] & 0xff) << 24) | getRGB(row, x * 4);
+				}
+			}
+			else {
+				for (int x = 0; x < width; x++) {
+					int i = x * 8;
+					argb[offset + x] = (getWide(row, i + 6) << 24) | (getWide(row, i) << 16) |
+									   (getWide(row, i + 2) << 8) | getWide(row, i + 4);
+				}
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Returns the x'th single-channel sample of the row at the image depth.
+	 * @param row
+	 * @param x
+	 * @return
+	 */
+	private int getSample(final byte row[], final int x) {
+		switch (depth) {
+		case 16:
+			return ((row[x * 2] & 0xff) << 8) | (row[x * 2 + 1] & 0xff);
+		case 8:
+			return row[x] & 0xff;
+		default:
+			int per_byte = 8 / depth;
+			int shift = 8 - depth * (x % per_byte + 1);
+			return ((row[x / per_byte] & 0xff) >> shift) & ((1 << depth) - 1);
+		}
+	}
+
+	/**
+	 * Scales a gray sample at the image depth to eight bits.
+	 * @param sample
+	 * @return
+	 */
+	private int scale(final int sample) {
+		switch (depth) {
+		case 16: return (sample * 255 + 32767) / 65535;
+		case 8: return sample;
+		default: return sample * 255 / ((1 << depth) - 1);
+		}
+	}
+
+	/**
+	 * Returns the sixteen-bit sample at i rounded to eight bits.
+	 * @param row
+	 * @param i
+	 * @return
+	 */
+	private static int getWide(final byte row[], final int i) {
+		return ((((row[i] & 0xff) << 8) | (row[i + 1] & 0xff)) * 255 + 32767) / 65535;
+	}
+
+	private static int getRGB(final byte data[], final int i) {
+		return ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+	}
+
+	private static int getInt(final byte data[], final int i) {
+		return ((data[i] & 0xff) << 24) | ((data[i + 1] & 0xff) << 16) |
+			   ((data[i + 2] & 0xff) << 8) | (data[i + 3] & 0xff);
+	}
+
+	private String readType() throws IOException {
+		byte type[] = new byte[4];
+		input.readFully(type);
+		return new String(type, "US-ASCII");
+	}
+
+	/**
+	 * Reads a chunk's data and skips its crc.
+	 * @param length
+	 * @return
+	 * @throws Exception
+	 */
+	private byte[] readData(final int length) throws Exception {
+		if (length < 0) {
+			throw new Exception("Bad png chunk length: " + length + ".");
+		}
+		byte data[] = new byte[length];
+		input.readFully(data);
+		input.readInt();
+		return data;
+	}
+
+	/**
+	 * Presents the consecutive IDAT chunks' data as one stream.  Chunks
+	 * between them (there shouldn't be any) are skipped.
+	 */
+	private class IDATStream extends InputStream {
+		private int remaining;
+		private boolean done;
+
+		public IDATStream(final int length) {
+			remaining = length;
+			done = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte bytes[], final int offset, final int length) throws IOException {
+			while (remaining == 0) {
+				if (done) {
+					return -1;
+				}
+				input.readInt();	// Crc.
+				int next = input.readInt();
+				String type = readType();
+				if (type.equals("IDAT")) {
+					remaining = next;
+				}
+				else if (type.equals("IEND")) {
+					done = true;
+				}
+				else {
+					input.readFully(new byte[next]);
+				}
+			}
+			int count = input.read(bytes, offset, Math.min(length, remaining));
+			if (count < 0) {
+				throw new IOException("Truncated png.");
+			}
+			remaining -= count;
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+package kaflib.graphics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Writes an 8-bit RGBA PNG one row at a time, so an image never has to be
+ * held in memory (ImageIO's writer wants the whole RenderedImage).  Rows
+ * are sub-filtered and deflated into IDAT chunks as they arrive.
+ */
+public class PNGStreamWriter implements AutoCloseable {
+
+	private static final byte SIGNATURE[] = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int FILTER_SUB = 1;
+
+	private final DataOutputStream output;
+	private final int width;
+	private final int height;
+	private final byte raw[];
+	private final byte filtered[];
+	private final ChunkStream idat;
+	private final Deflater compressor;
+	private final DeflaterOutputStream deflater;
+	private int rows;
+
+	/**
+	 * Opens the file and writes the header.
+	 * @param file
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public PNGStreamWriter(final File file, final int width, final int height) throws Exception {
+		this(new FileOutputStream(file), width, height);
+	}
+
+	/**
+	 * Writes the header to the stream, which is closed with the writer.
+	 * @param stream
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public PNGStreamWriter(final OutputStream stream, final int width, final int height) throws Exception {
+		CheckUtils.check(stream, "stream");
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		this.width = width;
+		this.height = height;
+		output = new DataOutputStream(new BufferedOutputStream(stream, CHUNK_SIZE));
+		raw = new byte[width * 4];
+		filtered = new byte[width * 4 + 1];
+		rows = 0;
+
+		output.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeByte(8);	// Bit depth.
+		data.writeByte(6);	// Truecolor with alpha.
+		data.writeByte(0);	// Deflate.
+		data.writeByte(0);	// Adaptive filtering.
+		data.writeByte(0);	// Not interlaced.
+		writeChunk("IHDR", header.toByteArray(), header.size());
+
+		idat = new ChunkStream();
+		compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater = new DeflaterOutputStream(idat, compressor, CHUNK_SIZE);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Writes the next row from packed argb values starting at offset.
+	 * @param argb
+	 * @param offset
+	 * @throws Exception
+	 */
+	public void writeRow(final int argb[], final int offset) throws Exception {
+		if (rows >= height) {
+			throw new Exception("All " + height + " rows already written.");
+		}
+		for (int x = 0; x < width; x++) {
+			int value = argb[offset + x];
+			raw[x * 4] = (byte) (value >> 16);
+			raw[x * 4 + 1] = (byte) (value >> 8);
+			raw[x * 4 + 2] = (byte) value;
+			raw[x * 4 + 3] = (byte) (value >>> 24);
+		}
+		filtered[0] = FILTER_SUB;
+		for (int i = 0; i < raw.length; i++) {
+			filtered[i + 1] = (byte) (raw[i] - (i >= 4 ? raw[i - 4] : 0));
+		}
+		deflater.write(filtered);
+		rows++;
+	}
+
+	/**
+	 * Returns the number of rows written so far.
+	 * @return
+	 */
+	public int getRowCount() {
+		return rows;
+	}
+
+	/**
+	 * Finishes the image and closes the stream.  Throws if rows are missing.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			deflater.finish();
+			idat.flush();
+			writeChunk("IEND", new byte[0], 0);
+			output.flush();
+		}
+		finally {
+			compressor.end();
+			output.close();
+		}
+		if (rows != height) {
+			throw new IOException("Wrote " + rows + " of " + height + " rows.");
+		}
+	}
+
+	private void writeChunk(final String type, final byte data[], final int length) throws IOException {
+		CRC32 crc = new CRC32();
+		byte type_bytes[] = type.getBytes("US-ASCII");
+		crc.update(type_bytes);
+		crc.update(data, 0, length);
+		output.writeInt(length);
+		output.write(type_bytes);
+		output.write(data, 0, length);
+		output.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Buffers deflated bytes into IDAT chunks.
+	 */
+	private class ChunkStream extends OutputStream {
+		private final byte buffer[] = new byte[CHUNK_SIZE];
+		private int size = 0;
+
+		@Override
+		public void write(final int b) throws IOException {
+			buffer[size++] = (byte) b;
+			if (size == buffer.length) {
+				flush();
+			}
+		}
+
+		@Override
+		public void write(final byte bytes[], final int offset, final int length) throws IOException {
+			int written = 0;
+			while (written < length) {
+				int count = Math.min(length - written, buffer.length - size);
+				System.arraycopy(bytes, offset + written, buffer, size, count);
+				size += count;
+				written += count;
+				if (size == buffer.length) {
+					flush();
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (size > 0) {
+				writeChunk("IDAT", buffer, size);
+				size = 0;
+			}
+		}
+	}
+
+}
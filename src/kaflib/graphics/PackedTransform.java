@@ -0,0 +1,9 @@
+package kaflib.graphics;
+
+/**
+ * Defines a transform over a row-major packed argb raster, so large images
+ * can be processed without an RGBPixel per pixel.
+ */
+public interface PackedTransform {
+	public void apply(int argb[], int width, int height) throws Exception;
+}
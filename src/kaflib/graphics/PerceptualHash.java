@@ -0,0 +1,85 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Defines a perceptual hash (pHash): the image is reduced to a 32x32
+ * luminance raster, transformed with a 2D DCT, and the lowest 8x8
+ * frequencies are compared against their median.  The slowest of the three
+ * but the most robust to compression, scaling and mild edits.
+ */
+public class PerceptualHash extends ImageHash {
+
+	private static final int SIZE = 32;
+	private static final int FREQUENCIES = 8;
+	private static final double COSINES[][] = getCosines();
+
+	public PerceptualHash(final BufferedImage image) throws Exception {
+		super(compute(getLuminance(image, SIZE, SIZE)));
+	}
+
+	public PerceptualHash(final Canvas canvas) throws Exception {
+		super(compute(getLuminance(canvas, SIZE, SIZE)));
+	}
+
+	public PerceptualHash(final File file) throws Exception {
+		this(GraphicsUtils.read(file));
+	}
+
+	/**
+	 * Separable DCT-II, only computing the low frequencies that are kept.
+	 * @param luminance
+	 * @return
+	 */
+	private static long compute(final int luminance[]) {
+		// Rows: SIZE rows x FREQUENCIES horizontal coefficients.
+		double rows[] = new double[SIZE * FREQUENCIES];
+		for (int j = 0; j < SIZE; j++) {
+			for (int u = 0; u < FREQUENCIES; u++) {
+				double sum = 0;
+				for (int i = 0; i < SIZE; i++) {
+					sum += luminance[j * SIZE + i] * COSINES[u][i];
+				}
+				rows[j * FREQUENCIES + u] = sum;
+			}
+		}
+
+		// Columns: FREQUENCIES x FREQUENCIES coefficients.
+		double coefficients[] = new double[FREQUENCIES * FREQUENCIES];
+		for (int v = 0; v < FREQUENCIES; v++) {
+			for (int u = 0; u < FREQUENCIES; u++) {
+				double sum = 0;
+				for (int j = 0; j < SIZE; j++) {
+					sum += rows[j * FREQUENCIES + u] * COSINES[v][j];
+				}
+				coefficients[v * FREQUENCIES + u] = sum;
+			}
+		}
+
+		// Median excluding the DC term, which only carries mean brightness.
+		double sorted[] = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+		Arrays.sort(sorted);
+		double median = sorted[sorted.length / 2];
+
+		long hash = 0;
+		for (int i = 0; i < coefficients.length; i++) {
+			if (coefficients[i] > median) {
+				hash |= 1L << i;
+			}
+		}
+		return hash;
+	}
+
+	private static double[][] getCosines() {
+		double cosines[][] = new double[FREQUENCIES][SIZE];
+		for (int u = 0; u < FREQUENCIES; u++) {
+			for (int i = 0; i < SIZE; i++) {
+				cosines[u][i] = Math.cos(((2 * i + 1) * u * Math.PI) / (2 * SIZE));
+			}
+		}
+		return cosines;
+	}
+
+}
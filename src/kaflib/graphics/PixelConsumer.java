@@ -0,0 +1,9 @@
+package kaflib.graphics;
+
+/**
+ * Defines a visitor for pixel locations, taking the coordinates as ints so
+ * iterating a canvas allocates nothing.
+ */
+public interface PixelConsumer {
+	public void accept(final int x, final int y) throws Exception;
+}
@@ -0,0 +1,268 @@
+package kaflib.graphics;
+
+/**
+ * Defines bulk color kernels over runs of packed argb ints: blend,
+ * composite, average, luminance, delta and per-channel min/max.  Results
+ * match the per-pixel ColorUtils functions exactly.
+ *
+ * The work is done by a Backend chosen once at startup.  The default is
+ * plain Java written as branch-free counted loops with no division, which
+ * HotSpot's superword pass turns into SIMD on hardware that has it.  Set
+ * the kaflib.graphics.kernels system property to a Backend class name
+ * (with a public no-arg constructor) to substitute another implementation,
+ * e.g. one built on the vector API where the runtime provides it; if it
+ * can't be loaded the default is used.
+ */
+public class PixelKernels {
+
+	public static final String BACKEND_PROPERTY = "kaflib.graphics.kernels";
+
+	/**
+	 * Defines a kernel implementation.  Each method covers
+	 * [offset, offset + length) of its arrays.
+	 */
+	public interface Backend {
+		public void blend(int base[], int other[], int output[], int offset, int length, int otherPercent);
+		public void composite(int destination[], int source[], int output[], int offset, int length);
+		public void average(int a[], int b[], int output[], int offset, int length);
+		public void luminance(int argb[], int output[], int offset, int length);
+		public void delta(int a[], int b[], int output[], int offset, int length);
+		public int min(int argb[], int offset, int length);
+		public int max(int argb[], int offset, int length);
+	}
+
+	private static final Backend BACKEND = select();
+
+	private static Backend select() {
+		String name = System.getProperty(BACKEND_PROPERTY);
+		if (name != null && !name.isEmpty()) {
+			try {
+				return (Backend) Class.forName(name).getDeclaredConstructor().newInstance();
+			}
+			catch (Throwable t) {
+				System.err.println("Unable to load pixel kernels " + name + ", using scalar: " + t + ".");
+			}
+		}
+		return new ScalarBackend();
+	}
+
+	/**
+	 * Returns the backend in use.
+	 * @return
+	 */
+	public static Backend getBackend() {
+		return BACKEND;
+	}
+
+	/**
+	 * Sets output to ColorUtils.blend(base, other, otherPercent) per pixel.
+	 * @param base
+	 * @param other
+	 * @param output
+	 * @param otherPercent 0-100.
+	 * @throws Exception
+	 */
+	public static void blend(final int base[], final int other[], final int output[], final int otherPercent) throws Exception {
+		check(base.length, other.length, output.length);
+		if (otherPercent < 0 || otherPercent > 100) {
+			throw new Exception("Not a percent: " + otherPercent + ".");
+		}
+		BACKEND.blend(base, other, output, 0, base.length, otherPercent);
+	}
+
+	/**
+	 * Sets output to ColorUtils.composite(destination, source) per pixel.
+	 * @param destination
+	 * @param source
+	 * @param output
+	 * @throws Exception
+	 */
+	public static void composite(final int destination[], final int source[], final int output[]) throws Exception {
+		check(destination.length, source.length, output.length);
+		BACKEND.composite(destination, source, output, 0, destination.length);
+	}
+
+	/**
+	 * Sets output to ColorUtils.average(a, b) per pixel.
+	 * @param a
+	 * @param b
+	 * @param output
+	 * @throws Exception
+	 */
+	public static void average(final int a[], final int b[], final int output[]) throws Exception {
+		check(a.length, b.length, output.length);
+		BACKEND.average(a, b, output, 0, a.length);
+	}
+
+	/**
+	 * Sets output to the 0-255 luminance of each pixel.
+	 * @param argb
+	 * @param output
+	 * @throws Exception
+	 */
+	public static void luminance(final int argb[], final int output[]) throws Exception {
+		check(argb.length, output.length, output.length);
+		BACKEND.luminance(argb, output, 0, argb.length);
+	}
+
+	/**
+	 * Sets output to ColorUtils.getDelta(a, b) per pixel.
+	 * @param a
+	 * @param b
+	 * @param output
+	 * @throws Exception
+	 */
+	public static void delta(final int a[], final int b[], final int output[]) throws Exception {
+		check(a.length, b.length, output.length);
+		BACKEND.delta(a, b, output, 0, a.length);
+	}
+
+	/**
+	 * Returns the per-channel minimum of the range, packed as argb.
+	 * @param argb
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws Exception
+	 */
+	public static int min(final int argb[], final int offset, final int length) throws Exception {
+		checkRange(argb.length, offset, length);
+		return BACKEND.min(argb, offset, length);
+	}
+
+	/**
+	 * Returns the per-channel maximum of the range, packed as argb.
+	 * @param argb
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws Exception
+	 */
+	public static int max(final int argb[], final int offset, final int length) throws Exception {
+		checkRange(argb.length, offset, length);
+		return BACKEND.max(argb, offset, length);
+	}
+
+	private static void check(final int a, final int b, final int c) throws Exception {
+		if (a != b || a != c) {
+			throw new Exception("Mismatched lengths: " + a + " / " + b + " / " + c + ".");
+		}
+	}
+
+	private static void checkRange(final int size, final int offset, final int length) throws Exception {
+		if (offset < 0 || length <= 0 || offset + length > size) {
+			throw new Exception("Range " + offset + " + " + length + " exceeds " + size + ".");
+		}
+	}
+
+	/**
+	 * Plain loops, kept free of branches and division so they vectorize.
+	 */
+	public static class ScalarBackend implements Backend {
+
+		// x / 100 == (x * 5243) >>> 19 for 0 <= x <= 255 * 100.
+		private static final int DIVIDE_100 = 5243;
+		private static final int DIVIDE_100_SHIFT = 19;
+
+		@Override
+		public void blend(final int base[], final int other[], final int output[], final int offset, final int length, final int otherPercent) {
+			final int complement = 100 - otherPercent;
+			for (int i = offset; i < offset + length; i++) {
+				int b = base[i];
+				int o = other[i];
+				int red = ((((b >> 16) & 0xff) * complement * DIVIDE_100) >>> DIVIDE_100_SHIFT) +
+						  ((((o >> 16) & 0xff) * otherPercent * DIVIDE_100) >>> DIVIDE_100_SHIFT);
+				int green = ((((b >> 8) & 0xff) * complement * DIVIDE_100) >>> DIVIDE_100_SHIFT) +
+							((((o >> 8) & 0xff) * otherPercent * DIVIDE_100) >>> DIVIDE_100_SHIFT);
+				int blue = (((b & 0xff) * complement * DIVIDE_100) >>> DIVIDE_100_SHIFT) +
+						   (((o & 0xff) * otherPercent * DIVIDE_100) >>> DIVIDE_100_SHIFT);
+				output[i] = (b & 0xff000000) | (red << 16) | (green << 8) | blue;
+			}
+		}
+
+		@Override
+		public void composite(final int destination[], final int source[], final int output[], final int offset, final int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int d = destination[i];
+				int s = source[i];
+				int alpha = s >>> 24;
+				int inverse = 0xff - alpha;
+				int red = ((s >> 16) & 0xff) * alpha + ((d >> 16) & 0xff) * inverse + 128;
+				int green = ((s >> 8) & 0xff) * alpha + ((d >> 8) & 0xff) * inverse + 128;
+				int blue = (s & 0xff) * alpha + (d & 0xff) * inverse + 128;
+				// Rounded division by 255.
+				red = (red + (red >> 8)) >> 8;
+				green = (green + (green >> 8)) >> 8;
+				blue = (blue + (blue >> 8)) >> 8;
+				output[i] = (d & 0xff000000) | (red << 16) | (green << 8) | blue;
+			}
+		}
+
+		@Override
+		public void average(final int a[], final int b[], final int output[], final int offset, final int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int x = a[i];
+				int y = b[i];
+				output[i] = 0xff000000 |
+							(((((x >> 16) & 0xff) + ((y >> 16) & 0xff)) >> 1) << 16) |
+							(((((x >> 8) & 0xff) + ((y >> 8) & 0xff)) >> 1) << 8) |
+							(((x & 0xff) + (y & 0xff)) >> 1);
+			}
+		}
+
+		@Override
+		public void luminance(final int argb[], final int output[], final int offset, final int length) {
+			// Same products, same order as the tables in ColorUtils.
+			for (int i = offset; i < offset + length; i++) {
+				int v = argb[i];
+				output[i] = (int) (GraphicsUtils.LUMINANCE_R * (double) ((v >> 16) & 0xff) +
+								   GraphicsUtils.LUMINANCE_G * (double) ((v >> 8) & 0xff) +
+								   GraphicsUtils.LUMINANCE_B * (double) (v & 0xff));
+			}
+		}
+
+		@Override
+		public void delta(final int a[], final int b[], final int output[], final int offset, final int length) {
+			for (int i = offset; i < offset + length; i++) {
+				int x = a[i];
+				int y = b[i];
+				output[i] = Math.abs(((x >> 16) & 0xff) - ((y >> 16) & 0xff)) +
+							Math.abs(((x >> 8) & 0xff) - ((y >> 8) & 0xff)) +
+							Math.abs((x & 0xff) - (y & 0xff));
+			}
+		}
+
+		@Override
+		public int min(final int argb[], final int offset, final int length) {
+			int alpha = 0xff;
+			int red = 0xff;
+			int green = 0xff;
+			int blue = 0xff;
+			for (int i = offset; i < offset + length; i++) {
+				int v = argb[i];
+				alpha = Math.min(alpha, v >>> 24);
+				red = Math.min(red, (v >> 16) & 0xff);
+				green = Math.min(green, (v >> 8) & 0xff);
+				blue = Math.min(blue, v & 0xff);
+			}
+			return ColorUtils.getARGB(alpha, red, green, blue);
+		}
+
+		@Override
+		public int max(final int argb[], final int offset, final int length) {
+			int alpha = 0;
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int v = argb[i];
+				alpha = Math.max(alpha, v >>> 24);
+				red = Math.max(red, (v >> 16) & 0xff);
+				green = Math.max(green, (v >> 8) & 0xff);
+				blue = Math.max(blue, v & 0xff);
+			}
+			return ColorUtils.getARGB(alpha, red, green, blue);
+		}
+	}
+
+}
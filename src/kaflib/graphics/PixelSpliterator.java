@@ -0,0 +1,105 @@
+package kaflib.graphics;
+
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a spliterator over the row-major pixel indices (y * width + x) of
+ * a width x height raster.  Nothing is allocated per pixel, and splits fall
+ * on row boundaries so parallel streams hand whole rows to each worker.
+ *
+ * Decode an index with x = index % width, y = index / width.
+ */
+public class PixelSpliterator implements Spliterator.OfInt {
+
+	private final int width;
+	private int index;
+	private final int end;
+
+	/**
+	 * Covers every pixel.
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public PixelSpliterator(final int width, final int height) throws Exception {
+		this(width, 0, height);
+	}
+
+	/**
+	 * Covers rows [startRow, endRow).
+	 * @param width
+	 * @param startRow
+	 * @param endRow
+	 * @throws Exception
+	 */
+	public PixelSpliterator(final int width, final int startRow, final int endRow) throws Exception {
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkNonNegative(startRow, "start row");
+		if (endRow < startRow) {
+			throw new Exception("Rows out of order: " + startRow + " / " + endRow + ".");
+		}
+		this.width = width;
+		this.index = startRow * width;
+		this.end = endRow * width;
+	}
+
+	/**
+	 * Covers the other's remaining indices up to end, for splitting.
+	 * @param other
+	 * @param end
+	 */
+	private PixelSpliterator(final PixelSpliterator other, final int end) {
+		this.width = other.width;
+		this.index = other.index;
+		this.end = end;
+	}
+
+	@Override
+	public boolean tryAdvance(final IntConsumer action) {
+		if (index >= end) {
+			return false;
+		}
+		action.accept(index++);
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(final IntConsumer action) {
+		int i = index;
+		int stop = end;
+		index = stop;
+		for (; i < stop; i++) {
+			action.accept(i);
+		}
+	}
+
+	/**
+	 * Splits off the first half of the remaining whole rows.
+	 */
+	@Override
+	public Spliterator.OfInt trySplit() {
+		int first_row = (index + width - 1) / width;
+		int rows = end / width - first_row;
+		if (rows < 2) {
+			return null;
+		}
+		int middle = (first_row + rows / 2) * width;
+		PixelSpliterator prefix = new PixelSpliterator(this, middle);
+		index = middle;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return end - index;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+	}
+
+}
@@ -20,13 +20,14 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 	private Byte g;
 	private Byte b;
 	
-	public static final RGBPixel TRANSPARENT_BLACK = new RGBPixel(0x00000000);
-	public static final RGBPixel TRANSPARENT_WHITE = new RGBPixel(0x00ffffff);
-	public static final RGBPixel OPAQUE_BLACK = new RGBPixel(0xff000000);
-	public static final RGBPixel OPAQUE_WHITE =	new RGBPixel(0xffffffff);
-	public static final RGBPixel OPAQUE_RED = new RGBPixel(0xffff0000);
-	public static final RGBPixel OPAQUE_GREEN =	new RGBPixel(0xff00ff00);
-	public static final RGBPixel OPAQUE_BLUE = new RGBPixel(0xff0000ff);
+	// Read-only, copy to modify.
+	public static final RGBPixel TRANSPARENT_BLACK = new SharedPixel(0x00000000);
+	public static final RGBPixel TRANSPARENT_WHITE = new SharedPixel(0x00ffffff);
+	public static final RGBPixel OPAQUE_BLACK = new SharedPixel(0xff000000);
+	public static final RGBPixel OPAQUE_WHITE =	new SharedPixel(0xffffffff);
+	public static final RGBPixel OPAQUE_RED = new SharedPixel(0xffff0000);
+	public static final RGBPixel OPAQUE_GREEN =	new SharedPixel(0xff00ff00);
+	public static final RGBPixel OPAQUE_BLUE = new SharedPixel(0xff0000ff);
 	
 	public RGBPixel() {
 		super();
@@ -123,32 +124,52 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 					final Percent aDominant,
 					final Percent blendDominant) throws Exception {
 		super(Opacity.OPAQUE);
+		CheckUtils.checkRange(blendDominant.get(), 0, 100);
+		int value;
 		// A is dominant.
 		if (RandomUtils.randomBoolean(aDominant.get())) {
-			this.r = Byte.combine(a.getR(), b.getR(), blendDominant);
-			this.g = Byte.combine(a.getG(), b.getG(), blendDominant);
-			this.b = Byte.combine(a.getB(), b.getB(), blendDominant);
+			value = ColorUtils.blend(b.getARGB(), a.getARGB(), blendDominant.get());
 		}
 		// B is dominant.
 		else {
-			this.r = Byte.combine(b.getR(), a.getR(), blendDominant);
-			this.g = Byte.combine(b.getG(), a.getG(), blendDominant);
-			this.b = Byte.combine(b.getB(), a.getB(), blendDominant);
+			value = ColorUtils.blend(a.getARGB(), b.getARGB(), blendDominant.get());
 		}
+		this.r = new Byte(ColorUtils.getRed(value));
+		this.g = new Byte(ColorUtils.getGreen(value));
+		this.b = new Byte(ColorUtils.getBlue(value));
 	}
 
 	public RGBPixel(final RGBPixel a, 
 					final RGBPixel b, 
 					final Percent pctA) throws Exception {
 		super(Opacity.OPAQUE);
-		this.r = Byte.combine(a.getR(), b.getR(), pctA);
-		this.g = Byte.combine(a.getG(), b.getG(), pctA);
-		this.b = Byte.combine(a.getB(), b.getB(), pctA);
+		CheckUtils.checkRange(pctA.get(), 0, 100);
+		int value = ColorUtils.blend(b.getARGB(), a.getARGB(), pctA.get());
+		this.r = new Byte(ColorUtils.getRed(value));
+		this.g = new Byte(ColorUtils.getGreen(value));
+		this.b = new Byte(ColorUtils.getBlue(value));
 	}
 	
 	
+	/**
+	 * Returns false for shared, read-only pixels (see ColorValue.getPixel()),
+	 * which must be copied before modifying.
+	 * @return
+	 */
+	public boolean isMutable() {
+		return true;
+	}
+	
 	public Byte getLuminance() {
-		return GraphicsUtils.getLuminance(r, g, b);
+		return new Byte(getLuminanceValue());
+	}
+	
+	/**
+	 * Returns the 0-255 luminance without allocating.
+	 * @return
+	 */
+	public int getLuminanceValue() {
+		return ColorUtils.getLuminance(r.getValue(), g.getValue(), b.getValue());
 	}
 	
 	
@@ -258,9 +279,7 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 	 * @return
 	 */
 	public int getDelta(final RGBPixel other) {
-		return Byte.getAbsoluteDifference(r, other.getR()) +
-			   Byte.getAbsoluteDifference(g, other.getG()) +
-			   Byte.getAbsoluteDifference(b, other.getB());
+		return ColorUtils.getDelta(getARGB(), other.getARGB());
 	}
 	
 	/**
@@ -314,27 +333,50 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 	 * @throws Exception
 	 */
 	public void blend(final RGBPixel other) throws Exception {
-		r.combine(other.getR(), other.getOpacity().getPercent());
-		g.combine(other.getG(), other.getOpacity().getPercent());
-		b.combine(other.getB(), other.getOpacity().getPercent());
+		set(ColorUtils.composite(getARGB(), other.getARGB()));
 	}
 	
 	public void blend(final RGBPixel other, final Percent otherPercent) throws Exception {
-		r.combine(other.getR(), otherPercent);
-		g.combine(other.getG(), otherPercent);
-		b.combine(other.getB(), otherPercent);
+		CheckUtils.checkRange(otherPercent.get(), 0, 100);
+		set(ColorUtils.blend(getARGB(), other.getARGB(), otherPercent.get()));
+	}
+	
+	/**
+	 * Sets the channels and opacity in place from an argb value.  The
+	 * opacity is only replaced if it changes, opaque and transparent by
+	 * the shared constants.
+	 * @param argb
+	 * @throws Exception
+	 */
+	public void setARGB(final int argb) throws Exception {
+		set(argb);
+		int alpha = (argb >>> 24) & 0xff;
+		if (getOpacity().getInt() != alpha) {
+			if (alpha == 0xff) {
+				setOpacity(Opacity.OPAQUE);
+			}
+			else if (alpha == 0) {
+				setOpacity(Opacity.TRANSPARENT);
+			}
+			else {
+				setOpacity(new Opacity(alpha));
+			}
+		}
+	}
+	
+	/**
+	 * Sets the color channels in place from an argb value.
+	 * @param argb
+	 * @throws Exception
+	 */
+	private void set(final int argb) throws Exception {
+		r.set(ColorUtils.getRed(argb));
+		g.set(ColorUtils.getGreen(argb));
+		b.set(ColorUtils.getBlue(argb));
 	}
 	
 	public int getARGB() {
-		int value = 0;
-		value = Byte.or(value, getOpacity().get());
-		value = value << 8;
-		value = Byte.or(value, r);
-		value = value << 8;
-		value = Byte.or(value, g);
-		value = value << 8;
-		value = Byte.or(value, b);
-		return value;
+		return ColorUtils.getARGB(getOpacity().getInt(), r.getValue(), g.getValue(), b.getValue());
 	}
 	
 	/**
@@ -347,15 +389,7 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 		if (other == null) {
 			return this;
 		}
-		int value = 0;
-		value |= r.average(other.getR()).getValue();
-		value = value << 8;
-		value |= g.average(other.getG()).getValue();
-		value = value << 8;
-		value |= b.average(other.getB()).getValue();
-		
-		
-		return new RGBPixel(true, value);
+		return new RGBPixel(true, ColorUtils.average(getARGB(), other.getARGB()));
 							
 	}
 	
@@ -399,7 +433,7 @@ public class RGBPixel extends Pixel implements Comparable<RGBPixel> {
 
 	@Override
 	public int compareTo(RGBPixel o) {
-		return getLuminance().compareTo(o.getLuminance());
+		return Integer.compare(getLuminanceValue(), o.getLuminanceValue());
 	}
 	
 	public static RGBPixel getRandomOpaque() throws Exception {
@@ -0,0 +1,409 @@
+package kaflib.graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import kaflib.types.Box;
+import kaflib.types.Coordinate;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Labels the connected regions of a canvas.  Two 8-adjacent pixels belong to
+ * the same region if both meet the opacity threshold and their rgb delta
+ * (|dr| + |dg| + |db|) is within the maximum.
+ *
+ * Rather than growing Selections a coordinate at a time, this scans the
+ * raster twice over an int[] label map: the first pass assigns provisional
+ * labels and merges them with union-find, the second resolves final labels
+ * and accumulates per-region size, centroid, bounding box and border counts.
+ * Selections are only built when asked for.
+ */
+public class RegionLabeller {
+
+	private final int width;
+	private final int height;
+	private final int labels[];
+	private final int count;
+	private final int sizes[];
+	private final long x_sums[];
+	private final long y_sums[];
+	private final int x_mins[];
+	private final int x_maxes[];
+	private final int y_mins[];
+	private final int y_maxes[];
+	private final int border_sizes[];
+
+	/**
+	 * Labels regions of opaque-enough pixels regardless of color.
+	 * @param canvas
+	 * @param threshold
+	 * @throws Exception
+	 */
+	public RegionLabeller(final Canvas canvas, final Opacity threshold) throws Exception {
+		this(canvas, threshold, null);
+	}
+
+	/**
+	 * Labels regions of pixels whose neighbors are within maxDelta.
+	 * @param canvas
+	 * @param maxDelta
+	 * @throws Exception
+	 */
+	public RegionLabeller(final Canvas canvas, final int maxDelta) throws Exception {
+		this(canvas, null, maxDelta);
+	}
+
+	/**
+	 * Labels the canvas.
+	 * @param canvas
+	 * @param threshold minimum opacity for a pixel to be labelled, or null
+	 * for all non-null pixels.
+	 * @param maxDelta maximum rgb delta between adjacent pixels in a region,
+	 * or null to ignore color.
+	 * @throws Exception
+	 */
+	public RegionLabeller(final Canvas canvas,
+						  final Opacity threshold,
+						  final Integer maxDelta) throws Exception {
+		CheckUtils.check(canvas, "canvas");
+		width = canvas.getWidth();
+		height = canvas.getHeight();
+		labels = new int[width * height];
+
+		// Pack to argb, flagging excluded pixels.
+		RGBPixel pixels[][] = canvas.get();
+		int argb[] = new int[width * height];
+		boolean included[] = new boolean[width * height];
+		for (int i = 0; i < width; i++) {
+			for (int j = 0; j < height; j++) {
+				RGBPixel pixel = pixels[i][j];
+				if (pixel == null ||
+					(threshold != null && pixel.getOpacity().compareTo(threshold) < 0)) {
+					continue;
+				}
+				argb[j * width + i] = pixel.getARGB();
+				included[j * width + i] = true;
+			}
+		}
+
+		// Pass one: provisional labels, merging with the west, northwest,
+		// north and northeast neighbors.  Roots are always the smallest label.
+		int parents[] = new int[Math.max(16, (width * height) / 8)];
+		int next = 1;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = y * width + x;
+				if (!included[index]) {
+					continue;
+				}
+				int label = 0;
+				label = merge(parents, label, index, x - 1, y, argb, included, maxDelta);
+				label = merge(parents, label, index, x - 1, y - 1, argb, included, maxDelta);
+				label = merge(parents, label, index, x, y - 1, argb, included, maxDelta);
+				label = merge(parents, label, index, x + 1, y - 1, argb, included, maxDelta);
+				if (label == 0) {
+					if (next == parents.length) {
+						parents = Arrays.copyOf(parents, parents.length * 2);
+					}
+					parents[next] = next;
+					label = next;
+					next++;
+				}
+				labels[index] = label;
+			}
+		}
+
+		// Flatten: parents always point to a smaller label, so one ascending
+		// sweep resolves every root and assigns compact region numbers.
+		int regions[] = new int[next];
+		int regionCount = 0;
+		for (int i = 1; i < next; i++) {
+			parents[i] = parents[parents[i]];
+			if (parents[i] == i) {
+				regionCount++;
+				regions[i] = regionCount;
+			}
+			else {
+				regions[i] = regions[parents[i]];
+			}
+		}
+		count = regionCount;
+		sizes = new int[count + 1];
+		x_sums = new long[count + 1];
+		y_sums = new long[count + 1];
+		x_mins = new int[count + 1];
+		x_maxes = new int[count + 1];
+		y_mins = new int[count + 1];
+		y_maxes = new int[count + 1];
+		border_sizes = new int[count + 1];
+		Arrays.fill(x_mins, Integer.MAX_VALUE);
+		Arrays.fill(y_mins, Integer.MAX_VALUE);
+		Arrays.fill(x_maxes, Integer.MIN_VALUE);
+		Arrays.fill(y_maxes, Integer.MIN_VALUE);
+
+		// Pass two: final labels and statistics.  Neighbors ahead of the scan
+		// still hold provisional labels and are mapped on the fly.
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = y * width + x;
+				if (labels[index] == 0) {
+					continue;
+				}
+				int region = regions[labels[index]];
+				labels[index] = region;
+				sizes[region]++;
+				x_sums[region] += x;
+				y_sums[region] += y;
+				x_mins[region] = Math.min(x_mins[region], x);
+				x_maxes[region] = Math.max(x_maxes[region], x);
+				y_mins[region] = Math.min(y_mins[region], y);
+				y_maxes[region] = Math.max(y_maxes[region], y);
+				if (isBorder(x, y, region, regions)) {
+					border_sizes[region]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the pixel at index with its neighbor at x, y if they connect.
+	 * Returns the (possibly new) label for the pixel.
+	 */
+	private int merge(final int parents[],
+					  final int label,
+					  final int index,
+					  final int x,
+					  final int y,
+					  final int argb[],
+					  final boolean included[],
+					  final Integer maxDelta) {
+		if (x < 0 || x >= width || y < 0) {
+			return label;
+		}
+		int neighbor = y * width + x;
+		if (!included[neighbor] ||
+			(maxDelta != null && ColorUtils.getDelta(argb[index], argb[neighbor]) > maxDelta)) {
+			return label;
+		}
+		int root = find(parents, labels[neighbor]);
+		if (label == 0) {
+			return root;
+		}
+		int other = find(parents, label);
+		if (root < other) {
+			parents[other] = root;
+			return root;
+		}
+		else {
+			parents[root] = other;
+			return other;
+		}
+	}
+
+	/**
+	 * Returns the root label, halving the path as it goes.
+	 */
+	private static int find(final int parents[], final int label) {
+		int current = label;
+		while (parents[current] != current) {
+			parents[current] = parents[parents[current]];
+			current = parents[current];
+		}
+		return current;
+	}
+
+	/**
+	 * Returns whether any 8-neighbor of x, y is outside the region.  Unlike
+	 * SelectionCore.isBorder(), pixels on any canvas edge count as border.
+	 * Only valid during pass two.
+	 */
+	private boolean isBorder(final int x, final int y, final int region, final int regions[]) {
+		int index = y * width + x;
+		for (int j = y - 1; j <= y + 1; j++) {
+			for (int i = x - 1; i <= x + 1; i++) {
+				if (i == x && j == y) {
+					continue;
+				}
+				if (i < 0 || i >= width || j < 0 || j >= height) {
+					return true;
+				}
+				int neighbor = j * width + i;
+				int label = labels[neighbor];
+				if (neighbor > index && label != 0) {
+					label = regions[label];
+				}
+				if (label != region) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean isBorder(final int x, final int y, final int region) {
+		for (int j = y - 1; j <= y + 1; j++) {
+			for (int i = x - 1; i <= x + 1; i++) {
+				if (i < 0 || i >= width || j < 0 || j >= height ||
+					labels[j * width + i] != region) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void checkRegion(final int region) throws Exception {
+		CheckUtils.checkRange(region, 1, count, "region");
+	}
+
+	/**
+	 * Returns the number of regions.  Regions are numbered 1 to count.
+	 * @return
+	 */
+	public int getRegionCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the region at x, y, or 0 if the pixel was excluded.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getRegion(final int x, final int y) {
+		return labels[y * width + x];
+	}
+
+	/**
+	 * Returns the row-major label map.  Not a copy.
+	 * @return
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	public int getSize(final int region) throws Exception {
+		checkRegion(region);
+		return sizes[region];
+	}
+
+	public int getBorderSize(final int region) throws Exception {
+		checkRegion(region);
+		return border_sizes[region];
+	}
+
+	public Coordinate getCentroid(final int region) throws Exception {
+		checkRegion(region);
+		return new Coordinate((int) (x_sums[region] / sizes[region]),
+							  (int) (y_sums[region] / sizes[region]));
+	}
+
+	/**
+	 * Returns the region bounding box, or null if the region is a single row
+	 * or column (as with SelectionCore.getBoundingBox()).
+	 * @param region
+	 * @return
+	 * @throws Exception
+	 */
+	public Box getBoundingBox(final int region) throws Exception {
+		checkRegion(region);
+		if (x_mins[region] >= x_maxes[region] || y_mins[region] >= y_maxes[region]) {
+			return null;
+		}
+		return new Box(x_mins[region], x_maxes[region] - x_mins[region],
+					   y_mins[region], y_maxes[region] - y_mins[region]);
+	}
+
+	/**
+	 * Returns the region's coordinates, scanning only its bounding box.
+	 * @param region
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Coordinate> getCoordinates(final int region) throws Exception {
+		checkRegion(region);
+		List<Coordinate> coordinates = new ArrayList<Coordinate>(sizes[region]);
+		for (int y = y_mins[region]; y <= y_maxes[region]; y++) {
+			for (int x = x_mins[region]; x <= x_maxes[region]; x++) {
+				if (labels[y * width + x] == region) {
+					coordinates.add(new Coordinate(x, y));
+				}
+			}
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Returns the region's border coordinates.
+	 * @param region
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Coordinate> getBorder(final int region) throws Exception {
+		checkRegion(region);
+		List<Coordinate> coordinates = new ArrayList<Coordinate>(border_sizes[region]);
+		for (int y = y_mins[region]; y <= y_maxes[region]; y++) {
+			for (int x = x_mins[region]; x <= x_maxes[region]; x++) {
+				if (labels[y * width + x] == region && isBorder(x, y, region)) {
+					coordinates.add(new Coordinate(x, y));
+				}
+			}
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Builds a bit mask selection for the region, scanning only its bounding
+	 * box.
+	 * @param region
+	 * @return
+	 * @throws Exception
+	 */
+	public BitSelection getBitSelection(final int region) throws Exception {
+		checkRegion(region);
+		BitSelection selection = new BitSelection(x_mins[region],
+												  y_mins[region],
+												  x_maxes[region] - x_mins[region] + 1,
+												  y_maxes[region] - y_mins[region] + 1);
+		for (int y = y_mins[region]; y <= y_maxes[region]; y++) {
+			for (int x = x_mins[region]; x <= x_maxes[region]; x++) {
+				if (labels[y * width + x] == region) {
+					selection.add(x, y);
+				}
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Builds a selection for the region.
+	 * @param region
+	 * @return
+	 * @throws Exception
+	 */
+	public Selection getSelection(final int region) throws Exception {
+		return new Selection(getCoordinates(region));
+	}
+
+	/**
+	 * Builds selections for all regions of at least minSize pixels.
+	 * @param minSize
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Selection> getSelections(final int minSize) throws Exception {
+		List<Selection> selections = new ArrayList<Selection>();
+		for (int region = 1; region <= count; region++) {
+			if (sizes[region] >= minSize) {
+				selections.add(getSelection(region));
+			}
+		}
+		return selections;
+	}
+
+	public String toString() {
+		return count + " regions over " + width + "x" + height;
+	}
+
+}
@@ -0,0 +1,17 @@
+package kaflib.graphics;
+
+/**
+ * Defines a source of image rows read once, top to bottom, as packed argb.
+ */
+public interface RowReader extends AutoCloseable {
+	public int getWidth();
+	public int getHeight();
+
+	/**
+	 * Reads the next row into argb starting at offset.
+	 * @param argb
+	 * @param offset
+	 * @throws Exception
+	 */
+	public void readRow(int argb[], int offset) throws Exception;
+}
@@ -7,7 +7,7 @@ import java.util.List;
 import java.util.Set;
 
 import kaflib.types.Coordinate;
-import kaflib.types.IntegerHistogram;
+import kaflib.types.IntHistogram;
 import kaflib.utils.CheckUtils;
 import kaflib.utils.CoordinateUtils;
 import kaflib.utils.StringUtils;
@@ -446,8 +446,22 @@ public class Selection extends SelectionCore {
 		}
 		return list;
 	}
-	
-	public IntegerHistogram getLuminanceHistogram(final Canvas canvas) throws Exception {
+
+	/**
+	 * Returns every connected region of pixels meeting the opacity threshold.
+	 * Regions are labelled over the raster first and only then converted to
+	 * selections, see RegionLabeller.
+	 * @param canvas
+	 * @param threshold
+	 * @return
+	 * @throws Exception
+	 */
+	public static List<Selection> getAllRegions(final Canvas canvas,
+												final Opacity threshold) throws Exception {
+		return new RegionLabeller(canvas, threshold).getSelections(1);
+	}
+
+	public IntHistogram getLuminanceHistogram(final Canvas canvas) throws Exception {
 		return canvas.getLuminanceHistogram(getCoordinates());
 	}
 	
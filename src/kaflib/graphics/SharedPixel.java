@@ -0,0 +1,93 @@
+package kaflib.graphics;
+
+import kaflib.types.Byte;
+import kaflib.types.Percent;
+
+/**
+ * Defines a read-only pixel that may sit in many canvas cells at once.
+ * Mutators throw, and the channel getters return copies so the shared
+ * value can't be changed through them.  Copy with new RGBPixel(pixel) (or
+ * Canvas.getMutable()) to modify.
+ */
+final class SharedPixel extends RGBPixel {
+
+	SharedPixel(final int argb) {
+		super(argb);
+	}
+
+	@Override
+	public boolean isMutable() {
+		return false;
+	}
+
+	@Override
+	public Byte getR() {
+		return new Byte(super.getR());
+	}
+
+	@Override
+	public Byte getG() {
+		return new Byte(super.getG());
+	}
+
+	@Override
+	public Byte getB() {
+		return new Byte(super.getB());
+	}
+
+	@Override
+	public void setR(final Byte r) {
+		throw immutable();
+	}
+
+	@Override
+	public void setG(final Byte g) {
+		throw immutable();
+	}
+
+	@Override
+	public void setB(final Byte b) {
+		throw immutable();
+	}
+
+	@Override
+	public void setOpacity(final Opacity opacity) {
+		throw immutable();
+	}
+
+	@Override
+	public void setARGB(final int argb) {
+		throw immutable();
+	}
+
+	@Override
+	public void addNoise(final Byte max) {
+		throw immutable();
+	}
+
+	@Override
+	public void lighten(final Byte value) {
+		throw immutable();
+	}
+
+	@Override
+	public void darken(final Byte value) {
+		throw immutable();
+	}
+
+	@Override
+	public void blend(final RGBPixel other) {
+		throw immutable();
+	}
+
+	@Override
+	public void blend(final RGBPixel other, final Percent otherPercent) {
+		throw immutable();
+	}
+
+	private UnsupportedOperationException immutable() {
+		return new UnsupportedOperationException("Shared pixel " + ColorValue.valueOf(getARGB()) +
+												 " is read-only, copy it to modify.");
+	}
+
+}
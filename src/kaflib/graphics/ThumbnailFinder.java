@@ -15,7 +15,7 @@ import kaflib.gui.components.KPanel;
 import kaflib.gui.components.StaticImageComponent;
 import kaflib.types.Box;
 import kaflib.types.Coordinate;
-import kaflib.types.IntegerHistogram;
+import kaflib.types.IntHistogram;
 import kaflib.types.Pair;
 import kaflib.types.Percent;
 import kaflib.types.Worker;
@@ -33,6 +33,7 @@ public class ThumbnailFinder extends Worker {
 	private final Canvas canvas;
 	private final int radius;
 	private final Area[][] areas;
+	private ImageMetrics metrics;
 
 	public ThumbnailFinder(final Canvas canvas, final int smallSideSections) throws Exception {
 		this(canvas, getXY(canvas, smallSideSections).getFirst(), getXY(canvas, smallSideSections).getSecond());
@@ -52,6 +53,19 @@ public class ThumbnailFinder extends Worker {
 				areas[i][j] = new Area(coordinate, radius);
 			}
 		}
+		metrics = null;
+	}
+
+	/**
+	 * Returns the luminance metrics gathered while finding areas.
+	 * @return
+	 * @throws Exception
+	 */
+	public ImageMetrics getMetrics() throws Exception {
+		if (!isDone()) {
+			throw new Exception("Area computation not yet complete.");
+		}
+		return metrics;
 	}
 
 	/**
@@ -274,8 +288,10 @@ public class ThumbnailFinder extends Worker {
 			}
 		}
 		
+		// Tiles a few to an area, so sharpness is read from the grid.
+		metrics = new ImageMetrics(canvas, Math.max(8, radius / 2));
 		set.parallelStream()
-				.forEach(w -> w.setInterest(canvas));
+				.forEach(w -> w.setInterest(canvas, metrics));
 		
 		int min = Integer.MAX_VALUE;
 		int max = Integer.MIN_VALUE;
@@ -377,19 +393,28 @@ class Area {
 		return new Coordinate(coordinate.getX() + radius, coordinate.getY() + radius);
 	}
 
-	
-	public void setInterest(final Canvas canvas) {
+	/**
+	 * Sets the absolute interest to sharpness + contrast + midtone.  
+	 * Sharpness is the standard deviation of the luminance Laplacian over
+	 * the area, capped at 0xff and divided by three, so it spans 0-85 as
+	 * the max neighbour delta / 3 it replaced did.  It responds to edge 
+	 * density as well as edge strength, so areas with many soft edges rank
+	 * higher than under the old measure.
+	 * @param canvas
+	 * @param metrics
+	 */
+	public void setInterest(final Canvas canvas, final ImageMetrics metrics) {
 		try {
 			int sharpness;
 			int contrast;
 			int midtone;
 			Selection selection = Selection.getCircle(coordinate, radius);
-			IntegerHistogram histogram = selection.getLuminanceHistogram(canvas);
+			IntHistogram histogram = selection.getLuminanceHistogram(canvas);
 	
-			List<Integer> ranked = histogram.getRanked();
+			List<Integer> ranked = histogram.getTopK(4);
 			if (ranked.size() > 1) {
-				int rankmax = TypeUtils.max(ranked.subList(0, Math.min(ranked.size(), 4)));
-				int rankmin = TypeUtils.min(ranked.subList(0, Math.min(ranked.size(), 4)));
+				int rankmax = TypeUtils.max(ranked);
+				int rankmin = TypeUtils.min(ranked);
 				
 				midtone = 0x7f - Math.abs(rankmax - 0x7f);  // Distance from center tone, so 0-127.
 				contrast = Math.abs(rankmax - rankmin); // Distance from peaks.
@@ -398,7 +423,12 @@ class Area {
 				midtone = 0x7f - Math.abs(histogram.getMostFrequent() - 0x7f);
 				contrast = 0;
 			}
-			sharpness = (selection.getMaxDelta(canvas, 6, true) + selection.getMaxDelta(canvas, 6, false)) / 2;
+			// Standard deviation of the Laplacian, scaled to the old range.
+			double laplacian = metrics.getRegion(coordinate.getX() - radius, 
+												 coordinate.getY() - radius, 
+												 2 * radius + 1, 
+												 2 * radius + 1).getSharpness();
+			sharpness = (int) Math.min(0xff, Math.sqrt(laplacian));
 			sharpness /= 3;
 			
 			interest_absolute = sharpness + contrast + midtone;
@@ -0,0 +1,224 @@
+package kaflib.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import kaflib.types.Box;
+import kaflib.types.Directory;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Applies a transform to a tiled image one tile at a time, streaming the
+ * result out.  The source is decoded once, top to bottom, into a band of
+ * one tile row plus a halo of rows above and below; each tile is cut from
+ * the band with a halo of surrounding pixels, so neighborhood transforms
+ * (filters, feathering) see no seams.  Only the center is kept.  The halo
+ * rows at the bottom of a band carry over to the next, so no source row is
+ * decoded twice.
+ *
+ * Tiles are packed argb rasters.  Transforms that implement PackedTransform
+ * run on them directly; plain CanvasTransforms get an RGBPixel copy of the
+ * tile (plus halo) only.  Writing per-tile files needs the band and one
+ * tile; writing a single png also needs one tile row of packed output,
+ * since png rows span the full width.
+ */
+public class TileProcessor {
+
+	private final TiledImage image;
+	private final PackedTransform transform;
+	private final int halo;
+
+	/**
+	 * Creates the processor.
+	 * @param image
+	 * @param transform
+	 * @param halo pixels of context on each side of a tile, should be at
+	 * least the reach of the transform.
+	 * @throws Exception
+	 */
+	public TileProcessor(final TiledImage image,
+						 final PackedTransform transform,
+						 final int halo) throws Exception {
+		CheckUtils.check(image, "tiled image");
+		CheckUtils.check(transform, "transform");
+		CheckUtils.checkNonNegative(halo, "halo");
+		this.image = image;
+		this.transform = transform;
+		this.halo = halo;
+	}
+
+	/**
+	 * Creates the processor for a canvas transform, using its packed form if
+	 * it has one.
+	 * @param image
+	 * @param transform
+	 * @param halo pixels of context on each side of a tile, should be at
+	 * least the reach of the transform.
+	 * @throws Exception
+	 */
+	public TileProcessor(final TiledImage image,
+						 final CanvasTransform transform,
+						 final int halo) throws Exception {
+		this(image, getPacked(transform), halo);
+	}
+
+	/**
+	 * Processes the image and writes it as a single png, row by row.
+	 * @param output
+	 * @throws Exception
+	 */
+	public void process(final File output) throws Exception {
+		CheckUtils.check(output, "output file");
+		int width = image.getWidth();
+		int band[] = new int[width * Math.min(image.getHeight(), image.getTileHeight())];
+		try (PNGStreamWriter writer = new PNGStreamWriter(output, width, image.getHeight())) {
+			process((bounds, column, row, tile) -> {
+				for (int y = 0; y < bounds.getHeight(); y++) {
+					System.arraycopy(tile, y * bounds.getWidth(), band,
+									 y * width + bounds.getXMin(), bounds.getWidth());
+				}
+				if (column == image.getColumns() - 1) {
+					for (int y = 0; y < bounds.getHeight(); y++) {
+						writer.writeRow(band, y * width);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Processes the image and writes each tile as prefix_column_row.png.
+	 * @param directory
+	 * @param prefix
+	 * @throws Exception
+	 */
+	public void process(final Directory directory, final String prefix) throws Exception {
+		CheckUtils.check(directory, "output directory");
+		CheckUtils.checkNonEmpty(prefix, "prefix");
+		process((bounds, column, row, tile) -> {
+			BufferedImage output = new BufferedImage(bounds.getWidth(), bounds.getHeight(),
+													 BufferedImage.TYPE_INT_ARGB);
+			output.setRGB(0, 0, bounds.getWidth(), bounds.getHeight(), tile, 0, bounds.getWidth());
+			ImageIO.write(output, "png", new File(directory, prefix + "_" + column + "_" + row + ".png"));
+		});
+	}
+
+	/**
+	 * Receives each transformed tile as row-major packed argb, in row-major
+	 * tile order.
+	 */
+	private interface TileConsumer {
+		public void accept(Box bounds, int column, int row, int argb[]) throws Exception;
+	}
+
+	/**
+	 * Decodes the image once, top to bottom, and hands each transformed tile
+	 * to the consumer.
+	 * @param consumer
+	 * @throws Exception
+	 */
+	private void process(final TileConsumer consumer) throws Exception {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int band[] = new int[width * Math.min(height, image.getTileHeight() + 2 * halo)];
+		int band_y = 0;		// Image row of the band's first row.
+		int band_rows = 0;
+		try (RowReader reader = image.getRowReader()) {
+			for (int row = 0; row < image.getRows(); row++) {
+				Box tiles = image.getTileBounds(0, row);
+				int y = Math.max(0, tiles.getYMin() - halo);
+				int y_end = Math.min(height, tiles.getYMin() + tiles.getHeight() + halo);
+
+				// Keep the previous band's bottom halo, decode the rest.
+				int kept = band_y + band_rows - y;
+				System.arraycopy(band, (y - band_y) * width, band, 0, kept * width);
+				band_y = y;
+				band_rows = kept;
+				while (band_rows < y_end - y) {
+					reader.readRow(band, band_rows * width);
+					band_rows++;
+				}
+
+				for (int column = 0; column < image.getColumns(); column++) {
+					Box bounds = image.getTileBounds(column, row);
+					consumer.accept(bounds, column, row, processTile(band, band_y, band_rows, bounds));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cuts the tile and its halo from the band, transforms it and returns
+	 * the center as row-major packed argb.
+	 * @param band
+	 * @param bandY image row of the band's first row.
+	 * @param bandRows
+	 * @param bounds
+	 * @return
+	 * @throws Exception
+	 */
+	private int[] processTile(final int band[],
+							  final int bandY,
+							  final int bandRows,
+							  final Box bounds) throws Exception {
+		int width = image.getWidth();
+		int x = Math.max(0, bounds.getXMin() - halo);
+		int region_width = Math.min(width, bounds.getXMin() + bounds.getWidth() + halo) - x;
+		int region[] = new int[region_width * bandRows];
+		for (int j = 0; j < bandRows; j++) {
+			System.arraycopy(band, j * width + x, region, j * region_width, region_width);
+		}
+		transform.apply(region, region_width, bandRows);
+
+		int output[] = new int[bounds.getWidth() * bounds.getHeight()];
+		int dx = bounds.getXMin() - x;
+		int dy = bounds.getYMin() - bandY;
+		for (int j = 0; j < bounds.getHeight(); j++) {
+			System.arraycopy(region, (dy + j) * region_width + dx, output,
+							 j * bounds.getWidth(), bounds.getWidth());
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the transform itself if it is packed, otherwise a wrapper that
+	 * runs it on an RGBPixel copy of each raster.
+	 * @param transform
+	 * @return
+	 * @throws Exception
+	 */
+	private static PackedTransform getPacked(final CanvasTransform transform) throws Exception {
+		CheckUtils.check(transform, "transform");
+		if (transform instanceof PackedTransform) {
+			return (PackedTransform) transform;
+		}
+		return new PackedTransform() {
+			@Override
+			public void apply(final int argb[], final int width, final int height) throws Exception {
+				RGBPixel pixels[][] = new RGBPixel[width][height];
+				for (int i = 0; i < width; i++) {
+					for (int j = 0; j < height; j++) {
+						pixels[i][j] = new RGBPixel(argb[j * width + i]);
+					}
+				}
+				transform.apply(pixels);
+				for (int i = 0; i < width; i++) {
+					for (int j = 0; j < height; j++) {
+						argb[j * width + i] = pixels[i][j] == null ? 0 : pixels[i][j].getARGB();
+					}
+				}
+			}
+
+			public String toString() {
+				return transform.toString();
+			}
+		};
+	}
+
+	public String toString() {
+		return transform + " over " + image + " (halo " + halo + ")";
+	}
+
+}
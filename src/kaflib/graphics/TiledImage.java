@@ -0,0 +1,314 @@
+package kaflib.graphics;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import kaflib.types.Box;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines an image file read in tiles on demand, for images too large to
+ * load as a Canvas.  Only the header is read up front; regions are decoded
+ * through ImageIO source-region reads, and decoded tiles (packed argb) are
+ * kept in a bounded LRU cache.  That suits random access only: ImageIO's
+ * png and jpeg readers decode from the top of the file on every read, so
+ * passes over the whole image should use getRowReader() instead.
+ *
+ * Eviction is synchronous, unlike MRUCache, so the cache never holds more
+ * than its limit.  Reads are serialized since ImageReader is not thread
+ * safe.
+ */
+public class TiledImage implements AutoCloseable {
+
+	private final File file;
+	private final ImageInputStream stream;
+	private final ImageReader reader;
+	private final int width;
+	private final int height;
+	private final int tile_width;
+	private final int tile_height;
+	private final Map<Integer, int[]> cache;
+
+	/**
+	 * Opens the image.
+	 * @param file
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param cacheTiles maximum number of decoded tiles to keep.
+	 * @throws Exception
+	 */
+	public TiledImage(final File file,
+					  final int tileWidth,
+					  final int tileHeight,
+					  final int cacheTiles) throws Exception {
+		CheckUtils.checkReadable(file, "image file");
+		CheckUtils.checkPositive(tileWidth, "tile width");
+		CheckUtils.checkPositive(tileHeight, "tile height");
+		CheckUtils.checkNonNegative(cacheTiles, "cache size");
+		this.file = file;
+		this.tile_width = tileWidth;
+		this.tile_height = tileHeight;
+
+		stream = ImageIO.createImageInputStream(file);
+		if (stream == null) {
+			throw new Exception("Unable to open " + file + ".");
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			stream.close();
+			throw new Exception("No image reader for " + file + ".");
+		}
+		reader = readers.next();
+		reader.setInput(stream, true, true);
+		width = reader.getWidth(0);
+		height = reader.getHeight(0);
+
+		cache = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Integer, int[]> eldest) {
+				return size() > cacheTiles;
+			}
+		};
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileWidth() {
+		return tile_width;
+	}
+
+	public int getTileHeight() {
+		return tile_height;
+	}
+
+	/**
+	 * Returns the number of tile columns.
+	 * @return
+	 */
+	public int getColumns() {
+		return (width + tile_width - 1) / tile_width;
+	}
+
+	/**
+	 * Returns the number of tile rows.
+	 * @return
+	 */
+	public int getRows() {
+		return (height + tile_height - 1) / tile_height;
+	}
+
+	/**
+	 * Returns the bounds of the tile, clipped to the image.
+	 * @param column
+	 * @param row
+	 * @return
+	 * @throws Exception
+	 */
+	public Box getTileBounds(final int column, final int row) throws Exception {
+		CheckUtils.checkRange(column, 0, getColumns() - 1, "column");
+		CheckUtils.checkRange(row, 0, getRows() - 1, "row");
+		int x = column * tile_width;
+		int y = row * tile_height;
+		return new Box(x, Math.min(tile_width, width - x), y, Math.min(tile_height, height - y));
+	}
+
+	/**
+	 * Decodes the region.  Bypasses the cache.
+	 * @param x
+	 * @param y
+	 * @param regionWidth
+	 * @param regionHeight
+	 * @return
+	 * @throws Exception
+	 */
+	public BufferedImage read(final int x,
+							  final int y,
+							  final int regionWidth,
+							  final int regionHeight) throws Exception {
+		if (x < 0 || y < 0 || regionWidth <= 0 || regionHeight <= 0 ||
+			x + regionWidth > width || y + regionHeight > height) {
+			throw new Exception("Region " + x + "," + y + " " + regionWidth + "x" +
+								regionHeight + " exceeds " + width + "x" + height + ".");
+		}
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(x, y, regionWidth, regionHeight));
+		synchronized (reader) {
+			return reader.read(0, param);
+		}
+	}
+
+	/**
+	 * Returns the tile as row-major packed argb, decoding it if not cached.
+	 * Edge tiles are clipped to the image.  Not a copy.
+	 * @param column
+	 * @param row
+	 * @return
+	 * @throws Exception
+	 */
+	public int[] getTile(final int column, final int row) throws Exception {
+		Box bounds = getTileBounds(column, row);
+		int key = row * getColumns() + column;
+		synchronized (cache) {
+			int tile[] = cache.get(key);
+			if (tile != null) {
+				return tile;
+			}
+		}
+		BufferedImage image = read(bounds.getXMin(), bounds.getYMin(), bounds.getWidth(), bounds.getHeight());
+		int tile[] = image.getRGB(0, 0, bounds.getWidth(), bounds.getHeight(), null, 0, bounds.getWidth());
+		synchronized (cache) {
+			cache.put(key, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Returns the region as row-major packed argb, assembled from cached
+	 * tiles (decoding any that are missing).
+	 * @param x
+	 * @param y
+	 * @param regionWidth
+	 * @param regionHeight
+	 * @return
+	 * @throws Exception
+	 */
+	public int[] getRegion(final int x,
+						   final int y,
+						   final int regionWidth,
+						   final int regionHeight) throws Exception {
+		if (x < 0 || y < 0 || regionWidth <= 0 || regionHeight <= 0 ||
+			x + regionWidth > width || y + regionHeight > height) {
+			throw new Exception("Region " + x + "," + y + " " + regionWidth + "x" +
+								regionHeight + " exceeds " + width + "x" + height + ".");
+		}
+		int region[] = new int[regionWidth * regionHeight];
+		int x_end = x + regionWidth;
+		int y_end = y + regionHeight;
+		for (int row = y / tile_height; row * tile_height < y_end; row++) {
+			for (int column = x / tile_width; column * tile_width < x_end; column++) {
+				int tile[] = getTile(column, row);
+				int tile_x = column * tile_width;
+				int tile_y = row * tile_height;
+				int columns = Math.min(tile_width, width - tile_x);
+				int from_x = Math.max(x, tile_x);
+				int to_x = Math.min(x_end, tile_x + columns);
+				int from_y = Math.max(y, tile_y);
+				int to_y = Math.min(y_end, tile_y + tile_height);
+				for (int j = from_y; j < to_y; j++) {
+					System.arraycopy(tile, (j - tile_y) * columns + from_x - tile_x,
+									 region, (j - y) * regionWidth + from_x - x,
+									 to_x - from_x);
+				}
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Returns the tile and a surrounding halo (clipped to the image) as a
+	 * canvas.  The tile starts at (min(halo, x), min(halo, y)) within it.
+	 * @param column
+	 * @param row
+	 * @param halo
+	 * @return
+	 * @throws Exception
+	 */
+	public Canvas getCanvas(final int column, final int row, final int halo) throws Exception {
+		CheckUtils.checkNonNegative(halo, "halo");
+		Box bounds = getTileBounds(column, row);
+		int x = Math.max(0, bounds.getXMin() - halo);
+		int y = Math.max(0, bounds.getYMin() - halo);
+		int x_end = Math.min(width, bounds.getXMin() + bounds.getWidth() + halo);
+		int y_end = Math.min(height, bounds.getYMin() + bounds.getHeight() + halo);
+		return new Canvas(read(x, y, x_end - x, y_end - y));
+	}
+
+	/**
+	 * Returns a reader that decodes the image once, top to bottom, one row
+	 * at a time.  Non-interlaced pngs stream through PNGStreamReader and
+	 * hold a row at a time.  Other formats have no row decoder here, so
+	 * they are decoded whole, once, and handed out by row.  Bypasses the
+	 * cache; close the reader when done.
+	 * @return
+	 * @throws Exception
+	 */
+	public RowReader getRowReader() throws Exception {
+		if (reader.getFormatName().equalsIgnoreCase("png")) {
+			PNGStreamReader png = new PNGStreamReader(file);
+			if (!png.isInterlaced()) {
+				return png;
+			}
+			png.close();
+		}
+
+		BufferedImage image;
+		synchronized (reader) {
+			image = reader.read(0);
+		}
+		return new RowReader() {
+			private int rows = 0;
+
+			public int getWidth() {
+				return width;
+			}
+
+			public int getHeight() {
+				return height;
+			}
+
+			public void readRow(final int argb[], final int offset) throws Exception {
+				if (rows >= height) {
+					throw new Exception("All " + height + " rows already read.");
+				}
+				image.getRGB(0, rows++, width, 1, argb, offset, width);
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Drops all cached tiles.
+	 */
+	public void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		clearCache();
+		reader.dispose();
+		stream.close();
+	}
+
+	public String toString() {
+		return file.getName() + " " + width + "x" + height + " in " +
+			   getColumns() + "x" + getRows() + " tiles";
+	}
+
+}
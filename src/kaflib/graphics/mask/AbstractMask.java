@@ -0,0 +1,143 @@
+package kaflib.graphics.mask;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import kaflib.graphics.Canvas;
+import kaflib.utils.CheckUtils;
+import kaflib.utils.TypeUtils;
+
+/**
+ * Defines the processing shared by masks: the canvas is split into chunks of
+ * rows that are computed in parallel, each writing its own slice of the
+ * subclass's storage.
+ */
+public abstract class AbstractMask {
+
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final int width;
+	private final int height;
+	private volatile boolean processed;
+
+	protected AbstractMask(final int width, final int height) throws Exception {
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		this.width = width;
+		this.height = height;
+		processed = false;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isProcessed() {
+		return processed;
+	}
+
+	/**
+	 * Marks the mask as computed, for masks built directly from values.
+	 */
+	protected void setProcessed() {
+		processed = true;
+	}
+
+	/**
+	 * Computes the mask over the canvas, blocking until done.  Does nothing
+	 * if already processed.
+	 * @param canvas
+	 * @throws Exception
+	 */
+	public synchronized void process(final Canvas canvas) throws Exception {
+		if (processed) {
+			return;
+		}
+		CheckUtils.check(canvas, "canvas");
+		if (canvas.getWidth() != width || canvas.getHeight() != height) {
+			throw new Exception("Mask " + width + "x" + height + " does not match canvas " +
+								canvas.getWidth() + "x" + canvas.getHeight() + ".");
+		}
+
+		int chunks = Math.min(height,
+							  Runtime.getRuntime().availableProcessors() * CHUNKS_PER_THREAD);
+		int rows = (height + chunks - 1) / chunks;
+		try {
+			IntStream.range(0, chunks).parallel().forEach(chunk -> {
+				int start = chunk * rows;
+				int end = Math.min(height, start + rows);
+				if (start >= end) {
+					return;
+				}
+				try {
+					computeRows(canvas, start, end);
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (CompletionException e) {
+			throw TypeUtils.getCause(e);
+		}
+		processed = true;
+	}
+
+	/**
+	 * Computes the mask on the common pool.  The future completes
+	 * exceptionally if the computation fails.
+	 * @param canvas
+	 * @return
+	 */
+	public CompletableFuture<Void> processAsync(final Canvas canvas) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				process(canvas);
+			}
+			catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	/**
+	 * Computes and stores the values for rows [start, end).  Called
+	 * concurrently for disjoint row ranges.
+	 * @param canvas
+	 * @param start
+	 * @param end
+	 * @throws Exception
+	 */
+	protected abstract void computeRows(final Canvas canvas,
+										final int start,
+										final int end) throws Exception;
+
+	/**
+	 * Returns a raster representation of the mask.
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract Canvas toRaster() throws Exception;
+
+	protected void checkProcessed() throws Exception {
+		if (!processed) {
+			throw new Exception("Mask has not been processed.");
+		}
+	}
+
+	protected void checkSize(final AbstractMask other) throws Exception {
+		CheckUtils.check(other, "mask");
+		checkProcessed();
+		other.checkProcessed();
+		if (other.getWidth() != width || other.getHeight() != height) {
+			throw new Exception("Mismatched mask sizes: " + width + "x" + height + " / " +
+								other.getWidth() + "x" + other.getHeight() + ".");
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package kaflib.graphics.mask;
+
+import kaflib.graphics.Canvas;
+import kaflib.graphics.RGBPixel;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a boolean mask over a flat row-major array.  Masks of the same
+ * size can be combined without per-pixel objects.
+ */
+public class BooleanMask extends AbstractMask {
+
+	/**
+	 * Defines the per-pixel computation.
+	 */
+	public interface Function {
+		public boolean compute(final Canvas canvas, final int x, final int y) throws Exception;
+	}
+
+	private final boolean values[];
+	private final Function function;
+
+	/**
+	 * Creates an unprocessed mask computed by the function.
+	 * @param width
+	 * @param height
+	 * @param function
+	 * @throws Exception
+	 */
+	public BooleanMask(final int width, final int height, final Function function) throws Exception {
+		super(width, height);
+		CheckUtils.check(function, "function");
+		this.values = new boolean[width * height];
+		this.function = function;
+	}
+
+	/**
+	 * Creates a processed mask from row-major values.  Does not copy.
+	 * @param width
+	 * @param height
+	 * @param values
+	 * @throws Exception
+	 */
+	public BooleanMask(final int width, final int height, final boolean values[]) throws Exception {
+		super(width, height);
+		if (values.length != width * height) {
+			throw new Exception("Expected " + (width * height) + " values, got " + values.length + ".");
+		}
+		this.values = values;
+		this.function = null;
+		setProcessed();
+	}
+
+	/**
+	 * Creates an unprocessed mask for subclasses that override compute().
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	protected BooleanMask(final int width, final int height) throws Exception {
+		super(width, height);
+		this.values = new boolean[width * height];
+		this.function = null;
+	}
+
+	/**
+	 * Computation for the pixel at x, y.
+	 * @param canvas
+	 * @param x
+	 * @param y
+	 * @return
+	 * @throws Exception
+	 */
+	protected boolean compute(final Canvas canvas, final int x, final int y) throws Exception {
+		return function.compute(canvas, x, y);
+	}
+
+	@Override
+	protected void computeRows(final Canvas canvas, final int start, final int end) throws Exception {
+		for (int y = start; y < end; y++) {
+			int row = y * getWidth();
+			for (int x = 0; x < getWidth(); x++) {
+				values[row + x] = compute(canvas, x, y);
+			}
+		}
+	}
+
+	public boolean get(final int x, final int y) {
+		return values[y * getWidth() + x];
+	}
+
+	/**
+	 * Returns the row-major values.  Not a copy.
+	 * @return
+	 */
+	public boolean[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the number of set values.
+	 * @return
+	 */
+	public int count() {
+		int count = 0;
+		for (boolean value : values) {
+			if (value) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a new mask set where both masks are set.
+	 * @param other
+	 * @return
+	 * @throws Exception
+	 */
+	public BooleanMask and(final BooleanMask other) throws Exception {
+		checkSize(other);
+		boolean result[] = new boolean[values.length];
+		boolean others[] = other.getValues();
+		for (int i = 0; i < values.length; i++) {
+			result[i] = values[i] && others[i];
+		}
+		return new BooleanMask(getWidth(), getHeight(), result);
+	}
+
+	/**
+	 * Returns a new mask set where either mask is set.
+	 * @param other
+	 * @return
+	 * @throws Exception
+	 */
+	public BooleanMask or(final BooleanMask other) throws Exception {
+		checkSize(other);
+		boolean result[] = new boolean[values.length];
+		boolean others[] = other.getValues();
+		for (int i = 0; i < values.length; i++) {
+			result[i] = values[i] || others[i];
+		}
+		return new BooleanMask(getWidth(), getHeight(), result);
+	}
+
+	/**
+	 * Returns the inverse of this mask.
+	 * @return
+	 * @throws Exception
+	 */
+	public BooleanMask not() throws Exception {
+		checkProcessed();
+		boolean result[] = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = !values[i];
+		}
+		return new BooleanMask(getWidth(), getHeight(), result);
+	}
+
+	/**
+	 * Returns white where set, black elsewhere.
+	 */
+	@Override
+	public Canvas toRaster() throws Exception {
+		Canvas canvas = new Canvas(getWidth(), getHeight());
+		RGBPixel pixels[][] = canvas.get();
+		for (int x = 0; x < getWidth(); x++) {
+			for (int y = 0; y < getHeight(); y++) {
+				pixels[x][y] = new RGBPixel(get(x, y) ? RGBPixel.OPAQUE_WHITE : RGBPixel.OPAQUE_BLACK);
+			}
+		}
+		return canvas;
+	}
+
+	public String toString() {
+		return getWidth() + "x" + getHeight() + " boolean mask, " + count() + " set";
+	}
+
+}
@@ -0,0 +1,166 @@
+package kaflib.graphics.mask;
+
+import kaflib.graphics.Canvas;
+import kaflib.graphics.RGBPixel;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a float mask over a flat row-major array, e.g. per-pixel weights.
+ */
+public class FloatMask extends AbstractMask {
+
+	/**
+	 * Defines the per-pixel computation.
+	 */
+	public interface Function {
+		public float compute(final Canvas canvas, final int x, final int y) throws Exception;
+	}
+
+	private final float values[];
+	private final Function function;
+
+	/**
+	 * Creates an unprocessed mask computed by the function.
+	 * @param width
+	 * @param height
+	 * @param function
+	 * @throws Exception
+	 */
+	public FloatMask(final int width, final int height, final Function function) throws Exception {
+		super(width, height);
+		CheckUtils.check(function, "function");
+		this.values = new float[width * height];
+		this.function = function;
+	}
+
+	/**
+	 * Creates a processed mask from row-major values.  Does not copy.
+	 * @param width
+	 * @param height
+	 * @param values
+	 * @throws Exception
+	 */
+	public FloatMask(final int width, final int height, final float values[]) throws Exception {
+		super(width, height);
+		if (values.length != width * height) {
+			throw new Exception("Expected " + (width * height) + " values, got " + values.length + ".");
+		}
+		this.values = values;
+		this.function = null;
+		setProcessed();
+	}
+
+	/**
+	 * Creates an unprocessed mask for subclasses that override compute().
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	protected FloatMask(final int width, final int height) throws Exception {
+		super(width, height);
+		this.values = new float[width * height];
+		this.function = null;
+	}
+
+	/**
+	 * Computation for the pixel at x, y.
+	 * @param canvas
+	 * @param x
+	 * @param y
+	 * @return
+	 * @throws Exception
+	 */
+	protected float compute(final Canvas canvas, final int x, final int y) throws Exception {
+		return function.compute(canvas, x, y);
+	}
+
+	@Override
+	protected void computeRows(final Canvas canvas, final int start, final int end) throws Exception {
+		for (int y = start; y < end; y++) {
+			int row = y * getWidth();
+			for (int x = 0; x < getWidth(); x++) {
+				values[row + x] = compute(canvas, x, y);
+			}
+		}
+	}
+
+	public float get(final int x, final int y) {
+		return values[y * getWidth() + x];
+	}
+
+	/**
+	 * Returns the row-major values.  Not a copy.
+	 * @return
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+	public float getMin() {
+		float min = Float.POSITIVE_INFINITY;
+		for (float value : values) {
+			min = Math.min(min, value);
+		}
+		return min;
+	}
+
+	public float getMax() {
+		float max = Float.NEGATIVE_INFINITY;
+		for (float value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns a mask set where the value is at least min.
+	 * @param min
+	 * @return
+	 * @throws Exception
+	 */
+	public BooleanMask threshold(final float min) throws Exception {
+		return threshold(min, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns a mask set where the value is within [min, max].
+	 * @param min
+	 * @param max
+	 * @return
+	 * @throws Exception
+	 */
+	public BooleanMask threshold(final float min, final float max) throws Exception {
+		checkProcessed();
+		boolean result[] = new boolean[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = values[i] >= min && values[i] <= max;
+		}
+		return new BooleanMask(getWidth(), getHeight(), result);
+	}
+
+	/**
+	 * Returns grayscale, scaled from the min (black) to max (white) value.
+	 */
+	@Override
+	public Canvas toRaster() throws Exception {
+		float min = getMin();
+		float range = getMax() - min;
+		if (range <= 0) {
+			range = 1;
+		}
+		Canvas canvas = new Canvas(getWidth(), getHeight());
+		RGBPixel pixels[][] = canvas.get();
+		for (int x = 0; x < getWidth(); x++) {
+			for (int y = 0; y < getHeight(); y++) {
+				int value = (int) (((get(x, y) - min) * 255) / range);
+				pixels[x][y] = new RGBPixel(0xff000000 | (value << 16) | (value << 8) | value);
+			}
+		}
+		return canvas;
+	}
+
+	public String toString() {
+		return getWidth() + "x" + getHeight() + " float mask";
+	}
+
+}
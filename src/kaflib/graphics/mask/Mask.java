@@ -3,48 +3,55 @@ package kaflib.graphics.mask;
 import java.lang.reflect.Array;
 
 import kaflib.graphics.Canvas;
-import kaflib.types.Worker;
 
 /**
  * Defines an grid of values that can be applied to a Canvas in user-defined
  * ways.  Grid type is defined in the subclass, e.g. boolean for a thing that
  * might be applied to specific pixels, integer to modify them, etc.
+ *
+ * For primitive values prefer BooleanMask, IntMask or FloatMask, which
+ * avoid boxing.
  * @param <T>
  */
-public abstract class Mask<T> {
+public abstract class Mask<T> extends AbstractMask {
 
 	protected T mask[][];
-	private boolean processed;
-	
+
 	@SuppressWarnings("unchecked")
-	protected Mask(Class<? extends T> cls, final int width, final int height) {
+	protected Mask(Class<? extends T> cls, final int width, final int height) throws Exception {
+		super(width, height);
 		mask = (T[][]) Array.newInstance(cls, width, height);
-		processed = false;
 	}
-	
-	public synchronized void processSerial(final Canvas canvas) throws Exception {
-		if (processed == true) {
-			return;
-		}
-		canvas.getCoordinates().parallelStream()
-					.forEach(c -> compute(canvas, c.getX(), c.getY()));
-		
-		processed = true;
+
+	/**
+	 * Computes and stores the mask.  Despite the name, rows are computed in
+	 * parallel; this blocks until done.
+	 * @param canvas
+	 * @throws Exception
+	 */
+	public void processSerial(final Canvas canvas) throws Exception {
+		process(canvas);
 	}
-	
-	public void processAsync(final Canvas canvas) throws Exception {
-		if (processed == true) {
-			return;
-		}
-		Worker worker = new Worker() {
-			@Override
-			protected void process() throws Exception {
-				processSerial(canvas);
+
+	@Override
+	protected void computeRows(final Canvas canvas, final int start, final int end) {
+		for (int x = 0; x < getWidth(); x++) {
+			for (int y = start; y < end; y++) {
+				mask[x][y] = compute(canvas, x, y);
 			}
-		};
-		worker.start();
+		}
+	}
+
+	/**
+	 * Returns the value at x, y.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public T get(final int x, final int y) {
+		return mask[x][y];
 	}
-	
+
 	/**
 	 * Subclass-defined computation for pixel at x, y.
 	 * @param x
@@ -52,11 +59,11 @@ public abstract class Mask<T> {
 	 * @return
 	 */
 	protected abstract T compute(final Canvas canvas, final int x, final int y);
-	
+
 	/**
 	 * Returns a raster representation of the mask.
 	 * @return
 	 */
 	protected abstract Canvas toRaster();
-	
+
 }
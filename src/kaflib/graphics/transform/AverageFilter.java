@@ -1,50 +1,123 @@
-//package kaflib.graphics.transform;
-//
-//
-//import java.util.List;
-//
-//import kaflib.graphics.Canvas;
-//import kaflib.graphics.RGBPixel;
-//import kaflib.graphics.Selection;
-//import kaflib.graphics.IndependentTransform;
-//import kaflib.types.Coordinate;
-//import kaflib.utils.CheckUtils;
-//
-//public class AverageFilter extends IndependentTransform {
-//	public static final int DELTA_VERY_LOW = 20;
-//	public static final int DELTA_LOW = 45;
-//	public static final int DELTA_MED = 80;
-//	public static final int DELTA_HIGH = 120;
-//	public static final int DELTA_VERY_HIGH = 150;
-//	private final int size;
-//	private final Integer delta;
-//	
-//	public AverageFilter(final Canvas input,
-//		  	 final int size) throws Exception {
-//		this(input, size, null);
-//	}
-//	
-//	public AverageFilter(final Canvas input,
-//					  	 final int size,
-//					  	 final Integer delta) throws Exception {
-//		super(input);
-//		CheckUtils.checkPositive(size, "size");
-//		this.size = size;
-//		this.delta = delta;
-//	}
-//
-//	@Override
-//	protected void visit(Coordinate coordinate) throws Exception {
-//		Selection selection = Selection.getStar(coordinate, size);
-//		RGBPixel value;
-//		if (delta != null && delta > 0) {
-//			List<RGBPixel> pixels = selection.getWithin(getInput(), getInput().get(coordinate), delta);
-//			value = RGBPixel.getAverage(pixels);
-//		}
-//		else {
-//			value = selection.getAverage(getInput());
-//		}
-//		getOutput().set(coordinate, value);
-//	}
-//
-//}
+package kaflib.graphics.transform;
+
+import java.util.stream.IntStream;
+
+import kaflib.graphics.Canvas;
+import kaflib.graphics.CanvasTransform;
+import kaflib.graphics.Filter;
+import kaflib.graphics.RGBPixel;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a filter that replaces each pixel with the average of the
+ * non-transparent (non-zero opacity) pixels in the star around it, the same
+ * window as Selection.getStar() and the same averaging as
+ * RGBPixel.getAverage().
+ * With a delta, only pixels within delta of the center contribute, which
+ * smooths regions while keeping edges.  Pixels with nothing to average
+ * are left unchanged.
+ *
+ * The star (a diamond plus a 3/4 box) isn't separable, so the taps are
+ * walked per pixel over channel planes; cost grows with the window area.
+ */
+public class AverageFilter extends Filter implements CanvasTransform {
+	public static final int DELTA_VERY_LOW = 20;
+	public static final int DELTA_LOW = 45;
+	public static final int DELTA_MED = 80;
+	public static final int DELTA_HIGH = 120;
+	public static final int DELTA_VERY_HIGH = 150;
+	private final Integer delta;
+	private final Kernel star;
+
+	public AverageFilter(final int size) throws Exception {
+		this(size, null);
+	}
+
+	public AverageFilter(final int size,
+						 final Integer delta) throws Exception {
+		CheckUtils.checkPositive(size, "size");
+		this.delta = delta;
+		this.star = Kernel.getStar(size);
+	}
+
+	@Override
+	public void apply(final RGBPixel pixels[][]) throws Exception {
+		ChannelPlanes planes = new ChannelPlanes(pixels);
+		getAverage(planes).toPixels(pixels);
+	}
+
+	/**
+	 * Averages, per pixel, the in-bounds, non-transparent star pixels, and
+	 * with a delta only those whose rgb delta from the center is less than
+	 * it.
+	 * @param input
+	 * @return
+	 * @throws Exception
+	 */
+	private ChannelPlanes getAverage(final ChannelPlanes input) throws Exception {
+		int width = input.getWidth();
+		int height = input.getHeight();
+		int a[] = input.getPlane(ChannelPlanes.ALPHA);
+		int r[] = input.getPlane(ChannelPlanes.RED);
+		int g[] = input.getPlane(ChannelPlanes.GREEN);
+		int b[] = input.getPlane(ChannelPlanes.BLUE);
+		ChannelPlanes output = new ChannelPlanes(input);
+		int out_a[] = output.getPlane(ChannelPlanes.ALPHA);
+		int out_r[] = output.getPlane(ChannelPlanes.RED);
+		int out_g[] = output.getPlane(ChannelPlanes.GREEN);
+		int out_b[] = output.getPlane(ChannelPlanes.BLUE);
+		int offsets_x[] = star.getOffsetsX();
+		int offsets_y[] = star.getOffsetsY();
+		int threshold = (delta == null || delta <= 0) ? Integer.MAX_VALUE : delta;
+
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				int center = y * width + x;
+				int count = 0;
+				int sum_a = 0;
+				int sum_r = 0;
+				int sum_g = 0;
+				int sum_b = 0;
+				for (int tap = 0; tap < offsets_x.length; tap++) {
+					int i = x + offsets_x[tap];
+					int j = y + offsets_y[tap];
+					if (i < 0 || i >= width || j < 0 || j >= height) {
+						continue;
+					}
+					int index = j * width + i;
+					if (a[index] == 0 ||
+						Math.abs(r[index] - r[center]) +
+						Math.abs(g[index] - g[center]) +
+						Math.abs(b[index] - b[center]) >= threshold) {
+						continue;
+					}
+					count++;
+					sum_a += a[index];
+					sum_r += r[index];
+					sum_g += g[index];
+					sum_b += b[index];
+				}
+				if (count > 0) {
+					out_a[center] = sum_a / count;
+					out_r[center] = sum_r / count;
+					out_g[center] = sum_g / count;
+					out_b[center] = sum_b / count;
+				}
+			}
+		});
+		return output;
+	}
+
+	@Override
+	public void applyInPlace(final Canvas canvas) throws Exception {
+		canvas.applyTransform(this);
+	}
+
+	@Override
+	public Canvas apply(final Canvas canvas) throws Exception {
+		Canvas output = new Canvas(canvas);
+		applyInPlace(output);
+		return output;
+	}
+
+}
@@ -0,0 +1,229 @@
+package kaflib.graphics.transform;
+
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import kaflib.graphics.Canvas;
+import kaflib.graphics.RGBPixel;
+import kaflib.utils.CheckUtils;
+import kaflib.utils.TypeUtils;
+
+/**
+ * Defines an unpacked copy of a pixel array as four row-major int planes
+ * (alpha, red, green, blue), so neighborhood operations can run over
+ * primitive arrays instead of RGBPixel objects.  Null pixels unpack as
+ * transparent black, as with Canvas.get().
+ */
+public class ChannelPlanes {
+
+	public static final int ALPHA = 0;
+	public static final int RED = 1;
+	public static final int GREEN = 2;
+	public static final int BLUE = 3;
+	public static final int CHANNELS = 4;
+
+	private final int width;
+	private final int height;
+	private final int planes[][];
+
+	/**
+	 * Creates zeroed (transparent black) planes.
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public ChannelPlanes(final int width, final int height) throws Exception {
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		this.width = width;
+		this.height = height;
+		planes = new int[CHANNELS][width * height];
+	}
+
+	/**
+	 * Unpacks the canvas.
+	 * @param canvas
+	 * @throws Exception
+	 */
+	public ChannelPlanes(final Canvas canvas) throws Exception {
+		this(canvas.get());
+	}
+
+	/**
+	 * Unpacks the column-major pixel array.
+	 * @param pixels
+	 * @throws Exception
+	 */
+	public ChannelPlanes(final RGBPixel pixels[][]) throws Exception {
+		this(pixels.length, pixels[0].length);
+		IntStream.range(0, width).parallel().forEach(x -> {
+			RGBPixel column[] = pixels[x];
+			for (int y = 0; y < height; y++) {
+				if (column[y] != null) {
+					set(x, y, column[y].getARGB());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Unpacks the row-major packed argb raster.
+	 * @param argb
+	 * @param width
+	 * @param height
+	 * @throws Exception
+	 */
+	public ChannelPlanes(final int argb[], final int width, final int height) throws Exception {
+		this(width, height);
+		if (argb.length != width * height) {
+			throw new Exception("Raster size " + argb.length + " does not match " +
+								width + "x" + height + ".");
+		}
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				set(x, y, argb[y * width + x]);
+			}
+		});
+	}
+
+	/**
+	 * Copy constructor.
+	 * @param other
+	 * @throws Exception
+	 */
+	public ChannelPlanes(final ChannelPlanes other) throws Exception {
+		this(other.getWidth(), other.getHeight());
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			System.arraycopy(other.getPlane(channel), 0, planes[channel], 0, width * height);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the row-major plane for the channel.  Not a copy.
+	 * @param channel
+	 * @return
+	 */
+	public int[] getPlane(final int channel) {
+		return planes[channel];
+	}
+
+	/**
+	 * Returns the packed argb value at x, y, clamping each channel to a byte.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public int getARGB(final int x, final int y) {
+		int index = y * width + x;
+		return (clamp(planes[ALPHA][index]) << 24) |
+			   (clamp(planes[RED][index]) << 16) |
+			   (clamp(planes[GREEN][index]) << 8) |
+			   clamp(planes[BLUE][index]);
+	}
+
+	/**
+	 * Sets the channels at x, y from a packed argb value.
+	 * @param x
+	 * @param y
+	 * @param argb
+	 */
+	public void set(final int x, final int y, final int argb) {
+		int index = y * width + x;
+		planes[ALPHA][index] = (argb >>> 24) & 0xff;
+		planes[RED][index] = (argb >> 16) & 0xff;
+		planes[GREEN][index] = (argb >> 8) & 0xff;
+		planes[BLUE][index] = argb & 0xff;
+	}
+
+	/**
+	 * Packs the planes back into the column-major pixel array.
+	 * @param pixels
+	 * @throws Exception
+	 */
+	public void toPixels(final RGBPixel pixels[][]) throws Exception {
+		if (pixels.length != width || pixels[0].length != height) {
+			throw new Exception("Mismatched sizes: " + pixels.length + "x" +
+								pixels[0].length + " / " + width + "x" + height + ".");
+		}
+		IntStream.range(0, width).parallel().forEach(x -> {
+			RGBPixel column[] = pixels[x];
+			for (int y = 0; y < height; y++) {
+				column[y] = new RGBPixel(getARGB(x, y));
+			}
+		});
+	}
+
+	/**
+	 * Writes the planes back into the canvas's pixels in place.  Only
+	 * shared or empty cells get a new pixel (through Canvas.getMutable()),
+	 * so a pass over a canvas of its own pixels allocates nothing.
+	 * @param canvas
+	 * @throws Exception
+	 */
+	public void toPixels(final Canvas canvas) throws Exception {
+		if (canvas.getWidth() != width || canvas.getHeight() != height) {
+			throw new Exception("Mismatched sizes: " + canvas.getWidth() + "x" +
+								canvas.getHeight() + " / " + width + "x" + height + ".");
+		}
+		try {
+			IntStream.range(0, width).parallel().forEach(x -> {
+				try {
+					for (int y = 0; y < height; y++) {
+						canvas.getMutable(x, y).setARGB(getARGB(x, y));
+					}
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (CompletionException e) {
+			throw TypeUtils.getCause(e);
+		}
+	}
+
+	/**
+	 * Packs the planes back into the row-major argb raster.
+	 * @param argb
+	 * @throws Exception
+	 */
+	public void toARGB(final int argb[]) throws Exception {
+		if (argb.length != width * height) {
+			throw new Exception("Raster size " + argb.length + " does not match " +
+								width + "x" + height + ".");
+		}
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				argb[y * width + x] = getARGB(x, y);
+			}
+		});
+	}
+
+	/**
+	 * Packs the planes into a new canvas.
+	 * @return
+	 * @throws Exception
+	 */
+	public Canvas toCanvas() throws Exception {
+		Canvas canvas = new Canvas(width, height);
+		toPixels(canvas.get());
+		return canvas;
+	}
+
+	private static int clamp(final int value) {
+		return value < 0 ? 0 : (value > 0xff ? 0xff : value);
+	}
+
+	public String toString() {
+		return width + "x" + height + " planes";
+	}
+
+}
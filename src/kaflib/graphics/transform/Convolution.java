@@ -0,0 +1,457 @@
+package kaflib.graphics.transform;
+
+import java.util.stream.IntStream;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Contains convolution routines over row-major int planes (see
+ * ChannelPlanes).  Nothing is allocated per pixel, only scratch planes
+ * per call, and rows (or bands or stripes of them) are processed in
+ * parallel.
+ *
+ * Box averages are computed with running sums, so their cost per pixel does
+ * not depend on the radius, and Gaussians are approximated by three box
+ * passes.  Box windows are clipped at the edges and average only the
+ * in-bounds samples, like Canvas.getBox().  Weighted kernels clamp sample
+ * coordinates to the edge instead.
+ */
+public class Convolution {
+
+	private static final int BAND_WIDTH = 64;
+
+	/**
+	 * Convolves the plane with the kernel, using the constant-time box and
+	 * Gaussian paths and the two-pass separable path where possible.  Source
+	 * and destination may be the same plane.
+	 * @param source
+	 * @param destination
+	 * @param width
+	 * @param height
+	 * @param kernel
+	 * @throws Exception
+	 */
+	public static void convolve(final int source[],
+								final int destination[],
+								final int width,
+								final int height,
+								final Kernel kernel) throws Exception {
+		CheckUtils.check(kernel, "kernel");
+		if (kernel.getBoxRadius() >= 0) {
+			box(source, destination, width, height, kernel.getBoxRadius(), kernel.getBoxRadius());
+		}
+		else if (kernel.getSigma() > 0) {
+			gaussian(source, destination, width, height, kernel.getSigma());
+		}
+		else if (kernel.isSeparable()) {
+			separable(source, destination, width, height, kernel.getHorizontal(), kernel.getVertical());
+		}
+		else {
+			direct(source, destination, width, height, kernel);
+		}
+	}
+
+	/**
+	 * Convolves the selected channels of the planes in place.
+	 * @param planes
+	 * @param kernel
+	 * @param channels e.g. ChannelPlanes.RED
+	 * @throws Exception
+	 */
+	public static void convolve(final ChannelPlanes planes,
+								final Kernel kernel,
+								final int... channels) throws Exception {
+		CheckUtils.check(planes, "planes");
+		for (int channel : channels) {
+			int plane[] = planes.getPlane(channel);
+			convolve(plane, plane, planes.getWidth(), planes.getHeight(), kernel);
+		}
+	}
+
+	/**
+	 * Sets each destination value to the average of the in-bounds source
+	 * values in [x - before, x + after] x [y - before, y + after], rounded
+	 * down.  Constant time per pixel.  Source and destination may be the
+	 * same plane.
+	 * @param source
+	 * @param destination
+	 * @param width
+	 * @param height
+	 * @param before
+	 * @param after
+	 * @throws Exception
+	 */
+	public static void box(final int source[],
+						   final int destination[],
+						   final int width,
+						   final int height,
+						   final int before,
+						   final int after) throws Exception {
+		checkPlanes(source, destination, width, height);
+		CheckUtils.checkNonNegative(before, "before");
+		CheckUtils.checkNonNegative(after, "after");
+
+		// Horizontal running sums into scratch.
+		int sums[] = new int[width * height];
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int row = y * width;
+			int sum = 0;
+			for (int x = 0; x <= Math.min(after, width - 1); x++) {
+				sum += source[row + x];
+			}
+			for (int x = 0; x < width; x++) {
+				sums[row + x] = sum;
+				if (x + after + 1 < width) {
+					sum += source[row + x + after + 1];
+				}
+				if (x - before >= 0) {
+					sum -= source[row + x - before];
+				}
+			}
+		});
+
+		// Vertical running sums over bands of columns, dividing by the
+		// clipped window area.
+		int bands = (width + BAND_WIDTH - 1) / BAND_WIDTH;
+		IntStream.range(0, bands).parallel().forEach(band -> {
+			int start = band * BAND_WIDTH;
+			int end = Math.min(width, start + BAND_WIDTH);
+			long column_sums[] = new long[end - start];
+			for (int y = 0; y <= Math.min(after, height - 1); y++) {
+				for (int x = start; x < end; x++) {
+					column_sums[x - start] += sums[y * width + x];
+				}
+			}
+			for (int y = 0; y < height; y++) {
+				int rows = Math.min(height - 1, y + after) - Math.max(0, y - before) + 1;
+				for (int x = start; x < end; x++) {
+					int columns = Math.min(width - 1, x + after) - Math.max(0, x - before) + 1;
+					destination[y * width + x] = (int) (column_sums[x - start] / (rows * columns));
+				}
+				for (int x = start; x < end; x++) {
+					if (y + after + 1 < height) {
+						column_sums[x - start] += sums[(y + after + 1) * width + x];
+					}
+					if (y - before >= 0) {
+						column_sums[x - start] -= sums[(y - before) * width + x];
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replaces each pixel with the average of the non-transparent pixels in
+	 * [x - before, x + after] x [y - before, y + after], for the given number
+	 * of passes.  Opacity is averaged along with color, as with
+	 * RGBPixel.getAverage(), and pixels whose window is entirely transparent
+	 * are left unchanged.  Constant time per pixel per pass.
+	 *
+	 * Each pass slides a window of per-column sums down the image.  Rows are
+	 * summed horizontally as they enter the window and kept in a ring until
+	 * they leave it, so the only full-size scratch is one set of output
+	 * planes.  Stripes of rows run in parallel.
+	 * @param planes
+	 * @param before
+	 * @param after
+	 * @param passes
+	 * @throws Exception
+	 */
+	public static void smooth(final ChannelPlanes planes,
+							  final int before,
+							  final int after,
+							  final int passes) throws Exception {
+		CheckUtils.check(planes, "planes");
+		CheckUtils.checkNonNegative(before, "before");
+		CheckUtils.checkNonNegative(after, "after");
+		CheckUtils.checkNonNegative(passes, "passes");
+		int width = planes.getWidth();
+		int height = planes.getHeight();
+		long window = (long) Math.min(width, before + after + 1) * Math.min(height, before + after + 1);
+		if (window * 0xff > Integer.MAX_VALUE) {
+			throw new Exception("Window too large: " + before + " / " + after + ".");
+		}
+
+		// Floor division by multiplying: (n + 0.5) / d stays at least 0.5 / d
+		// away from an integer, well clear of double rounding.
+		double reciprocals[] = new double[(int) window + 1];
+		for (int i = 1; i < reciprocals.length; i++) {
+			reciprocals[i] = 1.0 / i;
+		}
+		int stripes = Math.min(height, Runtime.getRuntime().availableProcessors());
+		int stripe_height = (height + stripes - 1) / stripes;
+
+		int source[][] = new int[ChannelPlanes.CHANNELS][];
+		int destination[][] = new int[ChannelPlanes.CHANNELS][];
+		for (int channel = 0; channel < ChannelPlanes.CHANNELS; channel++) {
+			source[channel] = planes.getPlane(channel);
+			destination[channel] = passes > 0 ? new int[width * height] : null;
+		}
+
+		for (int pass = 0; pass < passes; pass++) {
+			int a[] = source[ChannelPlanes.ALPHA];
+			int r[] = source[ChannelPlanes.RED];
+			int g[] = source[ChannelPlanes.GREEN];
+			int b[] = source[ChannelPlanes.BLUE];
+			int out_a[] = destination[ChannelPlanes.ALPHA];
+			int out_r[] = destination[ChannelPlanes.RED];
+			int out_g[] = destination[ChannelPlanes.GREEN];
+			int out_b[] = destination[ChannelPlanes.BLUE];
+
+			IntStream.range(0, stripes).parallel().forEach(stripe -> {
+				int first = stripe * stripe_height;
+				int last = Math.min(height, first + stripe_height);
+				if (first >= last) {
+					return;
+				}
+				// Ring of the horizontal sums of the rows in the window, and
+				// their per-column totals: count, a, r, g, b.
+				int rows = before + after + 1;
+				int ring[][][] = new int[5][Math.min(rows, height)][width];
+				int columns[][] = new int[5][width];
+				for (int y = Math.max(0, first - before); y <= Math.min(first + after, height - 1); y++) {
+					enter(y, width, before, after, a, r, g, b, ring, columns);
+				}
+				for (int y = first; y < last; y++) {
+					int row = y * width;
+					int counts[] = columns[0];
+					for (int x = 0; x < width; x++) {
+						int count = counts[x];
+						if (count == 0) {
+							out_a[row + x] = a[row + x];
+							out_r[row + x] = r[row + x];
+							out_g[row + x] = g[row + x];
+							out_b[row + x] = b[row + x];
+							continue;
+						}
+						double reciprocal = reciprocals[count];
+						out_a[row + x] = (int) ((columns[1][x] + 0.5) * reciprocal);
+						out_r[row + x] = (int) ((columns[2][x] + 0.5) * reciprocal);
+						out_g[row + x] = (int) ((columns[3][x] + 0.5) * reciprocal);
+						out_b[row + x] = (int) ((columns[4][x] + 0.5) * reciprocal);
+					}
+					if (y + 1 < last) {
+						if (y - before >= 0) {
+							leave(y - before, width, ring, columns);
+						}
+						if (y + after + 1 < height) {
+							enter(y + after + 1, width, before, after, a, r, g, b, ring, columns);
+						}
+					}
+				}
+			});
+
+			int swap[][] = source;
+			source = destination;
+			destination = swap;
+		}
+
+		if (passes % 2 == 1) {
+			for (int channel = 0; channel < ChannelPlanes.CHANNELS; channel++) {
+				System.arraycopy(source[channel], 0, destination[channel], 0, width * height);
+			}
+		}
+	}
+
+	/**
+	 * Runs the horizontal window along row y, storing each position's opaque
+	 * count and channel sums in the ring and adding them to the column sums.
+	 */
+	private static void enter(final int y,
+							  final int width,
+							  final int before,
+							  final int after,
+							  final int a[],
+							  final int r[],
+							  final int g[],
+							  final int b[],
+							  final int ring[][][],
+							  final int columns[][]) {
+		int slot = y % ring[0].length;
+		int ring_count[] = ring[0][slot];
+		int ring_a[] = ring[1][slot];
+		int ring_r[] = ring[2][slot];
+		int ring_g[] = ring[3][slot];
+		int ring_b[] = ring[4][slot];
+		int row = y * width;
+		int count = 0;
+		int sa = 0;
+		int sr = 0;
+		int sg = 0;
+		int sb = 0;
+		for (int x = row; x <= row + Math.min(after, width - 1); x++) {
+			if (a[x] != 0) {
+				count++;
+				sa += a[x];
+				sr += r[x];
+				sg += g[x];
+				sb += b[x];
+			}
+		}
+		for (int x = 0; x < width; x++) {
+			ring_count[x] = count;
+			ring_a[x] = sa;
+			ring_r[x] = sr;
+			ring_g[x] = sg;
+			ring_b[x] = sb;
+			int next = row + x + after + 1;
+			if (x + after + 1 < width && a[next] != 0) {
+				count++;
+				sa += a[next];
+				sr += r[next];
+				sg += g[next];
+				sb += b[next];
+			}
+			int last = row + x - before;
+			if (x - before >= 0 && a[last] != 0) {
+				count--;
+				sa -= a[last];
+				sr -= r[last];
+				sg -= g[last];
+				sb -= b[last];
+			}
+		}
+		for (int i = 0; i < columns.length; i++) {
+			int column[] = columns[i];
+			int sums[] = ring[i][slot];
+			for (int x = 0; x < width; x++) {
+				column[x] += sums[x];
+			}
+		}
+	}
+
+	/**
+	 * Subtracts row y's horizontal sums, still in the ring, from the column
+	 * sums.
+	 */
+	private static void leave(final int y,
+							  final int width,
+							  final int ring[][][],
+							  final int columns[][]) {
+		int slot = y % ring[0].length;
+		for (int i = 0; i < columns.length; i++) {
+			int column[] = columns[i];
+			int sums[] = ring[i][slot];
+			for (int x = 0; x < width; x++) {
+				column[x] -= sums[x];
+			}
+		}
+	}
+
+	/**
+	 * Approximates a Gaussian blur with three box passes.  Constant time per
+	 * pixel.  Source and destination may be the same plane.
+	 * @param source
+	 * @param destination
+	 * @param width
+	 * @param height
+	 * @param sigma
+	 * @throws Exception
+	 */
+	public static void gaussian(final int source[],
+								final int destination[],
+								final int width,
+								final int height,
+								final double sigma) throws Exception {
+		int radii[] = Kernel.getGaussianBoxRadii(sigma);
+		box(source, destination, width, height, radii[0], radii[0]);
+		for (int i = 1; i < radii.length; i++) {
+			box(destination, destination, width, height, radii[i], radii[i]);
+		}
+	}
+
+	/**
+	 * Applies a separable kernel as a horizontal then a vertical pass.
+	 * Source and destination may be the same plane.
+	 * @param source
+	 * @param destination
+	 * @param width
+	 * @param height
+	 * @param horizontal
+	 * @param vertical
+	 * @throws Exception
+	 */
+	public static void separable(final int source[],
+								 final int destination[],
+								 final int width,
+								 final int height,
+								 final float horizontal[],
+								 final float vertical[]) throws Exception {
+		checkPlanes(source, destination, width, height);
+		int radius_x = horizontal.length / 2;
+		int radius_y = vertical.length / 2;
+
+		float scratch[] = new float[width * height];
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int i = 0; i < horizontal.length; i++) {
+					sum += horizontal[i] * source[row + clamp(x + i - radius_x, width)];
+				}
+				scratch[row + x] = sum;
+			}
+		});
+
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int j = 0; j < vertical.length; j++) {
+					sum += vertical[j] * scratch[clamp(y + j - radius_y, height) * width + x];
+				}
+				destination[row + x] = Math.round(sum);
+			}
+		});
+	}
+
+	/**
+	 * Applies the kernel tap by tap.  Source and destination may be the same
+	 * plane.
+	 * @param source
+	 * @param destination
+	 * @param width
+	 * @param height
+	 * @param kernel
+	 * @throws Exception
+	 */
+	public static void direct(final int source[],
+							  final int destination[],
+							  final int width,
+							  final int height,
+							  final Kernel kernel) throws Exception {
+		checkPlanes(source, destination, width, height);
+		int input[] = source == destination ? source.clone() : source;
+		int offsets_x[] = kernel.getOffsetsX();
+		int offsets_y[] = kernel.getOffsetsY();
+		float weights[] = kernel.getOffsetWeights();
+
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				float sum = 0;
+				for (int tap = 0; tap < weights.length; tap++) {
+					sum += weights[tap] * input[clamp(y + offsets_y[tap], height) * width +
+												clamp(x + offsets_x[tap], width)];
+				}
+				destination[row + x] = Math.round(sum);
+			}
+		});
+	}
+
+	private static int clamp(final int value, final int size) {
+		return value < 0 ? 0 : (value >= size ? size - 1 : value);
+	}
+
+	private static void checkPlanes(final int source[],
+									final int destination[],
+									final int width,
+									final int height) throws Exception {
+		CheckUtils.check(source, "source");
+		CheckUtils.check(destination, "destination");
+		if (source.length != width * height || destination.length != width * height) {
+			throw new Exception("Plane sizes do not match " + width + "x" + height + ".");
+		}
+	}
+
+}
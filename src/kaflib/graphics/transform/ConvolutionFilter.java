@@ -0,0 +1,76 @@
+package kaflib.graphics.transform;
+
+import kaflib.graphics.Canvas;
+import kaflib.graphics.CanvasTransform;
+import kaflib.graphics.Filter;
+import kaflib.graphics.PackedTransform;
+import kaflib.graphics.RGBPixel;
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a filter that convolves each channel with a kernel, e.g.
+ * Kernel.getGaussian(2.0) for a blur.
+ */
+public class ConvolutionFilter extends Filter implements CanvasTransform, PackedTransform {
+
+	private final Kernel kernel;
+	private final boolean alpha;
+
+	/**
+	 * Convolves all channels, including opacity.
+	 * @param kernel
+	 * @throws Exception
+	 */
+	public ConvolutionFilter(final Kernel kernel) throws Exception {
+		this(kernel, true);
+	}
+
+	/**
+	 * @param kernel
+	 * @param alpha whether to convolve opacity as well as color.
+	 * @throws Exception
+	 */
+	public ConvolutionFilter(final Kernel kernel, final boolean alpha) throws Exception {
+		CheckUtils.check(kernel, "kernel");
+		this.kernel = kernel;
+		this.alpha = alpha;
+	}
+
+	@Override
+	public void apply(final RGBPixel pixels[][]) throws Exception {
+		ChannelPlanes planes = new ChannelPlanes(pixels);
+		convolve(planes);
+		planes.toPixels(pixels);
+	}
+
+	@Override
+	public void apply(final int argb[], final int width, final int height) throws Exception {
+		ChannelPlanes planes = new ChannelPlanes(argb, width, height);
+		convolve(planes);
+		planes.toARGB(argb);
+	}
+
+	private void convolve(final ChannelPlanes planes) throws Exception {
+		if (alpha) {
+			Convolution.convolve(planes, kernel, ChannelPlanes.ALPHA, ChannelPlanes.RED,
+								 ChannelPlanes.GREEN, ChannelPlanes.BLUE);
+		}
+		else {
+			Convolution.convolve(planes, kernel, ChannelPlanes.RED, ChannelPlanes.GREEN,
+								 ChannelPlanes.BLUE);
+		}
+	}
+
+	@Override
+	public void applyInPlace(final Canvas canvas) throws Exception {
+		canvas.applyTransform(this);
+	}
+
+	@Override
+	public Canvas apply(final Canvas canvas) throws Exception {
+		Canvas output = new Canvas(canvas);
+		applyInPlace(output);
+		return output;
+	}
+
+}
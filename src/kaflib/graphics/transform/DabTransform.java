@@ -11,9 +11,7 @@ import kaflib.graphics.CanvasTransform;
 import kaflib.graphics.Opacity;
 import kaflib.graphics.RGBPixel;
 import kaflib.types.Direction;
-import kaflib.types.Pair;
 import kaflib.utils.CheckUtils;
-import kaflib.utils.MathUtils;
 import kaflib.utils.RandomUtils;
 
 public class DabTransform implements CanvasTransform {
@@ -47,7 +45,7 @@ public class DabTransform implements CanvasTransform {
 				int end_y = Math.min(pixels[0].length, j + radius);
 				for (int x = start_x; x < end_x; x++) {
 					for (int y = start_y; y < end_y; y++) {
-						int distance = MathUtils.getDistance(new Pair<Integer, Integer>(i - x, j - y));
+						int distance = (int) Math.sqrt((i - x) * (i - x) + (j - y) * (j - y));
 						RGBPixel value = null;
 						if (distance > radius) {
 						}
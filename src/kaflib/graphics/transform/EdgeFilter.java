@@ -1,16 +1,21 @@
 package kaflib.graphics.transform;
 
 
+import java.util.stream.IntStream;
+
 import kaflib.graphics.Canvas;
 import kaflib.graphics.Filter;
 import kaflib.graphics.RGBPixel;
-import kaflib.graphics.Selection;
-import kaflib.types.Coordinate;
 import kaflib.utils.CheckUtils;
 
 /**
  * Defines a star (square + diamond)-shaped transform to trace edges and
  * optionally leave the rest intact or remove it.
+ *
+ * A pixel is an edge if the average rgb deviation of its star from the
+ * star's (non-transparent) average color meets the delta, as with
+ * Selection.getStar(...).getAverageDelta(canvas).  The star is walked as
+ * kernel offsets over channel planes rather than built per pixel.
  */
 public class EdgeFilter extends Filter {
 	public static final int DELTA_VERY_LOW = 20;
@@ -18,32 +23,34 @@ public class EdgeFilter extends Filter {
 	public static final int DELTA_MED = 80;
 	public static final int DELTA_HIGH = 120;
 	public static final int DELTA_VERY_HIGH = 150;
-	
+
 	private final int size;
 	private final int delta;
 	private final boolean edges_only;
 	private final RGBPixel edge_color;
-	
+	private final Kernel star;
+
 	public EdgeFilter(final RGBPixel color,
 					  final int size,
 					  final int delta,
 					  final boolean edgesOnly) throws Exception {
-		
+
 		CheckUtils.checkPositive(size, "size");
 		this.size = size;
 		this.delta = delta;
 		this.edge_color = color;
 		this.edges_only = edgesOnly;
+		this.star = Kernel.getStar(size);
 	}
 
 	public Canvas apply(final Canvas canvas) throws Exception {
 		Canvas output = new Canvas(canvas.getWidth(), canvas.getHeight());
-		
+		boolean edges[] = getEdges(new ChannelPlanes(canvas));
+		int width = canvas.getWidth();
+
 		for (int i = 0; i < canvas.getWidth(); i++) {
 			for (int j = 0; j < canvas.getHeight(); j++) {
-				Selection selection = Selection.getStar(new Coordinate(i, j), size);
-				int selection_delta = selection.getAverageDelta(canvas);
-				if (selection_delta >= delta) {
+				if (edges[j * width + i]) {
 					output.set(i, j, edge_color);
 				}
 				else {
@@ -57,8 +64,78 @@ public class EdgeFilter extends Filter {
 		return output;
 	}
 
+	/**
+	 * Returns the row-major edge map.
+	 * @param planes
+	 * @return
+	 */
+	private boolean[] getEdges(final ChannelPlanes planes) {
+		int width = planes.getWidth();
+		int height = planes.getHeight();
+		int a[] = planes.getPlane(ChannelPlanes.ALPHA);
+		int r[] = planes.getPlane(ChannelPlanes.RED);
+		int g[] = planes.getPlane(ChannelPlanes.GREEN);
+		int b[] = planes.getPlane(ChannelPlanes.BLUE);
+		int offsets_x[] = star.getOffsetsX();
+		int offsets_y[] = star.getOffsetsY();
+		int taps = star.getTapCount();
+		boolean edges[] = new boolean[width * height];
+
+		IntStream.range(0, height).parallel().forEach(y -> {
+			for (int x = 0; x < width; x++) {
+				// Average of the non-transparent samples.
+				int opaque = 0;
+				int sum_r = 0;
+				int sum_g = 0;
+				int sum_b = 0;
+				for (int tap = 0; tap < taps; tap++) {
+					int i = x + offsets_x[tap];
+					int j = y + offsets_y[tap];
+					if (i < 0 || i >= width || j < 0 || j >= height) {
+						continue;
+					}
+					int index = j * width + i;
+					if (a[index] != 0) {
+						opaque++;
+						sum_r += r[index];
+						sum_g += g[index];
+						sum_b += b[index];
+					}
+				}
+				if (opaque == 0) {
+					continue;
+				}
+				int average_r = sum_r / opaque;
+				int average_g = sum_g / opaque;
+				int average_b = sum_b / opaque;
+
+				// Average deviation over all in-bounds samples.
+				int count = 0;
+				int deviation = 0;
+				for (int tap = 0; tap < taps; tap++) {
+					int i = x + offsets_x[tap];
+					int j = y + offsets_y[tap];
+					if (i < 0 || i >= width || j < 0 || j >= height) {
+						continue;
+					}
+					int index = j * width + i;
+					count++;
+					deviation += Math.abs(r[index] - average_r) +
+								 Math.abs(g[index] - average_g) +
+								 Math.abs(b[index] - average_b);
+				}
+				edges[y * width + x] = deviation / count >= delta;
+			}
+		});
+		return edges;
+	}
+
 	@Override
 	public void applyInPlace(Canvas canvas) throws Exception {
-		canvas = apply(canvas);
+		canvas.set(apply(canvas).get());
+	}
+
+	public String toString() {
+		return "Edge filter, size " + size + ", delta " + delta + ".";
 	}
 }
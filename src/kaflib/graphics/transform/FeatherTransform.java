@@ -1,51 +1,60 @@
 package kaflib.graphics.transform;
 
 import kaflib.graphics.CanvasTransform;
-import kaflib.graphics.CanvasUtils;
 import kaflib.graphics.Opacity;
 import kaflib.graphics.RGBPixel;
 
 /**
  * Feathers pixel opacity based on the adjacent values.  NSEW pixels are
  * counted at > 1/2 opaque, diagonals must be greather than 3/4 opaque.
+ *
+ * The counts are two small integer convolutions over thresholded opacity
+ * planes.
  */
 public class FeatherTransform implements CanvasTransform {
 
+	private static final Kernel CROSS;
+	private static final Kernel DIAGONALS;
+	static {
+		try {
+			CROSS = new Kernel(3, 3, new float[] { 0, 1, 0,
+												   1, 1, 1,
+												   0, 1, 0 });
+			DIAGONALS = new Kernel(3, 3, new float[] { 1, 0, 1,
+													   0, 0, 0,
+													   1, 0, 1 });
+		}
+		catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
 	@Override
 	public void apply(RGBPixel[][] pixels) throws Exception {
-		RGBPixel previous[][] = CanvasUtils.copy(pixels);
-		
-		for (int i = 1; i < previous.length - 1; i++) {
-			for (int j = 1; j < previous[0].length - 1; j++) {
-				int opaque = 0;
-				if (previous[i-1][j].getOpacity().greaterThanHalf()) {
-					opaque++;
-				}
-				if (previous[i+1][j].getOpacity().greaterThanHalf()) {
-					opaque++;
-				}
-				if (previous[i][j-1].getOpacity().greaterThanHalf()) {
-					opaque++;
-				}
-				if (previous[i][j+1].getOpacity().greaterThanHalf()) {
-					opaque++;
-				}
-				if (previous[i][j].getOpacity().greaterThanHalf()) {
-					opaque++;
+		int width = pixels.length;
+		int height = pixels[0].length;
+		int half[] = new int[width * height];
+		int three_quarter[] = new int[width * height];
+		for (int i = 0; i < width; i++) {
+			for (int j = 0; j < height; j++) {
+				if (pixels[i][j] == null) {
+					continue;
 				}
-				if (previous[i-1][j-1].getOpacity().greaterThanThreeQuarter()) {
-					opaque++;
-				}
-				if (previous[i-1][j+1].getOpacity().greaterThanThreeQuarter()) {
-					opaque++;
-				}
-				if (previous[i+1][j-1].getOpacity().greaterThanThreeQuarter()) {
-					opaque++;
-				}
-				if (previous[i+1][j-1].getOpacity().greaterThanThreeQuarter()) {
-					opaque++;
+				Opacity opacity = pixels[i][j].getOpacity();
+				half[j * width + i] = opacity.greaterThanHalf() ? 1 : 0;
+				three_quarter[j * width + i] = opacity.greaterThanThreeQuarter() ? 1 : 0;
+			}
+		}
+		Convolution.direct(half, half, width, height, CROSS);
+		Convolution.direct(three_quarter, three_quarter, width, height, DIAGONALS);
+
+		for (int i = 1; i < width - 1; i++) {
+			for (int j = 1; j < height - 1; j++) {
+				int opaque = half[j * width + i] + three_quarter[j * width + i];
+				if (!pixels[i][j].isMutable()) {
+					pixels[i][j] = new RGBPixel(pixels[i][j]);
 				}
-				
+
 				if (opaque < 3) {
 					pixels[i][j].setOpacity(Opacity.TRANSPARENT);
 				}
@@ -62,7 +71,7 @@ public class FeatherTransform implements CanvasTransform {
 					pixels[i][j].setOpacity(Opacity.OPAQUE);
 				}
 			}
-		}		
+		}
 	}
 
 }
@@ -0,0 +1,340 @@
+package kaflib.graphics.transform;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a convolution kernel: an odd-sized grid of weights anchored at its
+ * center.  Separable kernels also keep their horizontal and vertical
+ * factors so Convolution can apply them as two one-dimensional passes, and
+ * box and Gaussian kernels are flagged so they can run in constant time per
+ * pixel regardless of radius.
+ *
+ * The non-zero taps are also kept as offset lists, which is all that
+ * neighborhood statistics (e.g. EdgeFilter) need.
+ */
+public class Kernel {
+
+	private static final int GAUSSIAN_PASSES = 3;
+
+	private final int width;
+	private final int height;
+	private final float weights[];
+	private final float horizontal[];
+	private final float vertical[];
+	private final int box_radius;
+	private final double sigma;
+	private final int offsets_x[];
+	private final int offsets_y[];
+	private final float offset_weights[];
+
+	/**
+	 * Creates a kernel from row-major weights.
+	 * @param width
+	 * @param height
+	 * @param weights
+	 * @throws Exception
+	 */
+	public Kernel(final int width, final int height, final float weights[]) throws Exception {
+		this(width, height, weights, null, null, -1, 0);
+	}
+
+	/**
+	 * Creates a separable kernel from its horizontal and vertical factors.
+	 * @param horizontal
+	 * @param vertical
+	 * @throws Exception
+	 */
+	public Kernel(final float horizontal[], final float vertical[]) throws Exception {
+		this(horizontal.length,
+			 vertical.length,
+			 getProduct(horizontal, vertical),
+			 horizontal,
+			 vertical,
+			 -1,
+			 0);
+	}
+
+	private Kernel(final int width,
+				   final int height,
+				   final float weights[],
+				   final float horizontal[],
+				   final float vertical[],
+				   final int boxRadius,
+				   final double sigma) throws Exception {
+		CheckUtils.checkPositive(width, "width");
+		CheckUtils.checkPositive(height, "height");
+		if (width % 2 == 0 || height % 2 == 0) {
+			throw new Exception("Kernel dimensions must be odd: " + width + "x" + height + ".");
+		}
+		if (weights.length != width * height) {
+			throw new Exception("Expected " + (width * height) + " weights, got " +
+								weights.length + ".");
+		}
+		this.width = width;
+		this.height = height;
+		this.weights = weights;
+		this.horizontal = horizontal;
+		this.vertical = vertical;
+		this.box_radius = boxRadius;
+		this.sigma = sigma;
+
+		int taps = 0;
+		for (float weight : weights) {
+			if (weight != 0) {
+				taps++;
+			}
+		}
+		offsets_x = new int[taps];
+		offsets_y = new int[taps];
+		offset_weights = new float[taps];
+		int tap = 0;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				if (weights[j * width + i] != 0) {
+					offsets_x[tap] = i - getRadiusX();
+					offsets_y[tap] = j - getRadiusY();
+					offset_weights[tap] = weights[j * width + i];
+					tap++;
+				}
+			}
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getRadiusX() {
+		return width / 2;
+	}
+
+	public int getRadiusY() {
+		return height / 2;
+	}
+
+	/**
+	 * Returns the weight at the offset from the anchor.
+	 * @param dx
+	 * @param dy
+	 * @return
+	 */
+	public float get(final int dx, final int dy) {
+		return weights[(dy + getRadiusY()) * width + dx + getRadiusX()];
+	}
+
+	/**
+	 * Returns the sum of the weights.
+	 * @return
+	 */
+	public float getSum() {
+		float sum = 0;
+		for (float weight : weights) {
+			sum += weight;
+		}
+		return sum;
+	}
+
+	public boolean isSeparable() {
+		return horizontal != null;
+	}
+
+	/**
+	 * Returns the horizontal factor, or null if not separable.
+	 * @return
+	 */
+	public float[] getHorizontal() {
+		return horizontal;
+	}
+
+	/**
+	 * Returns the vertical factor, or null if not separable.
+	 * @return
+	 */
+	public float[] getVertical() {
+		return vertical;
+	}
+
+	/**
+	 * Returns the radius if this is a box kernel, otherwise -1.
+	 * @return
+	 */
+	public int getBoxRadius() {
+		return box_radius;
+	}
+
+	/**
+	 * Returns the standard deviation if this is a Gaussian kernel, otherwise
+	 * 0.
+	 * @return
+	 */
+	public double getSigma() {
+		return sigma;
+	}
+
+	/**
+	 * Returns the number of non-zero taps.
+	 * @return
+	 */
+	public int getTapCount() {
+		return offset_weights.length;
+	}
+
+	/**
+	 * Returns the x offsets of the non-zero taps.  Not a copy.
+	 * @return
+	 */
+	public int[] getOffsetsX() {
+		return offsets_x;
+	}
+
+	/**
+	 * Returns the y offsets of the non-zero taps.  Not a copy.
+	 * @return
+	 */
+	public int[] getOffsetsY() {
+		return offsets_y;
+	}
+
+	/**
+	 * Returns the weights of the non-zero taps.  Not a copy.
+	 * @return
+	 */
+	public float[] getOffsetWeights() {
+		return offset_weights;
+	}
+
+	public String toString() {
+		StringBuffer buffer = new StringBuffer();
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				buffer.append(String.format("%6.3f ", weights[j * width + i]));
+			}
+			buffer.append("\n");
+		}
+		return new String(buffer);
+	}
+
+	/**
+	 * Returns a normalized (2 * radius + 1)^2 box.
+	 * @param radius
+	 * @return
+	 * @throws Exception
+	 */
+	public static Kernel getBox(final int radius) throws Exception {
+		CheckUtils.checkNonNegative(radius, "radius");
+		float factor[] = new float[2 * radius + 1];
+		for (int i = 0; i < factor.length; i++) {
+			factor[i] = 1.0f / factor.length;
+		}
+		return new Kernel(factor.length,
+						  factor.length,
+						  getProduct(factor, factor),
+						  factor,
+						  factor,
+						  radius,
+						  0);
+	}
+
+	/**
+	 * Returns a normalized Gaussian, truncated at three standard deviations.
+	 * @param sigma
+	 * @return
+	 * @throws Exception
+	 */
+	public static Kernel getGaussian(final double sigma) throws Exception {
+		if (sigma <= 0) {
+			throw new Exception("Sigma must be positive: " + sigma + ".");
+		}
+		int radius = (int) Math.ceil(3 * sigma);
+		float factor[] = new float[2 * radius + 1];
+		float sum = 0;
+		for (int i = 0; i < factor.length; i++) {
+			int d = i - radius;
+			factor[i] = (float) Math.exp(-(d * d) / (2 * sigma * sigma));
+			sum += factor[i];
+		}
+		for (int i = 0; i < factor.length; i++) {
+			factor[i] /= sum;
+		}
+		return new Kernel(factor.length,
+						  factor.length,
+						  getProduct(factor, factor),
+						  factor,
+						  factor,
+						  -1,
+						  sigma);
+	}
+
+	/**
+	 * Returns an unweighted star (diamond plus a 3/4 box) with the same taps
+	 * as Selection.getStar().
+	 * @param radius
+	 * @return
+	 * @throws Exception
+	 */
+	public static Kernel getStar(final int radius) throws Exception {
+		CheckUtils.checkPositive(radius, "radius");
+		int size = 2 * radius + 1;
+		int box = (radius * 3) / 4;
+		float weights[] = new float[size * size];
+		for (int dy = -radius; dy < radius; dy++) {
+			for (int dx = -radius; dx < radius; dx++) {
+				if (Math.abs(dx) + Math.abs(dy) <= radius ||
+					(dx >= -box && dx < box && dy >= -box && dy < box)) {
+					weights[(dy + radius) * size + dx + radius] = 1;
+				}
+			}
+		}
+		return new Kernel(size, size, weights);
+	}
+
+	/**
+	 * Returns the 3x3 four-neighbor Laplacian.
+	 * @return
+	 * @throws Exception
+	 */
+	public static Kernel getLaplacian() throws Exception {
+		return new Kernel(3, 3, new float[] { 0,  1, 0,
+											  1, -4, 1,
+											  0,  1, 0 });
+	}
+
+	/**
+	 * Returns the radii of the box passes whose repeated application
+	 * approximates a Gaussian of the given sigma.
+	 * @param sigma
+	 * @return
+	 */
+	public static int[] getGaussianBoxRadii(final double sigma) {
+		double ideal = Math.sqrt((12 * sigma * sigma / GAUSSIAN_PASSES) + 1);
+		int lower = (int) Math.floor(ideal);
+		if (lower % 2 == 0) {
+			lower--;
+		}
+		int upper = lower + 2;
+		long lower_count = Math.round((12 * sigma * sigma -
+									   GAUSSIAN_PASSES * lower * lower -
+									   4 * GAUSSIAN_PASSES * lower -
+									   3 * GAUSSIAN_PASSES) / (-4.0 * lower - 4));
+		int radii[] = new int[GAUSSIAN_PASSES];
+		for (int i = 0; i < GAUSSIAN_PASSES; i++) {
+			radii[i] = ((i < lower_count ? lower : upper) - 1) / 2;
+		}
+		return radii;
+	}
+
+	private static float[] getProduct(final float horizontal[], final float vertical[]) {
+		float weights[] = new float[horizontal.length * vertical.length];
+		for (int j = 0; j < vertical.length; j++) {
+			for (int i = 0; i < horizontal.length; i++) {
+				weights[j * horizontal.length + i] = horizontal[i] * vertical[j];
+			}
+		}
+		return weights;
+	}
+
+}
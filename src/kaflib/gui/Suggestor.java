@@ -13,7 +13,12 @@ import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.swing.AbstractAction;
 import javax.swing.JComponent;
@@ -24,28 +29,55 @@ import javax.swing.JTextField;
 import javax.swing.JWindow;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.LineBorder;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 import kaflib.types.CachedWordTrie;
+import kaflib.types.CompactWordTrie;
+import kaflib.types.Pair;
 import kaflib.types.WordTrie;
 import kaflib.utils.CheckUtils;
 
 /**
  * Derived from Dave.
+ * 
+ * Changing the text restarts a short debounce timer; when it fires the
+ * current text is looked up on a background thread, and the result is shown
+ * back on the event thread only if no newer lookup has started since.
+ * Suggestion labels are pooled and relabeled rather than rebuilt per
+ * keystroke.  If nothing starts with the text and a fuzzy index is set,
+ * completions within an edit or two of it are offered instead.  Key
+ * releases that leave the text unchanged (e.g. arrowing into the popup)
+ * start no lookup, so they cannot pull focus back to the field.
  */
 public class Suggestor {
 	public static final int MAX_SUGGESTIONS = 16;
 	public static final int WORD_TREE_DEFAULT_CACHE_SIZE = 64;
+	public static final int DEBOUNCE_MS = 120;
+	public static final int FUZZY_MIN_LENGTH = 3;
+	
+	// Shared by all suggestors, only one field is typed in at a time.
+	private static final ExecutorService LOOKUPS = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Suggestor lookups");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	private final JTextField text_field;
 	private final Window container;
 	private JPanel suggestion_panel;
 	private JWindow suggestion_popup;
-	private WordTrie suggestions;
+	private volatile WordTrie suggestions;
+	private volatile CompactWordTrie fuzzy;
 	private int tW;
 	private int tH;
+	private final Timer debounce;
+	private final AtomicLong generation;
+	private Future<?> pending;
+	private String requested;
+	private final List<SuggestionLabel> labels;
 	
 	private KeyListener keyListener = new KeyListener() {
 		@Override
@@ -118,9 +150,17 @@ public class Suggestor {
 		}
 		
 		this.suggestions = suggestions;
+		fuzzy = null;
 
 		tW = 0;
 		tH = 0;
+		
+		debounce = new Timer(DEBOUNCE_MS, e -> lookUpSuggestions());
+		debounce.setRepeats(false);
+		generation = new AtomicLong(0);
+		pending = null;
+		requested = null;
+		labels = new ArrayList<SuggestionLabel>();
 
 		suggestion_popup = new JWindow(mainWindow);
 		suggestion_popup.setOpacity(opacity);
@@ -171,7 +211,7 @@ public class Suggestor {
 								sl.setFocused(false);
 								suggestion_popup.setVisible(false);
 								setFocusToTextField();
-								checkForAndShowSuggestions();//fire method as if document listener change occured and fired it
+								refreshSuggestions();
 
 							} else {
 								sl.setFocused(false);
@@ -192,7 +232,7 @@ public class Suggestor {
 				} else {//only a single suggestion was given
 					suggestion_popup.setVisible(false);
 					setFocusToTextField();
-					checkForAndShowSuggestions();//fire method as if document listener change occured and fired it
+					refreshSuggestions();
 				}
 			}
 		});
@@ -215,25 +255,134 @@ public class Suggestor {
 		return sls;
 	}
 
+	/**
+	 * Restarts the debounce timer if the text changed since the last lookup
+	 * was requested, the lookup runs once typing pauses.
+	 */
 	private void checkForAndShowSuggestions() {
+		String typed = text_field.getText();
+		if (typed.equals(requested)) {
+			return;
+		}
+		requested = typed;
+		debounce.restart();
+	}
+
+	/**
+	 * Looks up the current text again even though it has not changed, e.g.
+	 * to reopen the popup after cycling past the last suggestion.
+	 */
+	private void refreshSuggestions() {
+		requested = null;
+		checkForAndShowSuggestions();
+	}
+
+	/**
+	 * Starts a background lookup of the current text, superseding any
+	 * still pending.  On the event thread.
+	 */
+	private void lookUpSuggestions() {
+		final String typed = text_field.getText();
+		final long request = generation.incrementAndGet();
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		
+		if (typed.length() < 2) {
+			showSuggestions(request, Collections.<String>emptyList());
+			return;
+		}
+
+		final WordTrie words = suggestions;
+		final CompactWordTrie index = fuzzy;
+		pending = LOOKUPS.submit(() -> {
+			// Superseded while queued.
+			if (request != generation.get()) {
+				return;
+			}
+			final List<String> matches = getMatches(words, index, typed);
+			SwingUtilities.invokeLater(() -> showSuggestions(request, matches));
+		});
+	}
+	
+	/**
+	 * Returns up to MAX_SUGGESTIONS completions, falling back to fuzzy
+	 * completions from the index (if any) when none start with the text,
+	 * or none if the lookup fails.  Off the event thread.
+	 * @param words
+	 * @param index
+	 * @param typed
+	 * @return
+	 */
+	private static List<String> getMatches(final WordTrie words, 
+										   final CompactWordTrie index, 
+										   final String typed) {
+		try {
+			List<String> matches = words.getOrdered(typed, WORD_TREE_DEFAULT_CACHE_SIZE);
+			if (matches.isEmpty() && index != null && getFuzzyDistance(typed) > 0) {
+				matches = new ArrayList<String>();
+				for (Pair<String, Integer> match : index.getFuzzyCompletions(typed, getFuzzyDistance(typed), MAX_SUGGESTIONS)) {
+					matches.add(match.getFirst());
+				}
+			}
+			if (matches.size() > MAX_SUGGESTIONS) {
+				matches = new ArrayList<String>(matches.subList(0, MAX_SUGGESTIONS));
+			}
+			return matches;
+		}
+		catch (Exception e) {
+			return Collections.<String>emptyList();
+		}
+	}
+	
+	/**
+	 * Returns the edits tolerated for the typed text: none for very short
+	 * text, where nearly everything is close, one, or two from six letters.
+	 * @param typed
+	 * @return
+	 */
+	private static int getFuzzyDistance(final String typed) {
+		if (typed.length() < FUZZY_MIN_LENGTH) {
+			return 0;
+		}
+		return typed.length() < 6 ? 1 : 2;
+	}
+	
+	/**
+	 * Shows the lookup result unless a newer lookup has started.  On the
+	 * event thread.
+	 * @param request
+	 * @param matches
+	 */
+	private void showSuggestions(final long request, final List<String> matches) {
+		if (request != generation.get()) {
+			return;
+		}
+		pending = null;
 		suggestion_panel.removeAll();
 		tW = 0;
 		tH = 0;
 
-		boolean added = wordTyped(text_field.getText());
-
-		if (!added) {
+		if (matches.isEmpty()) {
 			if (suggestion_popup.isVisible()) {
 				suggestion_popup.setVisible(false);
 			}
 		} else {
+			addWordsToSuggestions(matches);
 			showPopUpWindow();
 			setFocusToTextField();
 		}
 	}
 
 	protected void addWordToSuggestions(final String word) {
-		SuggestionLabel suggestionLabel = new SuggestionLabel(word, suggestionFocusedColor, suggestionsTextColor, this);
+		int index = suggestion_panel.getComponentCount();
+		while (labels.size() <= index) {
+			labels.add(new SuggestionLabel("", suggestionFocusedColor, suggestionsTextColor, this));
+		}
+		SuggestionLabel suggestionLabel = labels.get(index);
+		suggestionLabel.setText(word);
+		suggestionLabel.setFocused(false);
 		calculatePopUpWindowSize(suggestionLabel);
 		suggestion_panel.add(suggestionLabel);
 	}
@@ -319,6 +468,16 @@ public class Suggestor {
 	}
 
 	
+	/**
+	 * Sets the index searched for typo tolerant completions when nothing
+	 * starts with the typed text, or null for none.  Words added to the
+	 * suggestions later are not in it.
+	 * @param index
+	 */
+	public void setFuzzyIndex(final CompactWordTrie index) {
+		this.fuzzy = index;
+	}
+	
 	public JWindow getAutoSuggestionPopUpWindow() {
 		return suggestion_popup;
 	}
@@ -334,30 +493,6 @@ public class Suggestor {
 	public void addSuggestion(final String word) throws Exception {
 		suggestions.insert(word);
 	}
-
-	private boolean wordTyped(final String typedWord) {
-		
-		if (typedWord.isEmpty() || typedWord.length() < 2) {
-			return false;
-		}
-
-		try {
-			List<String> matches = suggestions.getOrdered(typedWord, WORD_TREE_DEFAULT_CACHE_SIZE);
-			if (matches.size() > MAX_SUGGESTIONS) {
-				matches = matches.subList(0, MAX_SUGGESTIONS);
-			}
-			if (matches.size() > 0) {
-				addWordsToSuggestions(matches);
-				return true;
-			}
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return false;
-		
-	}
 	
 	public static void main(String[] args) {
         SwingUtilities.invokeLater(new Runnable() {
@@ -0,0 +1,312 @@
+package kaflib.types;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a fixed-size, thread-safe record of recently and frequently
+ * accessed keys, without locks or helper threads.
+ *
+ * Residency is a CLOCK ring: each slot holds a key, a referenced bit and
+ * its last access time, and a new key takes the first slot the hand finds
+ * unreferenced, clearing bits as it passes.  Frequency is a count-min
+ * sketch (four rows of counters, halved every 10x capacity accesses so
+ * old popularity fades), and the key with the highest estimate is kept as
+ * it changes.  So accessed() and getMostFrequent() are O(1) and memory is
+ * fixed by the capacity.
+ *
+ * Concurrent updates can briefly disagree (a time written after its key,
+ * an estimate off by a racing increment); this is a ranking hint, not a
+ * ledger.
+ * @param <K>
+ */
+public class AccessTracker<K> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final int SKETCH_ROWS = 4;
+	private static final int SEEDS[] = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+
+	private final int capacity;
+	private final AtomicReferenceArray<K> keys;
+	private final AtomicIntegerArray referenced;
+	private final AtomicLongArray times;
+	private final ConcurrentHashMap<K, Integer> slots;
+	private final AtomicLong hand;
+	private final AtomicLong clock;
+
+	private final int sketch_bits;
+	private final AtomicIntegerArray sketch;
+	private final AtomicLong additions;
+	private final long reset_interval;
+	private final AtomicReference<Leader<K>> most_frequent;
+
+	public AccessTracker(final int capacity) throws Exception {
+		CheckUtils.checkPositive(capacity, "capacity");
+		this.capacity = capacity;
+		keys = new AtomicReferenceArray<K>(capacity);
+		referenced = new AtomicIntegerArray(capacity);
+		times = new AtomicLongArray(capacity);
+		slots = new ConcurrentHashMap<K, Integer>(capacity * 2);
+		hand = new AtomicLong(0);
+		clock = new AtomicLong(0);
+
+		// Sixteen counters per slot per row, a power of two for masking.
+		int bits = 6;
+		while ((1 << bits) < capacity * 16 && bits < 24) {
+			bits++;
+		}
+		sketch_bits = bits;
+		sketch = new AtomicIntegerArray(SKETCH_ROWS << bits);
+		additions = new AtomicLong(0);
+		reset_interval = 10L * capacity;
+		most_frequent = new AtomicReference<Leader<K>>(null);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of keys currently held.
+	 * @return
+	 */
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * Returns the tracker's clock, which advances on every access.
+	 * @return
+	 */
+	public long getTime() {
+		return clock.get();
+	}
+
+	/**
+	 * Returns whether the key is currently held.
+	 * @param key
+	 * @return
+	 */
+	public boolean contains(final K key) {
+		return key != null && slots.containsKey(key);
+	}
+
+	/**
+	 * Returns the key's last access time on the tracker's clock (larger is
+	 * more recent), or null if it isn't held.
+	 * @param key
+	 * @return
+	 */
+	public Long getLastAccess(final K key) {
+		Integer slot = key == null ? null : slots.get(key);
+		if (slot == null || !key.equals(keys.get(slot))) {
+			return null;
+		}
+		return times.get(slot);
+	}
+
+	/**
+	 * Records an access.
+	 * @param key
+	 * @throws Exception
+	 */
+	public void accessed(final K key) throws Exception {
+		CheckUtils.check(key, "key");
+		int estimate = increment(key);
+		long now = clock.incrementAndGet();
+
+		Integer slot = slots.get(key);
+		if (slot == null || !key.equals(keys.get(slot))) {
+			slot = claim(key);
+		}
+		times.set(slot, now);
+		referenced.set(slot, 1);
+
+		while (true) {
+			Leader<K> leader = most_frequent.get();
+			if (leader != null && estimate <= leader.count &&
+				!(leader.key.equals(key) && estimate != leader.count)) {
+				break;
+			}
+			if (most_frequent.compareAndSet(leader, new Leader<K>(key, estimate))) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the key with the highest estimated access count, or null if
+	 * nothing has been accessed.  It may since have left the ring.
+	 * @return
+	 */
+	public K getMostFrequent() {
+		Leader<K> leader = most_frequent.get();
+		return leader == null ? null : leader.key;
+	}
+
+	/**
+	 * Returns the estimated access count of the key, which never
+	 * undercounts since the last aging.
+	 * @param key
+	 * @return
+	 */
+	public int getFrequency(final K key) {
+		if (key == null) {
+			return 0;
+		}
+		int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < SKETCH_ROWS; row++) {
+			estimate = Math.min(estimate, sketch.get(getCell(row, hash)));
+		}
+		return estimate;
+	}
+
+	/**
+	 * Returns up to maxSize held keys that pass the filter, most recently
+	 * accessed first.  Scans the ring, so O(capacity).
+	 * @param filter null for all.
+	 * @param maxSize
+	 * @return
+	 */
+	public List<K> getRecent(final Predicate<K> filter, final int maxSize) {
+		List<Pair<K, Long>> held = new ArrayList<Pair<K, Long>>();
+		for (int i = 0; i < capacity; i++) {
+			K key = keys.get(i);
+			if (key != null && (filter == null || filter.test(key))) {
+				held.add(new Pair<K, Long>(key, times.get(i)));
+			}
+		}
+		Collections.sort(held, new Comparator<Pair<K, Long>>() {
+			@Override
+			public int compare(Pair<K, Long> o1, Pair<K, Long> o2) {
+				return Long.compare(o2.getSecond(), o1.getSecond());
+			}
+		});
+		List<K> list = new ArrayList<K>(Math.min(held.size(), Math.max(maxSize, 0)));
+		for (int i = 0; i < held.size() && list.size() < maxSize; i++) {
+			list.add(held.get(i).getFirst());
+		}
+		return list;
+	}
+
+	/**
+	 * Drops the key from the ring (its frequency fades with aging).
+	 * @param key
+	 * @return
+	 */
+	public boolean remove(final K key) {
+		if (key == null) {
+			return false;
+		}
+		Integer slot = slots.remove(key);
+		if (slot == null) {
+			return false;
+		}
+		keys.compareAndSet(slot, key, null);
+		referenced.set(slot, 0);
+		return true;
+	}
+
+	/**
+	 * Moves the hand to the first unreferenced slot, takes it for the key
+	 * and returns its index.
+	 * @param key
+	 * @return
+	 */
+	private int claim(final K key) {
+		while (true) {
+			int slot = (int) (hand.getAndIncrement() % capacity);
+			if (referenced.get(slot) != 0) {
+				// Second chance.
+				referenced.compareAndSet(slot, 1, 0);
+				continue;
+			}
+			K evicted = keys.get(slot);
+			if (!keys.compareAndSet(slot, evicted, key)) {
+				continue;
+			}
+			if (evicted != null) {
+				slots.remove(evicted, slot);
+			}
+			Integer previous = slots.put(key, slot);
+			if (previous != null && previous != slot) {
+				// Another thread placed the same key at once, free its slot.
+				keys.compareAndSet(previous, key, null);
+			}
+			return slot;
+		}
+	}
+
+	/**
+	 * Counts the key in each sketch row, ages the sketch when due, and
+	 * returns the new estimate.
+	 * @param key
+	 * @return
+	 */
+	private int increment(final K key) {
+		int hash = spread(key.hashCode());
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < SKETCH_ROWS; row++) {
+			int count = sketch.incrementAndGet(getCell(row, hash));
+			estimate = Math.min(estimate, count);
+		}
+		if (additions.incrementAndGet() == reset_interval) {
+			age();
+			estimate = (estimate + 1) / 2;
+		}
+		return estimate;
+	}
+
+	/**
+	 * Halves every counter.  Only the thread that reaches the interval gets
+	 * here; increments racing the halving may be halved or not.
+	 */
+	private void age() {
+		for (int i = 0; i < sketch.length(); i++) {
+			int count = sketch.get(i);
+			sketch.compareAndSet(i, count, count >>> 1);
+		}
+		additions.set(reset_interval / 2);
+		Leader<K> leader = most_frequent.get();
+		if (leader != null) {
+			most_frequent.compareAndSet(leader, new Leader<K>(leader.key, leader.count >>> 1));
+		}
+	}
+
+	private int getCell(final int row, final int hash) {
+		return (row << sketch_bits) | ((hash * SEEDS[row]) >>> (32 - sketch_bits));
+	}
+
+	private static int spread(final int hash) {
+		int h = hash * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The current most frequent key and its estimate.
+	 */
+	private static class Leader<K> implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final K key;
+		private final int count;
+
+		private Leader(final K key, final int count) {
+			this.key = key;
+			this.count = count;
+		}
+	}
+
+}
@@ -1,38 +1,54 @@
 package kaflib.types;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-
-import kaflib.utils.TypeUtils;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Defines a subtype of WordTree where a cache of recent values is maintained.
+ * The cache is an AccessTracker: a fixed ring of recently selected words
+ * plus a frequency sketch, without spawning eviction threads or taking
+ * locks, so accessed() stays O(1) on the keystroke path.
+ *
+ * Completions list the most recent cached hits for a prefix first, then
+ * fill from the tree.  Hits come best first from a long-lived
+ * RankedWordTrie of the cached words scored by access time.  accessed()
+ * only queues the word; the next lookup drains the queue into the ranked
+ * trie, updating each word's score in place (or removing it, if it has
+ * left the cache or the tree), so nothing is rebuilt per access.  The
+ * ring evicts without notice, so words no longer cached are dropped from
+ * the ranked trie as lookups meet them.  The ranked trie is only touched
+ * by lookups, under its own lock.
  */
 public class CachedWordTrie extends WordTrie implements Serializable {
 
-	private static final long serialVersionUID = 3L;
-	private Map<String, Integer> cache;
-	private int cache_size;
-	private int relative_time;
-	
+	private static final long serialVersionUID = 5L;
+	private final AccessTracker<String> cache;
+	private final RankedWordTrie recent;
+	private final ConcurrentLinkedQueue<String> accesses;
+	// Queued accesses, a bound rather than an exact count.
+	private final AtomicInteger queued;
+	private final AtomicBoolean resync;
+
 	/**
 	 * Create the tree with the specified cache size.
 	 * @param cacheSize
+	 * @throws Exception
 	 */
-	public CachedWordTrie(final int cacheSize) {
+	public CachedWordTrie(final int cacheSize) throws Exception {
 		super();
-		cache = new HashMap<String, Integer>(cacheSize);
-		cache_size = cacheSize;
-		relative_time = 0;
+		cache = new AccessTracker<String>(cacheSize);
+		recent = new RankedWordTrie();
+		accesses = new ConcurrentLinkedQueue<String>();
+		queued = new AtomicInteger(0);
+		resync = new AtomicBoolean(false);
 	}
-	
+
 	/**
 	 * Create the tree with the specified cache size.
 	 * @param cacheSize
@@ -40,51 +56,53 @@ public class CachedWordTrie extends WordTrie implements Serializable {
 	public CachedWordTrie(final Collection<String> initialValues,
 						  final int cacheSize) throws Exception {
 		super(initialValues);
-		cache = new HashMap<String, Integer>(cacheSize);
-		cache_size = cacheSize;
-		relative_time = 0;
+		cache = new AccessTracker<String>(cacheSize);
+		recent = new RankedWordTrie();
+		accesses = new ConcurrentLinkedQueue<String>();
+		queued = new AtomicInteger(0);
+		resync = new AtomicBoolean(false);
 	}
-	
+
 	/**
 	 * Add a value to the cache.  Unfortunately the word tree has no idea what
-	 * value was selected.
+	 * value was selected.  Words not in the tree never complete, so they
+	 * just age out.
 	 * @param word
 	 * @throws Exception
 	 */
 	public void accessed(final String word) throws Exception {
-		cache.put(word, relative_time);
-		relative_time = (relative_time % (Integer.MAX_VALUE - 5)) + 1;
-		
-		// Need to evict, do so asynchronously.
-		if (cache.size() > cache_size) {
-			Worker worker = new Worker() {
-				@Override
-				protected void process() throws Exception {
-					while (cache.size() > cache_size * 0.7) {
-						cache.remove(TypeUtils.getRandom(cache.keySet()));
-					}	
-				}
-			};
-			worker.start();
+		if (word == null) {
+			return;
 		}
+		cache.accessed(word);
+		queue(word);
 	}
-	
+
 	/**
-	 * Retuns the most accessed value.
+	 * Retuns the most accessed value, or null if nothing has been accessed.
 	 * @return
 	 */
 	public String getMostFrequent() {
-		String string = null;
-		int value = 0;
-		for (String key : cache.keySet()) {
-			if (cache.get(key) > value) {
-				string = key;
-				value = cache.get(value);
-			}
-		}
-		return string;
+		return cache.getMostFrequent();
+	}
+
+	/**
+	 * Returns the cache.
+	 * @return
+	 */
+	public AccessTracker<String> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Removes the word from the tree and the cache.
+	 */
+	public boolean remove(final String word) throws Exception {
+		cache.remove(word);
+		queue(word);
+		return super.remove(word);
 	}
-	
+
 	/**
 	 * Return a list of matches, with cache hits listed first by most recent
 	 * access.
@@ -94,40 +112,120 @@ public class CachedWordTrie extends WordTrie implements Serializable {
 	 * @throws Exception
 	 */
 	public List<String> getOrdered(final String prefix, final int maxSize) throws Exception {
-		Set<String> words = super.get(prefix, maxSize);
-		List<String> nonhits = new ArrayList<String>();
-		List<String> hits = new ArrayList<String>();
-		
-		for (String word : words) {
-			if (cache.containsKey(word)) {
-				hits.add(word);
-			}
-			else {
-				nonhits.add(word);
-			}
+		List<String> words = getHits(prefix, maxSize);
+		if (words.size() >= maxSize) {
+			return words;
 		}
-		Collections.sort(hits, new Comparator<String>(){
-			@Override
-			public int compare(String o1, String o2) {
-				Integer time_1 = cache.get(o1);
-				Integer time_2 = cache.get(o2);
-				if (time_1 == null || time_2 == null) {
-					return 0;
-				}
-				if (time_1 > time_2) {
-					return -1;
+
+		// Fill with non-hits, fetching enough to skip the hits again.
+		Set<String> hits = new HashSet<String>(words);
+		for (String word : super.getOrdered(prefix, maxSize + hits.size())) {
+			if (!hits.contains(word)) {
+				words.add(word);
+				if (words.size() >= maxSize) {
+					break;
 				}
-				else if (time_1 < time_2) {
-					return 1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 * Queues a word whose access time changed for the next lookup.  If
+	 * lookups fall far behind, the queue is dropped and the next lookup
+	 * resynchronizes from the ring instead.
+	 * @param word
+	 */
+	private void queue(final String word) {
+		if (queued.incrementAndGet() > 4 * cache.getCapacity()) {
+			resync.set(true);
+			queued.set(0);
+			accesses.clear();
+			return;
+		}
+		accesses.offer(word);
+	}
+
+	/**
+	 * Returns up to maxSize cached words in the tree with the prefix, most
+	 * recent first.  Stale words met on the way are dropped from the
+	 * ranked trie and the lookup repeated, so up to maxSize live words are
+	 * still returned.
+	 * @param prefix
+	 * @param maxSize
+	 * @return
+	 * @throws Exception
+	 */
+	private List<String> getHits(final String prefix, final int maxSize) throws Exception {
+		synchronized (recent) {
+			drain();
+			while (true) {
+				List<String> words = recent.getTopK(prefix, maxSize);
+				boolean dropped = false;
+				for (String word : words) {
+					if (!cache.contains(word) || !contains(word)) {
+						recent.remove(word);
+						dropped = true;
+					}
 				}
-				else {
-					return 0;
+				if (!dropped) {
+					return words;
 				}
-			}});
-		
-		hits.addAll(nonhits);
-		
-		return hits;
+			}
+		}
 	}
-	
+
+	/**
+	 * Applies the queued accesses to the ranked trie.  Holds its lock.
+	 * @throws Exception
+	 */
+	private void drain() throws Exception {
+		if (resync.getAndSet(false)) {
+			accesses.clear();
+			for (String word : cache.getRecent(null, cache.getCapacity())) {
+				update(word);
+			}
+			prune();
+		}
+
+		String word;
+		while ((word = accesses.poll()) != null) {
+			queued.decrementAndGet();
+			update(word);
+		}
+
+		// Words evicted from the ring that no lookup has met yet.
+		if (recent.size() > 2 * cache.getCapacity()) {
+			prune();
+		}
+	}
+
+	/**
+	 * Scores the word by its last access, or removes it if it is no longer
+	 * cached or in the tree.  Holds the ranked trie's lock.
+	 * @param word
+	 * @throws Exception
+	 */
+	private void update(final String word) throws Exception {
+		Long time = cache.getLastAccess(word);
+		if (time != null && contains(word)) {
+			recent.setScore(word, time);
+		}
+		else {
+			recent.remove(word);
+		}
+	}
+
+	/**
+	 * Removes every word no longer cached from the ranked trie.  Holds its
+	 * lock.
+	 */
+	private void prune() {
+		for (String word : recent.getTopK(null, recent.size())) {
+			if (!cache.contains(word)) {
+				recent.remove(word);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,659 @@
+package kaflib.types;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.function.Predicate;
+
+import kaflib.utils.CheckUtils;
+import kaflib.utils.FileUtils;
+
+/**
+ * Defines a read-only word trie packed into flat arrays, built from a
+ * WordTrie.  Nodes are numbered breadth first, so the children of a node
+ * are contiguous and sorted by letter:
+ *
+ *   labels[i]        letter on the edge into node i (root is 0)
+ *   children[i]      first child of node i, children[i + 1] is one past
+ *                    the last
+ *   words bit i      node i ends a word
+ *
+ * That's six bytes and a bit per node, with no per-node objects.  Lookups
+ * binary search each node's children, and prefix enumeration walks depth
+ * first into one char buffer, so words come out alphabetically and the
+ * only allocations are the returned strings.
+ *
+ * The arrays can be written to a file in the same layout (big endian,
+ * sections 8-byte aligned).  map() queries that file in place through
+ * buffer views, so a large index loads with one mmap and next to no heap;
+ * fromFile() copies it onto the heap instead.
+ */
+public class CompactWordTrie implements WordIndex {
+
+	static final int MAGIC = 0x4b575452;	// "KWTR"
+	static final int VERSION = 1;
+	static final int HEADER_BYTES = 24;
+	public static final String INDEX_EXTENSION = ".kwt";
+
+	// Absolute gets only, so queries are safe from any thread.
+	private final CharBuffer labels;
+	private final IntBuffer children;
+	private final LongBuffer words;
+	private final int node_count;
+	private final int word_count;
+	private final int max_length;
+
+	/**
+	 * Packs the words currently in the trie, including any base index.
+	 * @param trie
+	 * @throws Exception
+	 */
+	public CompactWordTrie(final WordTrie trie) throws Exception {
+		this(getRoot(trie));
+	}
+
+	private CompactWordTrie(final Node root) throws Exception {
+		// Number nodes breadth first, children in letter order.
+		List<Node> nodes = new ArrayList<Node>();
+		List<Character> letters = new ArrayList<Character>();
+		List<Integer> depths = new ArrayList<Integer>();
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		nodes.add(root);
+		letters.add((char) 0);
+		depths.add(0);
+		queue.add(0);
+
+		List<Integer> first_child = new ArrayList<Integer>();
+		while (!queue.isEmpty()) {
+			int index = queue.remove();
+			Node node = nodes.get(index);
+			first_child.add(nodes.size());
+			Character keys[] = node.getChildren().keySet().toArray(new Character[0]);
+			Arrays.sort(keys);
+			for (Character letter : keys) {
+				queue.add(nodes.size());
+				nodes.add(node.getChildren().get(letter));
+				letters.add(letter);
+				depths.add(depths.get(index) + 1);
+			}
+		}
+
+		int size = nodes.size();
+		char labels[] = new char[size];
+		int children[] = new int[size + 1];
+		long words[] = new long[(size + 63) >>> 6];
+		int count = 0;
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			labels[i] = letters.get(i);
+			children[i] = first_child.get(i);
+			if (nodes.get(i).isWord()) {
+				words[i >>> 6] |= 1L << i;
+				count++;
+				length = Math.max(length, depths.get(i));
+			}
+		}
+		children[size] = size;
+		this.labels = CharBuffer.wrap(labels);
+		this.children = IntBuffer.wrap(children);
+		this.words = LongBuffer.wrap(words);
+		node_count = size;
+		word_count = count;
+		max_length = length;
+	}
+
+	/**
+	 * Packs the words.
+	 * @param words
+	 * @throws Exception
+	 */
+	public CompactWordTrie(final Collection<String> words) throws Exception {
+		this(new WordTrie(words));
+	}
+
+	private CompactWordTrie(final CharBuffer labels,
+							final IntBuffer children,
+							final LongBuffer words,
+							final int nodeCount,
+							final int wordCount,
+							final int maxLength) {
+		this.labels = labels;
+		this.children = children;
+		this.words = words;
+		this.node_count = nodeCount;
+		this.word_count = wordCount;
+		this.max_length = maxLength;
+	}
+
+	/**
+	 * Returns the number of words.
+	 * @return
+	 */
+	public int size() {
+		return word_count;
+	}
+
+	/**
+	 * Returns the number of nodes, including the root.
+	 * @return
+	 */
+	public int getNodeCount() {
+		return node_count;
+	}
+
+	/**
+	 * Returns the length of the longest word.
+	 * @return
+	 */
+	public int getMaxLength() {
+		return max_length;
+	}
+
+	@Override
+	public boolean contains(final String word) {
+		if (word == null) {
+			return false;
+		}
+		int node = find(word);
+		return node >= 0 && isWord(node);
+	}
+
+	/**
+	 * Returns whether any word starts with the prefix.
+	 * @param prefix
+	 * @return
+	 */
+	public boolean containsPrefix(final String prefix) {
+		return prefix != null && find(prefix) >= 0;
+	}
+
+	/**
+	 * Returns up to maxSize words starting with the prefix, alphabetically.
+	 * A null prefix matches every word.
+	 */
+	@Override
+	public List<String> getOrdered(final String prefix, final int maxSize) throws Exception {
+		final List<String> list = new ArrayList<String>(Math.min(Math.max(maxSize, 0), 64));
+		if (maxSize <= 0) {
+			return list;
+		}
+		forEach(prefix, word -> {
+			list.add(word);
+			return list.size() < maxSize;
+		});
+		return list;
+	}
+
+	/**
+	 * Passes each word starting with the prefix to the visitor,
+	 * alphabetically, until the visitor returns false.  Returns the number
+	 * of words visited.
+	 * @param prefix
+	 * @param visitor
+	 * @return
+	 */
+	public int forEach(final String prefix, final Predicate<String> visitor) {
+		String start = prefix == null ? "" : prefix;
+		int node = find(start);
+		if (node < 0) {
+			return 0;
+		}
+		char buffer[] = new char[Math.max(start.length(), max_length)];
+		start.getChars(0, start.length(), buffer, 0);
+		int visited[] = new int[1];
+		walk(node, buffer, start.length(), visitor, visited);
+		return visited[0];
+	}
+
+	/**
+	 * Returns false once the visitor asks to stop.
+	 */
+	private boolean walk(final int node,
+						 final char buffer[],
+						 final int length,
+						 final Predicate<String> visitor,
+						 final int visited[]) {
+		if (isWord(node)) {
+			visited[0]++;
+			if (!visitor.test(new String(buffer, 0, length))) {
+				return false;
+			}
+		}
+		for (int child = children.get(node); child < children.get(node + 1); child++) {
+			buffer[length] = labels.get(child);
+			if (!walk(child, buffer, length + 1, visitor, visited)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns up to k words within maxDistance edits (Levenshtein, ignoring
+	 * case) of the word, as (word, distance), closest first, then shortest,
+	 * then alphabetical.
+	 * @param word
+	 * @param maxDistance
+	 * @param k
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Pair<String, Integer>> getFuzzy(final String word,
+												final int maxDistance,
+												final int k) throws Exception {
+		return new FuzzySearch(word, maxDistance, k, false).run();
+	}
+
+	/**
+	 * Returns up to k words that start with something within maxDistance
+	 * edits (Levenshtein, ignoring case) of the prefix, i.e. typo tolerant
+	 * completion.  Ranked as getFuzzy(), distance being that of the
+	 * closest prefix.
+	 * @param prefix
+	 * @param maxDistance
+	 * @param k
+	 * @return
+	 * @throws Exception
+	 */
+	public List<Pair<String, Integer>> getFuzzyCompletions(final String prefix,
+														   final int maxDistance,
+														   final int k) throws Exception {
+		return new FuzzySearch(prefix, maxDistance, k, true).run();
+	}
+
+	/**
+	 * Walks the trie depth first carrying one row of the edit distance
+	 * table per level, which is the Levenshtein automaton for the query
+	 * run over every path at once.  A branch is dropped when no cell in its
+	 * row is within the bound or, with k results held, when nothing beneath
+	 * it could beat the worst of them.
+	 */
+	private class FuzzySearch {
+		private final char query[];
+		private final int limit;
+		private final int k;
+		private final boolean completions;
+		private final int rows[][];
+		private final char buffer[];
+		private final PriorityQueue<Match> matches;
+
+		private FuzzySearch(final String query,
+							final int maxDistance,
+							final int k,
+							final boolean completions) throws Exception {
+			CheckUtils.check(query, "query");
+			CheckUtils.checkNonNegative(maxDistance, "distance");
+			this.query = query.toLowerCase().toCharArray();
+			this.limit = maxDistance;
+			this.k = k;
+			this.completions = completions;
+			rows = new int[max_length + 1][this.query.length + 1];
+			buffer = new char[max_length];
+			// Worst match at the head.
+			matches = new PriorityQueue<Match>(Math.max(1, k), Collections.reverseOrder());
+		}
+
+		private List<Pair<String, Integer>> run() {
+			List<Pair<String, Integer>> list = new ArrayList<Pair<String, Integer>>();
+			if (k <= 0) {
+				return list;
+			}
+			for (int j = 0; j <= query.length; j++) {
+				rows[0][j] = j;
+			}
+			walk(0, 0, query.length);
+
+			List<Match> sorted = new ArrayList<Match>(matches);
+			Collections.sort(sorted);
+			for (Match match : sorted) {
+				list.add(new Pair<String, Integer>(match.word, match.distance));
+			}
+			return list;
+		}
+
+		/**
+		 * @param node
+		 * @param depth
+		 * @param prefixDistance best distance of a prefix on the path, for
+		 * completions.
+		 */
+		private void walk(final int node, final int depth, final int prefixDistance) {
+			int row[] = rows[depth];
+			int distance = completions ? prefixDistance : row[query.length];
+			if (isWord(node) && isReachable(distance, depth)) {
+				offer(distance, depth);
+			}
+			for (int child = children.get(node); child < children.get(node + 1); child++) {
+				char letter = Character.toLowerCase(labels.get(child));
+				int next[] = rows[depth + 1];
+				next[0] = row[0] + 1;
+				int minimum = next[0];
+				for (int j = 1; j <= query.length; j++) {
+					int cost = query[j - 1] == letter ? 0 : 1;
+					next[j] = Math.min(Math.min(row[j] + 1, next[j - 1] + 1), row[j - 1] + cost);
+					minimum = Math.min(minimum, next[j]);
+				}
+				// Row minimums never fall going deeper, so nothing below can
+				// beat this.
+				int child_prefix = Math.min(prefixDistance, next[query.length]);
+				int potential = completions ? Math.min(child_prefix, minimum) : minimum;
+				if (isReachable(potential, depth + 1)) {
+					buffer[depth] = labels.get(child);
+					walk(child, depth + 1, child_prefix);
+				}
+			}
+		}
+
+		/**
+		 * Returns whether a word at the distance and at least the length
+		 * could still make the results.
+		 * @param distance
+		 * @param length
+		 * @return
+		 */
+		private boolean isReachable(final int distance, final int length) {
+			if (matches.size() < k) {
+				return distance <= limit;
+			}
+			Match worst = matches.peek();
+			return distance < worst.distance || (distance == worst.distance && length <= worst.length);
+		}
+
+		private void offer(final int distance, final int length) {
+			Match match = new Match(null, distance, length);
+			if (matches.size() >= k) {
+				Match worst = matches.peek();
+				if (distance > worst.distance || (distance == worst.distance && length > worst.length)) {
+					return;
+				}
+			}
+			match.word = new String(buffer, 0, length);
+			if (matches.size() >= k) {
+				if (match.compareTo(matches.peek()) >= 0) {
+					return;
+				}
+				matches.poll();
+			}
+			matches.add(match);
+		}
+	}
+
+	/**
+	 * A fuzzy result, ordered closest, shortest, then alphabetical.
+	 */
+	private static class Match implements Comparable<Match> {
+		private String word;
+		private final int distance;
+		private final int length;
+
+		private Match(final String word, final int distance, final int length) {
+			this.word = word;
+			this.distance = distance;
+			this.length = length;
+		}
+
+		@Override
+		public int compareTo(final Match other) {
+			if (distance != other.distance) {
+				return Integer.compare(distance, other.distance);
+			}
+			if (length != other.length) {
+				return Integer.compare(length, other.length);
+			}
+			return word.compareTo(other.word);
+		}
+	}
+
+	/**
+	 * Returns the node reached by the string, or -1.
+	 * @param string
+	 * @return
+	 */
+	private int find(final String string) {
+		int node = 0;
+		for (int i = 0; i < string.length() && node >= 0; i++) {
+			node = getChild(node, string.charAt(i));
+		}
+		return node;
+	}
+
+	/**
+	 * Returns the child of the node on the letter, or -1.
+	 * @param node
+	 * @param letter
+	 * @return
+	 */
+	private int getChild(final int node, final char letter) {
+		int low = children.get(node);
+		int high = children.get(node + 1) - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			char value = labels.get(middle);
+			if (value < letter) {
+				low = middle + 1;
+			}
+			else if (value > letter) {
+				high = middle - 1;
+			}
+			else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isWord(final int node) {
+		return (words.get(node >>> 6) & (1L << node)) != 0;
+	}
+
+	/**
+	 * Writes the trie to the file.
+	 * @param file
+	 * @throws Exception
+	 */
+	public void toFile(final File file) throws Exception {
+		CheckUtils.check(file, "file");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(node_count);
+			output.writeInt(word_count);
+			output.writeInt(max_length);
+			output.writeInt(0);
+			for (int i = 0; i < node_count; i++) {
+				output.writeChar(labels.get(i));
+			}
+			pad(output, node_count * 2);
+			for (int i = 0; i <= node_count; i++) {
+				output.writeInt(children.get(i));
+			}
+			pad(output, (node_count + 1) * 4);
+			for (int i = 0; i < words.limit(); i++) {
+				output.writeLong(words.get(i));
+			}
+		}
+		finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Reads a trie written by toFile() onto the heap.  The file isn't
+	 * needed afterwards.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompactWordTrie fromFile(final File file) throws Exception {
+		CompactWordTrie mapped = map(file);
+		char labels[] = new char[mapped.node_count];
+		int children[] = new int[mapped.node_count + 1];
+		long words[] = new long[mapped.words.limit()];
+		mapped.labels.duplicate().get(labels);
+		mapped.children.duplicate().get(children);
+		mapped.words.duplicate().get(words);
+		return new CompactWordTrie(CharBuffer.wrap(labels),
+								   IntBuffer.wrap(children),
+								   LongBuffer.wrap(words),
+								   mapped.node_count,
+								   mapped.word_count,
+								   mapped.max_length);
+	}
+
+	/**
+	 * Maps a trie written by toFile() and queries it in place: loading is
+	 * one mmap and the heap holds only this object, the OS pages the
+	 * file in as it's read.  The file must not change while mapped.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompactWordTrie map(final File file) throws Exception {
+		CheckUtils.checkReadable(file, "trie file");
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			// The mapping outlives the channel.
+			FileChannel channel = input.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int header[] = readHeader(buffer, file);
+			int nodes = header[0];
+			return new CompactWordTrie(getSection(buffer, HEADER_BYTES, nodes * 2).asCharBuffer(),
+									   getSection(buffer, getChildrenOffset(nodes), (nodes + 1) * 4).asIntBuffer(),
+									   getSection(buffer, getWordsOffset(nodes), ((nodes + 63) >>> 6) * 8).asLongBuffer(),
+									   nodes,
+									   header[1],
+									   header[2]);
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the mapped index of the word list text file, one word per
+	 * line.  The index is kept beside it as <name>.kwt and rebuilt when
+	 * missing or older than the text; if it can't be written, the words are
+	 * packed in memory instead.
+	 * @param textFile
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompactWordTrie open(final File textFile) throws Exception {
+		CheckUtils.checkReadable(textFile, "word file");
+		File index = new File(textFile.getPath() + INDEX_EXTENSION);
+		if (index.exists() && index.lastModified() >= textFile.lastModified()) {
+			try {
+				return map(index);
+			}
+			catch (Exception e) {
+				System.err.println("Rebuilding word index " + index + ": " + e.getMessage());
+			}
+		}
+		return createIndex(FileUtils.readLines(textFile), index);
+	}
+
+	/**
+	 * Packs the words, writes them to the file and returns the file mapped.
+	 * If the file can't be written the packed copy is returned instead.
+	 * @param words
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static CompactWordTrie createIndex(final Collection<String> words, final File file) throws Exception {
+		CheckUtils.check(file, "file");
+		CompactWordTrie trie = new CompactWordTrie(words);
+		try {
+			// Write aside and move, so a reader never maps half a file.
+			File temporary = new File(file.getPath() + ".tmp");
+			trie.toFile(temporary);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return map(file);
+		}
+		catch (Exception e) {
+			System.err.println("Unable to write word index " + file + ": " + e.getMessage());
+			return trie;
+		}
+	}
+
+	/**
+	 * Returns the root of the trie's nodes, merged with its base if it has
+	 * one.
+	 * @param trie
+	 * @return
+	 * @throws Exception
+	 */
+	private static Node getRoot(final WordTrie trie) throws Exception {
+		CheckUtils.check(trie, "trie");
+		if (trie.getBase() == null) {
+			return trie.getRoot();
+		}
+		return new WordTrie(trie.get()).getRoot();
+	}
+
+	private static ByteBuffer getSection(final ByteBuffer buffer, final int offset, final int length) {
+		ByteBuffer section = buffer.duplicate();
+		section.position(offset);
+		section.limit(offset + length);
+		return section.slice();
+	}
+
+	/**
+	 * Checks the header and size, returns {nodes, words, max length}.
+	 * @param buffer
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	static int[] readHeader(final ByteBuffer buffer, final File file) throws Exception {
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new Exception("Not a word trie file: " + file + ".");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new Exception("Unsupported word trie version " + buffer.getInt(4) + " in " + file + ".");
+		}
+		int nodes = buffer.getInt(8);
+		if (nodes <= 0 || (long) getWordsOffset(nodes) + (long) ((nodes + 63) >>> 6) * 8 > buffer.capacity()) {
+			throw new Exception("Truncated word trie file: " + file + ".");
+		}
+		return new int[] { nodes, buffer.getInt(12), buffer.getInt(16) };
+	}
+
+	static int getChildrenOffset(final int nodes) {
+		return align(HEADER_BYTES + nodes * 2);
+	}
+
+	static int getWordsOffset(final int nodes) {
+		return align(getChildrenOffset(nodes) + (nodes + 1) * 4);
+	}
+
+	private static int align(final int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	private static void pad(final DataOutputStream output, final int length) throws Exception {
+		for (int i = length; i < align(length); i++) {
+			output.writeByte(0);
+		}
+	}
+
+}
@@ -89,23 +89,18 @@ public class Histogram<T> {
 	 * @return
 	 */
 	public List<T> getRanked() {
-		List<T> list = new ArrayList<T>();
-		list.addAll(histogram.keySet());
-		Collections.sort(list, new Comparator<T>() {
+		List<Map.Entry<T, Integer>> entries = new ArrayList<Map.Entry<T, Integer>>(histogram.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<T, Integer>>() {
 
 			@Override
-			public int compare(T o1, T o2) {
-				if (histogram.get(o1) > histogram.get(o2)) {
-					return -1;
-				}
-				else if (histogram.get(o1) < histogram.get(o2)) {
-					return 1;
-				}
-				else {
-					return 0;
-				}
+			public int compare(Map.Entry<T, Integer> o1, Map.Entry<T, Integer> o2) {
+				return Integer.compare(o2.getValue(), o1.getValue());
 			}
 		});
+		List<T> list = new ArrayList<T>(entries.size());
+		for (Map.Entry<T, Integer> entry : entries) {
+			list.add(entry.getKey());
+		}
 		return list;
 	}
 	
@@ -0,0 +1,526 @@
+package kaflib.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import kaflib.utils.TypeUtils;
+
+/**
+ * Defines a histogram of int values over a fixed range, counted in an
+ * int[] of bins.  Values bin the same way as IntegerHistogram: a bin is
+ * keyed by its lower bound, min + n * step, and holds the values in
+ * (key, key + step] (the first bin also holds min itself).
+ *
+ * Counts can be added and subtracted, per value or per histogram, so a
+ * sliding window is updated in O(bins) rather than rebuilt.  Histograms
+ * with the same range can be merged, e.g. partials accumulated on separate
+ * threads.  Not synchronized.
+ */
+public class IntHistogram {
+
+	// Values per task when accumulating in parallel.
+	private static final int PARALLEL_CHUNK = 1 << 16;
+
+	private final int min;
+	private final int max;
+	private final int step;
+	private final int bins[];
+	private long total;
+
+	public IntHistogram(final int min, final int max, final int step) throws Exception {
+		if (step <= 0) {
+			throw new Exception("Invalid step: " + step + ".");
+		}
+		if (max < min) {
+			throw new Exception("Invalid range: " + min + "-" + max + ".");
+		}
+		this.min = min;
+		this.max = max;
+		this.step = step;
+		this.bins = new int[getIndex(max) + 1];
+		this.total = 0;
+	}
+
+	/**
+	 * Returns an empty histogram with the same range and step.
+	 * @return
+	 * @throws Exception
+	 */
+	public IntHistogram createEmpty() throws Exception {
+		return new IntHistogram(min, max, step);
+	}
+
+	/**
+	 * Returns a copy of the histogram.
+	 * @return
+	 * @throws Exception
+	 */
+	public IntHistogram copy() throws Exception {
+		IntHistogram copy = createEmpty();
+		System.arraycopy(bins, 0, copy.bins, 0, bins.length);
+		copy.total = total;
+		return copy;
+	}
+
+	public int getMin() {
+		return min;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the number of bins.
+	 * @return
+	 */
+	public int getBinCount() {
+		return bins.length;
+	}
+
+	/**
+	 * Returns the key (lower bound) of the bin at the index.
+	 * @param index
+	 * @return
+	 */
+	public int getBinKey(final int index) {
+		return min + index * step;
+	}
+
+	/**
+	 * Returns the count of the bin at the index.
+	 * @param index
+	 * @return
+	 */
+	public int getBinCount(final int index) {
+		return bins[index];
+	}
+
+	/**
+	 * Returns the count of the bin holding the value.
+	 * @param value
+	 * @return
+	 * @throws Exception
+	 */
+	public int get(final int value) throws Exception {
+		check(value);
+		return bins[getIndex(value)];
+	}
+
+	/**
+	 * Returns the sum of all counts.
+	 * @return
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public boolean isEmpty() {
+		return total == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(bins, 0);
+		total = 0;
+	}
+
+	public void increment(final int value) throws Exception {
+		increment(value, 1);
+	}
+
+	public void increment(final int value, final int amount) throws Exception {
+		check(value);
+		int index = getIndex(value);
+		if (amount < 0) {
+			if (bins[index] + amount < 0) {
+				throw new Exception("Underflow of: " + getBinKey(index) + " trying to decrement " +
+									bins[index] + " by " + -amount + ".");
+			}
+		}
+		else if (Integer.MAX_VALUE - bins[index] < amount) {
+			throw new Exception("Overflow of: " + getBinKey(index) + " trying to increment " +
+								bins[index] + " by " + amount + ".");
+		}
+		bins[index] += amount;
+		total += amount;
+	}
+
+	public void decrement(final int value) throws Exception {
+		increment(value, -1);
+	}
+
+	public void decrement(final int value, final int amount) throws Exception {
+		increment(value, -amount);
+	}
+
+	/**
+	 * Counts every value in the array.
+	 * @param values
+	 * @throws Exception
+	 */
+	public void addAll(final int values[]) throws Exception {
+		addAll(values, 0, values.length);
+	}
+
+	/**
+	 * Counts values[offset, offset + length).
+	 * @param values
+	 * @param offset
+	 * @param length
+	 * @throws Exception
+	 */
+	public void addAll(final int values[], final int offset, final int length) throws Exception {
+		checkRange(values.length, offset, length);
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			check(values[i]);
+		}
+		for (int i = offset; i < end; i++) {
+			bins[getIndex(values[i])]++;
+		}
+		total += length;
+	}
+
+	/**
+	 * Removes one count for every value in the array.
+	 * @param values
+	 * @throws Exception
+	 */
+	public void subtractAll(final int values[]) throws Exception {
+		subtractAll(values, 0, values.length);
+	}
+
+	/**
+	 * Removes one count for each of values[offset, offset + length).  The
+	 * values should have been added before; if any bin would go negative
+	 * nothing is changed.
+	 * @param values
+	 * @param offset
+	 * @param length
+	 * @throws Exception
+	 */
+	public void subtractAll(final int values[], final int offset, final int length) throws Exception {
+		checkRange(values.length, offset, length);
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			check(values[i]);
+		}
+		for (int i = offset; i < end; i++) {
+			bins[getIndex(values[i])]--;
+		}
+		total -= length;
+		for (int i = 0; i < bins.length; i++) {
+			if (bins[i] < 0) {
+				for (int j = offset; j < end; j++) {
+					bins[getIndex(values[j])]++;
+				}
+				total += length;
+				throw new Exception("Underflow of: " + getBinKey(i) + ", values were not in the histogram.");
+			}
+		}
+	}
+
+	/**
+	 * Adds the other histogram's counts to this one.
+	 * @param other
+	 * @throws Exception
+	 */
+	public void add(final IntHistogram other) throws Exception {
+		checkCompatible(other);
+		for (int i = 0; i < bins.length; i++) {
+			if (Integer.MAX_VALUE - bins[i] < other.bins[i]) {
+				throw new Exception("Overflow of: " + getBinKey(i) + " adding " + other.bins[i] + ".");
+			}
+		}
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] += other.bins[i];
+		}
+		total += other.total;
+	}
+
+	/**
+	 * Subtracts the other histogram's counts from this one, e.g. the
+	 * column leaving a sliding window.
+	 * @param other
+	 * @throws Exception
+	 */
+	public void subtract(final IntHistogram other) throws Exception {
+		checkCompatible(other);
+		for (int i = 0; i < bins.length; i++) {
+			if (bins[i] < other.bins[i]) {
+				throw new Exception("Underflow of: " + getBinKey(i) + " trying to decrement " +
+									bins[i] + " by " + other.bins[i] + ".");
+			}
+		}
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] -= other.bins[i];
+		}
+		total -= other.total;
+	}
+
+	/**
+	 * Returns a new histogram of the sum of the histograms, which must all
+	 * have the same range and step.
+	 * @param histograms
+	 * @return
+	 * @throws Exception
+	 */
+	public static IntHistogram merge(final List<IntHistogram> histograms) throws Exception {
+		if (histograms == null || histograms.size() == 0) {
+			throw new Exception("No histograms to merge.");
+		}
+		IntHistogram merged = histograms.get(0).createEmpty();
+		for (IntHistogram histogram : histograms) {
+			merged.add(histogram);
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns a histogram of the values, counting large arrays in parallel
+	 * chunks that are merged at the end.
+	 * @param min
+	 * @param max
+	 * @param step
+	 * @param values
+	 * @return
+	 * @throws Exception
+	 */
+	public static IntHistogram getHistogram(final int min,
+											final int max,
+											final int step,
+											final int values[]) throws Exception {
+		IntHistogram histogram = new IntHistogram(min, max, step);
+		if (values.length <= PARALLEL_CHUNK) {
+			histogram.addAll(values);
+			return histogram;
+		}
+
+		int chunks = (values.length + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+		try {
+			return IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+				try {
+					IntHistogram partial = histogram.createEmpty();
+					int offset = chunk * PARALLEL_CHUNK;
+					partial.addAll(values, offset, Math.min(PARALLEL_CHUNK, values.length - offset));
+					return partial;
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}).reduce(histogram, (a, b) -> {
+				try {
+					IntHistogram sum = a.copy();
+					sum.add(b);
+					return sum;
+				}
+				catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			});
+		}
+		catch (CompletionException e) {
+			throw TypeUtils.getCause(e);
+		}
+	}
+
+	/**
+	 * Returns the key of the fullest bin, or null if the histogram is
+	 * empty.  Ties go to the lower key.
+	 * @return
+	 */
+	public Integer getMostFrequent() {
+		int most = -1;
+		int count = 0;
+		for (int i = 0; i < bins.length; i++) {
+			if (bins[i] > count) {
+				count = bins[i];
+				most = i;
+			}
+		}
+		if (most < 0) {
+			return null;
+		}
+		return getBinKey(most);
+	}
+
+	/**
+	 * Returns the keys of all non-empty bins, most frequent first.
+	 * @return
+	 */
+	public List<Integer> getRanked() {
+		return getTopK(bins.length);
+	}
+
+	/**
+	 * Returns the keys of up to k non-empty bins, most frequent first, ties
+	 * to the lower key.  Selects the top k before sorting, so only those
+	 * are ordered.
+	 * @param k
+	 * @return
+	 */
+	public List<Integer> getTopK(final int k) {
+		int indices[] = new int[bins.length];
+		int size = 0;
+		for (int i = 0; i < bins.length; i++) {
+			if (bins[i] > 0) {
+				indices[size++] = i;
+			}
+		}
+		int count = Math.min(Math.max(k, 0), size);
+		if (count > 0 && count < size) {
+			select(indices, 0, size - 1, count - 1);
+		}
+		sort(indices, count);
+
+		List<Integer> list = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(getBinKey(indices[i]));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns (key, count) of up to k non-empty bins, most frequent first.
+	 * @param k
+	 * @return
+	 */
+	public List<Pair<Integer, Integer>> getTopKScored(final int k) {
+		List<Pair<Integer, Integer>> list = new ArrayList<Pair<Integer, Integer>>();
+		for (Integer key : getTopK(k)) {
+			list.add(new Pair<Integer, Integer>(key, bins[(key - min) / step]));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns a Histogram with the same counts, keyed by bin.
+	 * @return
+	 * @throws Exception
+	 */
+	public Histogram<Integer> toHistogram() throws Exception {
+		Histogram<Integer> histogram = new Histogram<Integer>();
+		for (int i = 0; i < bins.length; i++) {
+			if (bins[i] > 0) {
+				histogram.increment(getBinKey(i), bins[i]);
+			}
+		}
+		return histogram;
+	}
+
+	public String contentsToString() {
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < bins.length; i++) {
+			buffer.append(getBinKey(i));
+			buffer.append(": ");
+			buffer.append(bins[i]);
+			buffer.append("\n");
+		}
+		return new String(buffer);
+	}
+
+	/**
+	 * Returns true if a ranks ahead of b: more frequent, or as frequent
+	 * and lower.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private boolean before(final int a, final int b) {
+		return bins[a] > bins[b] || (bins[a] == bins[b] && a < b);
+	}
+
+	/**
+	 * Partitions indices[left, right] so the first n + 1 are the top
+	 * ranked, in no particular order (quickselect).
+	 * @param indices
+	 * @param left
+	 * @param right
+	 * @param n
+	 */
+	private void select(final int indices[], int left, int right, final int n) {
+		while (left < right) {
+			int middle = (left + right) >>> 1;
+			int pivot = indices[middle];
+			swap(indices, middle, right);
+			int store = left;
+			for (int i = left; i < right; i++) {
+				if (before(indices[i], pivot)) {
+					swap(indices, i, store++);
+				}
+			}
+			swap(indices, store, right);
+			if (store == n) {
+				return;
+			}
+			else if (store < n) {
+				left = store + 1;
+			}
+			else {
+				right = store - 1;
+			}
+		}
+	}
+
+	/**
+	 * Sorts indices[0, count) by rank.  Each index is packed under its
+	 * inverted count so a plain long sort gives the order.
+	 * @param indices
+	 * @param count
+	 */
+	private void sort(final int indices[], final int count) {
+		long keys[] = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = ((long) (Integer.MAX_VALUE - bins[indices[i]]) << 32) | indices[i];
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < count; i++) {
+			indices[i] = (int) keys[i];
+		}
+	}
+
+	private static void swap(final int indices[], final int a, final int b) {
+		int temp = indices[a];
+		indices[a] = indices[b];
+		indices[b] = temp;
+	}
+
+	/**
+	 * Returns the bin index of the value, see the class comment.
+	 * @param value
+	 * @return
+	 */
+	private int getIndex(final int value) {
+		if (value <= min) {
+			return 0;
+		}
+		return (value - min - 1) / step;
+	}
+
+	private void check(final int value) throws Exception {
+		if (value < min || value > max) {
+			throw new Exception("Invalid value: " + value + " for range: " + min + "-" + max + ".");
+		}
+	}
+
+	private void checkCompatible(final IntHistogram other) throws Exception {
+		if (other.min != min || other.max != max || other.step != step) {
+			throw new Exception("Histogram " + other.min + "-" + other.max + "/" + other.step +
+								" does not match " + min + "-" + max + "/" + step + ".");
+		}
+	}
+
+	private static void checkRange(final int size, final int offset, final int length) throws Exception {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			throw new Exception("Range " + offset + " + " + length + " exceeds " + size + ".");
+		}
+	}
+
+}
@@ -28,12 +28,9 @@ public class IntegerHistogram extends Histogram<Integer> {
 	public void increment(final int value, final int amount) throws Exception {
 		check(value);
 		
-		int bin = min + step;
-		while (bin < value) {
-			bin += step;
-		}
-		super.increment(bin - step, amount);
-		
+		// Same bin the old step-by-step search found.
+		int bin = value <= min ? min : min + ((value - min - 1) / step) * step;
+		super.increment(bin, amount);
 	}
 	
 	public void increment(final Collection<Integer> items) throws Exception {
@@ -0,0 +1,138 @@
+package kaflib.types;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a WordTrie node: children keyed by letter and whether the path
+ * to here spells a word.
+ */
+class Node implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final Map<Character, Node> children;
+	private boolean is_word;
+	
+	public Node() {
+		children = new HashMap<Character, Node>();
+		is_word = false;
+	}
+	
+	/**
+	 * Inserts the remainder of the word to this subtree.
+	 * @param word
+	 * @throws Exception
+	 */
+	public void insert(final String word) throws Exception {
+		CheckUtils.check(word, "word");
+		
+		// No more letters, mark this as a complete word.
+		if (word.isEmpty()) {
+			is_word = true;
+			return;
+		}
+
+		Character letter = word.charAt(0);
+		String subword = word.substring(1);
+		if (!children.containsKey(letter)) {
+			children.put(letter, new Node());
+		}
+		children.get(letter).insert(subword);
+		
+	}
+	
+	public boolean contains(final String word) {
+		if (word.isEmpty()) {
+			return is_word;
+		}		
+		Character letter = word.charAt(0);
+		String subword = word.substring(1);
+		if (!children.containsKey(letter)) {
+			return false;
+		}
+		return children.get(letter).contains(subword);
+	}
+	
+	public boolean remove(final String word) throws Exception {
+		if (word.isEmpty()) {
+			is_word = false;
+			return true;
+		}		
+		Character letter = word.charAt(0);
+		String subword = word.substring(1);
+		if (!children.containsKey(letter)) {
+			return false;
+		}
+		return children.get(letter).remove(subword);
+	}
+	
+	/**
+	 * Returns the children keyed by edge letter.
+	 * @return
+	 */
+	Map<Character, Node> getChildren() {
+		return children;
+	}
+	
+	/**
+	 * Returns whether or not this node terminated a word.
+	 * @return
+	 */
+	public boolean isWord() {
+		return is_word;
+	}
+	
+	/**
+	 * Returns the entire subtree as a list of strings.
+	 * @param maxSize
+	 * @return
+	 * @throws Exception
+	 */
+	public Set<String> getAll(final String word, 
+							   final Integer maxSize) {
+		Set<String> list = new HashSet<String>();
+		
+		// No more specifier, return the whole subtree.
+		if (word.isEmpty()) {
+			for (Character letter : children.keySet()) {
+				Set<String> sublist = children.get(letter).getAll(word, maxSize);
+				if (children.get(letter).isWord()) {
+					sublist.add(new String(""));
+				}
+				for (String string : sublist) {
+					list.add("" + letter + string);
+					if (maxSize != null && list.size() > maxSize) {
+						return list;
+					}
+				}
+			}	
+		}
+		// More definition, continue down the tree.
+		else {
+			Character letter = word.charAt(0);
+			String subword = word.substring(1);
+			
+			// The next letter is not in the tree, no match.
+			if (!children.containsKey(letter)) {
+				return list;
+			}
+			
+			Set<String> sublist = children.get(letter).getAll(subword, maxSize);			
+			if (subword.isEmpty() && children.get(letter).isWord()) {
+				sublist.add(new String(""));
+			}
+			for (String string : sublist) {
+				list.add("" + letter + string);
+				if (maxSize != null && list.size() > maxSize) {
+					return list;
+				}
+			}
+		}
+		return list;
+	}
+	
+}
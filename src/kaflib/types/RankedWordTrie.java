@@ -0,0 +1,362 @@
+package kaflib.types;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import kaflib.utils.CheckUtils;
+
+/**
+ * Defines a word trie where each word carries a score (a count, an access
+ * time, any weight) and every node caches the best score beneath it.
+ * That lets getTopK() walk best first: a priority queue of nodes keyed by
+ * their cached best, so the k highest scoring completions of a prefix come
+ * out in order after visiting only the paths that lead to them, rather
+ * than collecting every match and sorting.
+ *
+ * Changing a score only recomputes the cached bests up the word's path, so
+ * scores can be updated on every access.  Ties are broken by discovery
+ * order, which when scores are equal throughout is shortest first, then
+ * alphabetical.  Not synchronized.
+ */
+public class RankedWordTrie implements WordIndex, Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final long NONE = Long.MIN_VALUE;
+
+	private final RankedNode root;
+	private int size;
+
+	/**
+	 * Creates an empty trie.
+	 */
+	public RankedWordTrie() {
+		root = new RankedNode(null, (char) 0);
+		size = 0;
+	}
+
+	/**
+	 * Creates a trie of the words, each scored 0.
+	 * @param words
+	 * @throws Exception
+	 */
+	public RankedWordTrie(final Collection<String> words) throws Exception {
+		this();
+		for (String word : words) {
+			insert(word);
+		}
+	}
+
+	/**
+	 * Returns the number of words.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Inserts the word with score 0, keeps the score if already present.
+	 * @param word
+	 * @throws Exception
+	 */
+	public void insert(final String word) throws Exception {
+		CheckUtils.checkNonEmpty(word, "word");
+		RankedNode node = getOrCreate(word);
+		if (!node.is_word) {
+			set(node, 0);
+		}
+	}
+
+	/**
+	 * Inserts the word or replaces its score.
+	 * @param word
+	 * @param score
+	 * @throws Exception
+	 */
+	public void setScore(final String word, final long score) throws Exception {
+		CheckUtils.checkNonEmpty(word, "word");
+		set(getOrCreate(word), score);
+	}
+
+	/**
+	 * Adds to the word's score, inserting it at 0 first if needed.
+	 * Returns the new score.
+	 * @param word
+	 * @param amount
+	 * @return
+	 * @throws Exception
+	 */
+	public long addScore(final String word, final long amount) throws Exception {
+		CheckUtils.checkNonEmpty(word, "word");
+		RankedNode node = getOrCreate(word);
+		long score = (node.is_word ? node.score : 0) + amount;
+		set(node, score);
+		return score;
+	}
+
+	/**
+	 * Returns the word's score, or null if it isn't present.
+	 * @param word
+	 * @return
+	 */
+	public Long getScore(final String word) {
+		RankedNode node = find(word);
+		if (node == null || !node.is_word) {
+			return null;
+		}
+		return node.score;
+	}
+
+	@Override
+	public boolean contains(final String word) {
+		RankedNode node = find(word);
+		return node != null && node.is_word;
+	}
+
+	/**
+	 * Removes the word, pruning branches left empty.
+	 * @param word
+	 * @return
+	 */
+	public boolean remove(final String word) {
+		RankedNode node = find(word);
+		if (node == null || !node.is_word) {
+			return false;
+		}
+		node.is_word = false;
+		node.score = 0;
+		size--;
+
+		// Drop now-empty nodes, then fix the bests above.
+		while (node.parent != null && !node.is_word && node.child_count == 0) {
+			node.parent.removeChild(node.letter);
+			node = node.parent;
+		}
+		update(node);
+		return true;
+	}
+
+	/**
+	 * Returns up to maxSize words with the prefix, highest score first.
+	 */
+	@Override
+	public List<String> getOrdered(final String prefix, final int maxSize) throws Exception {
+		return getTopK(prefix, maxSize);
+	}
+
+	/**
+	 * Returns up to k words with the prefix, highest score first.  A null
+	 * prefix matches every word.
+	 * @param prefix
+	 * @param k
+	 * @return
+	 */
+	public List<String> getTopK(final String prefix, final int k) {
+		List<String> list = new ArrayList<String>();
+		for (Pair<String, Long> pair : getTopKScored(prefix, k)) {
+			list.add(pair.getFirst());
+		}
+		return list;
+	}
+
+	/**
+	 * Returns up to k (word, score) pairs with the prefix, highest score
+	 * first.
+	 * @param prefix
+	 * @param k
+	 * @return
+	 */
+	public List<Pair<String, Long>> getTopKScored(final String prefix, final int k) {
+		List<Pair<String, Long>> list = new ArrayList<Pair<String, Long>>();
+		RankedNode start = find(prefix == null ? "" : prefix);
+		if (start == null || start.best == NONE || k <= 0) {
+			return list;
+		}
+
+		// Nodes wait under their best descendant score, words under their
+		// own score; a word is final once it reaches the head.
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+		long sequence = 0;
+		queue.add(new Candidate(start, false, start.best, sequence++));
+		while (!queue.isEmpty() && list.size() < k) {
+			Candidate candidate = queue.poll();
+			RankedNode node = candidate.node;
+			if (candidate.word) {
+				list.add(new Pair<String, Long>(node.getWord(), node.score));
+				continue;
+			}
+			if (node.is_word) {
+				queue.add(new Candidate(node, true, node.score, sequence++));
+			}
+			for (int i = 0; i < node.child_count; i++) {
+				RankedNode child = node.children[i];
+				if (child.best != NONE) {
+					queue.add(new Candidate(child, false, child.best, sequence++));
+				}
+			}
+		}
+		return list;
+	}
+
+	private RankedNode find(final String word) {
+		if (word == null) {
+			return null;
+		}
+		RankedNode node = root;
+		for (int i = 0; i < word.length() && node != null; i++) {
+			node = node.getChild(word.charAt(i));
+		}
+		return node;
+	}
+
+	private RankedNode getOrCreate(final String word) {
+		RankedNode node = root;
+		for (int i = 0; i < word.length(); i++) {
+			node = node.getOrAddChild(word.charAt(i));
+		}
+		return node;
+	}
+
+	private void set(final RankedNode node, final long score) {
+		if (!node.is_word) {
+			node.is_word = true;
+			size++;
+		}
+		node.score = score;
+		update(node);
+	}
+
+	/**
+	 * Recomputes cached bests from the node up, stopping once one doesn't
+	 * change.
+	 * @param start
+	 */
+	private void update(final RankedNode start) {
+		RankedNode node = start;
+		while (node != null) {
+			long best = node.is_word ? node.score : NONE;
+			for (int i = 0; i < node.child_count; i++) {
+				best = Math.max(best, node.children[i].best);
+			}
+			if (best == node.best && node != start) {
+				return;
+			}
+			node.best = best;
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * A queued node or word.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final RankedNode node;
+		private final boolean word;
+		private final long key;
+		private final long sequence;
+
+		private Candidate(final RankedNode node, final boolean word, final long key, final long sequence) {
+			this.node = node;
+			this.word = word;
+			this.key = key;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(final Candidate other) {
+			if (key != other.key) {
+				return key > other.key ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * A trie node with children in letter order.
+	 */
+	private static class RankedNode implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final RankedNode parent;
+		private final char letter;
+		private char letters[];
+		private RankedNode children[];
+		private int child_count;
+		private boolean is_word;
+		private long score;
+		private long best;
+
+		private RankedNode(final RankedNode parent, final char letter) {
+			this.parent = parent;
+			this.letter = letter;
+			letters = null;
+			children = null;
+			child_count = 0;
+			is_word = false;
+			score = 0;
+			best = NONE;
+		}
+
+		private int indexOf(final char letter) {
+			if (child_count == 0) {
+				return -1;
+			}
+			return Arrays.binarySearch(letters, 0, child_count, letter);
+		}
+
+		private RankedNode getChild(final char letter) {
+			int index = indexOf(letter);
+			return index >= 0 ? children[index] : null;
+		}
+
+		private RankedNode getOrAddChild(final char letter) {
+			int index = indexOf(letter);
+			if (index >= 0) {
+				return children[index];
+			}
+			index = child_count == 0 ? 0 : -index - 1;
+			if (children == null) {
+				letters = new char[2];
+				children = new RankedNode[2];
+			}
+			else if (child_count == children.length) {
+				letters = Arrays.copyOf(letters, child_count * 2);
+				children = Arrays.copyOf(children, child_count * 2);
+			}
+			System.arraycopy(letters, index, letters, index + 1, child_count - index);
+			System.arraycopy(children, index, children, index + 1, child_count - index);
+			RankedNode child = new RankedNode(this, letter);
+			letters[index] = letter;
+			children[index] = child;
+			child_count++;
+			return child;
+		}
+
+		private void removeChild(final char letter) {
+			int index = indexOf(letter);
+			if (index < 0) {
+				return;
+			}
+			System.arraycopy(letters, index + 1, letters, index, child_count - index - 1);
+			System.arraycopy(children, index + 1, children, index, child_count - index - 1);
+			child_count--;
+			children[child_count] = null;
+		}
+
+		private String getWord() {
+			int length = 0;
+			for (RankedNode node = this; node.parent != null; node = node.parent) {
+				length++;
+			}
+			char word[] = new char[length];
+			for (RankedNode node = this; node.parent != null; node = node.parent) {
+				word[--length] = node.letter;
+			}
+			return new String(word);
+		}
+	}
+
+}
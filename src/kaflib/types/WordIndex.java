@@ -0,0 +1,27 @@
+package kaflib.types;
+
+import java.util.List;
+
+/**
+ * Defines the read side of a word set: membership and prefix completion.
+ * Implemented by the mutable WordTrie and the packed, read-only tries.
+ */
+public interface WordIndex {
+
+	/**
+	 * Returns whether the word is in the index.
+	 * @param word
+	 * @return
+	 */
+	public boolean contains(final String word);
+
+	/**
+	 * Returns up to maxSize words starting with the prefix, alphabetically.
+	 * @param prefix
+	 * @param maxSize
+	 * @return
+	 * @throws Exception
+	 */
+	public List<String> getOrdered(final String prefix, final int maxSize) throws Exception;
+
+}
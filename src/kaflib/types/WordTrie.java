@@ -1,15 +1,15 @@
 package kaflib.types;
 
 import java.io.File;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import kaflib.utils.CheckUtils;
 import kaflib.utils.FileUtils;
@@ -31,11 +31,20 @@ import kaflib.utils.StringUtils;
  * but this is of no concern to using it).
  *      
  * The obvious application is autocomplete.
+ *
+ * A tree can also sit on a read-only base index, such as a mapped
+ * CompactWordTrie: queries see both, inserts go to the tree.  Words in the
+ * base can't be removed.  Such a tree serializes as a plain copy of all
+ * its words.
+ *
+ * Inserts, removes and lookups lock the tree, so words can be added from
+ * one thread while another completes.
  */
-public class WordTrie implements Serializable {
+public class WordTrie implements WordIndex, Serializable {
 
 	private static final long serialVersionUID = 1L;
 	private final Node root;
+	private final transient WordIndex base;
 	private int hash;
 	
 	/**
@@ -43,6 +52,7 @@ public class WordTrie implements Serializable {
 	 */
 	public WordTrie() {
 		root = new Node();
+		base = null;
 		hash = 0;
 	}
 
@@ -51,32 +61,79 @@ public class WordTrie implements Serializable {
 	 */
 	public WordTrie(final Collection<String> initialValues) throws Exception {
 		root = new Node();
+		base = null;
 		for (String word : initialValues) {
 			root.insert(word);
 		}
 	}
 
+	/**
+	 * Creates an empty word tree over the base index.
+	 * @param base
+	 * @throws Exception
+	 */
+	public WordTrie(final WordIndex base) throws Exception {
+		CheckUtils.check(base, "base");
+		root = new Node();
+		this.base = base;
+		hash = 0;
+	}
+
+	/**
+	 * Creates a word tree of the word list file, one word per line.
+	 * @param file
+	 * @throws Exception
+	 */
 	public WordTrie(final File file) throws Exception {	
 		this(FileUtils.readLines(file));
 	}
+
+	/**
+	 * Creates an empty word tree over the word list file, one word per 
+	 * line, without loading it.  The list is packed into a .kwt index 
+	 * beside it on first use and mapped after that, see 
+	 * CompactWordTrie.open().
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static WordTrie openIndexed(final File file) throws Exception {
+		return new WordTrie(CompactWordTrie.open(file));
+	}
 	
 	/**
 	 * Inserts the specified word to the tree.
 	 * @param word
 	 * @throws Exception
 	 */
-	public void insert(final String word) throws Exception {
+	public synchronized void insert(final String word) throws Exception {
 		CheckUtils.checkNonEmpty(word, "word");
 		long sum = hash + word.hashCode();
 		hash = (int) (sum % Integer.MAX_VALUE);
 		root.insert(word);
 	}
 	
-	public boolean contains(final String word) {
-		return root.contains(word);
+	public synchronized boolean contains(final String word) {
+		return root.contains(word) || (base != null && base.contains(word));
+	}
+	
+	/**
+	 * Returns the root node, for building packed copies.
+	 * @return
+	 */
+	Node getRoot() {
+		return root;
+	}
+	
+	/**
+	 * Returns the base index, or null.
+	 * @return
+	 */
+	WordIndex getBase() {
+		return base;
 	}
 	
-	public boolean remove(final String word) throws Exception {
+	public synchronized boolean remove(final String word) throws Exception {
 		CheckUtils.checkNonEmpty(word, "word");
 		boolean removed = root.remove(word);
 		
@@ -87,6 +144,24 @@ public class WordTrie implements Serializable {
 		return removed;
 	}
 	
+	/**
+	 * Serializes a tree with a base as a plain tree of all its words, since
+	 * the base index isn't serializable.
+	 * @return
+	 * @throws ObjectStreamException
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		if (base == null) {
+			return this;
+		}
+		try {
+			return new WordTrie(get());
+		}
+		catch (Exception e) {
+			throw new NotSerializableException("Unable to copy base words: " + e.getMessage());
+		}
+	}
+	
 	/**
 	 * Returns a hash for this object.
 	 */
@@ -99,7 +174,7 @@ public class WordTrie implements Serializable {
 	 * @param word
 	 * @throws Exception
 	 */
-	public void insert(final Collection<String> words) throws Exception {
+	public synchronized void insert(final Collection<String> words) throws Exception {
 		CheckUtils.checkNonEmpty(words, "word");
 		for (String word : words) {
 			insert(word);
@@ -110,7 +185,6 @@ public class WordTrie implements Serializable {
 	 * Returns up to maxSize values from the tree.
 	 * @param maxSize
 	 * @return
-	 * @throws Exception
 	 */
 	public Set<String> get() {
 		return get(null, null);
@@ -121,20 +195,20 @@ public class WordTrie implements Serializable {
 	 * Returns up to maxSize values from the tree.
 	 * @param maxSize
 	 * @return
-	 * @throws Exception
 	 */
 	public Set<String> get(final Integer maxSize) {
 		return get(null, maxSize);
 	}
 	
 	/**
-	 * Returns up to maxSize values matching the specified prefix.
+	 * Returns up to maxSize values matching the specified prefix.  With a
+	 * base, the first maxSize of both layers alphabetically.  Throws
+	 * IllegalStateException if the base can't be read.
 	 * @param prefix
 	 * @param maxSize
 	 * @return
-	 * @throws Exception
 	 */
-	public Set<String> get(final String prefix, final Integer maxSize) {
+	public synchronized Set<String> get(final String prefix, final Integer maxSize) {
 		Set<String> words;
 		if (prefix == null) {
 			words = root.getAll(new String(), maxSize);
@@ -142,7 +216,22 @@ public class WordTrie implements Serializable {
 		else {	
 			words = root.getAll(prefix, maxSize);
 		}
-		return words;
+		if (base == null) {
+			return words;
+		}
+		
+		TreeSet<String> merged = new TreeSet<String>(words);
+		try {
+			merged.addAll(base.getOrdered(prefix, maxSize == null ? Integer.MAX_VALUE : maxSize));
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Unable to read base index.", e);
+		}
+		// Both layers may have filled up, keep the first alphabetically.
+		while (maxSize != null && merged.size() > Math.max(maxSize, 0)) {
+			merged.pollLast();
+		}
+		return merged;
 	}
 	
 	/**
@@ -153,7 +242,7 @@ public class WordTrie implements Serializable {
 	 * @return
 	 * @throws Exception
 	 */
-	public List<String> getOrdered(final String prefix, final int maxSize) throws Exception {
+	public synchronized List<String> getOrdered(final String prefix, final int maxSize) throws Exception {
 		List<String> list = new ArrayList<String>();
 		list.addAll(get(prefix, maxSize));
 		Collections.sort(list);
@@ -191,123 +280,3 @@ public class WordTrie implements Serializable {
 	}
 	
 }
-
-
-class Node implements Serializable {
-	private static final long serialVersionUID = 1L;
-	private final Map<Character, Node> children;
-	private boolean is_word;
-	
-	public Node() {
-		children = new HashMap<Character, Node>();
-		is_word = false;
-	}
-	
-	/**
-	 * Inserts the remainder of the word to this subtree.
-	 * @param word
-	 * @throws Exception
-	 */
-	public void insert(final String word) throws Exception {
-		CheckUtils.check(word, "word");
-		
-		// No more letters, mark this as a complete word.
-		if (word.isEmpty()) {
-			is_word = true;
-			return;
-		}
-
-		Character letter = word.charAt(0);
-		String subword = word.substring(1);
-		if (!children.containsKey(letter)) {
-			children.put(letter, new Node());
-		}
-		children.get(letter).insert(subword);
-		
-	}
-	
-	public boolean contains(final String word) {
-		if (word.isEmpty() && is_word) {
-			return true;
-		}		
-		Character letter = word.charAt(0);
-		String subword = word.substring(1);
-		if (!children.containsKey(letter)) {
-			return false;
-		}
-		return children.get(letter).contains(subword);
-	}
-	
-	public boolean remove(final String word) throws Exception {
-		if (word.isEmpty()) {
-			is_word = false;
-			return true;
-		}		
-		Character letter = word.charAt(0);
-		String subword = word.substring(1);
-		if (!children.containsKey(letter)) {
-			return false;
-		}
-		return children.get(letter).remove(subword);
-	}
-	
-	/**
-	 * Returns whether or not this node terminated a word.
-	 * @return
-	 */
-	public boolean isWord() {
-		return is_word;
-	}
-	
-	/**
-	 * Returns the entire subtree as a list of strings.
-	 * @param maxSize
-	 * @return
-	 * @throws Exception
-	 */
-	public Set<String> getAll(final String word, 
-							   final Integer maxSize) {
-		Set<String> list = new HashSet<String>();
-		
-		// No more specifier, return the whole subtree.
-		if (word.isEmpty()) {
-			for (Character letter : children.keySet()) {
-				Set<String> sublist = children.get(letter).getAll(word, maxSize);
-				if (children.get(letter).isWord()) {
-					sublist.add(new String(""));
-				}
-				for (String string : sublist) {
-					list.add("" + letter + string);
-					if (maxSize != null && list.size() > maxSize) {
-						return list;
-					}
-				}
-			}	
-		}
-		// More definition, continue down the tree.
-		else {
-			Character letter = word.charAt(0);
-			String subword = word.substring(1);
-			
-			// The next letter is not in the tree, no match.
-			if (!children.containsKey(letter)) {
-				return list;
-			}
-			
-			Set<String> sublist = children.get(letter).getAll(subword, maxSize);			
-			if (subword.isEmpty() && children.get(letter).isWord()) {
-				sublist.add(new String(""));
-			}
-			for (String string : sublist) {
-				list.add("" + letter + string);
-				if (list.size() > maxSize) {
-					return list;
-				}
-			}
-		}
-		return list;
-	}
-	
-}
-
-
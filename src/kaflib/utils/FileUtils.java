@@ -37,6 +37,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,11 +47,6 @@ import kaflib.types.Directory;
 import kaflib.types.Matrix;
 import kaflib.types.Pair;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.model.ZipParameters;
 import net.lingala.zip4j.util.Zip4jConstants;
@@ -62,67 +58,131 @@ import com.opencsv.CSVReader;
 public class FileUtils {
 	
 	/**
-	 * Reads the specified xlsx file to a matrix of strings.
+	 * Receives spreadsheet rows as they're read.
+	 */
+	public interface RowListener {
+		/**
+		 * Handles the zero based row.  Values are indexed by column, null
+		 * where a cell is empty; the list is reused for the next row, so copy
+		 * it to keep it.  Return false to stop reading.
+		 * @param row
+		 * @param values
+		 * @return
+		 * @throws Exception
+		 */
+		public boolean row(final int row, final List<String> values) throws Exception;
+	}
+	
+	/**
+	 * Reads the specified xlsx file to a matrix of strings.  Uses the first
+	 * sheet.
 	 * @param file
 	 * @param columnTitles
 	 * @return
 	 * @throws Exception
 	 */
 	public static Matrix<String> readXLSXSheet(final File file, final boolean columnTitles) throws Exception {
-		Map<String, Matrix<String>> matrices = readXLSX(file, columnTitles);
-		if (matrices.size() <= 0) {
-			throw new Exception("No sheets.");
+		XLSXReader reader = new XLSXReader(file);
+		try {
+			if (reader.getSheetNames().size() <= 0) {
+				throw new Exception("No sheets.");
+			}
+			return readXLSXSheet(reader, reader.getSheetNames().get(0), columnTitles);
+		}
+		finally {
+			reader.close();
 		}
-		return matrices.get(matrices.keySet().iterator().next());
 	}
 	
 	/**
-	 * Reads a spreadsheet to a set of matrices (one per worksheet).
+	 * Reads a spreadsheet to a set of matrices (one per worksheet), in sheet
+	 * order.
 	 * @param file
 	 * @return
 	 * @throws Exception
 	 */
 	public static Map<String, Matrix<String>> readXLSX(final File file, final boolean columnTitles) throws Exception {
-		Map<String, Matrix<String>> matrices = new HashMap<String, Matrix<String>>();
-		Workbook workbook = null;
-		workbook = new XSSFWorkbook(new FileInputStream(file));
-
-		for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
-			String name = workbook.getSheetName(i);
-			Sheet sheet = workbook.getSheetAt(i);
-			if (sheet == null) {
-				continue;
+		Map<String, Matrix<String>> matrices = new LinkedHashMap<String, Matrix<String>>();
+		XLSXReader reader = new XLSXReader(file);
+		try {
+			for (String name : reader.getSheetNames()) {
+				matrices.put(name, readXLSXSheet(reader, name, columnTitles));
 			}
-			Matrix<String> matrix = new Matrix<String>();
-			
-			int start = 0;
-			if (columnTitles) {
-				Row row = sheet.getRow(0);
-				if (row != null) {
+		}
+		finally {
+			reader.close();
+		}
+		return matrices;
+	}
+	
+	/**
+	 * Streams the sheet's rows to the listener, holding one row at a time.
+	 * A null sheet reads the first.
+	 * @param file
+	 * @param sheet
+	 * @param listener
+	 * @throws Exception
+	 */
+	public static void readXLSX(final File file, 
+								final String sheet, 
+								final RowListener listener) throws Exception {
+		CheckUtils.check(listener, "listener");
+		XLSXReader reader = new XLSXReader(file);
+		try {
+			if (reader.getSheetNames().size() <= 0) {
+				throw new Exception("No sheets.");
+			}
+			reader.read(sheet == null ? reader.getSheetNames().get(0) : sheet, listener);
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Returns the sheet names in workbook order.
+	 * @param file
+	 * @return
+	 * @throws Exception
+	 */
+	public static List<String> getXLSXSheetNames(final File file) throws Exception {
+		XLSXReader reader = new XLSXReader(file);
+		try {
+			return new ArrayList<String>(reader.getSheetNames());
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	private static Matrix<String> readXLSXSheet(final XLSXReader reader, 
+												final String sheet,
+												final boolean columnTitles) throws Exception {
+		final Matrix<String> matrix = new Matrix<String>();
+		reader.read(sheet, new RowListener() {
+			@Override
+			public boolean row(final int row, final List<String> values) throws Exception {
+				if (columnTitles && row == 0) {
 					List<String> labels = new ArrayList<String>();
-					for (int k = 0; k < row.getLastCellNum(); k++) {
-						labels.add(row.getCell(k).toString());
+					for (String value : values) {
+						labels.add(value == null ? "" : value);
 					}
 					matrix.setColumnLabels(labels);
+					return true;
 				}
-				start = 1;
-			}
-			for (int j = start; j <= sheet.getLastRowNum(); j++) {
-				Row row = sheet.getRow(j);
-				if (row == null) {
-					continue;
+				int index = columnTitles ? row - 1 : row;
+				if (index < 0) {
+					return true;
 				}
-				for (int k = 0; k <= row.getLastCellNum(); k++) {
-					Cell cell = row.getCell(k);
-					if (cell != null) {
-						matrix.set(j - start, k, cell.toString());
+				for (int k = 0; k < values.size(); k++) {
+					if (values.get(k) != null) {
+						matrix.set(index, k, values.get(k));
 					}
 				}
+				return true;
 			}
-			matrices.put(name, matrix);
-		}
-		workbook.close();
-		return matrices;
+		});
+		return matrix;
 	}
 
 	public static File changeExtension(final File file, 
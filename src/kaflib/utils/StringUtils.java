@@ -866,17 +866,26 @@ public class StringUtils {
 		CheckUtils.checkNonEmpty(a, "a string");
 		CheckUtils.checkNonEmpty(b, "b string");
 
-		StringBuffer aa = new StringBuffer(a.toLowerCase());
-		StringBuffer bb = new StringBuffer(b.toLowerCase());
+		// Size of the multiset intersection: sort both, count in step.
+		char aa[] = a.toLowerCase().toCharArray();
+		char bb[] = b.toLowerCase().toCharArray();
+		Arrays.sort(aa);
+		Arrays.sort(bb);
 		int matches = 0;
-		
-		while (aa.length() > 0) {
-			int index = bb.indexOf("" + aa.charAt(0));
-			if (index >= 0) {
-				bb.deleteCharAt(index);
+		int i = 0;
+		int j = 0;
+		while (i < aa.length && j < bb.length) {
+			if (aa[i] == bb[j]) {
 				matches++;
+				i++;
+				j++;
+			}
+			else if (aa[i] < bb[j]) {
+				i++;
+			}
+			else {
+				j++;
 			}
-			aa.deleteCharAt(0);
 		}
 		
 		return (100 * matches) / Math.max(a.length(), b.length());
@@ -36,6 +36,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
 
 import org.apache.poi.util.IOUtils;
 
@@ -518,4 +519,23 @@ public class TypeUtils {
 		return new Pair<byte[], byte[]>(a, b);
 	}
 	
+	/**
+	 * Returns the exception a parallel worker wrapped in a
+	 * CompletionException, unwrapping any nesting the pool added.  If the
+	 * cause is an Error or missing, returns the CompletionException itself,
+	 * which is unchecked.
+	 * @param e
+	 * @return
+	 */
+	public static Exception getCause(final CompletionException e) {
+		Throwable cause = e;
+		while (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof Exception) {
+			return (Exception) cause;
+		}
+		return e;
+	}
+	
 }
@@ -0,0 +1,338 @@
+package kaflib.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import kaflib.utils.FileUtils.RowListener;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads xlsx sheets a row at a time with SAX over the zipped XML, so memory
+ * is the shared strings table plus one row, whatever the sheet size.  Only
+ * POI's package layer is used, not the xmlbeans models.
+ *
+ * Cell text matches what the workbook model's Cell.toString() gives:
+ * numbers as doubles ("3.0"), date formatted numbers as dd-MMM-yyyy,
+ * booleans as TRUE/FALSE and formulas as their formula text (shared
+ * formulas, which only the first cell spells out, give the cached value).
+ */
+class XLSXReader {
+
+	private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+	private final OPCPackage pkg;
+	private final XSSFReader reader;
+	private final List<String> sheet_names;
+	private final List<String> sheet_ids;
+	private final List<Boolean> date_styles;
+	private boolean date_1904;
+	private ReadOnlySharedStringsTable strings;
+
+	XLSXReader(final File file) throws Exception {
+		CheckUtils.checkReadable(file, "xlsx file");
+		pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+		try {
+			reader = new XSSFReader(pkg);
+			sheet_names = new ArrayList<String>();
+			sheet_ids = new ArrayList<String>();
+			date_styles = new ArrayList<Boolean>();
+			date_1904 = false;
+			strings = null;
+			readWorkbook();
+			readStyles();
+		}
+		catch (Exception e) {
+			pkg.revert();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the sheet names in workbook order.
+	 * @return
+	 */
+	List<String> getSheetNames() {
+		return sheet_names;
+	}
+
+	/**
+	 * Passes each row of the sheet to the listener until it returns false.
+	 * @param sheet
+	 * @param listener
+	 * @throws Exception
+	 */
+	void read(final String sheet, final RowListener listener) throws Exception {
+		int index = sheet_names.indexOf(sheet);
+		if (index < 0) {
+			throw new Exception("No sheet: " + sheet + ".");
+		}
+		if (strings == null) {
+			strings = new ReadOnlySharedStringsTable(pkg);
+		}
+		InputStream input = reader.getSheet(sheet_ids.get(index));
+		try {
+			getParser().parse(input, new SheetHandler(listener));
+		}
+		catch (Stop stop) {
+			// Listener is done.
+		}
+		catch (SAXException e) {
+			if (e.getException() != null) {
+				throw e.getException();
+			}
+			throw e;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	void close() {
+		// Opened read only, nothing to save.
+		pkg.revert();
+	}
+
+	private void readWorkbook() throws Exception {
+		InputStream input = reader.getWorkbookData();
+		try {
+			getParser().parse(input, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if (localName.equals("sheet")) {
+						sheet_names.add(attributes.getValue("name"));
+						sheet_ids.add(attributes.getValue(RELATIONSHIPS, "id"));
+					}
+					else if (localName.equals("workbookPr")) {
+						String value = attributes.getValue("date1904");
+						date_1904 = "1".equals(value) || "true".equals(value);
+					}
+				}
+			});
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Records which cell styles have a date number format.
+	 * @throws Exception
+	 */
+	private void readStyles() throws Exception {
+		InputStream input;
+		try {
+			input = reader.getStylesData();
+		}
+		catch (IllegalArgumentException e) {
+			// No styles part, nothing is a date.
+			return;
+		}
+		final Map<Integer, String> formats = new HashMap<Integer, String>();
+		final List<Integer> style_formats = new ArrayList<Integer>();
+		try {
+			getParser().parse(input, new DefaultHandler() {
+				private boolean in_cell_xfs = false;
+
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if (localName.equals("numFmt")) {
+						formats.put(Integer.valueOf(attributes.getValue("numFmtId")), attributes.getValue("formatCode"));
+					}
+					else if (localName.equals("cellXfs")) {
+						in_cell_xfs = true;
+					}
+					else if (in_cell_xfs && localName.equals("xf")) {
+						String id = attributes.getValue("numFmtId");
+						style_formats.add(id == null ? 0 : Integer.valueOf(id));
+					}
+				}
+
+				@Override
+				public void endElement(String uri, String localName, String qName) {
+					if (localName.equals("cellXfs")) {
+						in_cell_xfs = false;
+					}
+				}
+			});
+		}
+		finally {
+			input.close();
+		}
+		for (int id : style_formats) {
+			String format = formats.containsKey(id) ? formats.get(id) : BuiltinFormats.getBuiltinFormat(id);
+			date_styles.add(format != null && DateUtil.isADateFormat(id, format));
+		}
+	}
+
+	private static SAXParser getParser() throws Exception {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		return factory.newSAXParser();
+	}
+
+	/**
+	 * Returns the zero based column of a cell reference such as "AB12".
+	 * @param reference
+	 * @return
+	 */
+	static int getColumn(final String reference) {
+		int column = 0;
+		for (int i = 0; i < reference.length(); i++) {
+			char c = reference.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				break;
+			}
+			column = column * 26 + (c - 'A' + 1);
+		}
+		return column - 1;
+	}
+
+	/**
+	 * Thrown through the parser to stop when the listener is done.
+	 */
+	private static class Stop extends SAXException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Collects one row of cells at a time and hands it on.
+	 */
+	private class SheetHandler extends DefaultHandler {
+		private final RowListener listener;
+		private final List<String> row;
+		private final StringBuilder text;
+		private final SimpleDateFormat date_format;
+		private int row_index;
+		private int column;
+		private String type;
+		private int style;
+		private String formula;
+		private String value;
+		private boolean in_text;
+
+		private SheetHandler(final RowListener listener) {
+			this.listener = listener;
+			row = new ArrayList<String>();
+			text = new StringBuilder();
+			date_format = new SimpleDateFormat("dd-MMM-yyyy");
+			row_index = -1;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (localName.equals("row")) {
+				String r = attributes.getValue("r");
+				row_index = r == null ? row_index + 1 : Integer.parseInt(r) - 1;
+				row.clear();
+				column = -1;
+			}
+			else if (localName.equals("c")) {
+				String r = attributes.getValue("r");
+				column = r == null ? column + 1 : getColumn(r);
+				type = attributes.getValue("t");
+				String s = attributes.getValue("s");
+				style = s == null ? 0 : Integer.parseInt(s);
+				formula = null;
+				value = null;
+			}
+			else if (localName.equals("v") || localName.equals("f") || localName.equals("t")) {
+				in_text = true;
+				text.setLength(0);
+			}
+			else if (localName.equals("is")) {
+				value = "";
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (in_text) {
+				text.append(ch, start, length);
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (localName.equals("v")) {
+				value = text.toString();
+				in_text = false;
+			}
+			else if (localName.equals("f")) {
+				formula = text.length() > 0 ? text.toString() : null;
+				in_text = false;
+			}
+			else if (localName.equals("t")) {
+				// Inline string runs.
+				value = (value == null ? "" : value) + text;
+				in_text = false;
+			}
+			else if (localName.equals("c")) {
+				String cell = getText();
+				if (cell != null) {
+					while (row.size() <= column) {
+						row.add(null);
+					}
+					row.set(column, cell);
+				}
+			}
+			else if (localName.equals("row")) {
+				boolean more;
+				try {
+					more = listener.row(row_index, row);
+				}
+				catch (Exception e) {
+					throw new SAXException(e);
+				}
+				if (!more) {
+					throw new Stop();
+				}
+			}
+		}
+
+		private String getText() {
+			if (formula != null) {
+				return formula;
+			}
+			if (value == null) {
+				return null;
+			}
+			if (type == null || type.equals("n")) {
+				if (value.isEmpty()) {
+					return null;
+				}
+				double number = Double.parseDouble(value);
+				if (style < date_styles.size() && date_styles.get(style) && DateUtil.isValidExcelDate(number)) {
+					return date_format.format(DateUtil.getJavaDate(number, date_1904));
+				}
+				return Double.toString(number);
+			}
+			if (type.equals("s")) {
+				return strings.getEntryAt(Integer.parseInt(value));
+			}
+			if (type.equals("b")) {
+				return value.equals("1") ? "TRUE" : "FALSE";
+			}
+			// inlineStr, str (formula results) and e (error text).
+			return value;
+		}
+	}
+
+}